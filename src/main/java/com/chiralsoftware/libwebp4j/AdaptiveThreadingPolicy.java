@@ -0,0 +1,100 @@
+package com.chiralsoftware.libwebp4j;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A ThreadingPolicy which spends idle cores on large images and saves memory when
+ * the machine is overloaded:
+ * <ul>
+ * <li>An image of at least threadingPixels gets a thread level of 1 when there are
+ * at least two cores for every encode in progress, so libwebp's second thread has a
+ * core of its own.</li>
+ * <li>When there are more encodes in progress than cores, every image is encoded
+ * single threaded, and an image of at least lowMemoryPixels is encoded with
+ * low_memory, which holds less memory while many encodes are waiting for a core.</li>
+ * <li>Otherwise, the image is encoded single threaded, as libwebp does by default.</li>
+ * </ul>
+ * The policy counts its decisions, which stats() reports; each decision is also in the
+ * EncodeStats of the image. Instances are thread safe, and can be shared by any
+ * number of params.
+ */
+public final class AdaptiveThreadingPolicy implements ThreadingPolicy {
+
+    /** The default smallest image which is encoded with threads: one megapixel, below
+     * which the second thread's startup costs about as much as it saves */
+    public static final long DEFAULT_THREADING_PIXELS = 1024 * 1024;
+
+    /** The default smallest image which is encoded with low_memory under load: four megapixels */
+    public static final long DEFAULT_LOW_MEMORY_PIXELS = 4 * 1024 * 1024;
+
+    /** Counts of the decisions made since the policy was created
+     * @param threaded images given a thread level of 1
+     * @param lowMemory images encoded with low_memory
+     * @param singleThreaded images encoded single threaded, including those with low_memory */
+    public static record Stats(long threaded, long lowMemory, long singleThreaded) { }
+
+    private final long threadingPixels;
+    private final long lowMemoryPixels;
+
+    private final LongAdder threaded = new LongAdder();
+    private final LongAdder lowMemory = new LongAdder();
+    private final LongAdder singleThreaded = new LongAdder();
+
+    public AdaptiveThreadingPolicy() {
+        this(DEFAULT_THREADING_PIXELS, DEFAULT_LOW_MEMORY_PIXELS);
+    }
+
+    /** @param threadingPixels the smallest image, in pixels, to encode with threads
+     * @param lowMemoryPixels the smallest image, in pixels, to encode with low_memory
+     * under load */
+    public AdaptiveThreadingPolicy(long threadingPixels, long lowMemoryPixels) {
+        if(threadingPixels < 0)
+            throw new IllegalArgumentException("threadingPixels can't be negative; it was: " + threadingPixels);
+        if(lowMemoryPixels < 0)
+            throw new IllegalArgumentException("lowMemoryPixels can't be negative; it was: " + lowMemoryPixels);
+        this.threadingPixels = threadingPixels;
+        this.lowMemoryPixels = lowMemoryPixels;
+    }
+
+    public long getThreadingPixels() {
+        return threadingPixels;
+    }
+
+    public long getLowMemoryPixels() {
+        return lowMemoryPixels;
+    }
+
+    @Override
+    public Decision decide(int width, int height, boolean lossless, int concurrentEncodes, int cores) {
+        final long pixels = (long) width * height;
+        if(concurrentEncodes > cores) {
+            singleThreaded.increment();
+            if(pixels >= lowMemoryPixels) {
+                lowMemory.increment();
+                return new Decision(0, true, concurrentEncodes + " encodes on " + cores +
+                        " cores, and " + pixels + " pixels is at least " + lowMemoryPixels);
+            }
+            return new Decision(0, false, concurrentEncodes + " encodes on " + cores + " cores");
+        }
+        if(pixels >= threadingPixels && (long) concurrentEncodes * 2 <= cores) {
+            threaded.increment();
+            return new Decision(1, false, concurrentEncodes + " encodes on " + cores +
+                    " cores, and " + pixels + " pixels is at least " + threadingPixels);
+        }
+        singleThreaded.increment();
+        return new Decision(0, false, pixels < threadingPixels ?
+                pixels + " pixels is less than " + threadingPixels :
+                concurrentEncodes + " encodes on " + cores + " cores leave no core spare");
+    }
+
+    public Stats stats() {
+        return new Stats(threaded.sum(), lowMemory.sum(), singleThreaded.sum());
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveThreadingPolicy{" + "threadingPixels=" + threadingPixels + ", " +
+                "lowMemoryPixels=" + lowMemoryPixels + ", " + stats() + '}';
+    }
+
+}
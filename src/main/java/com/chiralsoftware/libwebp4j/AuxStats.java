@@ -0,0 +1,243 @@
+package com.chiralsoftware.libwebp4j;
+
+import static jdk.incubator.foreign.CLinker.C_FLOAT;
+import static jdk.incubator.foreign.CLinker.C_INT;
+import java.lang.invoke.VarHandle;
+import jdk.incubator.foreign.GroupLayout;
+import static jdk.incubator.foreign.MemoryLayout.PathElement.groupElement;
+import static jdk.incubator.foreign.MemoryLayout.PathElement.sequenceElement;
+import static jdk.incubator.foreign.MemoryLayout.paddingLayout;
+import static jdk.incubator.foreign.MemoryLayout.sequenceLayout;
+import static jdk.incubator.foreign.MemoryLayout.structLayout;
+import jdk.incubator.foreign.MemorySegment;
+
+/**
+ * Java representation of the WebPAuxStats struct, which WebPEncode fills in when a
+ * picture's stats field points to one. The lossy fields are zero for a lossless
+ * image and the other way around. This class is a wrapper for the struct's MemorySegment.
+ */
+public final class AuxStats {
+
+    public AuxStats(MemorySegment segment) {
+        if(segment == null) throw new NullPointerException("segment can't be null");
+        if(segment.byteSize() != AuxStats.byteSize())
+            throw new IllegalArgumentException("The memory segment size was: " + segment.byteSize() +
+                    ", but it should be: " + AuxStats.byteSize());
+        this.segment = segment;
+    }
+
+    /**
+     * Match the struct WebPAuxStats definition
+     */
+    public static final GroupLayout AuxStats = structLayout(
+            // final size
+            C_INT.withName("coded_size"),
+            // peak-signal-to-noise ratio for Y/U/V/All/Alpha
+            sequenceLayout(5, C_FLOAT).withName("PSNR"),
+            // number of intra4/intra16/skipped macroblocks
+            sequenceLayout(3, C_INT).withName("block_count"),
+            // approximate number of bytes spent for header
+            // and mode-partition #0
+            sequenceLayout(2, C_INT).withName("header_bytes"),
+            // approximate number of bytes spent for
+            // DC/AC/uv coefficients for each (0..3) segments.
+            sequenceLayout(3, sequenceLayout(4, C_INT)).withName("residual_bytes"),
+            // number of macroblocks in each segments
+            sequenceLayout(4, C_INT).withName("segment_size"),
+            // quantizer values for each segments
+            sequenceLayout(4, C_INT).withName("segment_quant"),
+            // filtering strength for each segments [0..63]
+            sequenceLayout(4, C_INT).withName("segment_level"),
+            // size of the transparency data
+            C_INT.withName("alpha_data_size"),
+            // size of the enhancement layer data
+            C_INT.withName("layer_data_size"),
+            // lossless encoder statistics
+            // bit0:predictor bit1:cross-color transform
+            // bit2:subtract-green bit3:color indexing
+            C_INT.withName("lossless_features"),
+            // number of precision bits of histogram
+            C_INT.withName("histogram_bits"),
+            // precision bits for transform
+            C_INT.withName("transform_bits"),
+            // number of bits for color cache lookup
+            C_INT.withName("cache_bits"),
+            // number of color in palette, if used
+            C_INT.withName("palette_size"),
+            // final lossless size
+            C_INT.withName("lossless_size"),
+            // lossless header (transform, huffman etc) size
+            C_INT.withName("lossless_hdr_size"),
+            // lossless image data size
+            C_INT.withName("lossless_data_size"),
+            paddingLayout(2 * 32) // padding for later use
+    );
+
+    private static final VarHandle CODED_SIZE = AuxStats.varHandle(int.class, groupElement("coded_size"));
+    private static final VarHandle PSNR = AuxStats.varHandle(float.class, groupElement("PSNR"), sequenceElement());
+    private static final VarHandle BLOCK_COUNT = AuxStats.varHandle(int.class,
+            groupElement("block_count"), sequenceElement());
+    private static final VarHandle HEADER_BYTES = AuxStats.varHandle(int.class,
+            groupElement("header_bytes"), sequenceElement());
+    private static final VarHandle RESIDUAL_BYTES = AuxStats.varHandle(int.class,
+            groupElement("residual_bytes"), sequenceElement(), sequenceElement());
+    private static final VarHandle SEGMENT_SIZE = AuxStats.varHandle(int.class,
+            groupElement("segment_size"), sequenceElement());
+    private static final VarHandle SEGMENT_QUANT = AuxStats.varHandle(int.class,
+            groupElement("segment_quant"), sequenceElement());
+    private static final VarHandle SEGMENT_LEVEL = AuxStats.varHandle(int.class,
+            groupElement("segment_level"), sequenceElement());
+    private static final VarHandle ALPHA_DATA_SIZE = AuxStats.varHandle(int.class, groupElement("alpha_data_size"));
+    private static final VarHandle LOSSLESS_FEATURES = AuxStats.varHandle(int.class,
+            groupElement("lossless_features"));
+    private static final VarHandle HISTOGRAM_BITS = AuxStats.varHandle(int.class, groupElement("histogram_bits"));
+    private static final VarHandle TRANSFORM_BITS = AuxStats.varHandle(int.class, groupElement("transform_bits"));
+    private static final VarHandle CACHE_BITS = AuxStats.varHandle(int.class, groupElement("cache_bits"));
+    private static final VarHandle PALETTE_SIZE = AuxStats.varHandle(int.class, groupElement("palette_size"));
+    private static final VarHandle LOSSLESS_SIZE = AuxStats.varHandle(int.class, groupElement("lossless_size"));
+    private static final VarHandle LOSSLESS_HDR_SIZE = AuxStats.varHandle(int.class,
+            groupElement("lossless_hdr_size"));
+    private static final VarHandle LOSSLESS_DATA_SIZE = AuxStats.varHandle(int.class,
+            groupElement("lossless_data_size"));
+
+    private final MemorySegment segment;
+
+    /** The wrapped struct */
+    public MemorySegment segment() {
+        return segment;
+    }
+
+    /** final size */
+    public int getCodedSize() {
+        return (int) CODED_SIZE.get(segment);
+    }
+
+    /** peak-signal-to-noise ratio of the luma */
+    public float getPsnrY() {
+        return (float) PSNR.get(segment, 0L);
+    }
+
+    /** peak-signal-to-noise ratio of the U chroma */
+    public float getPsnrU() {
+        return (float) PSNR.get(segment, 1L);
+    }
+
+    /** peak-signal-to-noise ratio of the V chroma */
+    public float getPsnrV() {
+        return (float) PSNR.get(segment, 2L);
+    }
+
+    /** peak-signal-to-noise ratio of the whole image */
+    public float getPsnrAll() {
+        return (float) PSNR.get(segment, 3L);
+    }
+
+    /** peak-signal-to-noise ratio of the alpha */
+    public float getPsnrAlpha() {
+        return (float) PSNR.get(segment, 4L);
+    }
+
+    /** number of intra4 macroblocks */
+    public int getIntra4Blocks() {
+        return (int) BLOCK_COUNT.get(segment, 0L);
+    }
+
+    /** number of intra16 macroblocks */
+    public int getIntra16Blocks() {
+        return (int) BLOCK_COUNT.get(segment, 1L);
+    }
+
+    /** number of skipped macroblocks */
+    public int getSkippedBlocks() {
+        return (int) BLOCK_COUNT.get(segment, 2L);
+    }
+
+    /** approximate number of bytes spent for the header */
+    public int getHeaderBytes() {
+        return (int) HEADER_BYTES.get(segment, 0L);
+    }
+
+    /** approximate number of bytes spent for mode-partition #0 */
+    public int getModePartitionBytes() {
+        return (int) HEADER_BYTES.get(segment, 1L);
+    }
+
+    /** approximate number of bytes spent for coefficients in a segment
+     * @param type 0 for DC, 1 for AC, 2 for uv
+     * @param segmentIndex from 0 to 3 */
+    public int getResidualBytes(int type, int segmentIndex) {
+        return (int) RESIDUAL_BYTES.get(segment, (long) type, (long) segmentIndex);
+    }
+
+    /** number of macroblocks in a segment, from 0 to 3 */
+    public int getSegmentSize(int segmentIndex) {
+        return (int) SEGMENT_SIZE.get(segment, (long) segmentIndex);
+    }
+
+    /** quantizer value of a segment, from 0 to 3 */
+    public int getSegmentQuant(int segmentIndex) {
+        return (int) SEGMENT_QUANT.get(segment, (long) segmentIndex);
+    }
+
+    /** filtering strength of a segment, from 0 to 3, in [0..63] */
+    public int getSegmentLevel(int segmentIndex) {
+        return (int) SEGMENT_LEVEL.get(segment, (long) segmentIndex);
+    }
+
+    /** size of the transparency data */
+    public int getAlphaDataSize() {
+        return (int) ALPHA_DATA_SIZE.get(segment);
+    }
+
+    /** bit0:predictor bit1:cross-color transform bit2:subtract-green bit3:color indexing */
+    public int getLosslessFeatures() {
+        return (int) LOSSLESS_FEATURES.get(segment);
+    }
+
+    /** number of precision bits of histogram */
+    public int getHistogramBits() {
+        return (int) HISTOGRAM_BITS.get(segment);
+    }
+
+    /** precision bits for transform */
+    public int getTransformBits() {
+        return (int) TRANSFORM_BITS.get(segment);
+    }
+
+    /** number of bits for color cache lookup */
+    public int getCacheBits() {
+        return (int) CACHE_BITS.get(segment);
+    }
+
+    /** number of color in palette, if used */
+    public int getPaletteSize() {
+        return (int) PALETTE_SIZE.get(segment);
+    }
+
+    /** final lossless size */
+    public int getLosslessSize() {
+        return (int) LOSSLESS_SIZE.get(segment);
+    }
+
+    /** lossless header (transform, huffman etc) size */
+    public int getLosslessHdrSize() {
+        return (int) LOSSLESS_HDR_SIZE.get(segment);
+    }
+
+    /** lossless image data size */
+    public int getLosslessDataSize() {
+        return (int) LOSSLESS_DATA_SIZE.get(segment);
+    }
+
+    @Override
+    public String toString() {
+        return "AuxStats{" + "codedSize=" + getCodedSize() + ", " +
+                "psnrAll=" + getPsnrAll() + ", " +
+                "intra4Blocks=" + getIntra4Blocks() + ", " +
+                "intra16Blocks=" + getIntra16Blocks() + ", " +
+                "skippedBlocks=" + getSkippedBlocks() + ", " +
+                "alphaDataSize=" + getAlphaDataSize() + ", " +
+                "losslessSize=" + getLosslessSize() + '}';
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.chiralsoftware.libwebp4j;
+
+import static jdk.incubator.foreign.CLinker.C_INT;
+import java.lang.invoke.VarHandle;
+import jdk.incubator.foreign.GroupLayout;
+import static jdk.incubator.foreign.MemoryLayout.PathElement.groupElement;
+import static jdk.incubator.foreign.MemoryLayout.paddingLayout;
+import static jdk.incubator.foreign.MemoryLayout.structLayout;
+import jdk.incubator.foreign.MemorySegment;
+
+/**
+ * Java representation of the WebPBitstreamFeatures struct, which is filled in
+ * by WebPGetFeatures. This class is a wrapper for the struct's MemorySegment.
+ */
+public final class BitstreamFeatures {
+
+    public BitstreamFeatures(MemorySegment segment) {
+        if(segment == null) throw new NullPointerException("segment can't be null");
+        if(segment.byteSize() != BitstreamFeatures.byteSize())
+            throw new IllegalArgumentException("The memory segment size was: " + segment.byteSize() +
+                    ", but it should be: " + BitstreamFeatures.byteSize());
+        this.segment = segment;
+    }
+
+    /**
+     * Match the struct WebPBitstreamFeatures definition
+     */
+    public static final GroupLayout BitstreamFeatures = structLayout(
+            // Width in pixels, as read from the bitstream.
+            C_INT.withName("width"),
+            // Height in pixels, as read from the bitstream.
+            C_INT.withName("height"),
+            // True if the bitstream contains an alpha channel.
+            C_INT.withName("has_alpha"),
+            // True if the bitstream is an animation.
+            C_INT.withName("has_animation"),
+            // 0 = undefined (/mixed), 1 = lossy, 2 = lossless
+            C_INT.withName("format"),
+            paddingLayout(5 * 32) // padding for later use
+    );
+
+    private static final VarHandle WIDTH = BitstreamFeatures.varHandle(int.class, groupElement("width"));
+    private static final VarHandle HEIGHT = BitstreamFeatures.varHandle(int.class, groupElement("height"));
+    private static final VarHandle HAS_ALPHA = BitstreamFeatures.varHandle(int.class, groupElement("has_alpha"));
+    private static final VarHandle HAS_ANIMATION = BitstreamFeatures.varHandle(int.class,
+            groupElement("has_animation"));
+    private static final VarHandle FORMAT = BitstreamFeatures.varHandle(int.class, groupElement("format"));
+
+    private final MemorySegment segment;
+
+    /** Width in pixels, as read from the bitstream. */
+    public int getWidth() {
+        return (int) WIDTH.get(segment);
+    }
+
+    /** Height in pixels, as read from the bitstream. */
+    public int getHeight() {
+        return (int) HEIGHT.get(segment);
+    }
+
+    /** True if the bitstream contains an alpha channel. */
+    public boolean hasAlpha() {
+        return (int) HAS_ALPHA.get(segment) != 0;
+    }
+
+    /** True if the bitstream is an animation. */
+    public boolean hasAnimation() {
+        return (int) HAS_ANIMATION.get(segment) != 0;
+    }
+
+    /** 0 = undefined (/mixed), 1 = lossy, 2 = lossless */
+    public int getFormat() {
+        return (int) FORMAT.get(segment);
+    }
+
+    @Override
+    public String toString() {
+        return "BitstreamFeatures{" + "width=" + getWidth() + ", " +
+                "height=" + getHeight() + ", " +
+                "hasAlpha=" + hasAlpha() + ", " +
+                "hasAnimation=" + hasAnimation() + ", " +
+                "format=" + getFormat() + '}';
+    }
+
+}
@@ -0,0 +1,30 @@
+package com.chiralsoftware.libwebp4j;
+
+/**
+ * Stops encodes from another thread. Pass the token to the encodes with
+ * WebpImageWriteParam.setCancellationToken(), and call cancel() to stop them: libwebp
+ * checks the token each time it reports progress, and the encode throws an
+ * EncodeAbortedException. One token can stop any number of encodes, such as all the
+ * images of a batch. A cancelled token stays cancelled.
+ */
+public final class CancellationToken {
+
+    private volatile boolean cancelled = false;
+
+    public CancellationToken() {
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public String toString() {
+        return "CancellationToken{" + "cancelled=" + cancelled + '}';
+    }
+
+}
@@ -1,27 +1,70 @@
 package com.chiralsoftware.libwebp4j;
 
+import com.chiralsoftware.libwebp4j.impl.LibWebp;
+import java.io.IOException;
 import static java.lang.System.lineSeparator;
 import java.lang.invoke.VarHandle;
+import static jdk.incubator.foreign.CLinker.C_FLOAT;
 import static jdk.incubator.foreign.CLinker.C_INT;
 import jdk.incubator.foreign.GroupLayout;
 import static jdk.incubator.foreign.MemoryLayout.PathElement.groupElement;
 import static jdk.incubator.foreign.MemoryLayout.paddingLayout;
 import static jdk.incubator.foreign.MemoryLayout.structLayout;
 import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
 
 /**
  * Java representation of the Config struct. This class is a wrapper for the struct's 
  * MemorySegment. The getters and setters in this
  * class act on the wrapped MemorySegment.
+ * A Config made by allocate() owns its memory, which close() frees; closing a
+ * Config which wraps someone else's segment does nothing.
  */
-public final class Config {
+public final class Config implements AutoCloseable {
     
     public Config(MemorySegment segment) {
+        this(segment, null);
+    }
+
+    private Config(MemorySegment segment, ResourceScope scope) {
         if(segment == null) throw new NullPointerException("segment can't be null");
         if(segment.byteSize() != Config.byteSize())
             throw new IllegalArgumentException("The memory segment size was: " + segment.byteSize() + 
                     ", but it should be: " + Config.byteSize());
         this.segment = segment;
+        this.scope = scope;
+        this.tracker = scope == null ? null : NativeLeakDetector.track(this, "Config");
+    }
+
+    /** Allocate a Config with the default settings (WebPConfigInit) */
+    public static Config allocate() throws IOException {
+        final ResourceScope scope = LibWebp.newScope();
+        final MemorySegment segment = MemorySegment.allocateNative(Config, scope);
+        final int result;
+        try {
+            result = (int) LibWebp.ConfigInit.invokeExact(segment.address());
+        } catch(Throwable t) {
+            scope.close();
+            throw new IOException("couldn't initialize the config", t);
+        }
+        if(result != 1) {
+            scope.close();
+            throw new IOException("couldn't initialize the config: " + result);
+        }
+        return new Config(segment, scope);
+    }
+
+    /** The wrapped struct */
+    public MemorySegment segment() {
+        return segment;
+    }
+
+    /** Free the struct, if this Config allocated it. It can't be used afterward. */
+    @Override
+    public void close() {
+        if(scope == null || ! scope.isAlive()) return;
+        tracker.close();
+        scope.close();
     }
     
     /**
@@ -35,7 +78,7 @@ public final class Config {
                     // parameter is the amount of effort put into the
                     // compression: 0 is the fastest but gives larger
                     // files compared to the slowest, but best, 100.
-                    C_INT.withName("quality"),
+                    C_FLOAT.withName("quality"),
                     // quality/speed trade-off (0=fast, 6=slower-better)
                     C_INT.withName("method"),
                     // Hint for image type (lossless only for now).
@@ -47,7 +90,7 @@ public final class Config {
                     C_INT.withName("target_size"),
                     // if non-zero, specifies the minimal distortion to
                     // try to achieve. Takes precedence over target_size.
-                    C_INT.withName("target_PSNR"),
+                    C_FLOAT.withName("target_PSNR"),
                     // maximum number of segments to use, in [1..4]
                     C_INT.withName("segments"),
                     // Spatial Noise Shaping. 0=off, 100=maximum.
@@ -93,11 +136,45 @@ public final class Config {
                     paddingLayout(64) // padding for later use
             ).withBitAlignment(64);
 
+    private static final VarHandle LOSSLESS = Config.varHandle(int.class, groupElement("lossless"));
+    private static final VarHandle QUALITY = Config.varHandle(float.class, groupElement("quality"));
+    private static final VarHandle METHOD = Config.varHandle(int.class, groupElement("method"));
+    private static final VarHandle IMAGE_HINT = Config.varHandle(int.class, groupElement("image_hint"));
+    private static final VarHandle TARGET_SIZE = Config.varHandle(int.class, groupElement("target_size"));
+    private static final VarHandle TARGET_PSNR = Config.varHandle(float.class, groupElement("target_PSNR"));
+    private static final VarHandle SEGMENTS = Config.varHandle(int.class, groupElement("segments"));
+    private static final VarHandle SNS_STRENGTH = Config.varHandle(int.class, groupElement("sns_strength"));
+    private static final VarHandle FILTER_STRENGTH = Config.varHandle(int.class, groupElement("filter_strength"));
+    private static final VarHandle FILTER_SHARPNESS = Config.varHandle(int.class, groupElement("filter_sharpness"));
+    private static final VarHandle FILTER_TYPE = Config.varHandle(int.class, groupElement("filter_type"));
+    private static final VarHandle AUTOFILTER = Config.varHandle(int.class, groupElement("autofilter"));
+    private static final VarHandle ALPHA_COMPRESSION = Config.varHandle(int.class, groupElement("alpha_compression"));
+    private static final VarHandle ALPHA_FILTERING = Config.varHandle(int.class, groupElement("alpha_filtering"));
+    private static final VarHandle ALPHA_QUALITY = Config.varHandle(int.class, groupElement("alpha_quality"));
+    private static final VarHandle PASS = Config.varHandle(int.class, groupElement("pass"));
+    private static final VarHandle SHOW_COMPRESSED = Config.varHandle(int.class, groupElement("show_compressed"));
+    private static final VarHandle PREPROCESSING = Config.varHandle(int.class, groupElement("preprocessing"));
+    private static final VarHandle PARTITIONS = Config.varHandle(int.class, groupElement("partitions"));
+    private static final VarHandle PARTITION_LIMIT = Config.varHandle(int.class, groupElement("partition_limit"));
+    private static final VarHandle EMULATE_JPEG_SIZE = Config.varHandle(int.class, groupElement("emulate_jpeg_size"));
+    private static final VarHandle THREAD_LEVEL = Config.varHandle(int.class, groupElement("thread_level"));
+    private static final VarHandle LOW_MEMORY = Config.varHandle(int.class, groupElement("low_memory"));
+    private static final VarHandle NEAR_LOSSLESS = Config.varHandle(int.class, groupElement("near_lossless"));
+    private static final VarHandle EXACT = Config.varHandle(int.class, groupElement("exact"));
+    private static final VarHandle USE_DELTA_PALETTE = Config.varHandle(int.class, groupElement("use_delta_palette"));
+    private static final VarHandle USE_SHARP_YUV = Config.varHandle(int.class, groupElement("use_sharp_yuv"));
+
     private final MemorySegment segment;
+    private final ResourceScope scope;
+    private final NativeLeakDetector.Tracker tracker;
     
     /** Lossless encoding (0=lossy(default), 1=lossless). */
     public int getLossless() {
-        return (Integer) Config.varHandle(int.class, groupElement("lossless")).get(segment);
+        return (int) LOSSLESS.get(segment);
+    }
+
+    public void setLossless(int i) {
+        LOSSLESS.set(segment, i);
     }
     
     /** between 0 and 100. For lossy, 0 gives the smallest
@@ -107,109 +184,185 @@ public final class Config {
                           files compared to the slowest, but best, 100.
  */
     public float getQuality() {
-        return (Float) Config.varHandle(float.class, groupElement("quality")).get(segment);
+        return (float) QUALITY.get(segment);
+    }
+
+    public void setQuality(float f) {
+        QUALITY.set(segment, f);
     }
     
     /** quality/speed trade-off (0=fast, 6=slower-better) */
     public int getMethod() {
-        return (Integer) Config.varHandle(int.class, groupElement("lossless")).get(segment);
+        return (int) METHOD.get(segment);
+    }
+
+    public void setMethod(int i) {
+        METHOD.set(segment, i);
     }
     
     /** Hint for image type (lossless only for now).  */
     public ImageHint getImageHint() {
         final int hintValue =
-                (Integer) Config.varHandle(int.class, groupElement("image_hint")).get(segment);
+                (int) IMAGE_HINT.get(segment);
         if(hintValue < 0 || hintValue >= ImageHint.values().length)
             throw new IllegalStateException("The image hint value: " + hintValue + " was out of range, which should be 0 to " +
                     (ImageHint.values().length - 1) + " inclusive");
         return ImageHint.values()[hintValue];
     }
+
+    public void setImageHint(ImageHint imageHint) {
+        IMAGE_HINT.set(segment, imageHint.ordinal());
+    }
     
     /** if non-zero, set the desired target size in bytes.
      Takes precedence over the 'compression' parameter. */
     public int getTargetSize() {
-        return (Integer) Config.varHandle(int.class, groupElement("target_size")).get(segment);
+        return (int) TARGET_SIZE.get(segment);
+    }
+
+    public void setTargetSize(int i) {
+        TARGET_SIZE.set(segment, i);
     }
      
     /**  if non-zero, specifies the minimal distortion to try to achieve. Takes precedence over target_size. */
     public float getTargetPSNR() {
-        return (Float) Config.varHandle(float.class, groupElement("target_PSNR")).get(segment);
+        return (float) TARGET_PSNR.get(segment);
+    }
+
+    public void setTargetPSNR(float f) {
+        TARGET_PSNR.set(segment, f);
     }
     
     /** maximum number of segments to use, in [1..4]  */
     public int getSegments() {
-        return (Integer) Config.varHandle(int.class, groupElement("segments")).get(segment);
+        return (int) SEGMENTS.get(segment);
+    }
+
+    public void setSegments(int i) {
+        SEGMENTS.set(segment, i);
     }
     
     /**  Spatial Noise Shaping. 0=off, 100=maximum. */
     public int getSnsStrength() {
-        return (Integer) Config.varHandle(int.class, groupElement("sns_strength")).get(segment);
+        return (int) SNS_STRENGTH.get(segment);
+    }
+
+    public void setSnsStrength(int i) {
+        SNS_STRENGTH.set(segment, i);
     }
 
     /** range: [0 = off .. 100 = strongest] */
     public int getFilterStrength() {
-        return (Integer) Config.varHandle(int.class, groupElement("filter_strength")).get(segment);
+        return (int) FILTER_STRENGTH.get(segment);
+    }
+
+    public void setFilterStrength(int i) {
+        FILTER_STRENGTH.set(segment, i);
     }
 
     /** range: [0 = off .. 7 = least sharp] */
     public int getFilterSharpness() {
-        return (Integer) Config.varHandle(int.class, groupElement("filter_sharpness")).get(segment);
+        return (int) FILTER_SHARPNESS.get(segment);
+    }
+
+    public void setFilterSharpness(int i) {
+        FILTER_SHARPNESS.set(segment, i);
     }
     
     /** filtering type: 0 = simple, 1 = strong (only used  if filter_strength > 0 or autofilter > 0) */
     public int getFilterType() {
-        return (Integer) Config.varHandle(int.class, groupElement("filter_type")).get(segment);
+        return (int) FILTER_TYPE.get(segment);
+    }
+
+    public void setFilterType(int i) {
+        FILTER_TYPE.set(segment, i);
     }
     
     /** Auto adjust filter's strength [0 = off, 1 = on] */
     public int getAutofilter() {
-        return (Integer) Config.varHandle(int.class, groupElement("autofilter")).get(segment);
+        return (int) AUTOFILTER.get(segment);
+    }
+
+    public void setAutofilter(int i) {
+        AUTOFILTER.set(segment, i);
     }
 
     /** Algorithm for encoding the alpha plane (0 = none,
     1 = compressed with WebP lossless). Default is 1.
     */
     public int getAlphaCompression() {
-        return (Integer) Config.varHandle(int.class, groupElement("alpha_compression")).get(segment);
+        return (int) ALPHA_COMPRESSION.get(segment);
+    }
+
+    public void setAlphaCompression(int i) {
+        ALPHA_COMPRESSION.set(segment, i);
     }
 
     /** Predictive filtering method for alpha plane.
      0: none, 1: fast, 2: best. Default if 1. */
     public int getAlphaFiltering() {
-        return (Integer) Config.varHandle(int.class, groupElement("alpha_filtering")).get(segment);
+        return (int) ALPHA_FILTERING.get(segment);
+    }
+
+    public void setAlphaFiltering(int i) {
+        ALPHA_FILTERING.set(segment, i);
     }
 
     /** Between 0 (smallest size) and 100 (lossless). Default is 100. */
     public int getAlphaQuality() {
-        return (Integer) Config.varHandle(int.class, groupElement("alpha_quality")).get(segment);
+        return (int) ALPHA_QUALITY.get(segment);
+    }
+
+    public void setAlphaQuality(int i) {
+        ALPHA_QUALITY.set(segment, i);
     }
 
     /** number of entropy-analysis passes (in [1..10]). */
     public int getPass() {
-        return (Integer) Config.varHandle(int.class, groupElement("pass")).get(segment);
+        return (int) PASS.get(segment);
+    }
+
+    public void setPass(int i) {
+        PASS.set(segment, i);
     }
 
     /** if true, export the compressed picture back. In-loop filtering is not applied. */
     public int getShowCompressed() {
-        return (Integer) Config.varHandle(int.class, groupElement("show_compressed")).get(segment);
+        return (int) SHOW_COMPRESSED.get(segment);
+    }
+
+    public void setShowCompressed(int i) {
+        SHOW_COMPRESSED.set(segment, i);
     }
 
     /** preprocessing filter: 0=none, 1=segment-smooth, 2=pseudo-random dithering  */
     public int getPreprocessing() {
-        return (Integer) Config.varHandle(int.class, groupElement("preprocessing")).get(segment);
+        return (int) PREPROCESSING.get(segment);
+    }
+
+    public void setPreprocessing(int i) {
+        PREPROCESSING.set(segment, i);
     }
 
     /** log2(number of token partitions) in [0..3]. Default
      * is set to 0 for easier progressive decoding. */
     public int getPartitions() {
-        return (Integer) Config.varHandle(int.class, groupElement("partitions")).get(segment);
+        return (int) PARTITIONS.get(segment);
+    }
+
+    public void setPartitions(int i) {
+        PARTITIONS.set(segment, i);
     }
 
     /** quality degradation allowed to fit the 512k limit
      * on prediction modes coding (0: no degradation,
        100: maximum possible degradation).  */
     public int getPartitionLimit() {
-        return (Integer) Config.varHandle(int.class, groupElement("partition_limit")).get(segment);
+        return (int) PARTITION_LIMIT.get(segment);
+    }
+
+    public void setPartitionLimit(int i) {
+        PARTITION_LIMIT.set(segment, i);
     }
 
     /** If true, compression parameters will be remapped
@@ -217,22 +370,38 @@ public final class Config {
      * JPEG compression. Generally, the output size will
      * be similar but the degradation will be lower. */
     public int getEmulateJpegSize() {
-        return (Integer) Config.varHandle(int.class, groupElement("emulate_jpeg_size")).get(segment);
+        return (int) EMULATE_JPEG_SIZE.get(segment);
+    }
+
+    public void setEmulateJpegSize(int i) {
+        EMULATE_JPEG_SIZE.set(segment, i);
     }
 
     /**  If non-zero, try and use multi-threaded encoding. */
     public int getThreadLevel() {
-        return (Integer) Config.varHandle(int.class, groupElement("thread_level")).get(segment);
+        return (int) THREAD_LEVEL.get(segment);
+    }
+
+    public void setThreadLevel(int i) {
+        THREAD_LEVEL.set(segment, i);
     }
 
     /** If set, reduce memory usage (but increase CPU use). */
     public int getLowMemory() {
-        return (Integer) Config.varHandle(int.class, groupElement("low_memory")).get(segment);
+        return (int) LOW_MEMORY.get(segment);
+    }
+
+    public void setLowMemory(int i) {
+        LOW_MEMORY.set(segment, i);
     }
 
     /** Near lossless encoding [0 = max loss .. 100 = off (default)]. */
     public int getNearLossless() {
-        return (Integer) Config.varHandle(int.class, groupElement("near_lossless")).get(segment);
+        return (int) NEAR_LOSSLESS.get(segment);
+    }
+
+    public void setNearLossless(int i) {
+        NEAR_LOSSLESS.set(segment, i);
     }
 
     /** if non-zero, preserve the exact RGB values under
@@ -240,17 +409,29 @@ public final class Config {
      * RGB information for better compression. The default
      * value is 0. */
     public int getExact() {
-        return (Integer) Config.varHandle(int.class, groupElement("exact")).get(segment);
+        return (int) EXACT.get(segment);
+    }
+
+    public void setExact(int i) {
+        EXACT.set(segment, i);
     }
 
     /** reserved for future lossless feature */
     public int getUseDeltaPalette() {
-        return (Integer) Config.varHandle(int.class, groupElement("use_delta_palette")).get(segment);
+        return (int) USE_DELTA_PALETTE.get(segment);
+    }
+
+    public void setUseDeltaPalette(int i) {
+        USE_DELTA_PALETTE.set(segment, i);
     }
 
     /** if needed, use sharp (and slow) RGB->YUV conversion */
     public int getUseSharpYuv() {
-        return (Integer) Config.varHandle(int.class, groupElement("use_sharp_yuv")).get(segment);
+        return (int) USE_SHARP_YUV.get(segment);
+    }
+
+    public void setUseSharpYuv(int i) {
+        USE_SHARP_YUV.set(segment, i);
     }
 
     @Override
@@ -294,10 +475,8 @@ public final class Config {
             return "segment byte size: " + segment.byteSize() + " does not equal Picture byte size: " + 
                     Config.byteSize();
         // now let's read in the values
-        final VarHandle lossless = Config.varHandle(int.class, groupElement("lossless"));
-        final VarHandle quality = Config.varHandle(float.class, groupElement("quality"));
-        final int losslessInt = (Integer) lossless.get(segment);
-        final float qualityFloat = (Float) quality.get(segment);
+        final int losslessInt = (int) LOSSLESS.get(segment);
+        final float qualityFloat = (float) QUALITY.get(segment);
         return "lossless=" + losslessInt + lineSeparator() +
                 "quality=" + qualityFloat + lineSeparator();
     }
@@ -0,0 +1,373 @@
+package com.chiralsoftware.libwebp4j;
+
+import static jdk.incubator.foreign.CLinker.C_INT;
+import static jdk.incubator.foreign.CLinker.C_LONG;
+import static jdk.incubator.foreign.CLinker.C_POINTER;
+import java.lang.invoke.VarHandle;
+import jdk.incubator.foreign.GroupLayout;
+import jdk.incubator.foreign.MemoryAddress;
+import static jdk.incubator.foreign.MemoryLayout.PathElement.groupElement;
+import static jdk.incubator.foreign.MemoryLayout.paddingLayout;
+import static jdk.incubator.foreign.MemoryLayout.structLayout;
+import static jdk.incubator.foreign.MemoryLayout.unionLayout;
+import jdk.incubator.foreign.MemorySegment;
+
+/**
+ * Java representation of the WebPDecoderConfig struct, which is used by the advanced
+ * decoding API (WebPDecode). It holds the bitstream features, the output buffer
+ * description and the decoding options. This class is a wrapper for the struct's
+ * MemorySegment. The getters and setters in this class act on the wrapped MemorySegment.
+ */
+public final class DecoderConfig {
+
+    public DecoderConfig(MemorySegment segment) {
+        if(segment == null) throw new NullPointerException("segment can't be null");
+        if(segment.byteSize() != DecoderConfig.byteSize())
+            throw new IllegalArgumentException("The memory segment size was: " + segment.byteSize() +
+                    ", but it should be: " + DecoderConfig.byteSize());
+        this.segment = segment;
+    }
+
+    /**
+     * Match the struct WebPDecBuffer definition
+     */
+    public static final GroupLayout DecBuffer = structLayout(
+            // Colorspace, a WEBP_CSP_MODE value
+            C_INT.withName("colorspace"),
+            // Dimensions.
+            C_INT.withName("width"),
+            C_INT.withName("height"),
+            // If non-zero, 'internal_memory' pointer is not
+            // used. If value is '2' or more, the external
+            // memory is considered 'slow' and multiple
+            // read/write will be avoided.
+            C_INT.withName("is_external_memory"),
+            // Nameless union of buffer parameters.
+            unionLayout(
+                    // WebPRGBABuffer: view as RGBA
+                    structLayout(
+                            C_POINTER.withName("rgba"), // pointer to RGBA samples
+                            C_INT.withName("stride"), // stride in bytes from one scanline to the next.
+                            paddingLayout(32), // from pahole
+                            C_LONG.withName("size") // total size of the *rgba buffer.
+                    ).withName("RGBA"),
+                    // WebPYUVABuffer: view as YUVA
+                    structLayout(
+                            C_POINTER.withName("y"), C_POINTER.withName("u"), // pointer to luma, chroma U/V, alpha samples
+                            C_POINTER.withName("v"), C_POINTER.withName("a"),
+                            C_INT.withName("y_stride"), // luma stride
+                            C_INT.withName("u_stride"), C_INT.withName("v_stride"), // chroma strides
+                            C_INT.withName("a_stride"), // alpha stride
+                            C_LONG.withName("y_size"), // luma plane size
+                            C_LONG.withName("u_size"), C_LONG.withName("v_size"), // chroma planes size
+                            C_LONG.withName("a_size") // alpha-plane size
+                    ).withName("YUVA")
+            ).withName("u"),
+            paddingLayout(4 * 32), // padding for later use
+            // Internally allocated memory (only when
+            // is_external_memory is 0). Should not be used
+            // externally, but accessed via the buffer union.
+            C_POINTER.withName("private_memory")
+    ).withBitAlignment(64);
+
+    /**
+     * Match the struct WebPDecoderOptions definition
+     */
+    public static final GroupLayout DecoderOptions = structLayout(
+            // if true, skip the in-loop filtering
+            C_INT.withName("bypass_filtering"),
+            // if true, use faster pointwise upsampler
+            C_INT.withName("no_fancy_upsampling"),
+            // if true, cropping is applied _first_
+            C_INT.withName("use_cropping"),
+            // top-left position for cropping.
+            // Will be snapped to even values.
+            C_INT.withName("crop_left"),
+            C_INT.withName("crop_top"),
+            // dimension of the cropping area
+            C_INT.withName("crop_width"),
+            C_INT.withName("crop_height"),
+            // if true, scaling is applied _afterward_
+            C_INT.withName("use_scaling"),
+            // final resolution
+            C_INT.withName("scaled_width"),
+            C_INT.withName("scaled_height"),
+            // if true, use multi-threaded decoding
+            C_INT.withName("use_threads"),
+            // dithering strength (0=Off, 100=full)
+            C_INT.withName("dithering_strength"),
+            // if true, flip output vertically
+            C_INT.withName("flip"),
+            // alpha dithering strength in [0..100]
+            C_INT.withName("alpha_dithering_strength"),
+            paddingLayout(5 * 32) // padding for later use
+    );
+
+    /**
+     * Match the struct WebPDecoderConfig definition
+     */
+    public static final GroupLayout DecoderConfig = structLayout(
+            // Immutable bitstream features (optional)
+            BitstreamFeatures.BitstreamFeatures.withName("input"),
+            // Output buffer (can point to external mem)
+            DecBuffer.withName("output"),
+            // Decoding options
+            DecoderOptions.withName("options"),
+            paddingLayout(32) // from pahole
+    ).withBitAlignment(64);
+
+    private static final VarHandle OUTPUT_COLORSPACE = DecoderConfig.varHandle(int.class,
+            groupElement("output"), groupElement("colorspace"));
+    private static final VarHandle OUTPUT_WIDTH = DecoderConfig.varHandle(int.class,
+            groupElement("output"), groupElement("width"));
+    private static final VarHandle OUTPUT_HEIGHT = DecoderConfig.varHandle(int.class,
+            groupElement("output"), groupElement("height"));
+    private static final VarHandle OUTPUT_IS_EXTERNAL_MEMORY = DecoderConfig.varHandle(int.class,
+            groupElement("output"), groupElement("is_external_memory"));
+    private static final VarHandle RGBA = DecoderConfig.varHandle(long.class,
+            groupElement("output"), groupElement("u"), groupElement("RGBA"), groupElement("rgba"));
+    private static final VarHandle RGBA_STRIDE = DecoderConfig.varHandle(int.class,
+            groupElement("output"), groupElement("u"), groupElement("RGBA"), groupElement("stride"));
+    private static final VarHandle RGBA_SIZE = DecoderConfig.varHandle(long.class,
+            groupElement("output"), groupElement("u"), groupElement("RGBA"), groupElement("size"));
+    private static final VarHandle Y = DecoderConfig.varHandle(long.class,
+            groupElement("output"), groupElement("u"), groupElement("YUVA"), groupElement("y"));
+    private static final VarHandle U = DecoderConfig.varHandle(long.class,
+            groupElement("output"), groupElement("u"), groupElement("YUVA"), groupElement("u"));
+    private static final VarHandle V = DecoderConfig.varHandle(long.class,
+            groupElement("output"), groupElement("u"), groupElement("YUVA"), groupElement("v"));
+    private static final VarHandle A = DecoderConfig.varHandle(long.class,
+            groupElement("output"), groupElement("u"), groupElement("YUVA"), groupElement("a"));
+    private static final VarHandle Y_STRIDE = DecoderConfig.varHandle(int.class,
+            groupElement("output"), groupElement("u"), groupElement("YUVA"), groupElement("y_stride"));
+    private static final VarHandle U_STRIDE = DecoderConfig.varHandle(int.class,
+            groupElement("output"), groupElement("u"), groupElement("YUVA"), groupElement("u_stride"));
+    private static final VarHandle V_STRIDE = DecoderConfig.varHandle(int.class,
+            groupElement("output"), groupElement("u"), groupElement("YUVA"), groupElement("v_stride"));
+    private static final VarHandle Y_SIZE = DecoderConfig.varHandle(long.class,
+            groupElement("output"), groupElement("u"), groupElement("YUVA"), groupElement("y_size"));
+    private static final VarHandle U_SIZE = DecoderConfig.varHandle(long.class,
+            groupElement("output"), groupElement("u"), groupElement("YUVA"), groupElement("u_size"));
+    private static final VarHandle V_SIZE = DecoderConfig.varHandle(long.class,
+            groupElement("output"), groupElement("u"), groupElement("YUVA"), groupElement("v_size"));
+    private static final VarHandle A_SIZE = DecoderConfig.varHandle(long.class,
+            groupElement("output"), groupElement("u"), groupElement("YUVA"), groupElement("a_size"));
+    private static final VarHandle OPTIONS_BYPASS_FILTERING = DecoderConfig.varHandle(int.class,
+            groupElement("options"), groupElement("bypass_filtering"));
+    private static final VarHandle OPTIONS_NO_FANCY_UPSAMPLING = DecoderConfig.varHandle(int.class,
+            groupElement("options"), groupElement("no_fancy_upsampling"));
+    private static final VarHandle OPTIONS_USE_CROPPING = DecoderConfig.varHandle(int.class,
+            groupElement("options"), groupElement("use_cropping"));
+    private static final VarHandle OPTIONS_CROP_LEFT = DecoderConfig.varHandle(int.class,
+            groupElement("options"), groupElement("crop_left"));
+    private static final VarHandle OPTIONS_CROP_TOP = DecoderConfig.varHandle(int.class,
+            groupElement("options"), groupElement("crop_top"));
+    private static final VarHandle OPTIONS_CROP_WIDTH = DecoderConfig.varHandle(int.class,
+            groupElement("options"), groupElement("crop_width"));
+    private static final VarHandle OPTIONS_CROP_HEIGHT = DecoderConfig.varHandle(int.class,
+            groupElement("options"), groupElement("crop_height"));
+    private static final VarHandle OPTIONS_USE_SCALING = DecoderConfig.varHandle(int.class,
+            groupElement("options"), groupElement("use_scaling"));
+    private static final VarHandle OPTIONS_SCALED_WIDTH = DecoderConfig.varHandle(int.class,
+            groupElement("options"), groupElement("scaled_width"));
+    private static final VarHandle OPTIONS_SCALED_HEIGHT = DecoderConfig.varHandle(int.class,
+            groupElement("options"), groupElement("scaled_height"));
+    private static final VarHandle OPTIONS_USE_THREADS = DecoderConfig.varHandle(int.class,
+            groupElement("options"), groupElement("use_threads"));
+    private static final VarHandle OPTIONS_DITHERING_STRENGTH = DecoderConfig.varHandle(int.class,
+            groupElement("options"), groupElement("dithering_strength"));
+    private static final VarHandle OPTIONS_FLIP = DecoderConfig.varHandle(int.class,
+            groupElement("options"), groupElement("flip"));
+    private static final VarHandle OPTIONS_ALPHA_DITHERING_STRENGTH = DecoderConfig.varHandle(int.class,
+            groupElement("options"), groupElement("alpha_dithering_strength"));
+
+    /** The WEBP_CSP_MODE value for planar YUV 4:2:0 output, with no alpha */
+    public static final int MODE_YUV = 11;
+
+    private final MemorySegment segment;
+
+    /** The features read from the bitstream. WebPDecode fills these in. */
+    public BitstreamFeatures getInput() {
+        return new BitstreamFeatures(segment.asSlice(DecoderConfig.byteOffset(groupElement("input")),
+                BitstreamFeatures.BitstreamFeatures.byteSize()));
+    }
+
+    /** A pointer to the output buffer, for calls such as WebPFreeDecBuffer */
+    public MemoryAddress outputAddress() {
+        return segment.address().addOffset(DecoderConfig.byteOffset(groupElement("output")));
+    }
+
+    // OUTPUT
+
+    /** Colorspace of the output, a WEBP_CSP_MODE value. See PixelFormat.mode() */
+    public void setOutputColorspace(int i) {
+        OUTPUT_COLORSPACE.set(segment, i);
+    }
+
+    /** Width of the decoded output, set by the decoder */
+    public int getOutputWidth() {
+        return (int) OUTPUT_WIDTH.get(segment);
+    }
+
+    /** Height of the decoded output, set by the decoder */
+    public int getOutputHeight() {
+        return (int) OUTPUT_HEIGHT.get(segment);
+    }
+
+    /** Point the decoder at an RGBA-type output buffer owned by the caller, so nothing
+     * is allocated by libwebp. The buffer must hold stride * (output height) bytes. */
+    public void setExternalRgbaOutput(MemoryAddress rgba, int stride, long size) {
+        OUTPUT_IS_EXTERNAL_MEMORY.set(segment, 1);
+        // a VarHandle can't carry a MemoryAddress, so pointers are set as longs
+        RGBA.set(segment, rgba.toRawLongValue());
+        RGBA_STRIDE.set(segment, stride);
+        RGBA_SIZE.set(segment, size);
+    }
+
+    /** Point the decoder at Y, U and V planes owned by the caller. The colorspace must
+     * be set to MODE_YUV. Alpha isn't decoded, so the alpha plane is left null. */
+    public void setExternalYuvOutput(MemoryAddress y, int yStride, long ySize,
+            MemoryAddress u, int uStride, long uSize, MemoryAddress v, int vStride, long vSize) {
+        OUTPUT_IS_EXTERNAL_MEMORY.set(segment, 1);
+        Y.set(segment, y.toRawLongValue());
+        U.set(segment, u.toRawLongValue());
+        V.set(segment, v.toRawLongValue());
+        A.set(segment, 0L);
+        Y_STRIDE.set(segment, yStride);
+        U_STRIDE.set(segment, uStride);
+        V_STRIDE.set(segment, vStride);
+        Y_SIZE.set(segment, ySize);
+        U_SIZE.set(segment, uSize);
+        V_SIZE.set(segment, vSize);
+        A_SIZE.set(segment, 0L);
+    }
+
+    // OPTIONS
+
+    /** if true, skip the in-loop filtering */
+    public int getBypassFiltering() {
+        return (int) OPTIONS_BYPASS_FILTERING.get(segment);
+    }
+
+    /** if true, skip the in-loop filtering */
+    public void setBypassFiltering(int i) {
+        OPTIONS_BYPASS_FILTERING.set(segment, i);
+    }
+
+    /** if true, use faster pointwise upsampler */
+    public int getNoFancyUpsampling() {
+        return (int) OPTIONS_NO_FANCY_UPSAMPLING.get(segment);
+    }
+
+    /** if true, use faster pointwise upsampler */
+    public void setNoFancyUpsampling(int i) {
+        OPTIONS_NO_FANCY_UPSAMPLING.set(segment, i);
+    }
+
+    /** if true, cropping is applied _first_ */
+    public int getUseCropping() {
+        return (int) OPTIONS_USE_CROPPING.get(segment);
+    }
+
+    /** if true, cropping is applied _first_ */
+    public void setUseCropping(int i) {
+        OPTIONS_USE_CROPPING.set(segment, i);
+    }
+
+    /** left position for cropping. Will be snapped to even values for YUV output. */
+    public void setCropLeft(int i) {
+        OPTIONS_CROP_LEFT.set(segment, i);
+    }
+
+    /** top position for cropping. Will be snapped to even values for YUV output. */
+    public void setCropTop(int i) {
+        OPTIONS_CROP_TOP.set(segment, i);
+    }
+
+    /** width of the cropping area */
+    public void setCropWidth(int i) {
+        OPTIONS_CROP_WIDTH.set(segment, i);
+    }
+
+    /** height of the cropping area */
+    public void setCropHeight(int i) {
+        OPTIONS_CROP_HEIGHT.set(segment, i);
+    }
+
+    /** if true, scaling is applied _afterward_ */
+    public void setUseScaling(int i) {
+        OPTIONS_USE_SCALING.set(segment, i);
+    }
+
+    /** final width, after scaling */
+    public void setScaledWidth(int i) {
+        OPTIONS_SCALED_WIDTH.set(segment, i);
+    }
+
+    /** final height, after scaling */
+    public void setScaledHeight(int i) {
+        OPTIONS_SCALED_HEIGHT.set(segment, i);
+    }
+
+    /** if true, scaling is applied _afterward_ */
+    public int getUseScaling() {
+        return (int) OPTIONS_USE_SCALING.get(segment);
+    }
+
+    /** if true, use multi-threaded decoding */
+    public int getUseThreads() {
+        return (int) OPTIONS_USE_THREADS.get(segment);
+    }
+
+    /** if true, use multi-threaded decoding */
+    public void setUseThreads(int i) {
+        OPTIONS_USE_THREADS.set(segment, i);
+    }
+
+    /** dithering strength (0=Off, 100=full) */
+    public int getDitheringStrength() {
+        return (int) OPTIONS_DITHERING_STRENGTH.get(segment);
+    }
+
+    /** dithering strength (0=Off, 100=full) */
+    public void setDitheringStrength(int i) {
+        OPTIONS_DITHERING_STRENGTH.set(segment, i);
+    }
+
+    /** if true, flip output vertically */
+    public int getFlip() {
+        return (int) OPTIONS_FLIP.get(segment);
+    }
+
+    /** if true, flip output vertically */
+    public void setFlip(int i) {
+        OPTIONS_FLIP.set(segment, i);
+    }
+
+    /** alpha dithering strength in [0..100] */
+    public int getAlphaDitheringStrength() {
+        return (int) OPTIONS_ALPHA_DITHERING_STRENGTH.get(segment);
+    }
+
+    /** alpha dithering strength in [0..100] */
+    public void setAlphaDitheringStrength(int i) {
+        OPTIONS_ALPHA_DITHERING_STRENGTH.set(segment, i);
+    }
+
+    @Override
+    public String toString() {
+        return "DecoderConfig{" + "input=" + getInput() + ", " +
+                "outputWidth=" + getOutputWidth() + ", " +
+                "outputHeight=" + getOutputHeight() + ", " +
+                "bypassFiltering=" + getBypassFiltering() + ", " +
+                "noFancyUpsampling=" + getNoFancyUpsampling() + ", " +
+                "useCropping=" + getUseCropping() + ", " +
+                "useScaling=" + getUseScaling() + ", " +
+                "useThreads=" + getUseThreads() + ", " +
+                "ditheringStrength=" + getDitheringStrength() + ", " +
+                "flip=" + getFlip() + ", " +
+                "alphaDitheringStrength=" + getAlphaDitheringStrength() +
+                '}';
+    }
+
+}
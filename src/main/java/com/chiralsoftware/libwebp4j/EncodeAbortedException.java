@@ -0,0 +1,52 @@
+package com.chiralsoftware.libwebp4j;
+
+/**
+ * An encode was stopped through libwebp's progress hook before it finished, so libwebp
+ * gave up with VP8_ENC_ERROR_USER_ABORT. Nothing was written, except for what a
+ * streaming write had already handed to the output.
+ */
+public final class EncodeAbortedException extends WebpEncodeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Why the encode was stopped */
+    public static enum Reason {
+        /** The param's time limit passed */
+        TIME_LIMIT,
+        /** The param's CancellationToken was cancelled */
+        CANCELLED,
+        /** The encoding thread was interrupted. Its interrupt status is left set. */
+        INTERRUPTED,
+        /** The progress listener asked to stop, as ImageWriter.abort() does */
+        ABORTED
+    }
+
+    private final Reason reason;
+    private final int percentDone;
+
+    public EncodeAbortedException(Reason reason, int percentDone) {
+        super(EncodingError.VP8_ENC_ERROR_USER_ABORT, message(reason, percentDone));
+        this.reason = reason;
+        this.percentDone = percentDone;
+    }
+
+    private static String message(Reason reason, int percentDone) {
+        final String why = switch(reason) {
+            case TIME_LIMIT -> "the time limit passed";
+            case CANCELLED -> "it was cancelled";
+            case INTERRUPTED -> "the thread was interrupted";
+            case ABORTED -> "it was aborted";
+        };
+        return "the encode was stopped at " + percentDone + "% because " + why;
+    }
+
+    public Reason getReason() {
+        return reason;
+    }
+
+    /** How far libwebp had got, from 0 to 100 */
+    public int getPercentDone() {
+        return percentDone;
+    }
+
+}
@@ -0,0 +1,40 @@
+package com.chiralsoftware.libwebp4j;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What it took to encode one still image: libwebp's own statistics, and how long the
+ * encode took. Stats cost a struct allocation and two clock reads per image, so they are
+ * only collected when asked for, with WebpImageWriteParam.setCollectStats(true) or by
+ * passing a listener to WebpCodec.
+ * @param auxStats the WebPAuxStats which libwebp filled in: the coded size, the PSNR of
+ * each channel, the block counts, header and partition sizes, and the lossless features
+ * used. Its memory is freed when it is no longer reachable.
+ * @param wallNanos the time of the whole encode, from reading the pixels and setting up
+ * the config to having the encoded file, in nanoseconds
+ * @param nativeNanos the time spent in WebPEncode, in nanoseconds. When the file is
+ * streamed to an output, this includes writing it.
+ * @param threading what the param's ThreadingPolicy chose, or null if there was none
+ */
+public record EncodeStats(AuxStats auxStats, long wallNanos, long nativeNanos, ThreadingPolicy.Decision threading) {
+
+    public EncodeStats {
+        if(auxStats == null) throw new NullPointerException("auxStats can't be null");
+    }
+
+    /** The time spent outside WebPEncode, importing the pixels and setting up, in
+     * nanoseconds */
+    public long overheadNanos() {
+        return wallNanos - nativeNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "EncodeStats{" + "codedSize=" + auxStats.getCodedSize() + ", " +
+                "psnrAll=" + auxStats.getPsnrAll() + ", " +
+                "wallMicros=" + TimeUnit.NANOSECONDS.toMicros(wallNanos) + ", " +
+                "nativeMicros=" + TimeUnit.NANOSECONDS.toMicros(nativeNanos) + ", " +
+                "threading=" + threading + '}';
+    }
+
+}
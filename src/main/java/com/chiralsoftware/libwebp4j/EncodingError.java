@@ -0,0 +1,38 @@
+package com.chiralsoftware.libwebp4j;
+
+/**
+ * Why WebPEncode failed, matching the WebPEncodingError enum. A WebpEncodeException
+ * carries one.
+ */
+public enum EncodingError {
+    VP8_ENC_OK(null),
+    VP8_ENC_ERROR_OUT_OF_MEMORY("memory error allocating objects"),
+    VP8_ENC_ERROR_BITSTREAM_OUT_OF_MEMORY("memory error while flushing bits"),
+    VP8_ENC_ERROR_NULL_PARAMETER("a pointer parameter is NULL"),
+    VP8_ENC_ERROR_INVALID_CONFIGURATION("configuration is invalid"),
+    VP8_ENC_ERROR_BAD_DIMENSION("picture has invalid width/height"),
+    VP8_ENC_ERROR_PARTITION0_OVERFLOW("partition is bigger than 512k"),
+    VP8_ENC_ERROR_PARTITION_OVERFLOW("partition is bigger than 16M"),
+    VP8_ENC_ERROR_BAD_WRITE("error while flushing bytes"),
+    VP8_ENC_ERROR_FILE_TOO_BIG("file is bigger than 4G"),
+    VP8_ENC_ERROR_USER_ABORT("abort request by user");
+
+    private EncodingError(String s) {
+        message = s;
+    }
+    private final String message;
+
+    /**
+     * The associated message. This can be null in the case of VP8_ENC_OK
+     */
+    public String message() {
+        return message;
+    }
+
+    /** Look up the error for a WebPPicture error_code */
+    public static EncodingError of(int i) {
+        if(i < 0 || i >= values().length)
+            throw new IllegalArgumentException("unknown WebPEncodingError: " + i);
+        return values()[i];
+    }
+}
@@ -0,0 +1,210 @@
+package com.chiralsoftware.libwebp4j;
+
+import java.lang.ref.Cleaner;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.incubator.foreign.MemorySegment;
+import static jdk.incubator.foreign.MemorySegment.allocateNative;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * A pool of native buffers, so the reader, writer and codec don't allocate native
+ * memory for each image and leave it for the GC to free. Buffers come in power of
+ * two size classes, from 4 KiB to 1 GiB; larger requests are allocated and freed
+ * each time. Each thread keeps the last buffer it released in each size class, so a
+ * thread which codes one image after another gets the same buffer back without
+ * touching anything shared; other released buffers go to a shared list per class.
+ * <p>
+ * The pool keeps at most maxRetainedBytes of idle buffers. A buffer released when the
+ * pool is full is freed right away. Buffers which are never released, and buffers
+ * held by threads which have ended, are freed by the GC.
+ * <p>
+ * Instances are thread safe.
+ */
+public final class NativeBufferPool {
+
+    /** The smallest size class is 2^MIN_SHIFT bytes */
+    private static final int MIN_SHIFT = 12;
+
+    /** The largest size class is 2^MAX_SHIFT bytes */
+    private static final int MAX_SHIFT = 30;
+
+    private static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+    /** The default cap on idle memory */
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 64L * 1024 * 1024;
+
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private static final NativeBufferPool defaultPool = new NativeBufferPool(DEFAULT_MAX_RETAINED_BYTES);
+
+    /** The pool used by the reader, writer and codec */
+    public static NativeBufferPool getDefault() {
+        return defaultPool;
+    }
+
+    public NativeBufferPool(long maxRetainedBytes) {
+        setMaxRetainedBytes(maxRetainedBytes);
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final ConcurrentLinkedDeque<MemorySegment>[] lists = new ConcurrentLinkedDeque[CLASSES];
+        for(int i = 0; i < CLASSES; i++) lists[i] = new ConcurrentLinkedDeque<>();
+        shared = lists;
+    }
+
+    private final ConcurrentLinkedDeque<MemorySegment>[] shared;
+
+    private final ThreadLocal<ThreadCache> threadCache = ThreadLocal.withInitial(ThreadCache::new);
+
+    private volatile long maxRetainedBytes;
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder frees = new LongAdder();
+
+    /** The most idle memory the pool keeps. Lowering it doesn't free buffers already
+     * kept; call clear() for that. */
+    public void setMaxRetainedBytes(long maxRetainedBytes) {
+        if(maxRetainedBytes < 0)
+            throw new IllegalArgumentException("maxRetainedBytes can't be negative; it was: " + maxRetainedBytes);
+        this.maxRetainedBytes = maxRetainedBytes;
+    }
+
+    public long getMaxRetainedBytes() {
+        return maxRetainedBytes;
+    }
+
+    /** Counts since the pool was created.
+     * @param hits acquisitions served by a pooled buffer
+     * @param misses acquisitions which allocated
+     * @param frees buffers freed because the pool was full, too small, or cleared
+     * @param retainedBytes the idle memory the pool holds now */
+    public static record Stats(long hits, long misses, long frees, long retainedBytes) { }
+
+    public Stats stats() {
+        return new Stats(hits.sum(), misses.sum(), frees.sum(), retainedBytes.get());
+    }
+
+    /** Get a buffer of at least the given size. Its contents are undefined. Release it
+     * with close(), after which it must not be used. */
+    public Buffer acquire(long size) {
+        if(size < 0) throw new IllegalArgumentException("size can't be negative; it was: " + size);
+        final int sizeClass = sizeClass(size);
+        if(sizeClass >= 0) {
+            MemorySegment segment = threadCache.get().take(sizeClass);
+            if(segment == null) segment = shared[sizeClass].pollFirst();
+            if(segment != null) {
+                retainedBytes.addAndGet(-segment.byteSize());
+                hits.increment();
+                return new Buffer(segment, size, sizeClass);
+            }
+        }
+        misses.increment();
+        final long capacity = sizeClass >= 0 ? 1L << (sizeClass + MIN_SHIFT) : Math.max(size, 1);
+        return new Buffer(allocateNative(capacity, ResourceScope.newSharedScope(cleaner)), size, sizeClass);
+    }
+
+    /** Free all of the idle buffers in the shared lists. Buffers kept by other threads
+     * are freed when those threads end. */
+    public void clear() {
+        threadCache.get().clear();
+        for(ConcurrentLinkedDeque<MemorySegment> list : shared) {
+            MemorySegment segment;
+            while((segment = list.pollFirst()) != null) {
+                retainedBytes.addAndGet(-segment.byteSize());
+                free(segment);
+            }
+        }
+    }
+
+    /** The class of the smallest power of two which holds the size, or -1 if it is too big */
+    static int sizeClass(long size) {
+        if(size <= 1L << MIN_SHIFT) return 0;
+        final int shift = 64 - Long.numberOfLeadingZeros(size - 1);
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+
+    private void release(MemorySegment segment, int sizeClass) {
+        if(sizeClass < 0 || retainedBytes.addAndGet(segment.byteSize()) > maxRetainedBytes) {
+            if(sizeClass >= 0) retainedBytes.addAndGet(-segment.byteSize());
+            free(segment);
+            return;
+        }
+        final MemorySegment evicted = threadCache.get().put(sizeClass, segment);
+        if(evicted != null) shared[sizeClass].offerFirst(evicted);
+    }
+
+    private void free(MemorySegment segment) {
+        frees.increment();
+        segment.scope().close();
+    }
+
+    /** The buffers kept by one thread, one per size class. When the thread ends, the
+     * cleaner frees them and takes them off the pool's count. */
+    private final class ThreadCache {
+
+        private final MemorySegment[] slots = new MemorySegment[CLASSES];
+
+        ThreadCache() {
+            final MemorySegment[] slots = this.slots;
+            final AtomicLong retainedBytes = NativeBufferPool.this.retainedBytes;
+            cleaner.register(this, () -> {
+                for(MemorySegment segment : slots) {
+                    if(segment == null) continue;
+                    retainedBytes.addAndGet(-segment.byteSize());
+                    segment.scope().close();
+                }
+            });
+        }
+
+        MemorySegment take(int sizeClass) {
+            final MemorySegment segment = slots[sizeClass];
+            slots[sizeClass] = null;
+            return segment;
+        }
+
+        /** @return the buffer which was in the slot, or null */
+        MemorySegment put(int sizeClass, MemorySegment segment) {
+            final MemorySegment previous = slots[sizeClass];
+            slots[sizeClass] = segment;
+            return previous;
+        }
+
+        void clear() {
+            for(int i = 0; i < CLASSES; i++) {
+                final MemorySegment segment = take(i);
+                if(segment == null) continue;
+                retainedBytes.addAndGet(-segment.byteSize());
+                free(segment);
+            }
+        }
+    }
+
+    /** A buffer from the pool. Closing it returns it to the pool; closing it again does nothing. */
+    public final class Buffer implements AutoCloseable {
+
+        private final MemorySegment capacity;
+        private final MemorySegment segment;
+        private final int sizeClass;
+        private boolean closed = false;
+
+        private Buffer(MemorySegment capacity, long size, int sizeClass) {
+            this.capacity = capacity;
+            this.segment = capacity.asSlice(0, size);
+            this.sizeClass = sizeClass;
+        }
+
+        /** The buffer, exactly the size which was asked for */
+        public MemorySegment segment() {
+            return segment;
+        }
+
+        @Override
+        public void close() {
+            if(closed) return;
+            closed = true;
+            release(capacity, sizeClass);
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.chiralsoftware.libwebp4j;
+
+import java.lang.ref.Cleaner;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import static java.util.logging.Level.WARNING;
+import java.util.logging.Logger;
+
+/**
+ * A debugging aid which reports readers, writers, pictures and configs that hold
+ * native memory and are never closed or disposed. When one of them becomes
+ * unreachable without being released, a warning is logged with the stack trace of
+ * where it was created. Tracking records a stack trace for every resource, so it is
+ * off by default; turn it on with setEnabled(true), or by starting the JVM with
+ * -Dcom.chiralsoftware.libwebp4j.leakDetection=true
+ */
+public final class NativeLeakDetector {
+
+    private static final Logger LOG = Logger.getLogger(NativeLeakDetector.class.getName());
+
+    private NativeLeakDetector() {
+        throw new RuntimeException("don't instantiate this");
+    }
+
+    private static volatile boolean enabled = Boolean.getBoolean("com.chiralsoftware.libwebp4j.leakDetection");
+
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private static final Set<Tracker> live = ConcurrentHashMap.newKeySet();
+
+    /** Released resources, and resources created while tracking is off, aren't tracked */
+    private static final Tracker untracked = new Tracker(null, null);
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Resources created while tracking is on are tracked until they are released, even
+     * if it is turned off again */
+    public static void setEnabled(boolean enabled) {
+        NativeLeakDetector.enabled = enabled;
+    }
+
+    /** Start tracking a native resource. The owner must close the tracker when it
+     * releases the resource.
+     * @param owner the object whose reachability decides whether the resource leaked
+     * @param description what the resource is, for the report */
+    public static Tracker track(Object owner, String description) {
+        if(! enabled) return untracked;
+        final Tracker tracker = new Tracker(description, new Throwable("created here"));
+        live.add(tracker);
+        tracker.cleanable = cleaner.register(owner, () -> {
+            if(live.remove(tracker))
+                LOG.log(WARNING, description + " was never released; it was garbage collected instead",
+                        tracker.site);
+        });
+        return tracker;
+    }
+
+    /** The resources which are tracked and not yet released, with the first place
+     * outside this library and ImageIO they were created from. Resources which are unreachable but
+     * not yet collected are included. */
+    public static List<String> liveResources() {
+        final List<String> result = new ArrayList<>();
+        for(Tracker tracker : live) result.add(tracker.description + " created at " + caller(tracker.site));
+        return result;
+    }
+
+    private static String caller(Throwable site) {
+        final String library = NativeLeakDetector.class.getPackageName() + ".";
+        for(StackTraceElement element : site.getStackTrace())
+            if(! element.getClassName().startsWith(library) && ! element.getClassName().startsWith("javax.imageio."))
+                return element.toString();
+        return "an unknown place";
+    }
+
+    /** Marks one native resource as released */
+    public static final class Tracker implements AutoCloseable {
+
+        private final String description;
+        private final Throwable site;
+        private Cleaner.Cleanable cleanable = null;
+
+        private Tracker(String description, Throwable site) {
+            this.description = description;
+            this.site = site;
+        }
+
+        /** The resource has been released. Closing again does nothing. */
+        @Override
+        public void close() {
+            if(! live.remove(this)) return;
+            cleanable.clean();
+        }
+    }
+
+}
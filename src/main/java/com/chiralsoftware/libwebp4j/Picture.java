@@ -1,16 +1,21 @@
 package com.chiralsoftware.libwebp4j;
 
+import com.chiralsoftware.libwebp4j.impl.LibWebp;
+import java.io.IOException;
 import java.nio.ByteOrder;
 import static java.nio.ByteOrder.nativeOrder;
+import static java.util.logging.Level.WARNING;
 import java.util.logging.Logger;
 import static jdk.incubator.foreign.CLinker.C_INT;
 import static jdk.incubator.foreign.CLinker.C_POINTER;
+import java.lang.invoke.VarHandle;
 import jdk.incubator.foreign.GroupLayout;
 import jdk.incubator.foreign.MemoryAddress;
 import jdk.incubator.foreign.MemoryLayout;
 import static jdk.incubator.foreign.MemoryLayout.PathElement.groupElement;
 import static jdk.incubator.foreign.MemoryLayout.paddingLayout;
 import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
 
 /**
  * Represent the WebpPicture struct.
@@ -32,7 +37,7 @@ import jdk.incubator.foreign.MemorySegment;
  * <pre>pahole ./src/enc/.libs/libwebpencode_la-picture_enc.o<pre>
  * This will quickly reveal where the problem is.
  */
-public final class Picture {
+public final class Picture implements AutoCloseable {
 
     private static final Logger LOG = Logger.getLogger(Picture.class.getName());
     
@@ -90,6 +95,33 @@ public final class Picture {
             C_POINTER.withName("memory_argb_"), // and for argb
             paddingLayout(8*8 * 2) // padding for later use
     ).withBitAlignment(64);
+
+    /** The WebPEncCSP colorspace of YUV 4:2:0 planes */
+    public static final int WEBP_YUV420 = 0;
+    /** The WebPEncCSP colorspace of YUV 4:2:0 planes with an alpha plane */
+    public static final int WEBP_YUV420A = 4;
+
+    private static final VarHandle USE_ARGB = Picture.varHandle(int.class, groupElement("use_argb"));
+    private static final VarHandle COLORSPACE = Picture.varHandle(int.class, groupElement("colorspace"));
+    private static final VarHandle WIDTH = Picture.varHandle(int.class, groupElement("width"));
+    private static final VarHandle HEIGHT = Picture.varHandle(int.class, groupElement("height"));
+    private static final VarHandle Y = Picture.varHandle(long.class, groupElement("y"));
+    private static final VarHandle U = Picture.varHandle(long.class, groupElement("u"));
+    private static final VarHandle V = Picture.varHandle(long.class, groupElement("v"));
+    private static final VarHandle Y_STRIDE = Picture.varHandle(int.class, groupElement("y_stride"));
+    private static final VarHandle UV_STRIDE = Picture.varHandle(int.class, groupElement("uv_stride"));
+    private static final VarHandle A = Picture.varHandle(long.class, groupElement("a"));
+    private static final VarHandle A_STRIDE = Picture.varHandle(int.class, groupElement("a_stride"));
+    private static final VarHandle ARGB = Picture.varHandle(long.class, groupElement("argb"));
+    private static final VarHandle ARGB_STRIDE = Picture.varHandle(int.class, groupElement("argb_stride"));
+    private static final VarHandle WRITER = Picture.varHandle(long.class, groupElement("writer"));
+    private static final VarHandle CUSTOM_PTR = Picture.varHandle(long.class, groupElement("custom_ptr"));
+    private static final VarHandle EXTRA_INFO_TYPE = Picture.varHandle(int.class, groupElement("extra_info_type"));
+    private static final VarHandle EXTRA_INFO = Picture.varHandle(long.class, groupElement("extra_info"));
+    private static final VarHandle STATS = Picture.varHandle(long.class, groupElement("stats"));
+    private static final VarHandle ERROR_CODE = Picture.varHandle(int.class, groupElement("error_code"));
+    private static final VarHandle PROGRESS_HOOK = Picture.varHandle(long.class, groupElement("progress_hook"));
+    private static final VarHandle USER_DATA = Picture.varHandle(long.class, groupElement("user_data"));
     
     static {
 //        LOG.info("The size of the picture memory arrangment is: " + Picture.byteSize() + ", which should be 256");
@@ -107,71 +139,136 @@ public final class Picture {
     }
 
     public Picture(MemorySegment segment) {
+        this(segment, null);
+    }
+
+    private Picture(MemorySegment segment, ResourceScope scope) {
         if(segment == null) throw new NullPointerException("segment can't be null");
         if(segment.byteSize() != Picture.byteSize()) 
             throw new IllegalArgumentException("segment size was: " + segment.byteSize() +
                     ", should have been: " + Picture.byteSize());
         this.segment = segment;
+        this.scope = scope;
+        this.tracker = scope == null ? null : NativeLeakDetector.track(this, "Picture");
     }
-    
+
+    /** Allocate and initialize (WebPPictureInit) a Picture which owns its memory */
+    public static Picture allocate() throws IOException {
+        final ResourceScope scope = LibWebp.newScope();
+        final MemorySegment segment = MemorySegment.allocateNative(Picture, scope);
+        final int result;
+        try {
+            result = (int) LibWebp.PictureInit.invokeExact(segment.address());
+        } catch(Throwable t) {
+            scope.close();
+            throw new IOException("couldn't initialize the picture", t);
+        }
+        if(result != 1) {
+            scope.close();
+            throw new IOException("couldn't initialize the picture: " + result);
+        }
+        return new Picture(segment, scope);
+    }
+
     private final MemorySegment segment;
+    private final ResourceScope scope;
+    private final NativeLeakDetector.Tracker tracker;
+
+    /** The wrapped struct */
+    public MemorySegment segment() {
+        return segment;
+    }
+
+    /** Release the pixel buffers which libwebp allocated for this picture, with
+     * WebPPictureFree. The other fields are kept, so the picture can be imported into
+     * again. The picture must have been initialized. */
+    public void free() {
+        try {
+            LibWebp.PictureFree.invokeExact(segment.address());
+        } catch(Throwable t) {
+            LOG.log(WARNING, "couldn't free the picture", t);
+        }
+    }
+
+    /** Release the pixel buffers, and the struct itself if this Picture allocated it.
+     * A Picture which wraps someone else's segment can be used again afterward. */
+    @Override
+    public void close() {
+        if(scope != null && ! scope.isAlive()) return;
+        free();
+        if(scope == null) return;
+        tracker.close();
+        scope.close();
+    }
     
     /** Main flag for encoder selecting between ARGB or YUV input.
      * It is recommended to use ARGB input (*argb, argb_stride) for lossless
      * compression, and YUV input (*y, *u, *v, etc.) for lossy compression
      * since these are the respective native colorspace for these formats. */
     public void setUseArgb(int i) {
-        Picture.varHandle(int.class, groupElement("use_argb")).set(segment, i);
+        USE_ARGB.set(segment, i);
     }
 
     /**  colorspace: should be YUV420 for now (=Y'CbCr). 
-     FIXME: create an enum for WebPEncCSP*/
+     FIXME: create an enum for WebPEncCSP
+     @see #WEBP_YUV420
+     @see #WEBP_YUV420A */
     public void setColorspace(int i) {
-        Picture.varHandle(int.class, groupElement("colorspace")).set(segment, i);
+        COLORSPACE.set(segment, i);
     }
     
     /** */
     public void setWidth(int i) {
-        Picture.varHandle(int.class, groupElement("width")).set(segment, i);
+        WIDTH.set(segment, i);
     }
     
     /** */
     public void setHeight(int i) {
-        Picture.varHandle(int.class, groupElement("height")).set(segment, i);
+        HEIGHT.set(segment, i);
     }
     
     /** Pointer to Y */
     public void setY(MemoryAddress m) {
-        Picture.varHandle(MemoryAddress.class, groupElement("y")).set(segment, m);
+        Y.set(segment, m.toRawLongValue());
     }
     /** Pointer to U */
     public void setU(MemoryAddress m) {
-        Picture.varHandle(MemoryAddress.class, groupElement("u")).set(segment, m);
+        U.set(segment, m.toRawLongValue());
     }
     /** Pointer to V */
     public void setV(MemoryAddress m) {
-        Picture.varHandle(MemoryAddress.class, groupElement("v")).set(segment, m);
+        V.set(segment, m.toRawLongValue());
+    }
+
+    /** luma stride */
+    public void setYStride(int i) {
+        Y_STRIDE.set(segment, i);
+    }
+
+    /** chroma stride, for both U and V */
+    public void setUvStride(int i) {
+        UV_STRIDE.set(segment, i);
     }
     
     /** Pointer to alpha plane  */
     public void setA(MemoryAddress m) {
-        Picture.varHandle(MemoryAddress.class, groupElement("a")).set(segment, m);
+        A.set(segment, m.toRawLongValue());
     }
 
     /** stride of the alpha plane */
     public void setAStride(int i) {
-        Picture.varHandle(int.class, groupElement("a_stride")).set(segment, i);
+        A_STRIDE.set(segment, i);
     }
     
     /** ARGB input (mostly used for input to lossless compression). Note that
      this is a pointer to an array of int*/
     public void setArgb(MemoryAddress m) {
-        Picture.varHandle(MemoryAddress.class, groupElement("argb")).set(segment, m);
+        ARGB.set(segment, m.toRawLongValue());
     }
     
     /** This is stride in pixels units, not bytes. */
     public void setArgbStride(int i) {
-        Picture.varHandle(int.class, groupElement("argb_stride")).set(segment, i);
+        ARGB_STRIDE.set(segment, i);
     }
     
     // OUTPUT
@@ -179,12 +276,13 @@ public final class Picture {
     /** Byte-emission hook, to store compressed bytes as they are ready.
      It has type WebPWriterFunction */
     public void setWriter(long a) {
-        Picture.varHandle(long.class, groupElement("writer")).set(segment, a);
+        WRITER.set(segment, a);
     }
     
-    /** Can be used by the writer */
-    public void setCustomPtr(int m) {
-        Picture.varHandle(MemoryAddress.class, groupElement("custom_ptr")).set(segment, m);
+    /** Can be used by the writer. WebPMemoryWrite expects a WebPMemoryWriter here. */
+    public void setCustomPtr(MemoryAddress m) {
+        // a VarHandle can't carry a MemoryAddress, so pointers are set as longs
+        CUSTOM_PTR.set(segment, m.toRawLongValue());
     }
     
     /** map for extra information (only for lossy compression mode)
@@ -199,7 +297,7 @@ public final class Picture {
      * </ol>
  */
     public void setExtraInfoType(int i) {
-        Picture.varHandle(int.class, groupElement("extra_info_type")).set(segment, i);
+        EXTRA_INFO_TYPE.set(segment, i);
     }
     
     /** if not NULL, points to an array of size
@@ -207,7 +305,7 @@ public final class Picture {
      * will be filled with a macroblock map, depending
      * on extra_info_type. */
     public void setExtraInfo(MemoryAddress m) {
-        Picture.varHandle(MemoryAddress.class, groupElement("extra_info")).set(segment, m);
+        EXTRA_INFO.set(segment, m.toRawLongValue());
     }
     
     /// STATS AND REPORTS
@@ -215,25 +313,29 @@ public final class Picture {
     /** Pointer to side statistics (updated only if not NULL).
      Type is WebPAuxStats* */
     public void setStats(MemoryAddress m) {
-        Picture.varHandle(MemoryAddress.class, groupElement("stats")).set(segment, m);
+        STATS.set(segment, m.toRawLongValue());
     }
     
     /** Error code for the latest error encountered during encoding,
      type is WebPEncodingError */
     public void setErrorCode(int i) {
-        Picture.varHandle(int.class, groupElement("error_code")).set(segment, i);
+        ERROR_CODE.set(segment, i);
+    }
+    
+    public int getErrorCode() {
+        return (int) ERROR_CODE.get(segment);
     }
     
     /** If not NULL, report progress during encoding..
      Type is WebPProgressHook */
     public void setProgressHook(MemoryAddress m) {
-        Picture.varHandle(MemoryAddress.class, groupElement("progress_hook")).set(segment, m);
+        PROGRESS_HOOK.set(segment, m.toRawLongValue());
     }
     
     /** this field is free to be set to any value and
      * used during callbacks (like progress-report e.g.).  */
     public void setUserData(MemoryAddress m) {
-        Picture.varHandle(MemoryAddress.class, groupElement("user_data")).set(segment, m);
+        USER_DATA.set(segment, m.toRawLongValue());
     }
     
     // other fields are private or unused
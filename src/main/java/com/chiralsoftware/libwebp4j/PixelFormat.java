@@ -0,0 +1,45 @@
+package com.chiralsoftware.libwebp4j;
+
+/**
+ * Interleaved 8-bit pixel layouts which libwebp can decode into and encode from.
+ * The name gives the order of the samples in memory, so RGBA means the first byte of
+ * each pixel is red and the last is alpha. The mode value matches the WEBP_CSP_MODE
+ * enum in decode.h.
+ */
+public enum PixelFormat {
+    RGB(0, 3, false),
+    RGBA(1, 4, true),
+    BGR(2, 3, false),
+    BGRA(3, 4, true),
+    ARGB(4, 4, true);
+
+    private PixelFormat(int mode, int bytesPerPixel, boolean alpha) {
+        this.mode = mode;
+        this.bytesPerPixel = bytesPerPixel;
+        this.alpha = alpha;
+    }
+
+    private final int mode;
+    private final int bytesPerPixel;
+    private final boolean alpha;
+
+    /** The WEBP_CSP_MODE value for this layout */
+    public int mode() {
+        return mode;
+    }
+
+    /** Number of bytes used by one pixel */
+    public int bytesPerPixel() {
+        return bytesPerPixel;
+    }
+
+    /** True if this layout carries an alpha sample */
+    public boolean hasAlpha() {
+        return alpha;
+    }
+
+    /** The smallest row stride, in bytes, for an image of the given width */
+    public int minStride(int width) {
+        return width * bytesPerPixel;
+    }
+}
@@ -0,0 +1,24 @@
+package com.chiralsoftware.libwebp4j;
+
+/**
+ * The kinds of image which libwebp has preset encoder settings for, matching the
+ * WebPPreset enum: the ordinal is the value WebPConfigPreset takes. Set one with
+ * WebpImageWriteParam.setPreset().
+ */
+public enum Preset {
+    DEFAULT("default preset"),
+    PICTURE("digital picture, like portrait, inner shot"),
+    PHOTO("outdoor photograph, with natural lighting"),
+    DRAWING("hand or line drawing, with high-contrast details"),
+    ICON("small-sized colorful images"),
+    TEXT("text-like");
+
+    private Preset(String s) {
+        this.description = s;
+    }
+
+    public String description() {
+        return description;
+    }
+    private final String description;
+}
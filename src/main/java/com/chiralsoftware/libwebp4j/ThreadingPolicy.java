@@ -0,0 +1,32 @@
+package com.chiralsoftware.libwebp4j;
+
+/**
+ * Chooses libwebp's thread_level and low_memory settings for each still image, from
+ * its size and how busy the machine is. Set one with
+ * WebpImageWriteParam.setThreadingPolicy(). A thread level set on the param itself
+ * wins over the policy's.
+ * @see AdaptiveThreadingPolicy
+ */
+@FunctionalInterface
+public interface ThreadingPolicy {
+
+    /** What a policy chose for one image
+     * @param threadLevel the WebPConfig thread_level; non-zero lets libwebp use a
+     * second thread within the encode
+     * @param lowMemory true to have libwebp hold less memory, at some cost in CPU
+     * @param reason why, for the logs */
+    public static record Decision(int threadLevel, boolean lowMemory, String reason) {
+
+        public Decision {
+            if(threadLevel < 0)
+                throw new IllegalArgumentException("thread level can't be negative; it was: " + threadLevel);
+        }
+    }
+
+    /** Choose the settings for one image
+     * @param concurrentEncodes the still images being encoded right now by all
+     * EncoderSessions, counting this one
+     * @param cores the processors available to the JVM */
+    Decision decide(int width, int height, boolean lossless, int concurrentEncodes, int cores);
+
+}
@@ -0,0 +1,585 @@
+package com.chiralsoftware.libwebp4j;
+
+import com.chiralsoftware.libwebp4j.impl.LibWebp;
+import com.chiralsoftware.libwebp4j.impl.LibWebp.StatusCode;
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+import static java.util.logging.Level.WARNING;
+import java.util.logging.Logger;
+import static jdk.incubator.foreign.CLinker.C_INT;
+import static jdk.incubator.foreign.CLinker.C_POINTER;
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+import static jdk.incubator.foreign.ResourceScope.newImplicitScope;
+
+/**
+ * Encode and decode WebP images in memory, without ImageIO. Pixels and encoded images
+ * are passed as MemorySegments or direct ByteBuffers, which libwebp reads and writes
+ * where they are, so off-heap data such as network buffers or mapped files is never
+ * copied onto the heap. The memory must be native: heap segments and heap
+ * ByteBuffers can't be passed to libwebp, and are rejected.
+ * Instances are thread safe.
+ * <p>
+ * The static encodeSimple, encodeLosslessSimple and decodeSimple methods are one call
+ * each into libwebp's simple API, WebPEncodeRGB and friends and WebPDecodeRGBA and
+ * friends, which set up the config, the picture and the output in C. They take only a quality, or lossless, and for small images such as
+ * icons they cost the least, because there is almost nothing to set up from Java.
+ * Their byte[] versions copy the pixels or the file into native memory and the result
+ * back out, which for small images is cheap.
+ */
+public final class WebpCodec {
+
+    private static final Logger LOG = Logger.getLogger(WebpCodec.class.getName());
+
+    private static final WebpCodec instance = new WebpCodec();
+
+    private static final NativeBufferPool pool = NativeBufferPool.getDefault();
+
+    private WebpCodec() {
+    }
+
+    public static WebpCodec getInstance() {
+        return instance;
+    }
+
+    /** An image decoded by decodeSimple(MemorySegment, PixelFormat), in pixels which libwebp
+     * allocated, and which are freed with WebPFree when the segment is no longer
+     * reachable. The rows are packed. */
+    public static record DecodedImage(int width, int height, PixelFormat pixelFormat, MemorySegment pixels) {
+
+        /** The bytes from one row of pixels to the next */
+        public int stride() {
+            return pixelFormat.minStride(width);
+        }
+    }
+
+    /** Encode pixels of the given format with WebPEncodeRGB and friends, at the default
+     * settings. ARGB pixels can't be encoded.
+     * @param quality from 0 to 100; higher is larger and better looking
+     * @return the encoded image, in memory which libwebp allocated, and which is freed
+     * with WebPFree when the segment is no longer reachable */
+    public static MemorySegment encodeSimple(MemorySegment pixels, int width, int height, int stride,
+            PixelFormat pixelFormat, float quality) throws IOException {
+        checkQuality(quality);
+        return simpleEncode(pixels, width, height, stride, pixelFormat, quality, false, newImplicitScope());
+    }
+
+    /** Encode pixels of the given format losslessly with WebPEncodeLosslessRGB and friends
+     * @see #encodeSimple(MemorySegment, int, int, int, PixelFormat, float) */
+    public static MemorySegment encodeLosslessSimple(MemorySegment pixels, int width, int height, int stride,
+            PixelFormat pixelFormat) throws IOException {
+        return simpleEncode(pixels, width, height, stride, pixelFormat, 0, true, newImplicitScope());
+    }
+
+    /** Encode pixels of the given format, held in an array, with WebPEncodeRGB and friends
+     * @see #encodeSimple(MemorySegment, int, int, int, PixelFormat, float) */
+    public static byte[] encodeSimple(byte[] pixels, int width, int height, int stride, PixelFormat pixelFormat,
+            float quality) throws IOException {
+        checkQuality(quality);
+        return simpleEncode(pixels, width, height, stride, pixelFormat, quality, false);
+    }
+
+    /** Encode pixels of the given format, held in an array, losslessly
+     * @see #encodeLosslessSimple(MemorySegment, int, int, int, PixelFormat) */
+    public static byte[] encodeLosslessSimple(byte[] pixels, int width, int height, int stride,
+            PixelFormat pixelFormat) throws IOException {
+        return simpleEncode(pixels, width, height, stride, pixelFormat, 0, true);
+    }
+
+    /** Decode a still image with WebPDecodeRGBA and friends, into pixels which libwebp allocates */
+    public static DecodedImage decodeSimple(MemorySegment webp, PixelFormat pixelFormat) throws IOException {
+        checkNative(webp, "webp");
+        final WebpHeader header = WebpHeader.read(webp);
+        if(header == null) throw new IOException("the data is not a WebP image");
+        if(header.hasAnimation()) throw new IOException("animated images can't be decoded with WebpCodec");
+        final MemoryAddress result;
+        final int width, height;
+        try(NativeBufferPool.Buffer size = pool.acquire(2 * C_INT.byteSize())) {
+            final MemorySegment sizeSegment = size.segment();
+            result = (MemoryAddress) LibWebp.simpleDecode(pixelFormat).invokeExact(webp.address(), webp.byteSize(),
+                    sizeSegment.address(), sizeSegment.asSlice(C_INT.byteSize()).address());
+            width = MemoryAccess.getIntAtIndex(sizeSegment, 0);
+            height = MemoryAccess.getIntAtIndex(sizeSegment, 1);
+        } catch(Throwable t) {
+            throw new IOException("couldn't decode the image", t);
+        }
+        if(result.equals(MemoryAddress.NULL)) throw new IOException("libwebp failed to decode the image");
+        return new DecodedImage(width, height, pixelFormat,
+                result.asSegment((long) pixelFormat.minStride(width) * height, () -> free(result), newImplicitScope()));
+    }
+
+    /** Decode a still image held in an array
+     * @see #decodeSimple(MemorySegment, PixelFormat) */
+    public static DecodedImage decodeSimple(byte[] webp, PixelFormat pixelFormat) throws IOException {
+        try(NativeBufferPool.Buffer buffer = pool.acquire(webp.length)) {
+            final MemorySegment segment = buffer.segment();
+            segment.copyFrom(MemorySegment.ofArray(webp));
+            return decodeSimple(segment, pixelFormat);
+        }
+    }
+
+    private static byte[] simpleEncode(byte[] pixels, int width, int height, int stride, PixelFormat pixelFormat,
+            float quality, boolean lossless) throws IOException {
+        // the result is freed as soon as it has been copied out
+        try(NativeBufferPool.Buffer buffer = pool.acquire(pixels.length);
+                ResourceScope scope = ResourceScope.newConfinedScope()) {
+            final MemorySegment segment = buffer.segment();
+            segment.copyFrom(MemorySegment.ofArray(pixels));
+            return simpleEncode(segment, width, height, stride, pixelFormat, quality, lossless, scope).toByteArray();
+        }
+    }
+
+    /** Encode with one call to the WebPEncode* or WebPEncodeLossless* function
+     * @param scope the scope of the result, whose closing frees it */
+    private static MemorySegment simpleEncode(MemorySegment pixels, int width, int height, int stride,
+            PixelFormat pixelFormat, float quality, boolean lossless, ResourceScope scope) throws IOException {
+        checkPixels(pixels, width, height, stride, pixelFormat);
+        final MethodHandle encoder = lossless ?
+                LibWebp.simpleEncodeLossless(pixelFormat) : LibWebp.simpleEncode(pixelFormat);
+        final long size;
+        final MemoryAddress output;
+        try(NativeBufferPool.Buffer outputPointer = pool.acquire(C_POINTER.byteSize())) {
+            final MemorySegment outputSegment = outputPointer.segment();
+            MemoryAccess.setAddress(outputSegment, MemoryAddress.NULL);
+            size = lossless ?
+                    (long) encoder.invokeExact(pixels.address(), width, height, stride, outputSegment.address()) :
+                    (long) encoder.invokeExact(pixels.address(), width, height, stride, quality,
+                            outputSegment.address());
+            output = MemoryAccess.getAddress(outputSegment);
+        } catch(Throwable t) {
+            throw new IOException("couldn't encode the image", t);
+        }
+        // on failure libwebp frees the output itself
+        if(size == 0) throw new IOException("libwebp failed to encode the image");
+        return output.asSegment(size, () -> free(output), scope);
+    }
+
+    /** Decode a still image into pixels of the given format. Use WebpHeader.read to
+     * find the size of the image first.
+     * @param webp the encoded image
+     * @param pixels where the pixels go. It must hold stride * height bytes.
+     * @param stride the bytes from one row of pixels to the next
+     * @return the header of the image */
+    public WebpHeader decode(MemorySegment webp, MemorySegment pixels, int stride, PixelFormat pixelFormat)
+            throws IOException {
+        checkNative(webp, "webp");
+        checkNative(pixels, "pixels");
+        final WebpHeader header = WebpHeader.read(webp);
+        if(header == null) throw new IOException("the data is not a WebP image");
+        if(header.hasAnimation()) throw new IOException("animated images can't be decoded with WebpCodec");
+        if(stride < pixelFormat.minStride(header.width()))
+            throw new IllegalArgumentException("the stride must be at least: " +
+                    pixelFormat.minStride(header.width()) + "; it was: " + stride);
+        if(pixels.byteSize() < (long) stride * header.height())
+            throw new IllegalArgumentException("the pixels must hold " + (long) stride * header.height() +
+                    " bytes; they hold: " + pixels.byteSize());
+        final MemoryAddress result;
+        try {
+            result = (MemoryAddress) LibWebp.decodeInto(pixelFormat).invokeExact(webp.address(), webp.byteSize(),
+                    pixels.address(), pixels.byteSize(), stride);
+        } catch(Throwable t) {
+            throw new IOException("couldn't decode the image", t);
+        }
+        if(result.equals(MemoryAddress.NULL)) throw new IOException("libwebp failed to decode the image");
+        return header;
+    }
+
+    /** Decode the remaining bytes of the webp buffer into the pixels buffer, starting
+     * at its position. The positions of the buffers are not changed.
+     * @see #decode(MemorySegment, MemorySegment, int, PixelFormat) */
+    public WebpHeader decode(ByteBuffer webp, ByteBuffer pixels, int stride, PixelFormat pixelFormat)
+            throws IOException {
+        return decode(segment(webp, "webp"), segment(pixels, "pixels"), stride, pixelFormat);
+    }
+
+    /** Decode a still image to planar YUV 4:2:0 instead of RGB. Lossy WebP is stored as
+     * YUV 4:2:0, so this skips the conversion to RGB, and the conversion from the RGB
+     * byte order to whatever the caller really needs. Lossless images are converted
+     * from RGB by libwebp. Alpha is not decoded.
+     * @return newly allocated planes, which are freed when they are no longer reachable */
+    public YuvPlanes decodeYuv(MemorySegment webp) throws IOException {
+        return decodeYuv(webp, null, 0, 0, null);
+    }
+
+    /** Decode the remaining bytes of the webp buffer to planar YUV 4:2:0. The position of
+     * the buffer is not changed.
+     * @see #decodeYuv(MemorySegment) */
+    public YuvPlanes decodeYuv(ByteBuffer webp) throws IOException {
+        return decodeYuv(segment(webp, "webp"), null, 0, 0, null);
+    }
+
+    /** Decode part of a still image to planar YUV 4:2:0, scaled to the given size.
+     * libwebp crops first, snapping the left and top of the region to even values, and
+     * then scales the cropped area while decoding.
+     * @param region the part of the image to decode, or null for all of it
+     * @param width the width to scale the region to, or 0 to keep its width
+     * @param height the height to scale the region to, or 0 to keep its height
+     * @param options a param whose decoding options are used, or null for libwebp's
+     * defaults. Its source region, subsampling, render size and destination are not used.
+     * @see #decodeYuv(MemorySegment) */
+    public YuvPlanes decodeYuv(MemorySegment webp, Rectangle region, int width, int height,
+            WebpImageReadParam options) throws IOException {
+        checkNative(webp, "webp");
+        final WebpHeader header = WebpHeader.read(webp);
+        if(header == null) throw new IOException("the data is not a WebP image");
+        if(header.hasAnimation()) throw new IOException("animated images can't be decoded with WebpCodec");
+        final Rectangle crop = region == null ? new Rectangle(header.width(), header.height()) : region;
+        if(crop.isEmpty() || ! new Rectangle(header.width(), header.height()).contains(crop))
+            throw new IllegalArgumentException("the region must be within the image of: " + header.width() +
+                    ", " + header.height() + "; it was: " + region);
+        if(width < 0 || height < 0)
+            throw new IllegalArgumentException("the size can't be negative; it was: " + width + ", " + height);
+        final int outputWidth = width == 0 ? crop.width : width;
+        final int outputHeight = height == 0 ? crop.height : height;
+        final boolean cropped = crop.width != header.width() || crop.height != header.height();
+        final boolean scaled = outputWidth != crop.width || outputHeight != crop.height;
+        final YuvPlanes planes = YuvPlanes.allocate(outputWidth, outputHeight);
+
+        // the simple call is enough when there is nothing to crop, scale or configure
+        if(! cropped && ! scaled && options == null) {
+            final MemoryAddress result;
+            try {
+                result = (MemoryAddress) LibWebp.DecodeYUVInto.invokeExact(webp.address(), webp.byteSize(),
+                        planes.y().address(), planes.y().byteSize(), planes.yStride(),
+                        planes.u().address(), planes.u().byteSize(), planes.uStride(),
+                        planes.v().address(), planes.v().byteSize(), planes.vStride());
+            } catch(Throwable t) {
+                throw new IOException("couldn't decode the image", t);
+            }
+            if(result.equals(MemoryAddress.NULL)) throw new IOException("libwebp failed to decode the image");
+            return planes;
+        }
+
+        // WebPInitDecoderConfig sets every field, so pooled memory is fine
+        final int status;
+        try(NativeBufferPool.Buffer config = pool.acquire(DecoderConfig.DecoderConfig.byteSize())) {
+            final MemorySegment configSegment = config.segment();
+            if((int) LibWebp.InitDecoderConfig.invokeExact(configSegment.address()) != 1)
+                throw new IOException("couldn't initialize the decoder config");
+            final DecoderConfig decoderConfig = new DecoderConfig(configSegment);
+            decoderConfig.setOutputColorspace(DecoderConfig.MODE_YUV);
+            if(options != null) options.applyTo(decoderConfig);
+            if(cropped) {
+                decoderConfig.setUseCropping(1);
+                decoderConfig.setCropLeft(crop.x);
+                decoderConfig.setCropTop(crop.y);
+                decoderConfig.setCropWidth(crop.width);
+                decoderConfig.setCropHeight(crop.height);
+            }
+            if(scaled) {
+                decoderConfig.setUseScaling(1);
+                decoderConfig.setScaledWidth(outputWidth);
+                decoderConfig.setScaledHeight(outputHeight);
+            }
+            decoderConfig.setExternalYuvOutput(
+                    planes.y().address(), planes.yStride(), planes.y().byteSize(),
+                    planes.u().address(), planes.uStride(), planes.u().byteSize(),
+                    planes.v().address(), planes.vStride(), planes.v().byteSize());
+            status = (int) LibWebp.Decode.invokeExact(webp.address(), webp.byteSize(), configSegment.address());
+        } catch(IOException e) {
+            throw e;
+        } catch(Throwable t) {
+            throw new IOException("couldn't decode the image", t);
+        }
+        if(status != 0)
+            throw new IOException("libwebp failed to decode the image: " + StatusCode.of(status).message());
+        return planes;
+    }
+
+    /** Encode pixels of the given format. ARGB pixels can't be encoded.
+     * @param quality from 0 to 100. For lossy images, higher is larger and better looking;
+     * for lossless images, higher is smaller and slower.
+     * @return the encoded image, in memory which is freed when the segment is no longer
+     * reachable */
+    public MemorySegment encode(MemorySegment pixels, int width, int height, int stride, PixelFormat pixelFormat,
+            float quality, boolean lossless) throws IOException {
+        return encode(pixels, width, height, stride, pixelFormat, quality, lossless, (Consumer<EncodeStats>) null);
+    }
+
+    /** Encode pixels of the given format, and collect the stats of the encode
+     * @param statsListener is given the stats once the image is encoded, or null to not collect them
+     * @see #encode(MemorySegment, int, int, int, PixelFormat, float, boolean) */
+    public MemorySegment encode(MemorySegment pixels, int width, int height, int stride, PixelFormat pixelFormat,
+            float quality, boolean lossless, Consumer<EncodeStats> statsListener) throws IOException {
+        final long start = System.nanoTime();
+        return encodeToSegment(pixelLoader(pixels, width, height, stride, pixelFormat, lossless),
+                quality, lossless, false, statsListener, start);
+    }
+
+    /** Encode pixels of the given format into the destination
+     * @return the size of the encoded image
+     * @throws IOException if the destination is too small to hold the encoded image
+     * @see #encode(MemorySegment, int, int, int, PixelFormat, float, boolean) */
+    public long encode(MemorySegment pixels, int width, int height, int stride, PixelFormat pixelFormat,
+            float quality, boolean lossless, MemorySegment destination) throws IOException {
+        return encode(pixels, width, height, stride, pixelFormat, quality, lossless, destination, null);
+    }
+
+    /** Encode pixels of the given format into the destination, and collect the stats of the encode
+     * @param statsListener is given the stats once the image is encoded, or null to not collect them
+     * @see #encode(MemorySegment, int, int, int, PixelFormat, float, boolean, MemorySegment) */
+    public long encode(MemorySegment pixels, int width, int height, int stride, PixelFormat pixelFormat,
+            float quality, boolean lossless, MemorySegment destination, Consumer<EncodeStats> statsListener)
+            throws IOException {
+        final long start = System.nanoTime();
+        final PictureLoader loader = pixelLoader(pixels, width, height, stride, pixelFormat, lossless);
+        try(NativeBufferPool.Buffer writer = pool.acquire(LibWebp.MemoryWriter.byteSize());
+                ResourceScope scope = ResourceScope.newConfinedScope()) {
+            final MemorySegment writerSegment = writer.segment();
+            final EncodeStats stats = encodeToWriter(loader, quality, lossless, false, writerSegment,
+                    statsListener != null, start);
+            final MemoryAddress mem = MemoryAddress.ofLong((long) LibWebp.MemoryWriterMem.get(writerSegment));
+            final long size = (long) LibWebp.MemoryWriterSize.get(writerSegment);
+            try {
+                if(size > destination.byteSize())
+                    throw new IOException("the encoded image is " + size + " bytes, but the destination holds: " +
+                            destination.byteSize());
+                destination.copyFrom(mem.asSegment(size, scope));
+            } finally {
+                clear(writerSegment);
+            }
+            if(stats != null) statsListener.accept(stats);
+            return size;
+        }
+    }
+
+    /** Encode the pixels, starting at the position of the pixels buffer, into the
+     * destination buffer at its position. The destination's position is advanced past
+     * the encoded image, as a relative put would; the pixel buffer's position is not changed.
+     * @return the size of the encoded image
+     * @see #encode(MemorySegment, int, int, int, PixelFormat, float, boolean) */
+    public int encode(ByteBuffer pixels, int width, int height, int stride, PixelFormat pixelFormat,
+            float quality, boolean lossless, ByteBuffer destination) throws IOException {
+        final int size = (int) encode(segment(pixels, "pixels"), width, height, stride, pixelFormat,
+                quality, lossless, segment(destination, "destination"));
+        destination.position(destination.position() + size);
+        return size;
+    }
+
+    /** Encode YUV 4:2:0 planes, such as the frames of a video decoder, as a lossy image.
+     * The WebPPicture points at the planes themselves, so they are neither copied nor
+     * converted from RGB. The U and V planes must have the same stride, because libwebp
+     * has one stride for both.
+     * @param quality from 0 to 100; higher is larger and better looking
+     * @see #encode(MemorySegment, int, int, int, PixelFormat, float, boolean) */
+    public MemorySegment encode(YuvPlanes planes, float quality) throws IOException {
+        return encode(planes, null, 0, quality, null);
+    }
+
+    /** Encode YUV 4:2:0 planes and an alpha plane, as a lossy image with alpha.
+     * libwebp's exact setting is turned on, so the planes under transparent pixels are
+     * left alone rather than smoothed for compression, which would write into them.
+     * @param alpha a full size plane of alpha samples, or null for an opaque image
+     * @param alphaStride the bytes from one row of the alpha plane to the next
+     * @see #encode(YuvPlanes, float) */
+    public MemorySegment encode(YuvPlanes planes, MemorySegment alpha, int alphaStride, float quality)
+            throws IOException {
+        return encode(planes, alpha, alphaStride, quality, null);
+    }
+
+    /** Encode YUV 4:2:0 planes and an alpha plane, from the alpha buffer's position
+     * @see #encode(YuvPlanes, MemorySegment, int, float) */
+    public MemorySegment encode(YuvPlanes planes, ByteBuffer alpha, int alphaStride, float quality)
+            throws IOException {
+        return encode(planes, alpha == null ? null : segment(alpha, "alpha"), alphaStride, quality, null);
+    }
+
+    /** Encode YUV 4:2:0 planes, and optionally an alpha plane, and collect the stats of the encode
+     * @param statsListener is given the stats once the image is encoded, or null to not collect them
+     * @see #encode(YuvPlanes, MemorySegment, int, float) */
+    public MemorySegment encode(YuvPlanes planes, MemorySegment alpha, int alphaStride, float quality,
+            Consumer<EncodeStats> statsListener) throws IOException {
+        final long start = System.nanoTime();
+        return encodeToSegment(yuvLoader(planes, alpha, alphaStride), quality, false, alpha != null,
+                statsListener, start);
+    }
+
+    /** Points an initialized WebPPicture at the pixels to encode, importing them if need be */
+    @FunctionalInterface
+    private interface PictureLoader {
+        void load(Picture picture, MemorySegment pictureSegment) throws Throwable;
+    }
+
+    /** Check interleaved pixels, and make the loader which imports them */
+    private static PictureLoader pixelLoader(MemorySegment pixels, int width, int height, int stride,
+            PixelFormat pixelFormat, boolean lossless) {
+        checkPixels(pixels, width, height, stride, pixelFormat);
+        return (picture, pictureSegment) -> {
+            picture.setUseArgb(lossless ? 1 : 0);
+            picture.setWidth(width);
+            picture.setHeight(height);
+            if((int) LibWebp.pictureImport(pixelFormat).invokeExact(pictureSegment.address(), pixels.address(),
+                    stride) != 1)
+                throw new IOException("couldn't import the pixels: " + error(picture));
+        };
+    }
+
+    /** Check YUV(A) planes, and make the loader which points the picture at them */
+    private static PictureLoader yuvLoader(YuvPlanes planes, MemorySegment alpha, int alphaStride) {
+        final int width = planes.width(), height = planes.height();
+        checkSize(width, height);
+        if(planes.uStride() != planes.vStride())
+            throw new IllegalArgumentException("the U and V strides must be the same; they were: " +
+                    planes.uStride() + " and " + planes.vStride());
+        checkPlane(planes.y(), "y", planes.yStride(), width, height);
+        checkPlane(planes.u(), "u", planes.uStride(), planes.chromaWidth(), planes.chromaHeight());
+        checkPlane(planes.v(), "v", planes.vStride(), planes.chromaWidth(), planes.chromaHeight());
+        if(alpha != null) checkPlane(alpha, "alpha", alphaStride, width, height);
+        return (picture, pictureSegment) -> {
+            picture.setUseArgb(0);
+            picture.setColorspace(alpha == null ? Picture.WEBP_YUV420 : Picture.WEBP_YUV420A);
+            picture.setWidth(width);
+            picture.setHeight(height);
+            picture.setY(planes.y().address());
+            picture.setU(planes.u().address());
+            picture.setV(planes.v().address());
+            picture.setYStride(planes.yStride());
+            picture.setUvStride(planes.uStride());
+            if(alpha != null) {
+                picture.setA(alpha.address());
+                picture.setAStride(alphaStride);
+            }
+        };
+    }
+
+    /** Encode into a memory writer whose buffer becomes the result, so it isn't copied */
+    private MemorySegment encodeToSegment(PictureLoader loader, float quality, boolean lossless, boolean exact,
+            Consumer<EncodeStats> statsListener, long start) throws IOException {
+        try(NativeBufferPool.Buffer writer = pool.acquire(LibWebp.MemoryWriter.byteSize())) {
+            final MemorySegment writerSegment = writer.segment();
+            final EncodeStats stats = encodeToWriter(loader, quality, lossless, exact, writerSegment,
+                    statsListener != null, start);
+            final MemoryAddress mem = MemoryAddress.ofLong((long) LibWebp.MemoryWriterMem.get(writerSegment));
+            final long size = (long) LibWebp.MemoryWriterSize.get(writerSegment);
+            final MemorySegment result = mem.asSegment(size, () -> free(mem), newImplicitScope());
+            if(stats != null) statsListener.accept(stats);
+            return result;
+        }
+    }
+
+    /** Encode with WebPMemoryWriter, which collects the encoded bytes in native memory
+     * without any upcalls. If this returns normally, the writer must be cleared by the caller.
+     * @param exact keep the pixels under transparent areas, so libwebp doesn't change them
+     * @param start when the encode started, by System.nanoTime(), for the stats
+     * @return the stats, if they are collected, or else null */
+    private EncodeStats encodeToWriter(PictureLoader loader, float quality, boolean lossless, boolean exact,
+            MemorySegment writerSegment, boolean collectStats, long start) throws IOException {
+        checkQuality(quality);
+        // WebPPictureInit and WebPMemoryWriterInit set every field, so pooled memory is fine
+        try(NativeBufferPool.Buffer config = pool.acquire(Config.Config.byteSize());
+                NativeBufferPool.Buffer picture = pool.acquire(Picture.Picture.byteSize())) {
+            return encode(loader, quality, lossless, exact, config.segment(), picture.segment(), writerSegment,
+                    collectStats, start);
+        }
+    }
+
+    private EncodeStats encode(PictureLoader loader, float quality, boolean lossless, boolean exact,
+            MemorySegment configSegment, MemorySegment pictureSegment, MemorySegment writerSegment,
+            boolean collectStats, long start) throws IOException {
+        boolean initialized = false, encoded = false;
+        try {
+            if((int) LibWebp.ConfigPreset.invokeExact(configSegment.address(), Preset.DEFAULT.ordinal(), quality) != 1)
+                throw new IOException("couldn't initialize the config");
+            final Config config = new Config(configSegment);
+            config.setLossless(lossless ? 1 : 0);
+            if(exact) config.setExact(1);
+            if((int) LibWebp.PictureInit.invokeExact(pictureSegment.address()) != 1)
+                throw new IOException("couldn't initialize the picture");
+            LibWebp.MemoryWriterInit.invokeExact(writerSegment.address());
+            initialized = true;
+
+            final Picture picture = new Picture(pictureSegment);
+            loader.load(picture, pictureSegment);
+            picture.setWriter(LibWebp.MemoryWrite.toRawLongValue());
+            picture.setCustomPtr(writerSegment.address());
+            final MemorySegment statsSegment = ! collectStats ? null :
+                    MemorySegment.allocateNative(AuxStats.AuxStats, newImplicitScope());
+            if(statsSegment != null) picture.setStats(statsSegment.address());
+            final long encodeStart = System.nanoTime();
+            if((int) LibWebp.Encode.invokeExact(configSegment.address(), pictureSegment.address()) != 1)
+                throw new WebpEncodeException(EncodingError.of(picture.getErrorCode()));
+            final long end = System.nanoTime();
+            encoded = true;
+            return statsSegment == null ? null :
+                    new EncodeStats(new AuxStats(statsSegment), end - start, end - encodeStart, null);
+        } catch(IOException | IllegalArgumentException e) {
+            throw e;
+        } catch(Throwable t) {
+            throw new IOException("couldn't encode the image", t);
+        } finally {
+            if(initialized) {
+                // this frees only what libwebp allocated, never planes the picture points at
+                new Picture(pictureSegment).free();
+                if(! encoded) clear(writerSegment);
+            }
+        }
+    }
+
+    private static String error(Picture picture) {
+        return EncodingError.of(picture.getErrorCode()).message();
+    }
+
+    private void clear(MemorySegment writerSegment) {
+        try {
+            LibWebp.MemoryWriterClear.invokeExact(writerSegment.address());
+        } catch(Throwable t) {
+            LOG.log(WARNING, "couldn't clear the memory writer", t);
+        }
+    }
+
+    private static void free(MemoryAddress address) {
+        try {
+            LibWebp.Free.invokeExact(address);
+        } catch(Throwable t) {
+            LOG.log(WARNING, "couldn't free the encoded image", t);
+        }
+    }
+
+    private static void checkPixels(MemorySegment pixels, int width, int height, int stride,
+            PixelFormat pixelFormat) {
+        checkNative(pixels, "pixels");
+        checkSize(width, height);
+        if(stride < pixelFormat.minStride(width))
+            throw new IllegalArgumentException("the stride must be at least: " + pixelFormat.minStride(width) +
+                    "; it was: " + stride);
+        if(pixels.byteSize() < (long) stride * (height - 1) + pixelFormat.minStride(width))
+            throw new IllegalArgumentException("the pixels hold only: " + pixels.byteSize() + " bytes");
+    }
+
+    private static void checkQuality(float quality) {
+        if(quality < 0 || quality > 100)
+            throw new IllegalArgumentException("quality must be between 0 and 100; it was: " + quality);
+    }
+
+    private static void checkSize(int width, int height) {
+        if(width <= 0 || height <= 0)
+            throw new IllegalArgumentException("the size must be positive; it was: " + width + ", " + height);
+    }
+
+    /** Check that a plane is native and holds rows of the given width at the stride */
+    private static void checkPlane(MemorySegment plane, String name, int stride, int width, int height) {
+        checkNative(plane, name);
+        if(stride < width)
+            throw new IllegalArgumentException("the " + name + " stride must be at least: " + width +
+                    "; it was: " + stride);
+        if(plane.byteSize() < (long) stride * (height - 1) + width)
+            throw new IllegalArgumentException("the " + name + " plane holds only: " + plane.byteSize() + " bytes");
+    }
+
+    private static void checkNative(MemorySegment segment, String name) {
+        if(! segment.isNative() && ! segment.isMapped())
+            throw new IllegalArgumentException(name + " must be in native memory");
+    }
+
+    /** The buffer from its position to its limit, as a segment */
+    private static MemorySegment segment(ByteBuffer buffer, String name) {
+        if(! buffer.isDirect()) throw new IllegalArgumentException(name + " must be a direct buffer");
+        return MemorySegment.ofByteBuffer(buffer.slice());
+    }
+
+}
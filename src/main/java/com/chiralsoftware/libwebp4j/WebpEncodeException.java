@@ -0,0 +1,28 @@
+package com.chiralsoftware.libwebp4j;
+
+import javax.imageio.IIOException;
+
+/**
+ * WebPEncode failed, for the reason in the picture's error_code
+ */
+public class WebpEncodeException extends IIOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final EncodingError encodingError;
+
+    public WebpEncodeException(EncodingError encodingError) {
+        this(encodingError, "couldn't encode the image: " + encodingError.message());
+    }
+
+    public WebpEncodeException(EncodingError encodingError, String message) {
+        super(message);
+        if(encodingError == null) throw new NullPointerException("encodingError can't be null");
+        this.encodingError = encodingError;
+    }
+
+    public EncodingError getEncodingError() {
+        return encodingError;
+    }
+
+}
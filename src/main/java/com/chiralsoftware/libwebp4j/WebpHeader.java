@@ -0,0 +1,180 @@
+package com.chiralsoftware.libwebp4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.READ;
+import javax.imageio.stream.ImageInputStream;
+import jdk.incubator.foreign.MemorySegment;
+
+/**
+ * The basic facts about a WebP image, read from its RIFF header in pure Java without
+ * decoding anything or calling libwebp. The RIFF header and the first chunk, 30 bytes
+ * at most, give the size and the alpha and animation flags. For an extended (VP8X)
+ * still image, the compression type is in a later chunk, so the chunk headers are
+ * walked until the image data is found; the chunks themselves are skipped, not read.
+ * The values match what WebPGetFeatures reports.
+ */
+public record WebpHeader(int width, int height, boolean hasAlpha, boolean hasAnimation, Format format,
+        boolean hasIccProfile, boolean hasExif, boolean hasXmp) {
+
+    /** The compression type, matching the format field of WebPBitstreamFeatures */
+    public static enum Format {
+        /** An animation, or an image whose bitstream chunk wasn't found */
+        UNDEFINED_OR_MIXED,
+        LOSSY,
+        LOSSLESS
+    }
+
+    /** The bytes needed to read the RIFF header and the first chunk */
+    public static final int PROBE_SIZE = 30;
+
+    /** Stop walking chunks after this many, so a damaged file can't keep us busy */
+    private static final int MAX_CHUNKS = 64;
+
+    // VP8X flags
+    private static final int ICC_FLAG = 0x20, ALPHA_FLAG = 0x10, EXIF_FLAG = 0x08, XMP_FLAG = 0x04,
+            ANIMATION_FLAG = 0x02;
+
+    /** Random access to the bytes of a file, starting from the RIFF header */
+    @FunctionalInterface
+    private interface Source {
+        /** Read up to length bytes at the position, stopping early only at the end of the data
+         * @return the number of bytes read */
+        int read(long position, byte[] buffer, int length) throws IOException;
+    }
+
+    /** @return the header, or null if the data doesn't start with a valid WebP header */
+    public static WebpHeader read(byte[] data) {
+        try {
+            return read((position, buffer, length) -> {
+                if(position >= data.length) return 0;
+                final int count = (int) Math.min(length, data.length - position);
+                System.arraycopy(data, (int) position, buffer, 0, count);
+                return count;
+            });
+        } catch(IOException ioe) {
+            throw new IllegalStateException("byte arrays don't throw", ioe);
+        }
+    }
+
+    /** @return the header, or null if the data doesn't start with a valid WebP header */
+    public static WebpHeader read(MemorySegment data) {
+        try {
+            return read((position, buffer, length) -> {
+                if(position >= data.byteSize()) return 0;
+                final int count = (int) Math.min(length, data.byteSize() - position);
+                MemorySegment.ofArray(buffer).copyFrom(data.asSlice(position, count));
+                return count;
+            });
+        } catch(IOException ioe) {
+            throw new IllegalStateException("memory segments don't throw", ioe);
+        }
+    }
+
+    /** Read the header starting at the stream's current position. The stream is
+     * marked and reset, so its position is unchanged afterward.
+     * @return the header, or null if the stream doesn't start with a valid WebP header */
+    public static WebpHeader read(ImageInputStream stream) throws IOException {
+        final long start = stream.getStreamPosition();
+        stream.mark();
+        try {
+            return read((position, buffer, length) -> {
+                stream.seek(start + position);
+                int count = 0;
+                while(count < length) {
+                    final int n = stream.read(buffer, count, length - count);
+                    if(n < 0) break;
+                    count += n;
+                }
+                return count;
+            });
+        } finally {
+            stream.reset();
+        }
+    }
+
+    /** @return the header, or null if the file doesn't start with a valid WebP header */
+    public static WebpHeader read(Path path) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, READ)) {
+            return read((position, buffer, length) -> {
+                final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, length);
+                while(byteBuffer.hasRemaining()) {
+                    if(channel.read(byteBuffer, position + byteBuffer.position()) < 0) break;
+                }
+                return byteBuffer.position();
+            });
+        }
+    }
+
+    private static WebpHeader read(Source source) throws IOException {
+        final byte[] b = new byte[PROBE_SIZE];
+        final int count = source.read(0, b, PROBE_SIZE);
+        if(count < 20 || ! fourCc(b, 0, "RIFF") || ! fourCc(b, 8, "WEBP")) return null;
+        final long riffEnd = 8 + uint32(b, 4);
+        final long chunkSize = uint32(b, 16);
+
+        if(fourCc(b, 12, "VP8 ")) {
+            if(count < 30 || chunkSize < 10) return null;
+            return vp8(b, 20) ? new WebpHeader(uint16(b, 26) & 0x3fff, uint16(b, 28) & 0x3fff,
+                    false, false, Format.LOSSY, false, false, false) : null;
+        }
+        if(fourCc(b, 12, "VP8L")) {
+            if(count < 25 || chunkSize < 5 || (b[20] & 0xff) != 0x2f) return null;
+            final long bits = uint32(b, 21);
+            if((bits >>> 29) != 0) return null; // the version must be 0
+            return new WebpHeader((int) (bits & 0x3fff) + 1, (int) ((bits >>> 14) & 0x3fff) + 1,
+                    ((bits >>> 28) & 1) != 0, false, Format.LOSSLESS, false, false, false);
+        }
+        if(fourCc(b, 12, "VP8X")) {
+            if(count < 30 || chunkSize < 10) return null;
+            final int flags = b[20] & 0xff;
+            final int width = uint24(b, 24) + 1;
+            final int height = uint24(b, 27) + 1;
+            final boolean animation = (flags & ANIMATION_FLAG) != 0;
+            boolean alpha = (flags & ALPHA_FLAG) != 0;
+            Format format = Format.UNDEFINED_OR_MIXED;
+            if(! animation) {
+                // find the image data, noting an ALPH chunk on the way
+                long position = 20 + chunkSize + (chunkSize & 1);
+                for(int i = 0; i < MAX_CHUNKS && position + 8 <= riffEnd; i++) {
+                    if(source.read(position, b, 8) < 8) break;
+                    if(fourCc(b, 0, "ALPH")) alpha = true;
+                    else if(fourCc(b, 0, "VP8 ")) { format = Format.LOSSY; break; }
+                    else if(fourCc(b, 0, "VP8L")) { format = Format.LOSSLESS; break; }
+                    final long size = uint32(b, 4);
+                    position += 8 + size + (size & 1);
+                }
+            }
+            return new WebpHeader(width, height, alpha, animation, format,
+                    (flags & ICC_FLAG) != 0, (flags & EXIF_FLAG) != 0, (flags & XMP_FLAG) != 0);
+        }
+        return null;
+    }
+
+    /** A VP8 key frame: the frame tag's key frame bit is 0, and the start code follows it */
+    private static boolean vp8(byte[] b, int offset) {
+        return (b[offset] & 1) == 0 && (b[offset + 3] & 0xff) == 0x9d &&
+                (b[offset + 4] & 0xff) == 0x01 && (b[offset + 5] & 0xff) == 0x2a;
+    }
+
+    private static boolean fourCc(byte[] b, int offset, String fourCc) {
+        for(int i = 0; i < 4; i++)
+            if(b[offset + i] != fourCc.charAt(i)) return false;
+        return true;
+    }
+
+    private static int uint16(byte[] b, int offset) {
+        return (b[offset] & 0xff) | (b[offset + 1] & 0xff) << 8;
+    }
+
+    private static int uint24(byte[] b, int offset) {
+        return uint16(b, offset) | (b[offset + 2] & 0xff) << 16;
+    }
+
+    private static long uint32(byte[] b, int offset) {
+        return (uint24(b, offset) | (long) (b[offset + 3] & 0xff) << 24);
+    }
+
+}
@@ -0,0 +1,32 @@
+package com.chiralsoftware.libwebp4j;
+
+import java.awt.color.ICC_Profile;
+import java.util.Optional;
+import jdk.incubator.foreign.MemorySegment;
+
+/**
+ * The metadata chunks of a WebP file. The IIOMetadata which WebpImageReader's
+ * getImageMetadata() returns implements this. Nothing is decoded to answer these
+ * calls: the chunks are found the first time one is asked for, and the segments returned
+ * are read-only slices of the reader's input, not copies. They are valid as long as the
+ * input is, which is until the reader is disposed or given a new input.
+ */
+public interface WebpImageMetadata {
+
+    /** The EXIF chunk, as a TIFF structure */
+    Optional<MemorySegment> getExif();
+
+    /** The XMP chunk, which is UTF-8 XML */
+    Optional<MemorySegment> getXmp();
+
+    /** The ICC color profile chunk */
+    Optional<MemorySegment> getIccProfileData();
+
+    /** The ICC color profile, parsed by the JDK */
+    Optional<ICC_Profile> getIccProfile();
+
+    /** The orientation from the EXIF chunk, from 1 to 8 as in the TIFF
+     * specification. 1, upright, if there is no EXIF or it has no orientation. */
+    int getOrientation();
+
+}
@@ -0,0 +1,108 @@
+package com.chiralsoftware.libwebp4j;
+
+import javax.imageio.ImageReadParam;
+
+/**
+ * Read parameters for WebP images. Readers return one of these from
+ * getDefaultReadParam(). The source region, subsampling and source render size are
+ * all handled by libwebp while decoding, so only the pixels which are kept are decoded.
+ * This param also carries libwebp's own decoding options, which trade speed against
+ * quality.
+ */
+public class WebpImageReadParam extends ImageReadParam {
+
+    /** Default number of bytes pulled from a stream input for each incremental decoding step */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private boolean useThreads = false;
+    private boolean fancyUpsampling = true;
+    private boolean bypassFiltering = false;
+    private int ditheringStrength = 0;
+    private int alphaDitheringStrength = 0;
+
+    public WebpImageReadParam() {
+        super();
+        // libwebp can scale while decoding
+        canSetSourceRenderSize = true;
+    }
+
+    /** When the input is an ImageInputStream or a ReadableByteChannel the image is
+     * decoded incrementally: the reader pulls up to this many bytes at a time and decodes
+     * them before reading more. Rows are reported to any IIOReadUpdateListener as soon as
+     * they are decoded. Smaller chunks give earlier updates at some cost in overhead. */
+    public void setChunkSize(int chunkSize) {
+        if(chunkSize < 1) throw new IllegalArgumentException("chunk size must be positive; it was: " + chunkSize);
+        this.chunkSize = chunkSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /** Decode on more than one thread. This lowers the latency of decoding a large
+     * lossy image, at the cost of a thread which is started for each decode, so it is
+     * off by default. */
+    public void setUseThreads(boolean useThreads) {
+        this.useThreads = useThreads;
+    }
+
+    public boolean getUseThreads() {
+        return useThreads;
+    }
+
+    /** Lossy images store their colors at half resolution. Fancy upsampling, the default,
+     * interpolates them back to full size; turning it off uses the faster pointwise
+     * upsampler, which is slightly blockier. */
+    public void setFancyUpsampling(boolean fancyUpsampling) {
+        this.fancyUpsampling = fancyUpsampling;
+    }
+
+    public boolean getFancyUpsampling() {
+        return fancyUpsampling;
+    }
+
+    /** Skip the in-loop filtering of lossy images. This is faster and shows more
+     * compression artifacts. */
+    public void setBypassFiltering(boolean bypassFiltering) {
+        this.bypassFiltering = bypassFiltering;
+    }
+
+    public boolean getBypassFiltering() {
+        return bypassFiltering;
+    }
+
+    /** Dithering applied to the colors of lossy images, from 0 (off, the default)
+     * to 100 (full). Dithering hides banding and costs some speed. */
+    public void setDitheringStrength(int ditheringStrength) {
+        if(ditheringStrength < 0 || ditheringStrength > 100)
+            throw new IllegalArgumentException("dithering strength must be in [0..100]; it was: " + ditheringStrength);
+        this.ditheringStrength = ditheringStrength;
+    }
+
+    public int getDitheringStrength() {
+        return ditheringStrength;
+    }
+
+    /** Dithering applied to the alpha plane, from 0 (off, the default) to 100 (full) */
+    public void setAlphaDitheringStrength(int alphaDitheringStrength) {
+        if(alphaDitheringStrength < 0 || alphaDitheringStrength > 100)
+            throw new IllegalArgumentException("alpha dithering strength must be in [0..100]; it was: " +
+                    alphaDitheringStrength);
+        this.alphaDitheringStrength = alphaDitheringStrength;
+    }
+
+    public int getAlphaDitheringStrength() {
+        return alphaDitheringStrength;
+    }
+
+    /** Copy the decoding options of this param into a WebPDecoderConfig */
+    public void applyTo(DecoderConfig decoderConfig) {
+        decoderConfig.setUseThreads(useThreads ? 1 : 0);
+        decoderConfig.setNoFancyUpsampling(fancyUpsampling ? 0 : 1);
+        decoderConfig.setBypassFiltering(bypassFiltering ? 1 : 0);
+        decoderConfig.setDitheringStrength(ditheringStrength);
+        decoderConfig.setAlphaDitheringStrength(alphaDitheringStrength);
+    }
+
+}
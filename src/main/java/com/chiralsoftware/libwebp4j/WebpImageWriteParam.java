@@ -0,0 +1,447 @@
+package com.chiralsoftware.libwebp4j;
+
+import java.time.Duration;
+import java.util.Locale;
+import javax.imageio.ImageWriteParam;
+
+/**
+ * Write parameters for WebP images. Writers return one of these from
+ * getDefaultWriteParam(). Besides the standard ImageWriteParam settings, this
+ * carries the settings of animations written with the writer's sequence methods,
+ * which are encoded with libwebp's WebPAnimEncoder.
+ * <p>
+ * The compression types are LOSSY and LOSSLESS. As with any ImageWriteParam, the
+ * compression type and quality are only used in MODE_EXPLICIT; MODE_DISABLED writes
+ * lossless images, and the other modes write lossy images at DEFAULT_QUALITY. For lossy
+ * images a higher quality is bigger and looks better; for lossless images it is the
+ * effort spent making the file smaller.
+ * <p>
+ * The encoder settings, such as the method and the number of passes, map onto the
+ * fields of libwebp's WebPConfig. Those which aren't set keep the values of the preset.
+ * A Profile sets several of them at once, to trade CPU time against file size.
+ */
+public class WebpImageWriteParam extends ImageWriteParam {
+
+    /** The display duration of a frame when neither the param nor the frame's
+     * metadata gives one, in milliseconds */
+    public static final int DEFAULT_FRAME_DURATION = 100;
+
+    /** The compression type of lossy images, the default */
+    public static final String LOSSY = "Lossy";
+
+    /** The compression type of lossless images */
+    public static final String LOSSLESS = "Lossless";
+
+    /** The quality, from 0 to 100, when none is set; the same as libwebp's */
+    public static final float DEFAULT_QUALITY = 75;
+
+    /** Named trade-offs between encoding time and file size. Each sets the method, the
+     * number of entropy passes and the filter settings; the quality is left alone. */
+    public static enum Profile {
+        /** Method 0, one pass and a fixed filter: the least CPU, and the largest files */
+        FASTEST(0, 1, false),
+        /** libwebp's defaults, method 4 with one pass */
+        BALANCED(4, 1, false),
+        /** Method 6, ten passes and filter strength picked per image: the smallest
+         * files, at several times the CPU of BALANCED */
+        SMALLEST(6, 10, true);
+
+        private Profile(int method, int pass, boolean autofilter) {
+            this.method = method;
+            this.pass = pass;
+            this.autofilter = autofilter;
+        }
+
+        private final int method;
+        private final int pass;
+        private final boolean autofilter;
+    }
+
+    private int frameDuration = -1;
+    private int loopCount = 0;
+    private int backgroundColor = 0xffffffff;
+    private boolean minimizeSize = false;
+    private boolean allowMixed = false;
+    private boolean keyframeIntervalSet = false;
+    private int minKeyframeInterval, maxKeyframeInterval;
+
+    // encoder settings; -1 or null means the preset's value is used
+    private Preset preset = null;
+    private ImageHint imageHint = null;
+    private int method = -1;
+    private int targetSize = -1;
+    private int pass = -1;
+    private int segments = -1;
+    private int snsStrength = -1;
+    private int filterStrength = -1;
+    private int filterSharpness = -1;
+    private int filterType = -1;
+    private int autofilter = -1;
+    private int threadLevel = -1;
+    private ThreadingPolicy threadingPolicy = null;
+
+    private boolean streaming = false;
+    private boolean collectStats = false;
+
+    // stopping an encode; any of these installs libwebp's progress hook
+    private Duration timeLimit = null;
+    private CancellationToken cancellationToken = null;
+    private boolean interruptible = false;
+
+    public WebpImageWriteParam() {
+        this(Locale.getDefault());
+    }
+
+    public WebpImageWriteParam(Locale locale) {
+        super(locale);
+        canWriteCompressed = true;
+        compressionTypes = new String[] { LOSSY, LOSSLESS };
+        compressionType = LOSSY;
+        compressionQuality = DEFAULT_QUALITY / 100;
+    }
+
+    /** True if the compression type is LOSSLESS. The compression mode must be MODE_EXPLICIT. */
+    @Override
+    public boolean isCompressionLossless() {
+        super.isCompressionLossless();
+        return LOSSLESS.equals(getCompressionType());
+    }
+
+    /** Use explicit compression of the given type and quality
+     * @param quality from 0 to 1, as with setCompressionQuality */
+    public void setCompression(String type, float quality) {
+        setCompressionMode(MODE_EXPLICIT);
+        setCompressionType(type);
+        setCompressionQuality(quality);
+    }
+
+    /** Set the method, passes and filter settings of a profile. They can be changed
+     * one by one afterward. */
+    public void setProfile(Profile profile) {
+        setMethod(profile.method);
+        setPass(profile.pass);
+        setAutofilter(profile.autofilter);
+    }
+
+    /** The preset which the encoder settings start from, which tunes them for a kind of
+     * image. The default is Preset.DEFAULT. */
+    public void setPreset(Preset preset) {
+        this.preset = preset;
+    }
+
+    /** @return the preset, or null if it isn't set */
+    public Preset getPreset() {
+        return preset;
+    }
+
+    /** A hint about the kind of image, used by lossless compression */
+    public void setImageHint(ImageHint imageHint) {
+        this.imageHint = imageHint;
+    }
+
+    /** @return the image hint, or null if it isn't set */
+    public ImageHint getImageHint() {
+        return imageHint;
+    }
+
+    /** The trade-off between speed and size, from 0, the fastest, to 6, the smallest.
+     * libwebp's default is 4. */
+    public void setMethod(int method) {
+        checkRange("method", method, 0, 6);
+        this.method = method;
+    }
+
+    /** @return the method, or -1 if it isn't set */
+    public int getMethod() {
+        return method;
+    }
+
+    /** Aim for a file of this many bytes, searching for the quality which gets closest to
+     * it, instead of using the compression quality. 0 turns this off. Lossy only. */
+    public void setTargetSize(int targetSize) {
+        if(targetSize < 0) throw new IllegalArgumentException("target size can't be negative; it was: " + targetSize);
+        this.targetSize = targetSize;
+    }
+
+    /** @return the target size in bytes, or -1 if it isn't set */
+    public int getTargetSize() {
+        return targetSize;
+    }
+
+    /** The number of entropy-analysis passes, from 1 to 10. More passes get closer to
+     * the target size, and cost more time. */
+    public void setPass(int pass) {
+        checkRange("pass", pass, 1, 10);
+        this.pass = pass;
+    }
+
+    /** @return the number of passes, or -1 if it isn't set */
+    public int getPass() {
+        return pass;
+    }
+
+    /** The maximum number of segments, from 1 to 4. Lossy only. */
+    public void setSegments(int segments) {
+        checkRange("segments", segments, 1, 4);
+        this.segments = segments;
+    }
+
+    /** @return the number of segments, or -1 if it isn't set */
+    public int getSegments() {
+        return segments;
+    }
+
+    /** Spatial noise shaping, from 0, off, to 100. Lossy only. */
+    public void setSnsStrength(int snsStrength) {
+        checkRange("sns strength", snsStrength, 0, 100);
+        this.snsStrength = snsStrength;
+    }
+
+    /** @return the spatial noise shaping strength, or -1 if it isn't set */
+    public int getSnsStrength() {
+        return snsStrength;
+    }
+
+    /** The strength of the deblocking filter, from 0, off, to 100. Lossy only. */
+    public void setFilterStrength(int filterStrength) {
+        checkRange("filter strength", filterStrength, 0, 100);
+        this.filterStrength = filterStrength;
+    }
+
+    /** @return the filter strength, or -1 if it isn't set */
+    public int getFilterStrength() {
+        return filterStrength;
+    }
+
+    /** The filter sharpness, from 0, the sharpest, to 7, the least sharp. Lossy only. */
+    public void setFilterSharpness(int filterSharpness) {
+        checkRange("filter sharpness", filterSharpness, 0, 7);
+        this.filterSharpness = filterSharpness;
+    }
+
+    /** @return the filter sharpness, or -1 if it isn't set */
+    public int getFilterSharpness() {
+        return filterSharpness;
+    }
+
+    /** The filter type: 0 is simple and 1 is strong. Lossy only. */
+    public void setFilterType(int filterType) {
+        checkRange("filter type", filterType, 0, 1);
+        this.filterType = filterType;
+    }
+
+    /** @return the filter type, or -1 if it isn't set */
+    public int getFilterType() {
+        return filterType;
+    }
+
+    /** Pick the filter strength for each image, which is slower. Lossy only. */
+    public void setAutofilter(boolean autofilter) {
+        this.autofilter = autofilter ? 1 : 0;
+    }
+
+    /** @return 1 if autofilter is on, 0 if it is off, or -1 if it isn't set */
+    public int getAutofilter() {
+        return autofilter;
+    }
+
+    /** If non-zero, libwebp encodes each image with more than one thread where it can.
+     * This lowers the time per image, not the CPU per image. */
+    public void setThreadLevel(int threadLevel) {
+        if(threadLevel < 0) throw new IllegalArgumentException("thread level can't be negative; it was: " + threadLevel);
+        this.threadLevel = threadLevel;
+    }
+
+    /** @return the thread level, or -1 if it isn't set */
+    public int getThreadLevel() {
+        return threadLevel;
+    }
+
+    /** Choose the thread level and low_memory of each still image by its size and the
+     * load, unless the thread level is set, in which case only low_memory is chosen.
+     * @param threadingPolicy the policy, or null to keep the preset's values, which is
+     * the default
+     * @see AdaptiveThreadingPolicy */
+    public void setThreadingPolicy(ThreadingPolicy threadingPolicy) {
+        this.threadingPolicy = threadingPolicy;
+    }
+
+    public ThreadingPolicy getThreadingPolicy() {
+        return threadingPolicy;
+    }
+
+    /** Hand the encoded file to the output chunk by chunk as libwebp produces it, calling
+     * back into Java for each chunk, instead of collecting it in native memory and
+     * writing it in one go at the end, which is the default. Streaming holds less memory
+     * for very large images. A byte[] or MemorySegment output is always written in one go. */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /** Collect libwebp's statistics and the encoding time of each still image, which
+     * the writer returns from getLastStats(). This is off by default.
+     * @see EncodeStats */
+    public void setCollectStats(boolean collectStats) {
+        this.collectStats = collectStats;
+    }
+
+    public boolean getCollectStats() {
+        return collectStats;
+    }
+
+    /** Stop encoding a still image which takes longer than this, counted from when
+     * the writer starts on it, with an EncodeAbortedException. The limit is checked each
+     * time libwebp reports progress, which is about every percent, except in the passes
+     * before the last of a lossy encode with more than one pass, when it doesn't report
+     * at all. Those passes run to the end, so keep the pass count low where latency matters.
+     * @param timeLimit the limit, or null for none, which is the default */
+    public void setTimeLimit(Duration timeLimit) {
+        if(timeLimit != null && (timeLimit.isNegative() || timeLimit.isZero()))
+            throw new IllegalArgumentException("the time limit must be positive; it was: " + timeLimit);
+        this.timeLimit = timeLimit;
+    }
+
+    public Duration getTimeLimit() {
+        return timeLimit;
+    }
+
+    /** Stop encoding a still image, with an EncodeAbortedException, when the token is cancelled
+     * @param cancellationToken the token, or null for none, which is the default */
+    public void setCancellationToken(CancellationToken cancellationToken) {
+        this.cancellationToken = cancellationToken;
+    }
+
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    /** Stop encoding a still image, with an EncodeAbortedException, when the thread
+     * encoding it is interrupted. The interrupt is also noticed when a time limit or a
+     * cancellation token is set. This is off by default, because libwebp then calls back
+     * into Java each time it reports progress, which is a cost for small images. */
+    public void setInterruptible(boolean interruptible) {
+        this.interruptible = interruptible;
+    }
+
+    public boolean isInterruptible() {
+        return interruptible;
+    }
+
+    /** Go back to the preset's values for all of the encoder settings, and to the DEFAULT preset */
+    public void unsetEncoderSettings() {
+        preset = null;
+        imageHint = null;
+        method = targetSize = pass = segments = snsStrength = -1;
+        filterStrength = filterSharpness = filterType = autofilter = threadLevel = -1;
+        threadingPolicy = null;
+    }
+
+    private static void checkRange(String name, int value, int min, int max) {
+        if(value < min || value > max)
+            throw new IllegalArgumentException(name + " must be in [" + min + ".." + max + "]; it was: " + value);
+    }
+
+    /** How long each following frame of an animation is shown, in milliseconds.
+     * When this isn't set, the delay time in a frame's GIF metadata is used, if it
+     * has any, and otherwise DEFAULT_FRAME_DURATION. The param passed to each call of
+     * writeToSequence() is used for that frame, so frames can have different durations. */
+    public void setFrameDuration(int frameDuration) {
+        if(frameDuration < 1)
+            throw new IllegalArgumentException("frame duration must be positive; it was: " + frameDuration);
+        this.frameDuration = frameDuration;
+    }
+
+    /** Go back to taking the frame duration from the frame's metadata */
+    public void unsetFrameDuration() {
+        frameDuration = -1;
+    }
+
+    /** @return the frame duration in milliseconds, or -1 if it isn't set */
+    public int getFrameDuration() {
+        return frameDuration;
+    }
+
+    /** The number of times the animation is played; 0, the default, loops forever.
+     * This and the other animation settings below are taken from the param of the
+     * first frame of the sequence. */
+    public void setLoopCount(int loopCount) {
+        if(loopCount < 0 || loopCount > 0xffff)
+            throw new IllegalArgumentException("loop count must be in [0..65535]; it was: " + loopCount);
+        this.loopCount = loopCount;
+    }
+
+    public int getLoopCount() {
+        return loopCount;
+    }
+
+    /** A hint for the color to clear the canvas to, as ARGB. Viewers are free to
+     * ignore it. The default is opaque white. */
+    public void setBackgroundColor(int backgroundColor) {
+        this.backgroundColor = backgroundColor;
+    }
+
+    public int getBackgroundColor() {
+        return backgroundColor;
+    }
+
+    /** Try harder to shrink the animation by trying every way of encoding each
+     * frame's difference from the one before. This is slow, and it turns off keyframe
+     * insertion. */
+    public void setMinimizeSize(boolean minimizeSize) {
+        this.minimizeSize = minimizeSize;
+    }
+
+    public boolean getMinimizeSize() {
+        return minimizeSize;
+    }
+
+    /** Let the encoder choose lossy or lossless compression for each frame,
+     * whichever is smaller */
+    public void setAllowMixed(boolean allowMixed) {
+        this.allowMixed = allowMixed;
+    }
+
+    public boolean getAllowMixed() {
+        return allowMixed;
+    }
+
+    /** Set the minimum and maximum distance between keyframes. Keyframes cost space
+     * but make seeking faster, because a reader can start rendering from them. If max
+     * is 0 no keyframes are inserted, and if it is 1 every frame is a keyframe;
+     * otherwise libwebp requires max &gt; min &gt;= max / 2 + 1. By default the
+     * encoder's own settings are used. */
+    public void setKeyframeInterval(int min, int max) {
+        if(max < 0 || min < 0)
+            throw new IllegalArgumentException("keyframe intervals can't be negative; they were: " + min + ", " + max);
+        if(max > 1 && (min >= max || min < max / 2 + 1))
+            throw new IllegalArgumentException("keyframe intervals must satisfy max > min >= max / 2 + 1; they were: " +
+                    min + ", " + max);
+        this.minKeyframeInterval = min;
+        this.maxKeyframeInterval = max;
+        keyframeIntervalSet = true;
+    }
+
+    /** Go back to the encoder's default keyframe interval */
+    public void unsetKeyframeInterval() {
+        keyframeIntervalSet = false;
+    }
+
+    public boolean isKeyframeIntervalSet() {
+        return keyframeIntervalSet;
+    }
+
+    public int getMinKeyframeInterval() {
+        if(! keyframeIntervalSet) throw new IllegalStateException("the keyframe interval is not set");
+        return minKeyframeInterval;
+    }
+
+    public int getMaxKeyframeInterval() {
+        if(! keyframeIntervalSet) throw new IllegalStateException("the keyframe interval is not set");
+        return maxKeyframeInterval;
+    }
+
+}
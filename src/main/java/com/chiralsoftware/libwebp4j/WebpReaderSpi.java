@@ -5,12 +5,18 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Locale;
 import java.util.logging.Logger;
 import javax.imageio.ImageReader;
 import javax.imageio.spi.ImageReaderSpi;
-import javax.imageio.stream.FileImageInputStream;
 import javax.imageio.stream.ImageInputStream;
+import jdk.incubator.foreign.MemorySegment;
 
 /**
  *
@@ -24,37 +30,33 @@ public final class WebpReaderSpi extends ImageReaderSpi {
         inputTypes = myInputTypes;
     }
     
-    private static final byte[] webpFirstHeader = { 'R', 'I', 'F', 'F' };
-    private static final byte[] webpSecondHeader = { 'W', 'E', 'B', 'P' };
-
+    /** Check the header with WebpHeader, which reads the first 30 bytes or so,
+     * without decoding anything. Streams are left at the position they were at. An
+     * InputStream other than a FileInputStream can only be checked if it supports
+     * mark, and a channel can't be checked without consuming it. */
     @Override
     public boolean canDecodeInput(Object source) throws IOException {
         LOG.fine("can i decode this? " + source);
-        if(source instanceof byte[] ba) {
-            // the smallest possible webp file is 26 bytes:
-            // https://github.com/mathiasbynens/small/blob/master/webp.webp
-            // although ImageMagick says that particular file is corrupt
-            if(ba.length < 26) return false;
-            for(int i = 0; i < webpFirstHeader.length; i++)
-                if(webpFirstHeader[i] != ba[i]) return false;
-            for(int i = 0; i < webpSecondHeader.length; i++ ) {
-                if(webpSecondHeader[i] != ba[i + 4 + webpFirstHeader.length])
-                    return false;
-            }
-            // TODO: also check file length
-            return true;
+        if(source instanceof byte[] ba) return WebpHeader.read(ba) != null;
+        if(source instanceof ImageInputStream iis) return WebpHeader.read(iis) != null;
+        if(source instanceof File file) return file.isFile() && WebpHeader.read(file.toPath()) != null;
+        if(source instanceof Path path) return Files.isRegularFile(path) && WebpHeader.read(path) != null;
+        if(source instanceof ByteBuffer byteBuffer)
+            return WebpHeader.read(MemorySegment.ofByteBuffer(byteBuffer.slice())) != null;
+        if(source instanceof FileInputStream fileInputStream) {
+            // a positional read doesn't move the stream
+            final FileChannel channel = fileInputStream.getChannel();
+            final ByteBuffer probe = ByteBuffer.allocate(WebpHeader.PROBE_SIZE);
+            while(probe.hasRemaining() && channel.read(probe, channel.position() + probe.position()) > 0) { }
+            return WebpHeader.read(Arrays.copyOf(probe.array(), probe.position())) != null;
         }
-        if(source instanceof FileImageInputStream fiis) {
-            final byte[] ba = new byte[26];
-            fiis.read(ba);
-            return canDecodeInput(ba);
-        }
-        if(source instanceof File file) {
-            final byte[] ba = new byte[26];
-            final FileInputStream fis = new FileInputStream(file);
-            if(fis.read(ba) < 26) return false;
-            fis.close();
-            return canDecodeInput(ba);
+        if(source instanceof InputStream inputStream && inputStream.markSupported()) {
+            inputStream.mark(WebpHeader.PROBE_SIZE);
+            try {
+                return WebpHeader.read(inputStream.readNBytes(WebpHeader.PROBE_SIZE)) != null;
+            } finally {
+                inputStream.reset();
+            }
         }
         LOG.info("Unsupported class: " + source.getClass().getName());
         return false;
@@ -74,8 +76,8 @@ public final class WebpReaderSpi extends ImageReaderSpi {
 //    }
     
     private static final Class[] myInputTypes = new Class[] { 
-        byte[].class,
-        File.class, ImageInputStream.class
+        byte[].class, ByteBuffer.class,
+        File.class, Path.class, ImageInputStream.class, InputStream.class, ReadableByteChannel.class
     };
 
     @Override
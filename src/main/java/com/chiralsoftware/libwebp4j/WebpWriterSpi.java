@@ -2,12 +2,17 @@ package com.chiralsoftware.libwebp4j;
 
 import com.chiralsoftware.libwebp4j.impl.WebpImageReader;
 import com.chiralsoftware.libwebp4j.impl.WebpImageWriter;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
 import java.util.Locale;
 import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.ImageWriter;
 import javax.imageio.spi.ImageWriterSpi;
 import javax.imageio.stream.ImageOutputStream;
+import jdk.incubator.foreign.MemorySegment;
 
 /**
  * Implement a writer SPI
@@ -21,7 +26,8 @@ public final class WebpWriterSpi extends ImageWriterSpi {
                 new String[] { "webp" }, // suffixes
                 new String[] { "image/webp" }, // MIMETypes
                 WebpImageWriter.class.getName(), // writerClassName
-                new Class[] {  ImageOutputStream.class, byte[].class }, // outputTypes
+                new Class[] {  ImageOutputStream.class, byte[].class, MemorySegment.class, OutputStream.class,
+                        WritableByteChannel.class, File.class, Path.class }, // outputTypes
                 new String[] { WebpImageReader.class.getName() }, // readerSpiNames
                 false, // supportsStandardStreamMetadataFormat
                 null, // nativeStreamMetadataFormatName
@@ -0,0 +1,71 @@
+package com.chiralsoftware.libwebp4j;
+
+import java.nio.ByteBuffer;
+import jdk.incubator.foreign.MemorySegment;
+import static jdk.incubator.foreign.MemorySegment.allocateNative;
+import static jdk.incubator.foreign.ResourceScope.newImplicitScope;
+
+/**
+ * A decoded image in planar YUV 4:2:0, the way lossy WebP stores it: a full size Y
+ * (luma) plane, and U and V (chroma) planes at half the width and half the height,
+ * rounded up. Samples are 8 bits, in the limited range BT.601 encoding libwebp uses.
+ * The planes are native memory, so they can be handed to native video encoders or
+ * ML runtimes as they are, and the ByteBuffer views are direct buffers. WebpCodec.decodeYuv
+ * decodes into them. Planes from a video decoder can be encoded the same way, with
+ * WebpCodec.encode(YuvPlanes, float).
+ */
+public record YuvPlanes(int width, int height, MemorySegment y, int yStride,
+        MemorySegment u, int uStride, MemorySegment v, int vStride) {
+
+    /** Allocate tightly packed planes for an image of this size, in one native segment */
+    public static YuvPlanes allocate(int width, int height) {
+        if(width <= 0 || height <= 0)
+            throw new IllegalArgumentException("the size must be positive; it was: " + width + ", " + height);
+        final int chromaWidth = (width + 1) / 2;
+        final long ySize = (long) width * height;
+        final long chromaSize = (long) chromaWidth * ((height + 1) / 2);
+        final MemorySegment segment = allocateNative(ySize + 2 * chromaSize, newImplicitScope());
+        return new YuvPlanes(width, height, segment.asSlice(0, ySize), width,
+                segment.asSlice(ySize, chromaSize), chromaWidth,
+                segment.asSlice(ySize + chromaSize, chromaSize), chromaWidth);
+    }
+
+    /** Planes in direct buffers, such as those of a video decoder, from each buffer's
+     * position to its limit. The planes share the buffers' memory. */
+    public static YuvPlanes wrap(int width, int height, ByteBuffer y, int yStride,
+            ByteBuffer u, int uStride, ByteBuffer v, int vStride) {
+        return new YuvPlanes(width, height, segment(y, "y"), yStride, segment(u, "u"), uStride,
+                segment(v, "v"), vStride);
+    }
+
+    private static MemorySegment segment(ByteBuffer buffer, String name) {
+        if(! buffer.isDirect()) throw new IllegalArgumentException("the " + name + " plane must be a direct buffer");
+        return MemorySegment.ofByteBuffer(buffer.slice());
+    }
+
+    /** The width of the U and V planes */
+    public int chromaWidth() {
+        return (width + 1) / 2;
+    }
+
+    /** The height of the U and V planes */
+    public int chromaHeight() {
+        return (height + 1) / 2;
+    }
+
+    /** The Y plane as a direct ByteBuffer */
+    public ByteBuffer yBuffer() {
+        return y.asByteBuffer();
+    }
+
+    /** The U plane as a direct ByteBuffer */
+    public ByteBuffer uBuffer() {
+        return u.asByteBuffer();
+    }
+
+    /** The V plane as a direct ByteBuffer */
+    public ByteBuffer vBuffer() {
+        return v.asByteBuffer();
+    }
+
+}
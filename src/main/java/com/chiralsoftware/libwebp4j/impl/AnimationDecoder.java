@@ -0,0 +1,104 @@
+package com.chiralsoftware.libwebp4j.impl;
+
+import com.chiralsoftware.libwebp4j.PixelFormat;
+import java.util.logging.Logger;
+import javax.imageio.IIOException;
+import static jdk.incubator.foreign.CLinker.C_INT;
+import static jdk.incubator.foreign.CLinker.C_POINTER;
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import static jdk.incubator.foreign.MemorySegment.allocateNative;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Wraps a WebPAnimDecoder, which renders the frames of an animation onto an RGBA
+ * canvas one after another. It is the fastest way to play an animation in order,
+ * but it can only move forward or go back to the start.
+ */
+final class AnimationDecoder implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(AnimationDecoder.class.getName());
+
+    private final long canvasSize;
+    /** Holds the structs, and the canvas views, until this is closed */
+    private final ResourceScope scope = LibWebp.newScope();
+    private final MemorySegment data;
+    private final MemorySegment outSegment;
+    private MemoryAddress decoder;
+    private int nextFrame = 0;
+
+    /** @param input the whole WebP file, which must stay alive until this is closed */
+    AnimationDecoder(MemorySegment input, int canvasWidth, int canvasHeight,
+            boolean useThreads) throws IIOException {
+        this.canvasSize = (long) PixelFormat.RGBA.minStride(canvasWidth) * canvasHeight;
+        this.data = allocateNative(LibWebp.Data, scope);
+        LibWebp.DataBytes.set(data, input.address().toRawLongValue());
+        LibWebp.DataSize.set(data, input.byteSize());
+        // the uint8_t** buf and int* timestamp out parameters of GetNext
+        this.outSegment = allocateNative(C_POINTER.byteSize() + C_INT.byteSize(), 8, scope);
+        try(ResourceScope optionsScope = ResourceScope.newConfinedScope()) {
+            final MemorySegment options = allocateNative(LibWebpDemux.AnimDecoderOptions, optionsScope);
+            if((int) LibWebpDemux.AnimDecoderOptionsInit.invokeExact(options.address()) != 1)
+                throw new IIOException("couldn't initialize the animation decoder options");
+            LibWebpDemux.AnimDecoderOptionsColorMode.set(options, PixelFormat.RGBA.mode());
+            LibWebpDemux.AnimDecoderOptionsUseThreads.set(options, useThreads ? 1 : 0);
+            decoder = (MemoryAddress) LibWebpDemux.AnimDecoderNew.invokeExact(data.address(), options.address());
+        } catch(IIOException iioe) {
+            scope.close();
+            throw iioe;
+        } catch(Throwable t) {
+            scope.close();
+            throw new IIOException("couldn't create the animation decoder", t);
+        }
+        if(decoder.equals(MemoryAddress.NULL)) {
+            scope.close();
+            throw new IIOException("WebPAnimDecoderNew failed to parse the animation");
+        }
+    }
+
+    /** The index of the frame which next() will return */
+    int nextFrame() {
+        return nextFrame;
+    }
+
+    /** Render the next frame.
+     * @return the canvas, which is valid until the next call to this decoder, and can't
+     * be accessed at all after it is closed */
+    MemorySegment next() throws IIOException {
+        if(decoder == null) throw new IllegalStateException("this decoder has been closed");
+        final int result;
+        try {
+            result = (int) LibWebpDemux.AnimDecoderGetNext.invokeExact(decoder, outSegment.address(),
+                    outSegment.address().addOffset(C_POINTER.byteSize()));
+        } catch(Throwable t) {
+            throw new IIOException("couldn't decode frame " + nextFrame, t);
+        }
+        if(result == 0) throw new IIOException("WebPAnimDecoderGetNext failed on frame " + nextFrame);
+        nextFrame++;
+        return MemoryAddress.ofLong(MemoryAccess.getLongAtOffset(outSegment, 0)).asSegment(canvasSize, scope);
+    }
+
+    /** Go back to the first frame */
+    void reset() throws IIOException {
+        try {
+            LibWebpDemux.AnimDecoderReset.invokeExact(decoder);
+        } catch(Throwable t) {
+            throw new IIOException("couldn't reset the animation decoder", t);
+        }
+        nextFrame = 0;
+    }
+
+    @Override
+    public void close() {
+        if(decoder == null) return;
+        try {
+            LibWebpDemux.AnimDecoderDelete.invokeExact(decoder);
+        } catch(Throwable t) {
+            LOG.warning("couldn't delete the animation decoder: " + t);
+        }
+        decoder = null;
+        scope.close();
+    }
+
+}
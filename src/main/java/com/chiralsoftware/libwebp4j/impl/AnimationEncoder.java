@@ -0,0 +1,126 @@
+package com.chiralsoftware.libwebp4j.impl;
+
+import com.chiralsoftware.libwebp4j.WebpImageWriteParam;
+import java.util.logging.Logger;
+import javax.imageio.IIOException;
+import jdk.incubator.foreign.CLinker;
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import static jdk.incubator.foreign.MemorySegment.allocateNative;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Wraps a WebPAnimEncoder. Frames of the canvas size are added one at a time;
+ * the encoder compares each one with the frame before, encodes only the rectangle
+ * which changed, and inserts keyframes as its options ask. assemble() then produces
+ * the whole animated WebP file.
+ */
+final class AnimationEncoder implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(AnimationEncoder.class.getName());
+
+    /** Holds the WebPData, and the view of the assembled file, until this is closed */
+    private final ResourceScope scope = LibWebp.newScope();
+    private final MemorySegment data;
+    private MemoryAddress encoder;
+    private int frameCount = 0;
+
+    /** @param param the animation settings, or null for the defaults */
+    AnimationEncoder(int canvasWidth, int canvasHeight,
+            WebpImageWriteParam param) throws IIOException {
+        this.data = allocateNative(LibWebp.Data, scope);
+        try(ResourceScope optionsScope = ResourceScope.newConfinedScope()) {
+            final MemorySegment options = allocateNative(LibWebpMux.AnimEncoderOptions, optionsScope);
+            if((int) LibWebpMux.AnimEncoderOptionsInit.invokeExact(options.address()) != 1)
+                throw new IIOException("couldn't initialize the animation encoder options");
+            if(param != null) {
+                LibWebpMux.AnimEncoderOptionsBgcolor.set(options, param.getBackgroundColor());
+                LibWebpMux.AnimEncoderOptionsLoopCount.set(options, param.getLoopCount());
+                LibWebpMux.AnimEncoderOptionsMinimizeSize.set(options, param.getMinimizeSize() ? 1 : 0);
+                LibWebpMux.AnimEncoderOptionsAllowMixed.set(options, param.getAllowMixed() ? 1 : 0);
+                if(param.isKeyframeIntervalSet()) {
+                    LibWebpMux.AnimEncoderOptionsKmin.set(options, param.getMinKeyframeInterval());
+                    LibWebpMux.AnimEncoderOptionsKmax.set(options, param.getMaxKeyframeInterval());
+                }
+            }
+            encoder = (MemoryAddress) LibWebpMux.AnimEncoderNew.invokeExact(canvasWidth, canvasHeight, options.address());
+        } catch(IIOException iioe) {
+            scope.close();
+            throw iioe;
+        } catch(Throwable t) {
+            scope.close();
+            throw new IIOException("couldn't create the animation encoder", t);
+        }
+        if(encoder.equals(MemoryAddress.NULL)) {
+            scope.close();
+            throw new IIOException("WebPAnimEncoderNew failed; the canvas size or the options are invalid");
+        }
+    }
+
+    /** Add a frame, which is shown from the given time on. The picture is copied,
+     * so it can be reused as soon as this returns.
+     * @param timestamp the start of the frame in milliseconds, which must not be
+     * earlier than the start of the frame before */
+    void add(MemorySegment pictureSegment, int timestamp, MemorySegment configSegment) throws IIOException {
+        if(encoder == null) throw new IllegalStateException("this encoder has been closed");
+        final int result;
+        try {
+            result = (int) LibWebpMux.AnimEncoderAdd.invokeExact(encoder, pictureSegment.address(), timestamp,
+                    configSegment.address());
+        } catch(Throwable t) {
+            throw new IIOException("couldn't add frame " + frameCount, t);
+        }
+        if(result == 0) throw new IIOException("couldn't add frame " + frameCount + ": " + error());
+        frameCount++;
+    }
+
+    int frameCount() {
+        return frameCount;
+    }
+
+    /** Flush the last frame and assemble the animation.
+     * @param endTimestamp the time at which the last frame ends
+     * @return the WebP file, which belongs to this encoder and is valid until it is closed */
+    MemorySegment assemble(int endTimestamp) throws IIOException {
+        if(encoder == null) throw new IllegalStateException("this encoder has been closed");
+        try {
+            // a NULL frame marks the end of the animation
+            if((int) LibWebpMux.AnimEncoderAdd.invokeExact(encoder, MemoryAddress.NULL, endTimestamp, MemoryAddress.NULL) == 0)
+                throw new IIOException("couldn't end the animation: " + error());
+            if((int) LibWebpMux.AnimEncoderAssemble.invokeExact(encoder, data.address()) == 0)
+                throw new IIOException("couldn't assemble the animation: " + error());
+        } catch(IIOException iioe) {
+            throw iioe;
+        } catch(Throwable t) {
+            throw new IIOException("couldn't assemble the animation", t);
+        }
+        final long bytes = (long) LibWebp.DataBytes.get(data);
+        final long size = (long) LibWebp.DataSize.get(data);
+        return MemoryAddress.ofLong(bytes).asSegment(size, scope);
+    }
+
+    private String error() {
+        try {
+            final MemoryAddress message = (MemoryAddress) LibWebpMux.AnimEncoderGetError.invokeExact(encoder);
+            return message.equals(MemoryAddress.NULL) ? "unknown error" : CLinker.toJavaString(message);
+        } catch(Throwable t) {
+            return "unknown error (" + t + ")";
+        }
+    }
+
+    /** Delete the encoder and free the assembled file, if there is one */
+    @Override
+    public void close() {
+        if(encoder == null) return;
+        try {
+            final long bytes = (long) LibWebp.DataBytes.get(data);
+            if(bytes != 0) LibWebp.Free.invokeExact(MemoryAddress.ofLong(bytes));
+            LibWebpMux.AnimEncoderDelete.invokeExact(encoder);
+        } catch(Throwable t) {
+            LOG.warning("couldn't delete the animation encoder: " + t);
+        }
+        encoder = null;
+        scope.close();
+    }
+
+}
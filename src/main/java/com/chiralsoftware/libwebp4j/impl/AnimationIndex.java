@@ -0,0 +1,167 @@
+package com.chiralsoftware.libwebp4j.impl;
+
+import static com.chiralsoftware.libwebp4j.impl.LibWebpDemux.FormatFeature.WEBP_FF_BACKGROUND_COLOR;
+import static com.chiralsoftware.libwebp4j.impl.LibWebpDemux.FormatFeature.WEBP_FF_CANVAS_HEIGHT;
+import static com.chiralsoftware.libwebp4j.impl.LibWebpDemux.FormatFeature.WEBP_FF_CANVAS_WIDTH;
+import static com.chiralsoftware.libwebp4j.impl.LibWebpDemux.FormatFeature.WEBP_FF_LOOP_COUNT;
+import static com.chiralsoftware.libwebp4j.impl.LibWebpDemux.WEBP_MUX_DISPOSE_BACKGROUND;
+import static com.chiralsoftware.libwebp4j.impl.LibWebpDemux.WEBP_MUX_NO_BLEND;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import javax.imageio.IIOException;
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import static jdk.incubator.foreign.MemorySegment.allocateNative;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * The frames of an animated WebP, found in a single pass over the container with
+ * the demuxer. Each frame records where its bitstream is in the file, where it goes on
+ * the canvas, its timing, and whether it is a keyframe: a frame which can be rendered
+ * without knowing any of the frames before it.
+ */
+final class AnimationIndex {
+
+    private static final Logger LOG = Logger.getLogger(AnimationIndex.class.getName());
+
+    /** One frame of the animation.
+     * @param offset the offset of the frame's bitstream within the file
+     * @param timestamp the time, in milliseconds, at which the frame is first shown */
+    record Frame(int xOffset, int yOffset, int width, int height, int duration, int timestamp,
+            int disposeMethod, int blendMethod, boolean hasAlpha, long offset, long size, boolean keyframe) {
+
+        boolean coversCanvas(int canvasWidth, int canvasHeight) {
+            return width == canvasWidth && height == canvasHeight;
+        }
+    }
+
+    private final int canvasWidth, canvasHeight, loopCount, backgroundColor;
+    private final List<Frame> frames;
+
+    private AnimationIndex(int canvasWidth, int canvasHeight, int loopCount, int backgroundColor, List<Frame> frames) {
+        this.canvasWidth = canvasWidth;
+        this.canvasHeight = canvasHeight;
+        this.loopCount = loopCount;
+        this.backgroundColor = backgroundColor;
+        this.frames = frames;
+    }
+
+    /** Demux a complete WebP file held in native memory */
+    static AnimationIndex build(MemorySegment input) throws IIOException {
+        try(ResourceScope scope = ResourceScope.newConfinedScope()) {
+            return build(input, scope);
+        }
+    }
+
+    /** @param scope holds the temporary structs */
+    private static AnimationIndex build(MemorySegment input, ResourceScope scope)
+            throws IIOException {
+        final MemorySegment data = allocateNative(LibWebp.Data, scope);
+        LibWebp.DataBytes.set(data, input.address().toRawLongValue());
+        LibWebp.DataSize.set(data, input.byteSize());
+        final MemorySegment iterator = allocateNative(LibWebpDemux.Iterator, scope);
+
+        final MemoryAddress demuxer;
+        try {
+            demuxer = (MemoryAddress) LibWebpDemux.Demux.invokeExact(data.address());
+        } catch(Throwable t) {
+            throw new IIOException("couldn't demux the image", t);
+        }
+        if(demuxer.equals(MemoryAddress.NULL)) throw new IIOException("the WebP container couldn't be parsed");
+        try {
+            final int canvasWidth = (int) LibWebpDemux.DemuxGetI.invokeExact(demuxer, WEBP_FF_CANVAS_WIDTH.ordinal());
+            final int canvasHeight = (int) LibWebpDemux.DemuxGetI.invokeExact(demuxer, WEBP_FF_CANVAS_HEIGHT.ordinal());
+            final int loopCount = (int) LibWebpDemux.DemuxGetI.invokeExact(demuxer, WEBP_FF_LOOP_COUNT.ordinal());
+            final int backgroundColor = (int) LibWebpDemux.DemuxGetI.invokeExact(demuxer, WEBP_FF_BACKGROUND_COLOR.ordinal());
+
+            final List<Frame> frames = new ArrayList<>();
+            // frame numbers are 1-based
+            if((int) LibWebpDemux.DemuxGetFrame.invokeExact(demuxer, 1, iterator.address()) == 0)
+                throw new IIOException("the WebP container has no frames");
+            int timestamp = 0;
+            Frame previous = null;
+            do {
+                final Frame frame = frame(iterator, input, timestamp, previous, canvasWidth, canvasHeight);
+                frames.add(frame);
+                timestamp += frame.duration();
+                previous = frame;
+            } while((int) LibWebpDemux.DemuxNextFrame.invokeExact(iterator.address()) != 0);
+            LibWebpDemux.DemuxReleaseIterator.invokeExact(iterator.address());
+            LOG.fine("indexed " + frames.size() + " frames on a " + canvasWidth + "x" + canvasHeight + " canvas");
+            return new AnimationIndex(canvasWidth, canvasHeight, loopCount, backgroundColor, List.copyOf(frames));
+        } catch(IIOException iioe) {
+            throw iioe;
+        } catch(Throwable t) {
+            throw new IIOException("couldn't index the animation frames", t);
+        } finally {
+            try {
+                LibWebpDemux.DemuxDelete.invokeExact(demuxer);
+            } catch(Throwable t) {
+                LOG.warning("couldn't delete the demuxer: " + t);
+            }
+        }
+    }
+
+    private static Frame frame(MemorySegment iterator, MemorySegment input, int timestamp, Frame previous,
+            int canvasWidth, int canvasHeight) {
+        final int xOffset = (int) LibWebpDemux.IteratorXOffset.get(iterator);
+        final int yOffset = (int) LibWebpDemux.IteratorYOffset.get(iterator);
+        final int width = (int) LibWebpDemux.IteratorWidth.get(iterator);
+        final int height = (int) LibWebpDemux.IteratorHeight.get(iterator);
+        final int disposeMethod = (int) LibWebpDemux.IteratorDisposeMethod.get(iterator);
+        final int blendMethod = (int) LibWebpDemux.IteratorBlendMethod.get(iterator);
+        final boolean hasAlpha = (int) LibWebpDemux.IteratorHasAlpha.get(iterator) != 0;
+        final long bytes = (long) LibWebpDemux.IteratorFragmentBytes.get(iterator);
+        final long size = (long) LibWebpDemux.IteratorFragmentSize.get(iterator);
+        final boolean keyframe = isKeyframe(width == canvasWidth && height == canvasHeight, hasAlpha, blendMethod,
+                previous, canvasWidth, canvasHeight);
+        return new Frame(xOffset, yOffset, width, height, (int) LibWebpDemux.IteratorDuration.get(iterator), timestamp,
+                disposeMethod, blendMethod, hasAlpha, bytes - input.address().toRawLongValue(), size, keyframe);
+    }
+
+    /** The same rules as the IsKeyFrame function in libwebp's anim_decode.c
+     * @param previous the frame before, or null for the first frame */
+    static boolean isKeyframe(boolean fullFrame, boolean hasAlpha, int blendMethod, Frame previous,
+            int canvasWidth, int canvasHeight) {
+        return previous == null ||
+                ((! hasAlpha || blendMethod == WEBP_MUX_NO_BLEND) && fullFrame) ||
+                (previous.disposeMethod() == WEBP_MUX_DISPOSE_BACKGROUND &&
+                    (previous.coversCanvas(canvasWidth, canvasHeight) || previous.keyframe()));
+    }
+
+    int canvasWidth() {
+        return canvasWidth;
+    }
+
+    int canvasHeight() {
+        return canvasHeight;
+    }
+
+    /** Number of times to loop the animation, where 0 means forever */
+    int loopCount() {
+        return loopCount;
+    }
+
+    /** The background color of the canvas, in [Blue, Green, Red, Alpha] byte order */
+    int backgroundColor() {
+        return backgroundColor;
+    }
+
+    int frameCount() {
+        return frames.size();
+    }
+
+    Frame frame(int index) {
+        return frames.get(index);
+    }
+
+    /** The index of the last keyframe at or before the given frame. Rendering can
+     * start there instead of at frame 0. */
+    int keyframeAtOrBefore(int index) {
+        for(int i = index; i > 0; i--)
+            if(frames.get(i).keyframe()) return i;
+        return 0;
+    }
+
+}
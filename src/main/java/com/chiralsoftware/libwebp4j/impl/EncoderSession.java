@@ -0,0 +1,665 @@
+package com.chiralsoftware.libwebp4j.impl;
+
+import com.chiralsoftware.libwebp4j.AuxStats;
+import com.chiralsoftware.libwebp4j.CancellationToken;
+import com.chiralsoftware.libwebp4j.Config;
+import com.chiralsoftware.libwebp4j.EncodeAbortedException;
+import com.chiralsoftware.libwebp4j.EncodeAbortedException.Reason;
+import com.chiralsoftware.libwebp4j.EncodeStats;
+import com.chiralsoftware.libwebp4j.EncodingError;
+import com.chiralsoftware.libwebp4j.NativeBufferPool;
+import com.chiralsoftware.libwebp4j.NativeLeakDetector;
+import com.chiralsoftware.libwebp4j.Picture;
+import com.chiralsoftware.libwebp4j.PixelFormat;
+import com.chiralsoftware.libwebp4j.Preset;
+import com.chiralsoftware.libwebp4j.ThreadingPolicy;
+import com.chiralsoftware.libwebp4j.WebpEncodeException;
+import com.chiralsoftware.libwebp4j.WebpImageWriteParam;
+import static com.chiralsoftware.libwebp4j.impl.WebpUtils.colorSpaceType;
+import java.awt.Graphics2D;
+import static java.awt.color.ColorSpace.TYPE_RGB;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import static java.nio.ByteOrder.BIG_ENDIAN;
+import java.nio.channels.WritableByteChannel;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+import static java.util.logging.Level.WARNING;
+import java.util.logging.Logger;
+import javax.imageio.IIOException;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.stream.ImageOutputStream;
+import jdk.incubator.foreign.CLinker;
+import static jdk.incubator.foreign.CLinker.C_INT;
+import static jdk.incubator.foreign.CLinker.C_LONG;
+import static jdk.incubator.foreign.CLinker.C_POINTER;
+import jdk.incubator.foreign.FunctionDescriptor;
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * The native state for encoding still images, kept from one image to the next: a
+ * WebPConfig, a WebPPicture, and a WebPMemoryWriter whose buffer is reused. Setting
+ * these up, and making an upcall stub, costs more than encoding a small image such
+ * as an icon, so the writer encodes with a session per thread, from forCurrentThread(),
+ * rather than building them for every image. Pixels are staged in buffers from the
+ * default NativeBufferPool, which hands a thread the same buffer back each time.
+ * <p>
+ * Streamed output goes through a single upcall stub, made once and shared by every
+ * session. libwebp passes it the picture being encoded, and the stub hands the chunk
+ * to the session which owns that picture, which writes it to the current output.
+ * Progress reports work the same way: when an encode can be stopped, by a time limit,
+ * a CancellationToken, an interrupt or a progress listener, the picture's progress hook
+ * is a shared stub which asks the picture's session whether to go on. Otherwise there
+ * is no hook, and no upcalls.
+ * <p>
+ * A session must be used by one thread at a time.
+ */
+public final class EncoderSession implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(EncoderSession.class.getName());
+
+    private static final NativeBufferPool pool = NativeBufferPool.getDefault();
+
+    /** Frees sessions which are never closed, such as those of threads which have ended */
+    private static final Cleaner cleaner = Cleaner.create();
+
+    /** The size of the array streamed chunks are copied through on their way to a stream */
+    private static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
+    /** A memory writer buffer bigger than this is freed after use rather than kept
+     * for the next image */
+    private static final long MAX_RETAINED_OUTPUT = 4 * 1024 * 1024;
+
+    private static final ThreadLocal<EncoderSession> threadSessions = new ThreadLocal<>();
+
+    /** Time limits longer than this are treated as none, so the deadline can't overflow */
+    private static final Duration MAX_TIME_LIMIT = Duration.ofDays(365);
+
+    /** The still images being encoded by all sessions, which is the load a
+     * ThreadingPolicy sees */
+    private static final AtomicInteger encodesInProgress = new AtomicInteger();
+
+    /** The sessions which are encoding with upcalls, by the address of their picture */
+    private static final Map<Long, EncoderSession> active = new ConcurrentHashMap<>();
+
+    /** The calling thread's session, which is made the first time it is asked for.
+     * It is freed when the thread ends, so it doesn't need to be closed; if it is
+     * closed, the thread gets a new one next time. */
+    public static EncoderSession forCurrentThread() throws IOException {
+        EncoderSession session = threadSessions.get();
+        if(session == null || session.closed) {
+            session = new EncoderSession(false);
+            threadSessions.set(session);
+        }
+        return session;
+    }
+
+    /** A new session, which the caller must close */
+    public static EncoderSession open() throws IOException {
+        return new EncoderSession(true);
+    }
+
+    private EncoderSession(boolean tracked) throws IOException {
+        final ResourceScope scope = ResourceScope.newSharedScope();
+        configSegment = MemorySegment.allocateNative(Config.Config, scope);
+        pictureSegment = MemorySegment.allocateNative(Picture.Picture, scope);
+        writerSegment = MemorySegment.allocateNative(LibWebp.MemoryWriter, scope);
+        try {
+            LibWebp.MemoryWriterInit.invokeExact(writerSegment.address());
+            if((int) LibWebp.PictureInit.invokeExact(pictureSegment.address()) != 1)
+                throw new IOException("couldn't initialize the picture");
+        } catch(IOException ioe) {
+            scope.close();
+            throw ioe;
+        } catch(Throwable t) {
+            scope.close();
+            throw new IOException("couldn't initialize the session", t);
+        }
+        // the release mustn't refer to the session, or the session would never be unreachable
+        cleanable = cleaner.register(this, new Release(scope, writerSegment));
+        tracker = tracked ? NativeLeakDetector.track(this, "EncoderSession") : null;
+    }
+
+    private final MemorySegment configSegment;
+    private final MemorySegment pictureSegment;
+    private final MemorySegment writerSegment;
+    private final Cleaner.Cleanable cleanable;
+    private final NativeLeakDetector.Tracker tracker;
+    private boolean closed = false;
+    private EncodeStats lastStats = null;
+
+    // the output of the encode in progress, for the stream writer
+    private Object output = null;
+    private byte[] scratch = null;
+    private long written = 0;
+    private Throwable outputFailure = null;
+
+    // stopping the encode in progress, for the progress hook, which libwebp can call
+    // from its own threads
+    private IntPredicate progressListener = null;
+    private Thread encodingThread = null;
+    private CancellationToken cancellationToken = null;
+    private boolean hasDeadline = false;
+    private long deadline = 0;
+    private volatile int percentDone = 0;
+    private volatile Reason abortReason = null;
+    private volatile Throwable hookFailure = null;
+
+    /** Encode an image into the session's memory writer. The compression settings of
+     * the param are used, and so are the encoder settings if it is a WebpImageWriteParam.
+     * @return the encoded file, which is valid until this session encodes again or is closed */
+    public MemorySegment encode(RenderedImage image, ImageWriteParam param) throws IOException {
+        checkOpen();
+        resetWriter();
+        encode(image, param, LibWebp.MemoryWrite, writerSegment.address());
+        final long mem = (long) LibWebp.MemoryWriterMem.get(writerSegment);
+        final long size = (long) LibWebp.MemoryWriterSize.get(writerSegment);
+        return MemoryAddress.ofLong(mem).asSegment(size, writerSegment.scope());
+    }
+
+    /** Encode an image, writing each chunk of the file to the output as libwebp
+     * produces it
+     * @param output a WritableByteChannel, an OutputStream or an ImageOutputStream
+     * @return the size of the file */
+    public long encode(RenderedImage image, ImageWriteParam param, Object output) throws IOException {
+        checkOpen();
+        if(! (output instanceof WritableByteChannel || output instanceof OutputStream ||
+                output instanceof ImageOutputStream))
+            throw new IllegalArgumentException("can't stream to an output of type: " +
+                    (output == null ? null : output.getClass()));
+        if(! (output instanceof WritableByteChannel) && scratch == null) scratch = new byte[STREAM_CHUNK_SIZE];
+        final long key = pictureSegment.address().toRawLongValue();
+        this.output = output;
+        written = 0;
+        outputFailure = null;
+        active.put(key, this);
+        try {
+            encode(image, param, StreamWriter.stub, MemoryAddress.NULL);
+        } catch(IOException ioe) {
+            // a failed write is reported as itself, not as libwebp's BAD_WRITE
+            if(outputFailure instanceof IOException failure) throw failure;
+            if(outputFailure != null) throw new IIOException("couldn't write the image", outputFailure);
+            throw ioe;
+        } finally {
+            active.remove(key);
+            this.output = null;
+        }
+        return written;
+    }
+
+    /** Be told how far each encode has got, from 0 to 100, and stop it by returning
+     * false, which makes the encode throw an EncodeAbortedException for ABORTED. The
+     * listener is called on the encoding thread, or on one of libwebp's threads if the
+     * thread level is set.
+     * @param progressListener the listener, or null for none */
+    public void setProgressListener(IntPredicate progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /** The stats of the last image this session encoded, if its param was a
+     * WebpImageWriteParam which collects them, or else null */
+    public EncodeStats getLastStats() {
+        return lastStats;
+    }
+
+    /** Free the native memory. A closed session can't be used again. */
+    @Override
+    public void close() {
+        if(closed) return;
+        closed = true;
+        if(tracker != null) tracker.close();
+        cleanable.clean();
+    }
+
+    private void checkOpen() {
+        if(closed) throw new IllegalStateException("the session is closed");
+    }
+
+    /** Empty the memory writer for the next image, keeping its buffer unless it is big */
+    private void resetWriter() throws IOException {
+        final long maxSize = (long) LibWebp.MemoryWriterMaxSize.get(writerSegment);
+        if(maxSize <= MAX_RETAINED_OUTPUT) {
+            LibWebp.MemoryWriterSize.set(writerSegment, 0L);
+            return;
+        }
+        try {
+            LibWebp.MemoryWriterClear.invokeExact(writerSegment.address());
+        } catch(Throwable t) {
+            throw new IOException("couldn't clear the memory writer", t);
+        }
+    }
+
+    /** Import the image and encode it, handing the file to the writer function
+     * @param customPtr the WebPPicture custom_ptr, which the writer function gets */
+    private void encode(RenderedImage renderedImage, ImageWriteParam param,
+            MemoryAddress writerFunction, MemoryAddress customPtr) throws IOException {
+        final long start = System.nanoTime();
+        lastStats = null;
+        final boolean hooked = startProgress(param, start);
+        final int concurrentEncodes = encodesInProgress.incrementAndGet();
+        try {
+            encode(renderedImage, param, writerFunction, customPtr, start, hooked, concurrentEncodes);
+        } finally {
+            encodesInProgress.decrementAndGet();
+        }
+    }
+
+    /** @param start when the encode started, by System.nanoTime()
+     * @param hooked true if the progress hook is installed
+     * @param concurrentEncodes the encodes in progress, counting this one */
+    private void encode(RenderedImage renderedImage, ImageWriteParam param, MemoryAddress writerFunction,
+            MemoryAddress customPtr, long start, boolean hooked, int concurrentEncodes) throws IOException {
+        initConfig(configSegment, param);
+        final ThreadingPolicy.Decision threading = applyThreadingPolicy(renderedImage, param, concurrentEncodes);
+        final Picture picture = new Picture(pictureSegment);
+        final long key = pictureSegment.address().toRawLongValue();
+        // a streaming encode is registered already
+        final boolean registered = hooked && active.putIfAbsent(key, this) == null;
+        try {
+            // don't bother importing the pixels if the encode is stopped already
+            if(hooked && progress(0) == 0) throw aborted();
+            // lossless images must be imported as ARGB, because converting to YUV loses detail
+            importPicture(renderedImage, pictureSegment,
+                    renderedImage.getColorModel().hasAlpha() || new Config(configSegment).getLossless() == 1);
+            picture.setWriter(writerFunction.toRawLongValue());
+            picture.setCustomPtr(customPtr);
+            picture.setProgressHook(hooked ? ProgressHook.stub : MemoryAddress.NULL);
+            // the stats outlive the session's next encode, so they get memory of their own
+            final MemorySegment statsSegment = param instanceof WebpImageWriteParam webpParam &&
+                    webpParam.getCollectStats() ?
+                    MemorySegment.allocateNative(AuxStats.AuxStats, ResourceScope.newImplicitScope()) : null;
+            picture.setStats(statsSegment == null ? MemoryAddress.NULL : statsSegment.address());
+            final long encodeStart = System.nanoTime();
+            final int result = (int) LibWebp.Encode.invokeExact(configSegment.address(), pictureSegment.address());
+            final long end = System.nanoTime();
+            if(result != 1) {
+                final EncodingError error = EncodingError.of(picture.getErrorCode());
+                if(error == EncodingError.VP8_ENC_ERROR_USER_ABORT && hooked) throw aborted();
+                throw new WebpEncodeException(error);
+            }
+            if(statsSegment != null)
+                lastStats = new EncodeStats(new AuxStats(statsSegment), end - start, end - encodeStart, threading);
+        } catch(IOException ioe) {
+            throw ioe;
+        } catch(Throwable t) {
+            throw new IIOException("couldn't encode the image", t);
+        } finally {
+            // WebPPictureImport allocated the picture's pixel buffers
+            picture.free();
+            if(registered) active.remove(key);
+        }
+    }
+
+    /** Let the param's ThreadingPolicy choose the thread level and low_memory of the
+     * config. A thread level set on the param is kept.
+     * @return the decision, or null if there is no policy */
+    private ThreadingPolicy.Decision applyThreadingPolicy(RenderedImage image, ImageWriteParam param,
+            int concurrentEncodes) {
+        if(! (param instanceof WebpImageWriteParam webpParam) || webpParam.getThreadingPolicy() == null) return null;
+        final Config config = new Config(configSegment);
+        ThreadingPolicy.Decision decision = webpParam.getThreadingPolicy().decide(image.getWidth(),
+                image.getHeight(), config.getLossless() == 1, concurrentEncodes,
+                Runtime.getRuntime().availableProcessors());
+        // report what was used, not what was chosen
+        if(webpParam.getThreadLevel() >= 0 && webpParam.getThreadLevel() != decision.threadLevel())
+            decision = new ThreadingPolicy.Decision(webpParam.getThreadLevel(), decision.lowMemory(),
+                    decision.reason() + "; the param's thread level was kept");
+        config.setThreadLevel(decision.threadLevel());
+        config.setLowMemory(decision.lowMemory() ? 1 : 0);
+        LOG.fine("threading for a " + image.getWidth() + "x" + image.getHeight() + " image: " + decision);
+        return decision;
+    }
+
+    /** Set up the stopping conditions of an encode
+     * @return true if the encode can be stopped, so it needs the progress hook */
+    private boolean startProgress(ImageWriteParam param, long start) {
+        final WebpImageWriteParam webpParam = param instanceof WebpImageWriteParam wp ? wp : null;
+        final Duration timeLimit = webpParam == null ? null : webpParam.getTimeLimit();
+        cancellationToken = webpParam == null ? null : webpParam.getCancellationToken();
+        hasDeadline = timeLimit != null && timeLimit.compareTo(MAX_TIME_LIMIT) < 0;
+        deadline = hasDeadline ? start + timeLimit.toNanos() : 0;
+        encodingThread = Thread.currentThread();
+        percentDone = 0;
+        abortReason = null;
+        hookFailure = null;
+        return progressListener != null || cancellationToken != null || hasDeadline ||
+                (webpParam != null && webpParam.isInterruptible());
+    }
+
+    /** Note how far the encode has got, and say whether it should go on. An exception
+     * can't be thrown back through libwebp, so a failure of the listener is kept for
+     * encode() to throw. */
+    private int progress(int percent) {
+        percentDone = percent;
+        try {
+            abortReason = abortReason(percent);
+        } catch(Throwable t) {
+            hookFailure = t;
+            return 0;
+        }
+        return abortReason == null ? 1 : 0;
+    }
+
+    private Reason abortReason(int percent) {
+        if(progressListener != null && ! progressListener.test(percent)) return Reason.ABORTED;
+        if(cancellationToken != null && cancellationToken.isCancelled()) return Reason.CANCELLED;
+        if(hasDeadline && System.nanoTime() - deadline > 0) return Reason.TIME_LIMIT;
+        if(encodingThread.isInterrupted()) return Reason.INTERRUPTED;
+        return null;
+    }
+
+    /** The exception for an encode which the progress hook stopped */
+    private IIOException aborted() {
+        if(hookFailure != null) return new IIOException("the progress listener failed", hookFailure);
+        return new EncodeAbortedException(abortReason, percentDone);
+    }
+
+    /** Write one chunk to the current output. An exception can't be thrown back
+     * through libwebp, so a failure is kept for encode() to throw, and libwebp is told
+     * to stop. */
+    private int write(MemorySegment chunk) {
+        try {
+            if(output instanceof WritableByteChannel channel) {
+                final ByteBuffer byteBuffer = chunk.asByteBuffer();
+                while(byteBuffer.hasRemaining()) channel.write(byteBuffer);
+            } else {
+                // streams can't read native memory, so the chunk goes through the scratch array
+                final MemorySegment scratchSegment = MemorySegment.ofArray(scratch);
+                for(long offset = 0; offset < chunk.byteSize(); offset += scratch.length) {
+                    final int count = (int) Math.min(scratch.length, chunk.byteSize() - offset);
+                    scratchSegment.asSlice(0, count).copyFrom(chunk.asSlice(offset, count));
+                    if(output instanceof ImageOutputStream ios) ios.write(scratch, 0, count);
+                    else ((OutputStream) output).write(scratch, 0, count);
+                }
+            }
+        } catch(Throwable t) {
+            outputFailure = t;
+            return 0;
+        }
+        written += chunk.byteSize();
+        return 1;
+    }
+
+    /** The upcall stub for streaming, made the first time it is needed */
+    private static final class StreamWriter {
+
+        static final MemoryAddress stub;
+
+        static {
+            try {
+                final MethodHandle writerMH = MethodHandles.lookup().findStatic(StreamWriter.class, "write",
+                        MethodType.methodType(int.class, MemoryAddress.class, long.class, MemoryAddress.class));
+                // int (*WebPWriterFunction)(const uint8_t* data, size_t data_size, const WebPPicture* picture)
+                stub = CLinker.getInstance().upcallStub(writerMH,
+                        FunctionDescriptor.of(C_INT, C_POINTER, C_LONG, C_POINTER), ResourceScope.globalScope());
+            } catch(ReflectiveOperationException roe) {
+                throw new ExceptionInInitializerError(roe);
+            }
+        }
+
+        private static int write(MemoryAddress data, long dataSize, MemoryAddress picture) {
+            final EncoderSession session = active.get(picture.toRawLongValue());
+            if(session == null) {
+                LOG.warning("a chunk was written for a picture which isn't being streamed");
+                return 0;
+            }
+            return session.write(data.asSegment(dataSize, ResourceScope.globalScope()));
+        }
+    }
+
+    /** The progress hook stub, made the first time it is needed */
+    private static final class ProgressHook {
+
+        static final MemoryAddress stub;
+
+        static {
+            try {
+                final MethodHandle progressMH = MethodHandles.lookup().findStatic(ProgressHook.class, "progress",
+                        MethodType.methodType(int.class, int.class, MemoryAddress.class));
+                // int (*WebPProgressHook)(int percent, const WebPPicture* picture)
+                stub = CLinker.getInstance().upcallStub(progressMH,
+                        FunctionDescriptor.of(C_INT, C_INT, C_POINTER), ResourceScope.globalScope());
+            } catch(ReflectiveOperationException roe) {
+                throw new ExceptionInInitializerError(roe);
+            }
+        }
+
+        private static int progress(int percent, MemoryAddress picture) {
+            final EncoderSession session = active.get(picture.toRawLongValue());
+            if(session == null) {
+                LOG.warning("progress was reported for a picture which isn't being encoded");
+                return 1;
+            }
+            return session.progress(percent);
+        }
+    }
+
+    /** Frees a session's native memory: the memory writer's buffer, which libwebp
+     * allocated, and then the structs */
+    private static final class Release implements Runnable {
+
+        private final ResourceScope scope;
+        private final MemorySegment writerSegment;
+
+        Release(ResourceScope scope, MemorySegment writerSegment) {
+            this.scope = scope;
+            this.writerSegment = writerSegment;
+        }
+
+        @Override
+        public void run() {
+            try {
+                LibWebp.MemoryWriterClear.invokeExact(writerSegment.address());
+            } catch(Throwable t) {
+                LOG.log(WARNING, "couldn't clear the memory writer", t);
+            }
+            scope.close();
+        }
+    }
+
+    /** Initialize a WebPConfig from the param: the preset and the compression settings
+     * first, and then the encoder settings of a WebpImageWriteParam which are set. A
+     * null param gives the default settings. */
+    static void initConfig(MemorySegment configSegment, ImageWriteParam param) throws IIOException {
+        final WebpImageWriteParam webpParam = param instanceof WebpImageWriteParam wp ? wp : null;
+        final Preset preset = webpParam == null || webpParam.getPreset() == null ? Preset.DEFAULT : webpParam.getPreset();
+        final int compressionMode = param != null && param.canWriteCompressed() ?
+                param.getCompressionMode() : ImageWriteParam.MODE_DEFAULT;
+        final float quality = compressionMode == ImageWriteParam.MODE_EXPLICIT ?
+                param.getCompressionQuality() * 100 : WebpImageWriteParam.DEFAULT_QUALITY;
+        final int result;
+        try {
+            result = (int) LibWebp.ConfigPreset.invokeExact(configSegment.address(), preset.ordinal(), quality);
+        } catch(Throwable t) {
+            throw new IIOException("couldn't initialize the config segment", t);
+        }
+        if(result != 1) 
+            throw new IIOException("couldn't initialize the config segment: " + result);
+
+        final Config config = new Config(configSegment);
+        if(compressionMode == ImageWriteParam.MODE_DISABLED ||
+                (compressionMode == ImageWriteParam.MODE_EXPLICIT &&
+                WebpImageWriteParam.LOSSLESS.equals(param.getCompressionType())))
+            config.setLossless(1);
+        if(webpParam != null) {
+            if(webpParam.getImageHint() != null) config.setImageHint(webpParam.getImageHint());
+            if(webpParam.getMethod() >= 0) config.setMethod(webpParam.getMethod());
+            if(webpParam.getTargetSize() >= 0) config.setTargetSize(webpParam.getTargetSize());
+            if(webpParam.getPass() >= 0) config.setPass(webpParam.getPass());
+            if(webpParam.getSegments() >= 0) config.setSegments(webpParam.getSegments());
+            if(webpParam.getSnsStrength() >= 0) config.setSnsStrength(webpParam.getSnsStrength());
+            if(webpParam.getFilterStrength() >= 0) config.setFilterStrength(webpParam.getFilterStrength());
+            if(webpParam.getFilterSharpness() >= 0) config.setFilterSharpness(webpParam.getFilterSharpness());
+            if(webpParam.getFilterType() >= 0) config.setFilterType(webpParam.getFilterType());
+            if(webpParam.getAutofilter() >= 0) config.setAutofilter(webpParam.getAutofilter());
+            if(webpParam.getThreadLevel() >= 0) config.setThreadLevel(webpParam.getThreadLevel());
+        }
+        final int valid;
+        try {
+            valid = (int) LibWebp.ValidateConfig.invokeExact(configSegment.address());
+        } catch(Throwable t) {
+            throw new IIOException("couldn't validate the config", t);
+        }
+        if(valid != 1) throw new IIOException("the encoder settings are invalid: " + config);
+        LOG.fine("here is the config string: " + config);
+    }
+
+    /** Initialize a WebPPicture and import the pixels of the image into it. The
+     * picture's buffers must be released with Picture.free(). */
+    static void importPicture(RenderedImage renderedImage, MemorySegment pictureSegment, boolean useArgb)
+            throws IIOException {
+        // libwebp wants straight alpha
+        if(renderedImage.getColorModel().isAlphaPremultiplied()) renderedImage = toRgba(renderedImage);
+        LOG.finest("the sample model is: " + renderedImage.getSampleModel() + 
+                ", which is class: " + renderedImage.getSampleModel().getClass());
+        if(! (renderedImage.getSampleModel() instanceof ComponentSampleModel)) {
+            throw new IIOException("sample model was of type: " + renderedImage.getSampleModel().getClass() + 
+                    ", but this writer can only support type: " + ComponentSampleModel.class);
+        }
+        final ComponentSampleModel sampleModel = (ComponentSampleModel) renderedImage.getSampleModel();
+        if(sampleModel.getNumBands() > 4 || sampleModel.getNumBands() < 3) 
+            throw new IIOException("sampleModel.getNumBands() must be 3 or 4; it was: " +
+                    sampleModel.getNumBands());
+        LOG.finest("Band offsets: " + Arrays.toString(sampleModel.getBandOffsets()));
+
+        final ColorModel colorModel = renderedImage.getColorModel();
+        final boolean hasAlpha = colorModel.hasAlpha();
+        if(hasAlpha && sampleModel.getNumBands() != 4) 
+            throw new IIOException("the colorModel has alpha, but the number of bands is: " +
+                    sampleModel.getNumBands() + ". it should be 4");
+        if(! (colorModel instanceof ComponentColorModel)) 
+            throw new IIOException("This writer expects a ComponentColorModel");
+        
+        LOG.finest("The colormodel is: " + colorModel + " which is class: " + 
+                colorModel.getClass() + " and color space type: " + 
+                colorSpaceType(colorModel.getColorSpace().getType()));
+        if(renderedImage.getColorModel().getColorSpace().getType() != TYPE_RGB) {
+            final int intType = renderedImage.getColorModel().getColorSpace().getType();
+            throw new IIOException("The color type was: " + intType + " (" + colorSpaceType(intType) + 
+                    "), but this writer only processes " + colorSpaceType(TYPE_RGB));
+        }
+        
+        final Raster raster = raster(renderedImage);
+        if(! (raster.getDataBuffer() instanceof DataBufferByte dataBufferByte))
+            throw new IIOException("the data buffer was of type: " + raster.getDataBuffer().getClass() +
+                    ", but this writer can only support type: " + DataBufferByte.class);
+        LOG.finer("it has this many banks: " + dataBufferByte.getNumBanks());
+        if(dataBufferByte.getNumBanks() != 1) 
+            throw new IIOException("the dataBuffer contained: " + dataBufferByte.getNumBanks() + 
+                    " banks, but this writer expects 1 bank");
+        // which way we import data depends on the order of the bands and the pixel stride
+        final int[] bandOffsets = sampleModel.getBandOffsets();
+        final ImportType importType = ImportType.findType(bandOffsets, sampleModel.getPixelStride());
+        if(importType == null)
+            throw new IIOException("couldn't find an importer for band offsets: " +  
+                    Arrays.toString(bandOffsets) + " and pixel stride: " + sampleModel.getPixelStride());
+
+        final int width = renderedImage.getWidth();
+        final int height = renderedImage.getHeight();
+        final int scanlineStride = sampleModel.getScanlineStride();
+        final byte[] bytes = dataBufferByte.getData();
+        // the array index of the first byte used of the top left pixel. The raster can be
+        // a child of a larger one, or a tile, so the image needn't start at the array's start.
+        final int start = dataBufferByte.getOffset() +
+                (renderedImage.getMinY() - raster.getSampleModelTranslateY()) * scanlineStride +
+                (renderedImage.getMinX() - raster.getSampleModelTranslateX()) * sampleModel.getPixelStride() +
+                Arrays.stream(bandOffsets).min().getAsInt();
+        final long size = (long) (height - 1) * scanlineStride + (long) width * sampleModel.getPixelStride();
+        // Foreign code can't access heap memory, so the pixels are copied once into native
+        // memory, keeping the raster's stride:
+        // https://stackoverflow.com/questions/69521289/jep-412-pass-a-on-heap-byte-array-to-native-code-getting-unsupportedoperatione
+        // The import converts them into the picture, so the copy can go back to the pool afterwards.
+        try(NativeBufferPool.Buffer buffer = pool.acquire(size)) {
+            final MemorySegment copied = buffer.segment();
+            final MemorySegment source = MemorySegment.ofArray(bytes);
+            if(importType == ImportType.ABGR) {
+                swizzleAbgr(source.asSlice(start), copied, width, height, scanlineStride);
+            } else {
+                // with an unused leading byte, like XRGB, the last pixel ends one byte past
+                // the array; the import never reads that byte
+                final long available = Math.min(size, bytes.length - start);
+                copied.asSlice(0, available).copyFrom(source.asSlice(start, available));
+            }
+            final int result = (int) LibWebp.PictureInit.invokeExact(pictureSegment.address());
+            if(result != 1) 
+                throw new IIOException("couldn't initialize Picture object: " +result);
+            
+            final Picture picture = new Picture(pictureSegment);
+            picture.setUseArgb(useArgb ? 1 : 0);
+            picture.setWidth(width);
+            picture.setHeight(height);
+            // the import allocates the picture's buffers itself
+            final MethodHandle importer =
+                    switch(importType) {
+                        case ABGR, BGRA -> LibWebp.PictureImportBGRA;
+                        case BGR -> LibWebp.PictureImportBGR;
+                        case BGRX -> LibWebp.PictureImportBGRX;
+                        case RGB -> LibWebp.PictureImportRGB;
+                        case RGBA -> LibWebp.PictureImportRGBA;
+                        case RGBX -> LibWebp.PictureImportRGBX;
+                    };
+            if((int) importer.invokeExact(pictureSegment.address(), copied.address(), scanlineStride) != 1)
+                throw new IIOException("couldn't import the pixels: " + picture.getErrorCode());
+        } catch(IIOException iioe) {
+            throw iioe;
+        } catch(Throwable t) {
+            throw new IIOException("couldn't import the image", t);
+        }
+    }
+
+    /** The pixels of the image without copying them: the raster of a BufferedImage, or
+     * the only tile of an image with one tile. Other images are copied by getData(). */
+    private static Raster raster(RenderedImage image) {
+        if(image instanceof BufferedImage bufferedImage) return bufferedImage.getRaster();
+        if(image.getNumXTiles() == 1 && image.getNumYTiles() == 1)
+            return image.getTile(image.getMinTileX(), image.getMinTileY());
+        return image.getData();
+    }
+
+    /** Copy A,B,G,R pixels as B,G,R,A, with the same stride */
+    private static void swizzleAbgr(MemorySegment source, MemorySegment target, int width, int height, int stride) {
+        for(int y = 0; y < height; y++) {
+            final long row = (long) y * stride;
+            for(int x = 0; x < width; x++) {
+                final long offset = row + 4L * x;
+                final int abgr = MemoryAccess.getIntAtOffset(source, offset, BIG_ENDIAN);
+                MemoryAccess.setIntAtOffset(target, offset, BIG_ENDIAN, Integer.rotateLeft(abgr, 8));
+            }
+        }
+    }
+
+    /** Draw an image with some other color model, such as indexed color, into an
+     * interleaved RGBA image, which can be imported */
+    static RenderedImage toRgba(RenderedImage image) {
+        final BufferedImage rgba =
+                WebpImageReader.imageType(PixelFormat.RGBA).createBufferedImage(image.getWidth(), image.getHeight());
+        final Graphics2D g = rgba.createGraphics();
+        try {
+            g.drawRenderedImage(image, new AffineTransform());
+        } finally {
+            g.dispose();
+        }
+        return rgba;
+    }
+
+}
@@ -0,0 +1,145 @@
+package com.chiralsoftware.libwebp4j.impl;
+
+import com.chiralsoftware.libwebp4j.DecoderConfig;
+import com.chiralsoftware.libwebp4j.PixelFormat;
+import com.chiralsoftware.libwebp4j.impl.AnimationIndex.Frame;
+import static com.chiralsoftware.libwebp4j.impl.LibWebpDemux.WEBP_MUX_BLEND;
+import static com.chiralsoftware.libwebp4j.impl.LibWebpDemux.WEBP_MUX_DISPOSE_BACKGROUND;
+import static com.chiralsoftware.libwebp4j.impl.LibWebpDemux.WEBP_MUX_DISPOSE_NONE;
+import javax.imageio.IIOException;
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import static jdk.incubator.foreign.MemorySegment.allocateNative;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Renders animation frames onto an RGBA canvas, starting from the nearest keyframe
+ * rather than from frame 0. This follows the compositing rules of libwebp's
+ * anim_decode.c, so the canvases are the same as WebPAnimDecoder produces, but unlike
+ * WebPAnimDecoder it can start at any keyframe.
+ */
+final class FrameCompositor {
+
+    private final AnimationIndex index;
+    private final MemorySegment input;
+    private final int canvasStride;
+
+    /** The canvas with the current frame rendered on it */
+    private final MemorySegment canvas;
+    /** The canvas after the current frame has been disposed of, which is where the
+     * next frame starts from */
+    private final MemorySegment disposed;
+    private final MemorySegment configSegment;
+
+    /** The frame currently on the canvas, or -1 if none */
+    private int current = -1;
+
+    /** @param scope the scope of the canvases, which must outlive this */
+    FrameCompositor(AnimationIndex index, MemorySegment input, ResourceScope scope) {
+        this.index = index;
+        this.input = input;
+        this.canvasStride = PixelFormat.RGBA.minStride(index.canvasWidth());
+        final long canvasSize = (long) canvasStride * index.canvasHeight();
+        this.canvas = allocateNative(canvasSize, scope);
+        this.disposed = allocateNative(canvasSize, scope);
+        this.configSegment = allocateNative(DecoderConfig.DecoderConfig, scope);
+    }
+
+    /** Render the given frame. Rendering continues from the frame already on the
+     * canvas if that is no earlier than the frame's keyframe, and otherwise starts
+     * again at the keyframe.
+     * @return the canvas, which is valid until the next call */
+    MemorySegment render(int frameIndex) throws IIOException {
+        if(frameIndex == current) return canvas;
+        final int keyframe = index.keyframeAtOrBefore(frameIndex);
+        final int start = current >= keyframe && current < frameIndex ? current + 1 : keyframe;
+        for(int i = start; i <= frameIndex; i++) renderNext(i);
+        return canvas;
+    }
+
+    private void renderNext(int i) throws IIOException {
+        final Frame frame = index.frame(i);
+        if(frame.keyframe()) canvas.fill((byte) 0);
+        else canvas.copyFrom(disposed);
+        decode(frame);
+
+        // pixels of this frame which aren't opaque have to be blended with what was there before
+        if(i > 0 && frame.blendMethod() == WEBP_MUX_BLEND && ! frame.keyframe())
+            blend(canvas, disposed, canvasStride, frame, index.frame(i - 1));
+
+        disposed.copyFrom(canvas);
+        if(frame.disposeMethod() == WEBP_MUX_DISPOSE_BACKGROUND) dispose(disposed, canvasStride, frame);
+        current = i;
+    }
+
+    /** Decode the frame's bitstream straight onto its rectangle of the canvas */
+    private void decode(Frame frame) throws IIOException {
+        final long offset = (long) frame.yOffset() * canvasStride + frame.xOffset() * 4L;
+        final int status;
+        try {
+            if((int) LibWebp.InitDecoderConfig.invokeExact(configSegment.address()) != 1)
+                throw new IIOException("couldn't initialize the decoder config");
+            final DecoderConfig decoderConfig = new DecoderConfig(configSegment);
+            decoderConfig.setOutputColorspace(PixelFormat.RGBA.mode());
+            decoderConfig.setExternalRgbaOutput(canvas.address().addOffset(offset), canvasStride,
+                    canvas.byteSize() - offset);
+            status = (int) LibWebp.Decode.invokeExact(input.address().addOffset(frame.offset()), frame.size(),
+                    configSegment.address());
+        } catch(IIOException iioe) {
+            throw iioe;
+        } catch(Throwable t) {
+            throw new IIOException("couldn't decode the frame", t);
+        }
+        if(status != 0)
+            throw new IIOException("libwebp failed to decode the frame: " + LibWebp.StatusCode.of(status).message());
+    }
+
+    /** Blend the frame's rectangle of the canvas over the disposed canvas, skipping
+     * the part the previous frame cleared, since there is nothing to blend with there */
+    static void blend(MemorySegment canvas, MemorySegment disposed, int canvasStride, Frame frame, Frame previous) {
+        for(int y = frame.yOffset(); y < frame.yOffset() + frame.height(); y++) {
+            final int left = frame.xOffset(), right = frame.xOffset() + frame.width();
+            if(previous.disposeMethod() == WEBP_MUX_DISPOSE_NONE ||
+                    y < previous.yOffset() || y >= previous.yOffset() + previous.height()) {
+                blend(canvas, disposed, (long) y * canvasStride, left, right);
+            } else {
+                blend(canvas, disposed, (long) y * canvasStride, left, Math.min(right, previous.xOffset()));
+                blend(canvas, disposed, (long) y * canvasStride,
+                        Math.max(left, previous.xOffset() + previous.width()), right);
+            }
+        }
+    }
+
+    /** Blend the pixels [left, right) of a canvas row over the disposed canvas, using
+     * the same integer arithmetic as BlendPixelNonPremult in anim_decode.c */
+    private static void blend(MemorySegment canvas, MemorySegment disposed, long row, int left, int right) {
+        for(int x = left; x < right; x++) {
+            final long offset = row + x * 4L;
+            final int srcA = MemoryAccess.getByteAtOffset(canvas, offset + 3) & 0xff;
+            // opaque pixels are left alone, as in BlendPixelRowNonPremult; the arithmetic would round them down
+            if(srcA == 0xff) continue;
+            if(srcA == 0) {
+                MemoryAccess.setIntAtOffset(canvas, offset, MemoryAccess.getIntAtOffset(disposed, offset));
+                continue;
+            }
+            final int dstA = MemoryAccess.getByteAtOffset(disposed, offset + 3) & 0xff;
+            final int dstFactorA = (dstA * (256 - srcA)) >> 8;
+            final int blendA = srcA + dstFactorA;
+            final long scale = (1L << 24) / blendA;
+            for(int c = 0; c < 3; c++) {
+                final int src = MemoryAccess.getByteAtOffset(canvas, offset + c) & 0xff;
+                final int dst = MemoryAccess.getByteAtOffset(disposed, offset + c) & 0xff;
+                MemoryAccess.setByteAtOffset(canvas, offset + c,
+                        (byte) (((src * srcA + dst * dstFactorA) * scale) >> 24));
+            }
+            MemoryAccess.setByteAtOffset(canvas, offset + 3, (byte) blendA);
+        }
+    }
+
+    /** Clear the frame's rectangle to transparent black, for WEBP_MUX_DISPOSE_BACKGROUND */
+    static void dispose(MemorySegment canvas, int canvasStride, Frame frame) {
+        for(int y = frame.yOffset(); y < frame.yOffset() + frame.height(); y++)
+            canvas.asSlice((long) y * canvasStride + frame.xOffset() * 4L, frame.width() * 4L).fill((byte) 0);
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.chiralsoftware.libwebp4j.impl;
+
+import com.chiralsoftware.libwebp4j.PixelFormat;
+import java.awt.AlphaComposite;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.RenderedImage;
+import java.util.Arrays;
+import javax.imageio.metadata.IIOMetadata;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Turns the frames of a GIF, as the JDK's GIF ImageReader returns them, into full
+ * canvas frames for WebPAnimEncoder. A GIF frame can be smaller than the logical
+ * screen and placed at an offset, its transparent pixels show the frame before,
+ * and it says how its area is disposed of before the next frame. The position and
+ * disposal are only in the GIF metadata, which is why the writer needs it.
+ */
+final class GifFrameCanvas {
+
+    static final String STREAM_FORMAT = "javax_imageio_gif_stream_1.0";
+    static final String IMAGE_FORMAT = "javax_imageio_gif_image_1.0";
+
+    private final BufferedImage canvas;
+    /** The canvas before the last frame was drawn, if that frame is restored to the previous canvas */
+    private BufferedImage previous = null;
+    private Rectangle lastArea = null;
+    private String lastDisposal = "none";
+
+    GifFrameCanvas(int width, int height) {
+        canvas = WebpImageReader.imageType(PixelFormat.RGBA).createBufferedImage(width, height);
+    }
+
+    /** The size of the logical screen, or null if the metadata isn't from a GIF */
+    static Dimension screenSize(IIOMetadata streamMetadata) {
+        final Node descriptor = child(streamMetadata, STREAM_FORMAT, "LogicalScreenDescriptor");
+        if(descriptor == null) return null;
+        final NamedNodeMap attributes = descriptor.getAttributes();
+        return new Dimension(intAttribute(attributes, "logicalScreenWidth"),
+                intAttribute(attributes, "logicalScreenHeight"));
+    }
+
+    /** The delay of a GIF frame in milliseconds, or -1 if the metadata doesn't have one */
+    static int delay(IIOMetadata imageMetadata) {
+        final Node control = child(imageMetadata, IMAGE_FORMAT, "GraphicControlExtension");
+        if(control == null) return -1;
+        // GIF delays are in hundredths of a second
+        final int delay = intAttribute(control.getAttributes(), "delayTime") * 10;
+        return delay > 0 ? delay : -1;
+    }
+
+    static boolean isGif(IIOMetadata imageMetadata) {
+        return hasFormat(imageMetadata, IMAGE_FORMAT);
+    }
+
+    /** Dispose of the last frame and draw this one, at the position in its metadata.
+     * @return the canvas, which is reused by the next call */
+    BufferedImage render(RenderedImage frame, IIOMetadata imageMetadata) {
+        final Node descriptor = child(imageMetadata, IMAGE_FORMAT, "ImageDescriptor");
+        final Node control = child(imageMetadata, IMAGE_FORMAT, "GraphicControlExtension");
+        final int left = descriptor == null ? 0 : intAttribute(descriptor.getAttributes(), "imageLeftPosition");
+        final int top = descriptor == null ? 0 : intAttribute(descriptor.getAttributes(), "imageTopPosition");
+        final String disposal = control == null ? "none" : control.getAttributes().getNamedItem("disposalMethod").getNodeValue();
+
+        final Graphics2D g = canvas.createGraphics();
+        try {
+            if(lastArea != null && lastDisposal.equals("restoreToBackgroundColor")) {
+                // like gif2webp, the background is transparent
+                g.setComposite(AlphaComposite.Clear);
+                g.fill(lastArea);
+            } else if(previous != null && lastDisposal.equals("restoreToPrevious")) {
+                canvas.setData(previous.getRaster());
+            }
+            previous = null;
+            if(disposal.equals("restoreToPrevious")) {
+                previous = WebpImageReader.imageType(PixelFormat.RGBA).createBufferedImage(canvas.getWidth(), canvas.getHeight());
+                previous.setData(canvas.getRaster());
+            }
+            // transparent pixels of the frame leave the canvas showing through
+            g.setComposite(AlphaComposite.SrcOver);
+            g.drawRenderedImage(frame, AffineTransform.getTranslateInstance(left, top));
+        } finally {
+            g.dispose();
+        }
+        lastArea = new Rectangle(left, top, frame.getWidth(), frame.getHeight());
+        lastDisposal = disposal;
+        return canvas;
+    }
+
+    private static boolean hasFormat(IIOMetadata metadata, String format) {
+        if(metadata == null) return false;
+        final String[] formats = metadata.getMetadataFormatNames();
+        return formats != null && Arrays.asList(formats).contains(format);
+    }
+
+    private static Node child(IIOMetadata metadata, String format, String name) {
+        if(! hasFormat(metadata, format)) return null;
+        for(Node node = metadata.getAsTree(format).getFirstChild(); node != null; node = node.getNextSibling())
+            if(node.getNodeName().equals(name)) return node;
+        return null;
+    }
+
+    private static int intAttribute(NamedNodeMap attributes, String name) {
+        final Node node = attributes.getNamedItem(name);
+        return node == null ? 0 : Integer.parseInt(node.getNodeValue());
+    }
+
+}
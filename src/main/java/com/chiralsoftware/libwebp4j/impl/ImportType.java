@@ -3,33 +3,39 @@ package com.chiralsoftware.libwebp4j.impl;
 import java.util.Arrays;
 
 /**
- *
+ * The interleaved byte layouts which a WebPPictureImport function can read, by the
+ * band offsets (red, green, blue and then alpha) and pixel stride of a
+ * ComponentSampleModel. The band offsets are counted from the first byte of the pixel
+ * which is used, so a layout with an unused leading byte, like XRGB, is imported
+ * starting one byte in.
  */
 public enum ImportType {
-    
-    RGB(new int[] { 0,1,2 }, false), 
-    RGBX(new int[] { 0,1,2,3 }, false), 
-    RGBA(new int[] { 0,1,2,3 }, true),
-    BGR(new int[] { 2,1,0 }, false), 
-    BGRX(new int[] { 3,2,1,0 }, false), 
-    ABGR(new int[] { 3,2,1,0 }, false);
 
-    private ImportType(int[] bandOffsets, boolean alpha) {
+    RGB(new int[] { 0,1,2 }, 3),
+    RGBX(new int[] { 0,1,2 }, 4),
+    RGBA(new int[] { 0,1,2,3 }, 4),
+    BGR(new int[] { 2,1,0 }, 3),
+    BGRX(new int[] { 2,1,0 }, 4),
+    BGRA(new int[] { 2,1,0,3 }, 4),
+    /** TYPE_4BYTE_ABGR. There is no import function for it, so it is swizzled into
+     * BGRA while it is copied. */
+    ABGR(new int[] { 3,2,1,0 }, 4);
+
+    private ImportType(int[] bandOffsets, int pixelStride) {
         this.bandOffsets = bandOffsets;
-        this.alpha = alpha;
+        this.pixelStride = pixelStride;
     }
-    
+
     private final int[] bandOffsets;
-    private final boolean alpha;
-    
-    private boolean offsetMatch(int[] offsets) {
-        return Arrays.equals(offsets, bandOffsets);
-    }
-    
-    /** Return which type of image format is used, or return null if none match */
-    public static ImportType findType(int[] offsets, boolean alpha) {
+    private final int pixelStride;
+
+    /** Return which type of image format is used, or return null if none match
+     * @param offsets the band offsets, which needn't start at 0 */
+    public static ImportType findType(int[] offsets, int pixelStride) {
+        final int first = Arrays.stream(offsets).min().orElse(0);
+        final int[] relative = Arrays.stream(offsets).map(offset -> offset - first).toArray();
         for(ImportType it : ImportType.values()) {
-            if(it.alpha == alpha && it.offsetMatch(offsets)) return it;
+            if(it.pixelStride == pixelStride && Arrays.equals(relative, it.bandOffsets)) return it;
         }
         return null;
     }
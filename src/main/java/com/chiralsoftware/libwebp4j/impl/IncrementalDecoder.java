@@ -0,0 +1,137 @@
+package com.chiralsoftware.libwebp4j.impl;
+
+import com.chiralsoftware.libwebp4j.DecoderConfig;
+import com.chiralsoftware.libwebp4j.PixelFormat;
+import com.chiralsoftware.libwebp4j.impl.LibWebp.StatusCode;
+import java.util.logging.Logger;
+import javax.imageio.IIOException;
+import static jdk.incubator.foreign.CLinker.C_INT;
+import jdk.incubator.foreign.GroupLayout;
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemoryAddress;
+import static jdk.incubator.foreign.MemoryLayout.structLayout;
+import jdk.incubator.foreign.MemorySegment;
+import static jdk.incubator.foreign.MemorySegment.allocateNative;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Wraps a WebPIDecoder. Compressed data is handed over in chunks with append(), and
+ * libwebp decodes as much of the image as it can from what it has seen so far. Rows
+ * which are fully decoded can be copied out while the rest of the data is still
+ * arriving. The decoder allocates its output buffer in the config's output, and
+ * both are freed by close().
+ */
+final class IncrementalDecoder implements AutoCloseable {
+
+    private static final Logger LOG = Logger.getLogger(IncrementalDecoder.class.getName());
+
+    /** The out parameters of WebPIDecGetRGB */
+    private static final GroupLayout RgbInfo = structLayout(
+            C_INT.withName("last_y"),
+            C_INT.withName("width"),
+            C_INT.withName("height"),
+            C_INT.withName("stride"));
+
+    private final PixelFormat pixelFormat;
+    /** Holds the info segment until this is closed */
+    private final ResourceScope scope = LibWebp.newScope();
+    private final MemorySegment infoSegment;
+    private final DecoderConfig decoderConfig;
+    private MemoryAddress decoder;
+
+    private MemoryAddress rgb = MemoryAddress.NULL;
+    private int lastY = 0, width = 0, height = 0, stride = 0;
+
+    /** @param configSegment an initialized WebPDecoderConfig, whose output colorspace
+     * must match the pixel format and which must stay alive until this is closed */
+    IncrementalDecoder(PixelFormat pixelFormat, MemorySegment configSegment) throws IIOException {
+        this.pixelFormat = pixelFormat;
+        this.infoSegment = allocateNative(RgbInfo, scope);
+        this.decoderConfig = new DecoderConfig(configSegment);
+        try {
+            // with NULL data nothing is parsed yet; the config supplies the options
+            decoder = (MemoryAddress) LibWebp.IDecode.invokeExact(MemoryAddress.NULL, 0L, configSegment.address());
+        } catch(Throwable t) {
+            scope.close();
+            throw new IIOException("couldn't create the incremental decoder", t);
+        }
+        if(decoder.equals(MemoryAddress.NULL)) {
+            scope.close();
+            throw new IIOException("WebPIDecode failed to allocate a decoder");
+        }
+    }
+
+    /** Hand the next chunk of compressed data to the decoder.
+     * @return VP8_STATUS_SUSPENDED if more data is needed, or VP8_STATUS_OK when the
+     * whole image has been decoded
+     * @throws IIOException if the decoder reported any other status */
+    StatusCode append(MemorySegment chunk) throws IIOException {
+        if(decoder == null) throw new IllegalStateException("this decoder has been closed");
+        final int result;
+        try {
+            result = (int) LibWebp.IAppend.invokeExact(decoder, chunk.address(), chunk.byteSize());
+        } catch(Throwable t) {
+            throw new IIOException("couldn't append data to the decoder", t);
+        }
+        final StatusCode status = StatusCode.of(result);
+        if(status != StatusCode.VP8_STATUS_OK && status != StatusCode.VP8_STATUS_SUSPENDED)
+            throw new IIOException("incremental decoding failed: " + status.message());
+        refresh();
+        return status;
+    }
+
+    private void refresh() throws IIOException {
+        try {
+            rgb = (MemoryAddress) LibWebp.IDecGetRGB.invokeExact(decoder, infoSegment.address(),
+                    infoSegment.address().addOffset(4), infoSegment.address().addOffset(8),
+                    infoSegment.address().addOffset(12));
+        } catch(Throwable t) {
+            throw new IIOException("couldn't read the decoder state", t);
+        }
+        if(rgb.equals(MemoryAddress.NULL)) return; // the headers haven't been parsed yet
+        lastY = MemoryAccess.getIntAtOffset(infoSegment, 0);
+        width = MemoryAccess.getIntAtOffset(infoSegment, 4);
+        height = MemoryAccess.getIntAtOffset(infoSegment, 8);
+        stride = MemoryAccess.getIntAtOffset(infoSegment, 12);
+    }
+
+    /** The number of rows, counted from the top, which have been fully decoded */
+    int decodedRows() {
+        return lastY;
+    }
+
+    /** Copy the decoded rows [from, to) into a destination laid out with the
+     * given row stride, starting at the destination's first byte. */
+    void copyRows(int from, int to, MemorySegment destination, int destinationStride) {
+        if(from < 0 || to > lastY || from > to)
+            throw new IndexOutOfBoundsException("rows " + from + " to " + to +
+                    " are not available; " + lastY + " rows are decoded");
+        if(from == to) return;
+        final int rowBytes = pixelFormat.minStride(width);
+        // the decoder owns this memory; the view is only used here
+        final MemorySegment output = rgb.asSegment((long) stride * height, ResourceScope.globalScope());
+        if(stride == rowBytes && destinationStride == rowBytes) {
+            destination.copyFrom(output.asSlice((long) from * stride, (long) (to - from) * stride));
+            return;
+        }
+        for(int row = from; row < to; row++)
+            destination.asSlice((long) (row - from) * destinationStride, rowBytes).
+                    copyFrom(output.asSlice((long) row * stride, rowBytes));
+    }
+
+    @Override
+    public void close() {
+        if(decoder == null) return;
+        try {
+            LibWebp.IDelete.invokeExact(decoder);
+            // the decoder wrote into the config's output buffer, which it doesn't own
+            LibWebp.FreeDecBuffer.invokeExact(decoderConfig.outputAddress());
+        } catch(Throwable t) {
+            LOG.warning("couldn't delete the incremental decoder: " + t);
+        }
+        decoder = null;
+        rgb = MemoryAddress.NULL;
+        scope.close();
+    }
+
+}
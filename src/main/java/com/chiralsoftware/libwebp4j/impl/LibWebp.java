@@ -1,9 +1,13 @@
 package com.chiralsoftware.libwebp4j.impl;
 
+import com.chiralsoftware.libwebp4j.PixelFormat;
+import com.chiralsoftware.libwebp4j.Preset;
 import java.io.IOException;
 import java.lang.invoke.MethodHandle;
+import java.lang.ref.Cleaner;
 import static java.lang.invoke.MethodHandles.insertArguments;
 import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
 import java.nio.file.Path;
 import java.util.Optional;
 import static java.util.logging.Level.WARNING;
@@ -14,8 +18,13 @@ import static jdk.incubator.foreign.CLinker.C_INT;
 import static jdk.incubator.foreign.CLinker.C_LONG;
 import static jdk.incubator.foreign.CLinker.C_POINTER;
 import jdk.incubator.foreign.FunctionDescriptor;
+import jdk.incubator.foreign.GroupLayout;
 import jdk.incubator.foreign.SymbolLookup;
 import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.ResourceScope;
+import static jdk.incubator.foreign.MemoryLayout.PathElement.groupElement;
+import static jdk.incubator.foreign.MemoryLayout.paddingLayout;
+import static jdk.incubator.foreign.MemoryLayout.structLayout;
 
 /**
  * Interface to LibWebp. Note: there will be some changes with JDK 17. See:
@@ -23,6 +32,14 @@ import jdk.incubator.foreign.MemoryAddress;
  * for a good reference on that.
  * To run, this will require:
  * --enable-native-access=ALL-UNNAMED --add-modules jdk.incubator.foreign
+ * <p>
+ * The functions are static final MethodHandles, which the JIT can inline. Call them
+ * with invokeExact, passing exactly the parameter types of their MethodType and
+ * casting the result to its exact return type, for example
+ * <pre>final int ok = (int) LibWebp.Encode.invokeExact(config.address(), picture.address());</pre>
+ * invoke would box the result and adapt the arguments on every call. The struct
+ * fields are read and written through VarHandles which are likewise made once, in
+ * static finals, because making one walks the layout path each time.
  */
 public final class LibWebp {
 
@@ -31,8 +48,6 @@ public final class LibWebp {
     private static final String libraryPath = "/usr/lib/x86_64-linux-gnu/libwebp.so";
     private static final String libraryName = "webp";
 
-    private final SymbolLookup symbolLookup;
-
     private static final LibWebp libWebp;
 
     /**
@@ -40,213 +55,390 @@ public final class LibWebp {
      */
     public static final int WEBP_ENCODER_ABI_VERSION = 0x020e;
 
-    static {
-        try {
-            System.load(libraryPath);
-//            System.loadLibrary(libraryName);
-            libWebp = new LibWebp();
-        } catch (IOException ioe) {
-            LOG.log(WARNING, "couldn't load libwebp", ioe);
-            throw new RuntimeException(ioe);
-        }
+    /**
+     * Also hard-coded, from decode.h
+     */
+    public static final int WEBP_DECODER_ABI_VERSION = 0x0209;
+
+    /** Closes the scopes of owners which were never closed, once they are unreachable */
+    private static final Cleaner cleaner = Cleaner.create();
+
+    /** A scope for native memory with an owner, such as a reader, which frees it when
+     * the owner is closed or disposed. If that never happens, the scope is closed by
+     * the GC once it is unreachable. */
+    public static ResourceScope newScope() {
+        return ResourceScope.newSharedScope(cleaner);
     }
 
-    static LibWebp getInstance() {
+    /** The library, loaded when this class is first used. Loading fails with a
+     * RuntimeException if libwebp isn't installed. The functions are static, so the
+     * instance only stands for the loaded library. */
+    public static LibWebp getInstance() {
         return libWebp;
     }
 
-    public static enum Preset {
-        DEFAULT("default preset"),
-        PICTURE("digital picture, like portrait, inner shot"),
-        PHOTO("outdoor photograph, with natural lighting"),
-        DRAWING("hand or line drawing, with high-contrast details"),
-        ICON("small-sized colorful images"),
-        TEXT("text-like");
+    /**
+     * Match the struct WebPData definition, which the demux and mux libraries use
+     * to pass a complete WebP file around
+     */
+    public static final GroupLayout Data = structLayout(
+            C_POINTER.withName("bytes"),
+            C_LONG.withName("size"));
 
-        private Preset(String s) {
-            this.description = s;
-        }
+    /** The bytes field of a WebPData, as a long */
+    public static final VarHandle DataBytes = Data.varHandle(long.class, groupElement("bytes"));
 
-        public String description() {
-            return description;
-        }
-        private final String description;
-    }
+    /** The size field of a WebPData */
+    public static final VarHandle DataSize = Data.varHandle(long.class, groupElement("size"));
 
-    public static enum EncodingError {
-        VP8_ENC_OK(null),
-        VP8_ENC_ERROR_OUT_OF_MEMORY("memory error allocating objects"),
-        VP8_ENC_ERROR_BITSTREAM_OUT_OF_MEMORY("memory error while flushing bits"),
-        VP8_ENC_ERROR_NULL_PARAMETER("a pointer parameter is NULL"),
-        VP8_ENC_ERROR_INVALID_CONFIGURATION("configuration is invalid"),
-        VP8_ENC_ERROR_BAD_DIMENSION("picture has invalid width/height"),
-        VP8_ENC_ERROR_PARTITION0_OVERFLOW("partition is bigger than 512k"),
-        VP8_ENC_ERROR_PARTITION_OVERFLOW("partition is bigger than 16M"),
-        VP8_ENC_ERROR_BAD_WRITE("error while flushing bytes"),
-        VP8_ENC_ERROR_FILE_TOO_BIG("file is bigger than 4G"),
-        VP8_ENC_ERROR_USER_ABORT("abort request by user");
-
-        private EncodingError(String s) {
+    /**
+     * Match the struct WebPMemoryWriter definition. WebPMemoryWrite appends the
+     * encoded bytes to mem, growing it as needed.
+     */
+    public static final GroupLayout MemoryWriter = structLayout(
+            C_POINTER.withName("mem"), // final buffer (of size 'max_size', larger than 'size').
+            C_LONG.withName("size"), // final size
+            C_LONG.withName("max_size"), // total capacity
+            C_INT.withName("pad"), // padding for later use
+            paddingLayout(32));
+
+    /** The mem field of a WebPMemoryWriter, as a long */
+    public static final VarHandle MemoryWriterMem = MemoryWriter.varHandle(long.class, groupElement("mem"));
+
+    /** The size field of a WebPMemoryWriter */
+    public static final VarHandle MemoryWriterSize = MemoryWriter.varHandle(long.class, groupElement("size"));
+
+    /** The max_size field of a WebPMemoryWriter */
+    public static final VarHandle MemoryWriterMaxSize = MemoryWriter.varHandle(long.class, groupElement("max_size"));
+
+    /** Decoder status codes, matching the VP8StatusCode enum */
+    public static enum StatusCode {
+        VP8_STATUS_OK(null),
+        VP8_STATUS_OUT_OF_MEMORY("out of memory"),
+        VP8_STATUS_INVALID_PARAM("invalid parameter"),
+        VP8_STATUS_BITSTREAM_ERROR("bitstream error"),
+        VP8_STATUS_UNSUPPORTED_FEATURE("unsupported feature"),
+        VP8_STATUS_SUSPENDED("suspended"),
+        VP8_STATUS_USER_ABORT("abort request by user"),
+        VP8_STATUS_NOT_ENOUGH_DATA("not enough data");
+
+        private StatusCode(String s) {
             message = s;
         }
         private final String message;
 
         /**
-         * The associated message. This can be null in the case of VP8_ENC_OK
+         * The associated message. This can be null in the case of VP8_STATUS_OK
          */
         public String message() {
             return message;
         }
-    }
-
-    private LibWebp() throws IOException {
 
-        LOG.info("Initializing the linker!");
-        final Path path = Path.of(libraryPath);
-
-        symbolLookup = SymbolLookup.loaderLookup();
-        // use the systemLookup instead, which should be able to find webp symbols
-        // without specifyin the full library path
-        // final Optional<MemoryAddress> oSymbolAddress = CLinker.systemLookup().lookup("strlen");
-        
-
-        final CLinker cLinker = CLinker.getInstance();
+        /** Look up the status for a value returned by a decoder function */
+        public static StatusCode of(int i) {
+            if(i < 0 || i >= values().length)
+                throw new IllegalArgumentException("unknown VP8StatusCode: " + i);
+            return values()[i];
+        }
+    }
 
-        // int WebPGetInfo(const uint8_t* data, size_t data_size, int* width, int* height);
-        GetInfo = loadMethodHandle(cLinker, symbolLookup, "WebPGetInfo",
-                MethodType.methodType(int.class, MemoryAddress.class, long.class, MemoryAddress.class, MemoryAddress.class),
-                FunctionDescriptor.of(CLinker.C_INT, C_POINTER, C_LONG, C_POINTER, C_POINTER));
+    private LibWebp() {
+    }
 
-        LOG.info("Cool, here is GetInfo: " + GetInfo);
+    static MethodHandle loadMethodHandle(CLinker cLinker, SymbolLookup symbolLookup,
+            String name, MethodType methodType, FunctionDescriptor functionDescriptor) throws IOException {
+        final Optional<MemoryAddress> oSymbolAddress = symbolLookup.lookup(name);
+        if (oSymbolAddress.isEmpty())
+            throw new IOException("couldn't library lookup for symbol: " + name);
+        final MethodHandle mh = cLinker.downcallHandle(oSymbolAddress.get(), methodType, functionDescriptor);
+        return mh;
+    }
 
-        DecodeARGBInto = loadMethodHandle(cLinker, symbolLookup, "WebPDecodeARGBInto",
+    /** All of the WebPDecode*Into functions share one signature */
+    private static MethodHandle loadDecodeInto(CLinker cLinker, SymbolLookup symbolLookup, String name) throws IOException {
+        return loadMethodHandle(cLinker, symbolLookup, name,
                 MethodType.methodType(MemoryAddress.class, // returns - pointer to output buffer
-                        MemoryAddress.class, long.class, // input data and size 
+                        MemoryAddress.class, long.class, // input data and size
                         MemoryAddress.class, long.class, // output buffer and size
                         int.class // output_stride
                 ),
                 FunctionDescriptor.of(C_POINTER,
                         C_POINTER, C_LONG,
                         C_POINTER, C_LONG,
-                        C_INT)
-        );
+                        C_INT));
+    }
 
-        // size_t WebPEncodeLosslessRGB(const uint8_t* rgb, int width, int height, int stride, uint8_t** output);
-        EncodeLosslessRGB = loadMethodHandle(cLinker, symbolLookup, "WebPEncodeLosslessRGB",
+    /** The WebPEncode* functions share one signature */
+    private static MethodHandle loadSimpleEncode(CLinker cLinker, SymbolLookup symbolLookup, String name)
+            throws IOException {
+        return loadMethodHandle(cLinker, symbolLookup, name,
                 MethodType.methodType(long.class, // returns - size_t
                         MemoryAddress.class, // buffer with source bytes
                         int.class, int.class, // width and height
                         int.class, // stride
+                        float.class, // quality_factor
                         MemoryAddress.class // the location of the output buffer
                 ),
-                FunctionDescriptor.of(C_LONG, C_POINTER, C_INT, C_INT, C_INT, C_POINTER)
-        );
-        Free = loadMethodHandle(cLinker, symbolLookup, "WebPFree",
-                MethodType.methodType(void.class, // returns void
-                        MemoryAddress.class // pointer to be freed
-                ),
-                FunctionDescriptor.ofVoid(C_POINTER));
-
-        // annoyingly, the WebPConfigPreset function we would like to access
-        // is defined as an inline
-        // int WebPConfigInitInternal(WebPConfig*, WebPPreset, float, int);
-        ConfigInitInternal = loadMethodHandle(cLinker, symbolLookup, "WebPConfigInitInternal",
-                MethodType.methodType(int.class, // returns false in case of error 
-                        MemoryAddress.class, // WebPConfig *
-                        int.class, // WebPPreset preset - the enum
-                        float.class, // quality
-                        int.class // WEBP_ENCODER_ABI_VERSION
-                ),
-                FunctionDescriptor.of(C_INT, C_POINTER, C_INT, C_FLOAT, C_INT));
+                FunctionDescriptor.of(C_LONG, C_POINTER, C_INT, C_INT, C_INT, C_FLOAT, C_POINTER));
+    }
 
-        PictureInitInternal = loadMethodHandle(cLinker, symbolLookup, "WebPPictureInitInternal",
-                MethodType.methodType(int.class, MemoryAddress.class, // Picture 
-                        int.class // WEBP_ENCODER_ABI_VERSION
-                ), FunctionDescriptor.of(C_INT, C_POINTER, C_INT));
+    /** The WebPEncodeLossless* functions share one signature */
+    private static MethodHandle loadSimpleEncodeLossless(CLinker cLinker, SymbolLookup symbolLookup, String name)
+            throws IOException {
+        return loadMethodHandle(cLinker, symbolLookup, name,
+                MethodType.methodType(long.class, // returns - size_t
+                        MemoryAddress.class, // buffer with source bytes
+                        int.class, int.class, // width and height
+                        int.class, // stride
+                        MemoryAddress.class // the location of the output buffer
+                ),
+                FunctionDescriptor.of(C_LONG, C_POINTER, C_INT, C_INT, C_INT, C_POINTER));
+    }
 
-        PictureInit = insertArguments(PictureInitInternal, 1, WEBP_ENCODER_ABI_VERSION);
+    /** The WebPDecode* functions which allocate their output share one signature */
+    private static MethodHandle loadSimpleDecode(CLinker cLinker, SymbolLookup symbolLookup, String name)
+            throws IOException {
+        return loadMethodHandle(cLinker, symbolLookup, name,
+                MethodType.methodType(MemoryAddress.class, // returns - the pixels, or NULL
+                        MemoryAddress.class, long.class, // input data and size
+                        MemoryAddress.class, MemoryAddress.class // the locations of the width and height
+                ),
+                FunctionDescriptor.of(C_POINTER, C_POINTER, C_LONG, C_POINTER, C_POINTER));
+    }
 
-        ConfigPreset = insertArguments(ConfigInitInternal, 3, WEBP_ENCODER_ABI_VERSION);
+    /** Return the WebPEncode* function which reads pixels in the given byte order.
+     * There is none for ARGB. */
+    public static MethodHandle simpleEncode(PixelFormat pixelFormat) {
+        return switch(pixelFormat) {
+            case RGB -> EncodeRGB;
+            case RGBA -> EncodeRGBA;
+            case BGR -> EncodeBGR;
+            case BGRA -> EncodeBGRA;
+            case ARGB -> throw new IllegalArgumentException("libwebp can't encode ARGB pixels");
+        };
+    }
 
-        // this is kinda miraculous if this works
-        ConfigInit = insertArguments(ConfigInitInternal, 1,
-                Preset.DEFAULT.ordinal(), 75f, WEBP_ENCODER_ABI_VERSION);
-        
-//        int WebPPictureAlloc(WebPPicture* picture)
-        PictureAlloc = loadMethodHandle(cLinker, symbolLookup, "WebPPictureAlloc",
-                MethodType.methodType(int.class, MemoryAddress.class),
-                FunctionDescriptor.of(C_INT, C_POINTER));
-        
-        PictureImportRGB = loadMethodHandle(cLinker, symbolLookup, "WebPPictureImportRGB",
-                MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, int.class),
-                FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_INT));
+    /** Return the WebPEncodeLossless* function which reads pixels in the given byte order.
+     * There is none for ARGB. */
+    public static MethodHandle simpleEncodeLossless(PixelFormat pixelFormat) {
+        return switch(pixelFormat) {
+            case RGB -> EncodeLosslessRGB;
+            case RGBA -> EncodeLosslessRGBA;
+            case BGR -> EncodeLosslessBGR;
+            case BGRA -> EncodeLosslessBGRA;
+            case ARGB -> throw new IllegalArgumentException("libwebp can't encode ARGB pixels");
+        };
+    }
 
-        PictureImportRGBA = loadMethodHandle(cLinker, symbolLookup, "WebPPictureImportRGBA",
-                MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, int.class),
-                FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_INT));
-        
-        PictureImportRGBX = loadMethodHandle(cLinker, symbolLookup, "WebPPictureImportRGBX",
-                MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, int.class),
-                FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_INT));
-        
-        PictureImportBGR = loadMethodHandle(cLinker, symbolLookup, "WebPPictureImportBGR",
-                MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, int.class),
-                FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_INT));
-        
-        PictureImportBGRA = loadMethodHandle(cLinker, symbolLookup, "WebPPictureImportBGRA",
-                MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, int.class),
-                FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_INT));
+    /** Return the WebPDecode* function which allocates pixels in the given byte order */
+    public static MethodHandle simpleDecode(PixelFormat pixelFormat) {
+        return switch(pixelFormat) {
+            case RGB -> DecodeRGB;
+            case RGBA -> DecodeRGBA;
+            case BGR -> DecodeBGR;
+            case BGRA -> DecodeBGRA;
+            case ARGB -> DecodeARGB;
+        };
+    }
 
-        PictureImportBGRX = loadMethodHandle(cLinker, symbolLookup, "WebPPictureImportBGRX",
-                MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, int.class),
-                FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_INT));
-        
-//        int WebPEncode(const WebPConfig* config, WebPPicture* picture)
-        Encode = loadMethodHandle(cLinker, symbolLookup, "WebPEncode", 
-                MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class),
-                FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER));
-        LOG.info("All the methods have been loaded.");
-        
+    /** Return the WebPPictureImport* function which reads pixels in the given byte order.
+     * There is no importer for ARGB. */
+    public static MethodHandle pictureImport(PixelFormat pixelFormat) {
+        return switch(pixelFormat) {
+            case RGB -> PictureImportRGB;
+            case RGBA -> PictureImportRGBA;
+            case BGR -> PictureImportBGR;
+            case BGRA -> PictureImportBGRA;
+            case ARGB -> throw new IllegalArgumentException("libwebp can't import ARGB pixels");
+        };
     }
 
-    private MethodHandle loadMethodHandle(CLinker cLinker, SymbolLookup symbolLookup,
-            String name, MethodType methodType, FunctionDescriptor functionDescriptor) throws IOException {
-        final Optional<MemoryAddress> oSymbolAddress = symbolLookup.lookup(name);
-        if (oSymbolAddress.isEmpty())
-            throw new IOException("couldn't library lookup for symbol: " + name);
-        final MethodHandle mh = cLinker.downcallHandle(oSymbolAddress.get(), methodType, functionDescriptor);
-        return mh;
+    /** Return the WebPDecode*Into function which writes pixels in the given byte order */
+    public static MethodHandle decodeInto(PixelFormat pixelFormat) {
+        return switch(pixelFormat) {
+            case RGB -> DecodeRGBInto;
+            case RGBA -> DecodeRGBAInto;
+            case BGR -> DecodeBGRInto;
+            case BGRA -> DecodeBGRAInto;
+            case ARGB -> DecodeARGBInto;
+        };
     }
 
-    public final MethodHandle GetInfo;
+    public static final MethodHandle GetInfo;
 
     /**
      * uint8_t* WebPDecodeARGBInto(const uint8_t* data, size_t data_size,
      * uint8_t* output_buffer, int output_buffer_size, int output_stride);
      *
      */
-    public final MethodHandle DecodeARGBInto;
+    public static final MethodHandle DecodeARGBInto;
+
+    /** Same as DecodeARGBInto, but with the output in RGBA byte order */
+    public static final MethodHandle DecodeRGBAInto;
+
+    /** Same as DecodeARGBInto, but with the output in BGRA byte order */
+    public static final MethodHandle DecodeBGRAInto;
+
+    /** Same as DecodeARGBInto, but with the output in RGB byte order, with no alpha */
+    public static final MethodHandle DecodeRGBInto;
+
+    /** Same as DecodeARGBInto, but with the output in BGR byte order, with no alpha */
+    public static final MethodHandle DecodeBGRInto;
+
+    /**
+     * uint8_t* WebPDecodeYUVInto(const uint8_t* data, size_t data_size,
+     * uint8_t* luma, size_t luma_size, int luma_stride,
+     * uint8_t* u, size_t u_size, int u_stride,
+     * uint8_t* v, size_t v_size, int v_stride);
+     *
+     * Decode into the caller's Y, U and V planes. The U and V planes are half the
+     * width and height of the image, rounded up. Returns luma, or NULL on failure.
+     */
+    public static final MethodHandle DecodeYUVInto;
+
+    private static final MethodHandle GetFeaturesInternal;
+
+    /** Retrieve features from the bitstream. The WebPBitstreamFeatures
+     * structure is filled with information gathered from the bitstream.
+     * Returns VP8_STATUS_OK when the features are successfully retrieved,
+     * and VP8_STATUS_NOT_ENOUGH_DATA when more data is needed.
+     * This calls GetFeaturesInternal with the ABI version constant.
+     * <pre>VP8StatusCode WebPGetFeatures(const uint8_t* data, size_t data_size,
+     *     WebPBitstreamFeatures* features);</pre> */
+    public static final MethodHandle GetFeatures;
+
+    private static final MethodHandle InitDecoderConfigInternal;
+
+    /** Initialize the configuration as empty. This function must always be
+     * called first, unless WebPGetFeatures() is to be called.
+     * Returns false in case of mismatched version.
+     * This calls InitDecoderConfigInternal with the ABI version constant.
+     * <pre>int WebPInitDecoderConfig(WebPDecoderConfig* config);</pre> */
+    public static final MethodHandle InitDecoderConfig;
+
+    /** Non-incremental version. This version decodes the full data at once, taking
+     * 'config' into account. Returns decoding status (which should be VP8_STATUS_OK
+     * if the decoding was successful). Note that 'config' cannot be NULL.
+     * <pre>VP8StatusCode WebPDecode(const uint8_t* data, size_t data_size,
+     *     WebPDecoderConfig* config);</pre> */
+    public static final MethodHandle Decode;
+
+    /** Free any memory associated with the buffer. Must always be called last.
+     * Note: doesn't free the 'buffer' structure itself.
+     * <pre>void WebPFreeDecBuffer(WebPDecBuffer* buffer);</pre> */
+    public static final MethodHandle FreeDecBuffer;
+
+    /** Instantiate a new incremental decoder object with the requested
+     * configuration. The bitstream can be passed using 'data' and 'data_size'
+     * parameter, in which case the features will be parsed and stored into
+     * config->input. Otherwise, 'data' can be NULL and no parsing will occur.
+     * Note that 'config' can be NULL too, in which case a default configuration
+     * is used. The return WebPIDecoder object must always be deleted calling
+     * WebPIDelete().
+     * <pre>WebPIDecoder* WebPIDecode(const uint8_t* data, size_t data_size,
+     *     WebPDecoderConfig* config);</pre> */
+    public static final MethodHandle IDecode;
+
+    /** Creates a new incremental decoder with the supplied buffer parameter.
+     * This output_buffer can be passed NULL, in which case a default output buffer
+     * is used (with MODE_RGB). Returns NULL if the allocation failed.
+     * <pre>WebPIDecoder* WebPINewDecoder(WebPDecBuffer* output_buffer);</pre> */
+    public static final MethodHandle INewDecoder;
+
+    /** Creates an incremental decoder which writes in the given colorspace. The
+     * output_buffer can be NULL, in which case the decoder allocates its own
+     * buffer, and output_buffer_size and output_stride are ignored.
+     * <pre>WebPIDecoder* WebPINewRGB(WEBP_CSP_MODE csp, uint8_t* output_buffer,
+     *     size_t output_buffer_size, int output_stride);</pre> */
+    public static final MethodHandle INewRGB;
+
+    /** Copies and decodes the next available data. Returns VP8_STATUS_OK when
+     * the image is successfully decoded. Returns VP8_STATUS_SUSPENDED when more
+     * data is expected. Returns error in other cases.
+     * <pre>VP8StatusCode WebPIAppend(WebPIDecoder* idec, const uint8_t* data, size_t data_size);</pre> */
+    public static final MethodHandle IAppend;
+
+    /** Returns the RGB/A image decoded so far. Returns NULL if output params
+     * are not initialized yet. The last_y is the index of the row after the
+     * last decoded row, so rows [0, last_y) can be read.
+     * <pre>uint8_t* WebPIDecGetRGB(const WebPIDecoder* idec, int* last_y,
+     *     int* width, int* height, int* stride);</pre> */
+    public static final MethodHandle IDecGetRGB;
+
+    /** Deletes the WebPIDecoder object and associated memory. Must always be
+     * called if WebPINewDecoder or WebPINewRGB succeeded.
+     * <pre>void WebPIDelete(WebPIDecoder* idec);</pre> */
+    public static final MethodHandle IDelete;
+
+    /**
+     * uint8_t* WebPDecodeRGBA(const uint8_t* data, size_t data_size, int* width, int* height);
+     *
+     * Decode into pixels which libwebp allocates, and which must be released with
+     * WebPFree. The width and height are stored, if the pointers aren't NULL. Returns
+     * NULL on failure.
+     */
+    public static final MethodHandle DecodeRGBA;
+
+    /** Same as DecodeRGBA, but with the output in ARGB byte order */
+    public static final MethodHandle DecodeARGB;
+
+    /** Same as DecodeRGBA, but with the output in BGRA byte order */
+    public static final MethodHandle DecodeBGRA;
+
+    /** Same as DecodeRGBA, but with the output in RGB byte order, with no alpha */
+    public static final MethodHandle DecodeRGB;
+
+    /** Same as DecodeRGBA, but with the output in BGR byte order, with no alpha */
+    public static final MethodHandle DecodeBGR;
+
+    /**
+     * size_t WebPEncodeRGB(const uint8_t* rgb, int width, int height, int stride,
+     * float quality_factor, uint8_t** output);
+     *
+     * Encode with the default settings at the given quality, from 0 to 100, into a
+     * buffer which libwebp allocates and stores in *output, and which must be released
+     * with WebPFree. Returns the size of the file, or 0 on failure.
+     */
+    public static final MethodHandle EncodeRGB;
+
+    /** Same as EncodeRGB, but reading BGR pixels */
+    public static final MethodHandle EncodeBGR;
+
+    /** Same as EncodeRGB, but reading RGBA pixels */
+    public static final MethodHandle EncodeRGBA;
+
+    /** Same as EncodeRGB, but reading BGRA pixels */
+    public static final MethodHandle EncodeBGRA;
 
     /**
      * size_t WebPEncodeLosslessRGB(const uint8_t* rgb, int width, int height,
      * int stride, uint8_t** output);
      *
      */
-    public final MethodHandle EncodeLosslessRGB;
+    public static final MethodHandle EncodeLosslessRGB;
+
+    /** Same as EncodeLosslessRGB, but reading BGR pixels */
+    public static final MethodHandle EncodeLosslessBGR;
+
+    /** Same as EncodeLosslessRGB, but reading RGBA pixels */
+    public static final MethodHandle EncodeLosslessRGBA;
+
+    /** Same as EncodeLosslessRGB, but reading BGRA pixels */
+    public static final MethodHandle EncodeLosslessBGRA;
 
     /**
      * void WebPFree(void* ptr);
      */
-    public final MethodHandle Free;
+    public static final MethodHandle Free;
 
-    private final MethodHandle PictureInitInternal;
+    private static final MethodHandle PictureInitInternal;
 
     /**
      * Calls PictureInitInternal but with the ABI version constant
      */
-    public final MethodHandle PictureInit;
+    public static final MethodHandle PictureInit;
 
-    public final MethodHandle ConfigInitInternal;
+    public static final MethodHandle ConfigInitInternal;
 
     /**
      * Configure based on one of the preset image types. This is the best way to
@@ -259,13 +451,18 @@ public final class LibWebp {
      * FIXME - use MethodHandles.insertArguments to create a ConfigInit method
      * that has the constant already bound to it! This is a cool use
      */
-    public final MethodHandle ConfigPreset;
+    public static final MethodHandle ConfigPreset;
 
     /**
      * Also an inline call t oConfigInitInternal, using the DEFAULT preset, and
      * 75 quality level
      */
-    public final MethodHandle ConfigInit;
+    public static final MethodHandle ConfigInit;
+
+    /** Returns true if 'config' is non-NULL and all configuration parameters are
+     * within their valid ranges.
+     * <pre>int WebPValidateConfig(const WebPConfig* config);</pre> */
+    public static final MethodHandle ValidateConfig;
     
     /** Convenience allocation / deallocation based on picture->width/height:
      * Allocate y/u/v buffers as per colorspace/width/height specification.
@@ -273,23 +470,30 @@ public final class LibWebp {
      * Returns false in case of memory error.
      * 
      * int WebPPictureAlloc(WebPPicture* picture); */
-    public final MethodHandle PictureAlloc;
+    public static final MethodHandle PictureAlloc;
+    
+    /** Release the memory allocated by WebPPictureAlloc() or WebPPictureImport*().
+     * Note that this function does _not_ free the memory used by the 'picture'
+     * object itself. Besides memory (which is reclaimed) all other fields of
+     * 'picture' are preserved.
+     * <pre>void WebPPictureFree(WebPPicture* picture);</pre> */
+    public static final MethodHandle PictureFree;
     
     /** Colorspace conversion function to import RGB samples.
      * Previous buffer will be free'd, if any.
      *rgb buffer should have a size of at least height * rgb_stride.
      * Returns false in case of memory error. */
-    public final MethodHandle PictureImportRGB;
+    public static final MethodHandle PictureImportRGB;
     
     /** int WebPPictureImportRGBA(WebPPicture* picture, const uint8_t* rgba, int rgba_stride); */
-    public final MethodHandle PictureImportRGBA;
+    public static final MethodHandle PictureImportRGBA;
     
     /**  Same, but for RGBA buffer. Imports the RGB direct from the 32-bit format
      * input buffer ignoring the alpha channel. Avoids needing to copy the data
      * to a temporary 24-bit RGB buffer to import the RGB only.
 <pre>WEBP_EXTERN int WebPPictureImportRGBX(
     WebPPicture* picture, const uint8_t* rgbx, int rgbx_stride);</pre> */
-    public final MethodHandle PictureImportRGBX;
+    public static final MethodHandle PictureImportRGBX;
 
     /** Variants of the above, but taking BGR(A|X) input. 
      * <pre>WEBP_EXTERN int WebPPictureImportBGR(
@@ -299,10 +503,25 @@ WEBP_EXTERN int WebPPictureImportBGRA(
 WEBP_EXTERN int WebPPictureImportBGRX(
     WebPPicture* picture, const uint8_t* bgrx, int bgrx_stride);</pre>
      */
-    public final MethodHandle PictureImportBGR;
-    public final MethodHandle PictureImportBGRA;
-    public final MethodHandle PictureImportBGRX;
+    public static final MethodHandle PictureImportBGR;
+    public static final MethodHandle PictureImportBGRA;
+    public static final MethodHandle PictureImportBGRX;
     
+    /** The writer must be initialized before it is used, and cleared afterward.
+     * <pre>void WebPMemoryWriterInit(WebPMemoryWriter* writer);</pre> */
+    public static final MethodHandle MemoryWriterInit;
+
+    /** Release the memory held by the writer, and reset it.
+     * <pre>void WebPMemoryWriterClear(WebPMemoryWriter* writer);</pre> */
+    public static final MethodHandle MemoryWriterClear;
+
+    /** The address of the WebPWriterFunction which writes into a WebPMemoryWriter, to
+     * be set as picture->writer with the writer as picture->custom_ptr. This saves an
+     * upcall for every block of encoded bytes.
+     * <pre>int WebPMemoryWrite(const uint8_t* data, size_t data_size,
+                    const WebPPicture* picture);</pre> */
+    public static final MemoryAddress MemoryWrite;
+
     /** Main encoding call, after config and picture have been initialized.
      * 'picture' must be less than 16384x16384 in dimension (cf WEBP_MAX_DIMENSION),
      * and the 'config' object must be a valid one.
@@ -315,6 +534,245 @@ WEBP_EXTERN int WebPPictureImportBGRX(
      * another is provided but they both incur some loss.
 <pre>WEBP_EXTERN int WebPEncode(const WebPConfig* config, WebPPicture* picture);<pre>
  */
-    public final MethodHandle Encode;
+    public static final MethodHandle Encode;
+
+    static {
+        try {
+            System.load(libraryPath);
+//            System.loadLibrary(libraryName);
+
+            LOG.info("Initializing the linker!");
+            final Path path = Path.of(libraryPath);
+
+            final SymbolLookup symbolLookup = SymbolLookup.loaderLookup();
+            // use the systemLookup instead, which should be able to find webp symbols
+            // without specifyin the full library path
+            // final Optional<MemoryAddress> oSymbolAddress = CLinker.systemLookup().lookup("strlen");
+        
+
+            final CLinker cLinker = CLinker.getInstance();
+
+            // int WebPGetInfo(const uint8_t* data, size_t data_size, int* width, int* height);
+            GetInfo = loadMethodHandle(cLinker, symbolLookup, "WebPGetInfo",
+                    MethodType.methodType(int.class, MemoryAddress.class, long.class, MemoryAddress.class, MemoryAddress.class),
+                    FunctionDescriptor.of(CLinker.C_INT, C_POINTER, C_LONG, C_POINTER, C_POINTER));
+
+            LOG.info("Cool, here is GetInfo: " + GetInfo);
+
+            DecodeARGBInto = loadMethodHandle(cLinker, symbolLookup, "WebPDecodeARGBInto",
+                    MethodType.methodType(MemoryAddress.class, // returns - pointer to output buffer
+                            MemoryAddress.class, long.class, // input data and size 
+                            MemoryAddress.class, long.class, // output buffer and size
+                            int.class // output_stride
+                    ),
+                    FunctionDescriptor.of(C_POINTER,
+                            C_POINTER, C_LONG,
+                            C_POINTER, C_LONG,
+                            C_INT)
+            );
+
+            // the same signature as above, with the output in the named byte order
+            DecodeRGBAInto = loadDecodeInto(cLinker, symbolLookup, "WebPDecodeRGBAInto");
+            DecodeBGRAInto = loadDecodeInto(cLinker, symbolLookup, "WebPDecodeBGRAInto");
+            DecodeRGBInto = loadDecodeInto(cLinker, symbolLookup, "WebPDecodeRGBInto");
+            DecodeBGRInto = loadDecodeInto(cLinker, symbolLookup, "WebPDecodeBGRInto");
+
+            DecodeYUVInto = loadMethodHandle(cLinker, symbolLookup, "WebPDecodeYUVInto",
+                    MethodType.methodType(MemoryAddress.class, // returns - pointer to the luma plane
+                            MemoryAddress.class, long.class, // input data and size
+                            MemoryAddress.class, long.class, int.class, // luma plane, size and stride
+                            MemoryAddress.class, long.class, int.class, // u plane, size and stride
+                            MemoryAddress.class, long.class, int.class // v plane, size and stride
+                    ),
+                    FunctionDescriptor.of(C_POINTER,
+                            C_POINTER, C_LONG,
+                            C_POINTER, C_LONG, C_INT,
+                            C_POINTER, C_LONG, C_INT,
+                            C_POINTER, C_LONG, C_INT));
+
+            // WebPGetFeatures is an inline call to this
+            // VP8StatusCode WebPGetFeaturesInternal(const uint8_t*, size_t, WebPBitstreamFeatures*, int);
+            GetFeaturesInternal = loadMethodHandle(cLinker, symbolLookup, "WebPGetFeaturesInternal",
+                    MethodType.methodType(int.class, // returns VP8StatusCode
+                            MemoryAddress.class, long.class, // input data and size
+                            MemoryAddress.class, // WebPBitstreamFeatures *
+                            int.class // WEBP_DECODER_ABI_VERSION
+                    ),
+                    FunctionDescriptor.of(C_INT, C_POINTER, C_LONG, C_POINTER, C_INT));
+
+            GetFeatures = insertArguments(GetFeaturesInternal, 3, WEBP_DECODER_ABI_VERSION);
+
+            // WebPInitDecoderConfig is an inline call to this
+            // int WebPInitDecoderConfigInternal(WebPDecoderConfig*, int);
+            InitDecoderConfigInternal = loadMethodHandle(cLinker, symbolLookup, "WebPInitDecoderConfigInternal",
+                    MethodType.methodType(int.class, // returns false in case of version mismatch
+                            MemoryAddress.class, // WebPDecoderConfig *
+                            int.class // WEBP_DECODER_ABI_VERSION
+                    ),
+                    FunctionDescriptor.of(C_INT, C_POINTER, C_INT));
+
+            InitDecoderConfig = insertArguments(InitDecoderConfigInternal, 1, WEBP_DECODER_ABI_VERSION);
+
+            // VP8StatusCode WebPDecode(const uint8_t* data, size_t data_size, WebPDecoderConfig* config);
+            Decode = loadMethodHandle(cLinker, symbolLookup, "WebPDecode",
+                    MethodType.methodType(int.class, MemoryAddress.class, long.class, MemoryAddress.class),
+                    FunctionDescriptor.of(C_INT, C_POINTER, C_LONG, C_POINTER));
+
+            // void WebPFreeDecBuffer(WebPDecBuffer* buffer);
+            FreeDecBuffer = loadMethodHandle(cLinker, symbolLookup, "WebPFreeDecBuffer",
+                    MethodType.methodType(void.class, MemoryAddress.class),
+                    FunctionDescriptor.ofVoid(C_POINTER));
+
+            // WebPIDecoder* WebPIDecode(const uint8_t* data, size_t data_size, WebPDecoderConfig* config);
+            IDecode = loadMethodHandle(cLinker, symbolLookup, "WebPIDecode",
+                    MethodType.methodType(MemoryAddress.class, MemoryAddress.class, long.class, MemoryAddress.class),
+                    FunctionDescriptor.of(C_POINTER, C_POINTER, C_LONG, C_POINTER));
+
+            // WebPIDecoder* WebPINewDecoder(WebPDecBuffer* output_buffer);
+            INewDecoder = loadMethodHandle(cLinker, symbolLookup, "WebPINewDecoder",
+                    MethodType.methodType(MemoryAddress.class, MemoryAddress.class),
+                    FunctionDescriptor.of(C_POINTER, C_POINTER));
+
+            // WebPIDecoder* WebPINewRGB(WEBP_CSP_MODE csp, uint8_t* output_buffer,
+            //                           size_t output_buffer_size, int output_stride);
+            INewRGB = loadMethodHandle(cLinker, symbolLookup, "WebPINewRGB",
+                    MethodType.methodType(MemoryAddress.class, // returns WebPIDecoder*
+                            int.class, // WEBP_CSP_MODE
+                            MemoryAddress.class, long.class, // output buffer and size
+                            int.class // output_stride
+                    ),
+                    FunctionDescriptor.of(C_POINTER, C_INT, C_POINTER, C_LONG, C_INT));
+
+            // VP8StatusCode WebPIAppend(WebPIDecoder* idec, const uint8_t* data, size_t data_size);
+            IAppend = loadMethodHandle(cLinker, symbolLookup, "WebPIAppend",
+                    MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, long.class),
+                    FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_LONG));
+
+            // uint8_t* WebPIDecGetRGB(const WebPIDecoder* idec, int* last_y,
+            //                         int* width, int* height, int* stride);
+            IDecGetRGB = loadMethodHandle(cLinker, symbolLookup, "WebPIDecGetRGB",
+                    MethodType.methodType(MemoryAddress.class, MemoryAddress.class, 
+                            MemoryAddress.class, MemoryAddress.class, MemoryAddress.class, MemoryAddress.class),
+                    FunctionDescriptor.of(C_POINTER, C_POINTER, C_POINTER, C_POINTER, C_POINTER, C_POINTER));
+
+            // void WebPIDelete(WebPIDecoder* idec);
+            IDelete = loadMethodHandle(cLinker, symbolLookup, "WebPIDelete",
+                    MethodType.methodType(void.class, MemoryAddress.class),
+                    FunctionDescriptor.ofVoid(C_POINTER));
+
+            // uint8_t* WebPDecodeRGBA(const uint8_t* data, size_t data_size, int* width, int* height);
+            DecodeRGBA = loadSimpleDecode(cLinker, symbolLookup, "WebPDecodeRGBA");
+            DecodeARGB = loadSimpleDecode(cLinker, symbolLookup, "WebPDecodeARGB");
+            DecodeBGRA = loadSimpleDecode(cLinker, symbolLookup, "WebPDecodeBGRA");
+            DecodeRGB = loadSimpleDecode(cLinker, symbolLookup, "WebPDecodeRGB");
+            DecodeBGR = loadSimpleDecode(cLinker, symbolLookup, "WebPDecodeBGR");
+
+            // size_t WebPEncodeRGB(const uint8_t* rgb, int width, int height, int stride,
+            //     float quality_factor, uint8_t** output);
+            EncodeRGB = loadSimpleEncode(cLinker, symbolLookup, "WebPEncodeRGB");
+            EncodeBGR = loadSimpleEncode(cLinker, symbolLookup, "WebPEncodeBGR");
+            EncodeRGBA = loadSimpleEncode(cLinker, symbolLookup, "WebPEncodeRGBA");
+            EncodeBGRA = loadSimpleEncode(cLinker, symbolLookup, "WebPEncodeBGRA");
+
+            // size_t WebPEncodeLosslessRGB(const uint8_t* rgb, int width, int height, int stride, uint8_t** output);
+            EncodeLosslessRGB = loadSimpleEncodeLossless(cLinker, symbolLookup, "WebPEncodeLosslessRGB");
+            EncodeLosslessBGR = loadSimpleEncodeLossless(cLinker, symbolLookup, "WebPEncodeLosslessBGR");
+            EncodeLosslessRGBA = loadSimpleEncodeLossless(cLinker, symbolLookup, "WebPEncodeLosslessRGBA");
+            EncodeLosslessBGRA = loadSimpleEncodeLossless(cLinker, symbolLookup, "WebPEncodeLosslessBGRA");
+            Free = loadMethodHandle(cLinker, symbolLookup, "WebPFree",
+                    MethodType.methodType(void.class, // returns void
+                            MemoryAddress.class // pointer to be freed
+                    ),
+                    FunctionDescriptor.ofVoid(C_POINTER));
+
+            // annoyingly, the WebPConfigPreset function we would like to access
+            // is defined as an inline
+            // int WebPConfigInitInternal(WebPConfig*, WebPPreset, float, int);
+            ConfigInitInternal = loadMethodHandle(cLinker, symbolLookup, "WebPConfigInitInternal",
+                    MethodType.methodType(int.class, // returns false in case of error 
+                            MemoryAddress.class, // WebPConfig *
+                            int.class, // WebPPreset preset - the enum
+                            float.class, // quality
+                            int.class // WEBP_ENCODER_ABI_VERSION
+                    ),
+                    FunctionDescriptor.of(C_INT, C_POINTER, C_INT, C_FLOAT, C_INT));
+
+            PictureInitInternal = loadMethodHandle(cLinker, symbolLookup, "WebPPictureInitInternal",
+                    MethodType.methodType(int.class, MemoryAddress.class, // Picture 
+                            int.class // WEBP_ENCODER_ABI_VERSION
+                    ), FunctionDescriptor.of(C_INT, C_POINTER, C_INT));
+
+            PictureInit = insertArguments(PictureInitInternal, 1, WEBP_ENCODER_ABI_VERSION);
+
+            ConfigPreset = insertArguments(ConfigInitInternal, 3, WEBP_ENCODER_ABI_VERSION);
+
+            // this is kinda miraculous if this works
+            ConfigInit = insertArguments(ConfigInitInternal, 1,
+                    Preset.DEFAULT.ordinal(), 75f, WEBP_ENCODER_ABI_VERSION);
+        
+            // int WebPValidateConfig(const WebPConfig* config);
+            ValidateConfig = loadMethodHandle(cLinker, symbolLookup, "WebPValidateConfig",
+                    MethodType.methodType(int.class, MemoryAddress.class),
+                    FunctionDescriptor.of(C_INT, C_POINTER));
+        
+            // void WebPPictureFree(WebPPicture* picture);
+            PictureFree = loadMethodHandle(cLinker, symbolLookup, "WebPPictureFree",
+                    MethodType.methodType(void.class, MemoryAddress.class),
+                    FunctionDescriptor.ofVoid(C_POINTER));
+
+//            int WebPPictureAlloc(WebPPicture* picture)
+            PictureAlloc = loadMethodHandle(cLinker, symbolLookup, "WebPPictureAlloc",
+                    MethodType.methodType(int.class, MemoryAddress.class),
+                    FunctionDescriptor.of(C_INT, C_POINTER));
+        
+            PictureImportRGB = loadMethodHandle(cLinker, symbolLookup, "WebPPictureImportRGB",
+                    MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, int.class),
+                    FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_INT));
+
+            PictureImportRGBA = loadMethodHandle(cLinker, symbolLookup, "WebPPictureImportRGBA",
+                    MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, int.class),
+                    FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_INT));
+        
+            PictureImportRGBX = loadMethodHandle(cLinker, symbolLookup, "WebPPictureImportRGBX",
+                    MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, int.class),
+                    FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_INT));
+        
+            PictureImportBGR = loadMethodHandle(cLinker, symbolLookup, "WebPPictureImportBGR",
+                    MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, int.class),
+                    FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_INT));
+        
+            PictureImportBGRA = loadMethodHandle(cLinker, symbolLookup, "WebPPictureImportBGRA",
+                    MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, int.class),
+                    FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_INT));
+
+            PictureImportBGRX = loadMethodHandle(cLinker, symbolLookup, "WebPPictureImportBGRX",
+                    MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, int.class),
+                    FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_INT));
+        
+            // void WebPMemoryWriterInit(WebPMemoryWriter* writer);
+            MemoryWriterInit = loadMethodHandle(cLinker, symbolLookup, "WebPMemoryWriterInit",
+                    MethodType.methodType(void.class, MemoryAddress.class),
+                    FunctionDescriptor.ofVoid(C_POINTER));
+
+            // void WebPMemoryWriterClear(WebPMemoryWriter* writer);
+            MemoryWriterClear = loadMethodHandle(cLinker, symbolLookup, "WebPMemoryWriterClear",
+                    MethodType.methodType(void.class, MemoryAddress.class),
+                    FunctionDescriptor.ofVoid(C_POINTER));
+
+            // this one is never called from Java; libwebp calls it through picture->writer
+            MemoryWrite = symbolLookup.lookup("WebPMemoryWrite").orElseThrow(() ->
+                    new IOException("couldn't library lookup for symbol: WebPMemoryWrite"));
+
+//            int WebPEncode(const WebPConfig* config, WebPPicture* picture)
+            Encode = loadMethodHandle(cLinker, symbolLookup, "WebPEncode", 
+                    MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class),
+                    FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER));
+            LOG.info("All the methods have been loaded.");
+            libWebp = new LibWebp();
+        } catch (IOException ioe) {
+            LOG.log(WARNING, "couldn't load libwebp", ioe);
+            throw new RuntimeException(ioe);
+        }
+    }
 
 }
@@ -0,0 +1,337 @@
+package com.chiralsoftware.libwebp4j.impl;
+
+import static com.chiralsoftware.libwebp4j.impl.LibWebp.loadMethodHandle;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import static java.lang.invoke.MethodHandles.insertArguments;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import static java.util.logging.Level.WARNING;
+import java.util.logging.Logger;
+import jdk.incubator.foreign.CLinker;
+import static jdk.incubator.foreign.CLinker.C_INT;
+import static jdk.incubator.foreign.CLinker.C_LONG;
+import static jdk.incubator.foreign.CLinker.C_POINTER;
+import jdk.incubator.foreign.FunctionDescriptor;
+import jdk.incubator.foreign.GroupLayout;
+import jdk.incubator.foreign.MemoryAddress;
+import static jdk.incubator.foreign.MemoryLayout.PathElement.groupElement;
+import static jdk.incubator.foreign.MemoryLayout.paddingLayout;
+import static jdk.incubator.foreign.MemoryLayout.structLayout;
+import jdk.incubator.foreign.SymbolLookup;
+
+/**
+ * Interface to libwebpdemux, which parses the WebP container (animation frames and
+ * metadata chunks) and decodes animations. This is a separate library from libwebp
+ * and it is optional: if it can't be loaded, getInstance() returns null and
+ * animated images can't be read.
+ */
+public final class LibWebpDemux {
+
+    private static final Logger LOG = Logger.getLogger(LibWebpDemux.class.getName());
+
+    private static final String libraryPath = "/usr/lib/x86_64-linux-gnu/libwebpdemux.so";
+
+    /** Looks up the library's functions, or null if it couldn't be loaded */
+    private static final SymbolLookup symbolLookup = loadLibrary();
+
+    /** Cleared if the library couldn't be loaded, or is missing a function */
+    private static boolean complete = symbolLookup != null;
+
+    private static final LibWebpDemux libWebpDemux;
+
+    /**
+     * Hard-coded, from demux.h
+     */
+    public static final int WEBP_DEMUX_ABI_VERSION = 0x0107;
+
+    private static SymbolLookup loadLibrary() {
+        try {
+            // libwebpdemux depends on libwebp, so make sure that is loaded first
+            LibWebp.getInstance();
+            System.load(libraryPath);
+            return SymbolLookup.loaderLookup();
+        } catch (UnsatisfiedLinkError e) {
+            LOG.log(WARNING, "couldn't load libwebpdemux; animated images can't be read", e);
+            return null;
+        }
+    }
+
+    /** The handle of a function, or null if the library or the function is missing */
+    private static MethodHandle downcall(String name, MethodType methodType, FunctionDescriptor functionDescriptor) {
+        if(symbolLookup == null) return null;
+        try {
+            return loadMethodHandle(CLinker.getInstance(), symbolLookup, name, methodType, functionDescriptor);
+        } catch (IOException e) {
+            LOG.log(WARNING, "couldn't load libwebpdemux; animated images can't be read", e);
+            complete = false;
+            return null;
+        }
+    }
+
+    /** insertArguments, for a handle which may be missing */
+    private static MethodHandle bind(MethodHandle target, int position, Object... values) {
+        return target == null ? null : insertArguments(target, position, values);
+    }
+
+    /** @return null if libwebpdemux isn't available. The functions are static, so the
+     * instance only stands for the loaded library. */
+    static LibWebpDemux getInstance() {
+        return libWebpDemux;
+    }
+
+    /** Values for WebPDemuxGetI, matching the WebPFormatFeature enum */
+    public static enum FormatFeature {
+        WEBP_FF_FORMAT_FLAGS, // bit-wise combination of WebPFeatureFlags
+        WEBP_FF_CANVAS_WIDTH,
+        WEBP_FF_CANVAS_HEIGHT,
+        WEBP_FF_LOOP_COUNT, // only relevant for animated file
+        WEBP_FF_BACKGROUND_COLOR, // idem.
+        WEBP_FF_FRAME_COUNT // Number of frames present in the demux object.
+    }
+
+    /** Matches the WebPMuxAnimDispose enum: how a frame's area is disposed of
+     * before the next frame is rendered */
+    public static final int WEBP_MUX_DISPOSE_NONE = 0, WEBP_MUX_DISPOSE_BACKGROUND = 1;
+
+    /** Matches the WebPMuxAnimBlend enum: how a frame is combined with the canvas */
+    public static final int WEBP_MUX_BLEND = 0, WEBP_MUX_NO_BLEND = 1;
+
+    /**
+     * Match the struct WebPIterator definition
+     */
+    public static final GroupLayout Iterator = structLayout(
+            C_INT.withName("frame_num"),
+            C_INT.withName("num_frames"), // equivalent to WEBP_FF_FRAME_COUNT.
+            C_INT.withName("x_offset"), // offset relative to the canvas.
+            C_INT.withName("y_offset"),
+            C_INT.withName("width"), // dimensions of this frame.
+            C_INT.withName("height"),
+            C_INT.withName("duration"), // display duration in milliseconds.
+            C_INT.withName("dispose_method"), // dispose method for the frame.
+            C_INT.withName("complete"), // true if 'fragment' contains a full frame. partial images
+            // may still be decoded with the WebP incremental decoder.
+            paddingLayout(32), // from pahole
+            // The frame given by 'frame_num'. Note for historical
+            // reasons this is called a fragment.
+            C_POINTER.withName("fragment_bytes"),
+            C_LONG.withName("fragment_size"),
+            C_INT.withName("has_alpha"), // True if the frame contains transparency.
+            C_INT.withName("blend_method"), // Blend operation for the frame.
+            paddingLayout(2 * 32), // padding for later use.
+            C_POINTER.withName("private_") // for internal use only.
+    ).withBitAlignment(64);
+
+    /**
+     * Match the struct WebPChunkIterator definition
+     */
+    public static final GroupLayout ChunkIterator = structLayout(
+            // The current and total number of chunks with the fourcc given to
+            // WebPDemuxGetChunk().
+            C_INT.withName("chunk_num"),
+            C_INT.withName("num_chunks"),
+            // The payload of the chunk, a WebPData.
+            C_POINTER.withName("chunk_bytes"),
+            C_LONG.withName("chunk_size"),
+            paddingLayout(6 * 32), // padding for later use
+            C_POINTER.withName("private_")
+    ).withBitAlignment(64);
+
+    /**
+     * Match the struct WebPAnimDecoderOptions definition
+     */
+    public static final GroupLayout AnimDecoderOptions = structLayout(
+            // Output colorspace. Only the following modes are supported:
+            // MODE_RGBA, MODE_BGRA, MODE_rgbA and MODE_bgrA.
+            C_INT.withName("color_mode"),
+            C_INT.withName("use_threads"), // If true, use multi-threaded decoding.
+            paddingLayout(7 * 32) // Padding for later use.
+    );
+
+    /**
+     * Match the struct WebPAnimInfo definition
+     */
+    public static final GroupLayout AnimInfo = structLayout(
+            C_INT.withName("canvas_width"),
+            C_INT.withName("canvas_height"),
+            C_INT.withName("loop_count"),
+            C_INT.withName("bgcolor"),
+            C_INT.withName("frame_count"),
+            paddingLayout(4 * 32) // padding for later use
+    );
+
+    /** The int fields of a WebPIterator */
+    public static final VarHandle IteratorXOffset = Iterator.varHandle(int.class, groupElement("x_offset"));
+    public static final VarHandle IteratorYOffset = Iterator.varHandle(int.class, groupElement("y_offset"));
+    public static final VarHandle IteratorWidth = Iterator.varHandle(int.class, groupElement("width"));
+    public static final VarHandle IteratorHeight = Iterator.varHandle(int.class, groupElement("height"));
+    public static final VarHandle IteratorDuration = Iterator.varHandle(int.class, groupElement("duration"));
+    public static final VarHandle IteratorDisposeMethod = Iterator.varHandle(int.class, groupElement("dispose_method"));
+    public static final VarHandle IteratorHasAlpha = Iterator.varHandle(int.class, groupElement("has_alpha"));
+    public static final VarHandle IteratorBlendMethod = Iterator.varHandle(int.class, groupElement("blend_method"));
+
+    /** The fragment of a WebPIterator: the address of the frame's bitstream, as a long, and its size */
+    public static final VarHandle IteratorFragmentBytes = Iterator.varHandle(long.class, groupElement("fragment_bytes"));
+    public static final VarHandle IteratorFragmentSize = Iterator.varHandle(long.class, groupElement("fragment_size"));
+
+    /** The chunk of a WebPChunkIterator: the address of its payload, as a long, and its size */
+    public static final VarHandle ChunkIteratorChunkBytes = ChunkIterator.varHandle(long.class, groupElement("chunk_bytes"));
+    public static final VarHandle ChunkIteratorChunkSize = ChunkIterator.varHandle(long.class, groupElement("chunk_size"));
+
+    /** The fields of a WebPAnimDecoderOptions */
+    public static final VarHandle AnimDecoderOptionsColorMode =
+            AnimDecoderOptions.varHandle(int.class, groupElement("color_mode"));
+    public static final VarHandle AnimDecoderOptionsUseThreads =
+            AnimDecoderOptions.varHandle(int.class, groupElement("use_threads"));
+
+    private LibWebpDemux() {
+    }
+
+    // WebPDemuxer* WebPDemuxInternal(const WebPData*, int, WebPDemuxState*, int);
+    private static final MethodHandle DemuxInternal = downcall("WebPDemuxInternal",
+            MethodType.methodType(MemoryAddress.class, // returns WebPDemuxer*
+                    MemoryAddress.class, // const WebPData*
+                    int.class, // allow_partial
+                    MemoryAddress.class, // WebPDemuxState*, can be NULL
+                    int.class // WEBP_DEMUX_ABI_VERSION
+            ),
+            FunctionDescriptor.of(C_POINTER, C_POINTER, C_INT, C_POINTER, C_INT));
+
+    /** Parses the full WebP file given by 'data'. For single images the WebP file
+     * header alone or the file header and the chunk header may be absent.
+     * Returns a WebPDemuxer object on successful parse, NULL otherwise.
+     * The data must stay alive for as long as the demuxer.
+     * WebPDemux is an inline call with allow_partial = 0 and no state.
+     * <pre>WebPDemuxer* WebPDemux(const WebPData* data);</pre> */
+    public static final MethodHandle Demux = bind(DemuxInternal, 1, 0, MemoryAddress.NULL, WEBP_DEMUX_ABI_VERSION);
+
+    /** Frees memory associated with 'dmux'.
+     * <pre>void WebPDemuxDelete(WebPDemuxer* dmux);</pre> */
+    public static final MethodHandle DemuxDelete = downcall("WebPDemuxDelete",
+            MethodType.methodType(void.class, MemoryAddress.class),
+            FunctionDescriptor.ofVoid(C_POINTER));
+
+    /** Get the 'feature' value from the 'dmux'. See the FormatFeature enum.
+     * <pre>uint32_t WebPDemuxGetI(const WebPDemuxer* dmux, WebPFormatFeature feature);</pre> */
+    public static final MethodHandle DemuxGetI = downcall("WebPDemuxGetI",
+            MethodType.methodType(int.class, MemoryAddress.class, int.class),
+            FunctionDescriptor.of(C_INT, C_POINTER, C_INT));
+
+    /** Retrieves frame 'frame_number' from 'dmux'. 'iter->fragment' points to the
+     * frame on return from this function. Setting 'frame_number' equal to 0 will
+     * return the last frame of the image. Returns false if 'dmux' is NULL or frame
+     * 'frame_number' is not present. Call WebPDemuxReleaseIterator() when use of
+     * the iterator is complete.
+     * <pre>int WebPDemuxGetFrame(const WebPDemuxer* dmux, int frame_number, WebPIterator* iter);</pre> */
+    public static final MethodHandle DemuxGetFrame = downcall("WebPDemuxGetFrame",
+            MethodType.methodType(int.class, MemoryAddress.class, int.class, MemoryAddress.class),
+            FunctionDescriptor.of(C_INT, C_POINTER, C_INT, C_POINTER));
+
+    /** Sets 'iter->fragment' to point to the next frame. Returns true on success,
+     * false otherwise.
+     * <pre>int WebPDemuxNextFrame(WebPIterator* iter);</pre> */
+    public static final MethodHandle DemuxNextFrame = downcall("WebPDemuxNextFrame",
+            MethodType.methodType(int.class, MemoryAddress.class),
+            FunctionDescriptor.of(C_INT, C_POINTER));
+
+    /** Releases any memory associated with 'iter'. Must be called before any
+     * subsequent calls to WebPDemuxGetChunk() on the same iter. Also, must be
+     * called before destroying the associated WebPDemuxer with WebPDemuxDelete().
+     * <pre>void WebPDemuxReleaseIterator(WebPIterator* iter);</pre> */
+    public static final MethodHandle DemuxReleaseIterator = downcall("WebPDemuxReleaseIterator",
+            MethodType.methodType(void.class, MemoryAddress.class),
+            FunctionDescriptor.ofVoid(C_POINTER));
+
+    /** Retrieves the 'chunk_number' instance of the chunk with id 'fourcc' from
+     * 'dmux'. 'fourcc' is a character array containing the fourcc of the chunk to
+     * return, e.g., "ICCP", "XMP ", "EXIF", etc. Setting 'chunk_number' equal to 0
+     * will return the last chunk in a set. Returns true if the chunk is found, false
+     * otherwise. Image related chunk payloads are accessed through WebPDemuxGetFrame()
+     * and related functions. Call WebPDemuxReleaseChunkIterator() when use of the
+     * iterator is complete. The payload points into the demuxed data; it isn't a copy.
+     * <pre>int WebPDemuxGetChunk(const WebPDemuxer* dmux,
+                      const char fourcc[4], int chunk_number,
+                      WebPChunkIterator* iter);</pre> */
+    public static final MethodHandle DemuxGetChunk = downcall("WebPDemuxGetChunk",
+            MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, int.class, MemoryAddress.class),
+            FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_INT, C_POINTER));
+
+    /** Sets 'iter->chunk' to point to the next chunk with the same fourcc. Returns
+     * true on success, false otherwise.
+     * <pre>int WebPDemuxNextChunk(WebPChunkIterator* iter);</pre> */
+    public static final MethodHandle DemuxNextChunk = downcall("WebPDemuxNextChunk",
+            MethodType.methodType(int.class, MemoryAddress.class),
+            FunctionDescriptor.of(C_INT, C_POINTER));
+
+    /** Releases any memory associated with 'iter'. Must be called before destroying
+     * the associated WebPDemuxer with WebPDemuxDelete().
+     * <pre>void WebPDemuxReleaseChunkIterator(WebPChunkIterator* iter);</pre> */
+    public static final MethodHandle DemuxReleaseChunkIterator = downcall("WebPDemuxReleaseChunkIterator",
+            MethodType.methodType(void.class, MemoryAddress.class),
+            FunctionDescriptor.ofVoid(C_POINTER));
+
+    // int WebPAnimDecoderOptionsInitInternal(WebPAnimDecoderOptions*, int);
+    private static final MethodHandle AnimDecoderOptionsInitInternal = downcall("WebPAnimDecoderOptionsInitInternal",
+            MethodType.methodType(int.class, MemoryAddress.class, int.class),
+            FunctionDescriptor.of(C_INT, C_POINTER, C_INT));
+
+    /** Should always be called, to initialize a fresh WebPAnimDecoderOptions
+     * structure before modification. Returns false in case of version mismatch.
+     * <pre>int WebPAnimDecoderOptionsInit(WebPAnimDecoderOptions* dec_options);</pre> */
+    public static final MethodHandle AnimDecoderOptionsInit =
+            bind(AnimDecoderOptionsInitInternal, 1, WEBP_DEMUX_ABI_VERSION);
+
+    // WebPAnimDecoder* WebPAnimDecoderNewInternal(const WebPData*, const WebPAnimDecoderOptions*, int);
+    private static final MethodHandle AnimDecoderNewInternal = downcall("WebPAnimDecoderNewInternal",
+            MethodType.methodType(MemoryAddress.class, MemoryAddress.class, MemoryAddress.class, int.class),
+            FunctionDescriptor.of(C_POINTER, C_POINTER, C_POINTER, C_INT));
+
+    /** Creates and initializes a WebPAnimDecoder object. The data must stay alive
+     * for as long as the decoder. Returns NULL in case of parsing error, invalid
+     * option or memory error.
+     * <pre>WebPAnimDecoder* WebPAnimDecoderNew(const WebPData* webp_data,
+     *     const WebPAnimDecoderOptions* dec_options);</pre> */
+    public static final MethodHandle AnimDecoderNew = bind(AnimDecoderNewInternal, 2, WEBP_DEMUX_ABI_VERSION);
+
+    /** Get global information about the animation. Returns true on success.
+     * <pre>int WebPAnimDecoderGetInfo(const WebPAnimDecoder* dec, WebPAnimInfo* info);</pre> */
+    public static final MethodHandle AnimDecoderGetInfo = downcall("WebPAnimDecoderGetInfo",
+            MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class),
+            FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER));
+
+    /** Fetch the next frame from 'dec' based on options supplied to
+     * WebPAnimDecoderNew(). This will be a fully reconstructed canvas of size
+     * 'canvas_width * 4 * canvas_height', and not just the frame sub-rectangle. The
+     * returned buffer 'buf' is valid only until the next call to
+     * WebPAnimDecoderGetNext(), WebPAnimDecoderReset() or WebPAnimDecoderDelete().
+     * <pre>int WebPAnimDecoderGetNext(WebPAnimDecoder* dec, uint8_t** buf, int* timestamp);</pre> */
+    public static final MethodHandle AnimDecoderGetNext = downcall("WebPAnimDecoderGetNext",
+            MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, MemoryAddress.class),
+            FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_POINTER));
+
+    /** Check if there are more frames left to decode.
+     * <pre>int WebPAnimDecoderHasMoreFrames(const WebPAnimDecoder* dec);</pre> */
+    public static final MethodHandle AnimDecoderHasMoreFrames = downcall("WebPAnimDecoderHasMoreFrames",
+            MethodType.methodType(int.class, MemoryAddress.class),
+            FunctionDescriptor.of(C_INT, C_POINTER));
+
+    /** Resets the WebPAnimDecoder object, so that next call to
+     * WebPAnimDecoderGetNext() will restart decoding from 1st frame.
+     * <pre>void WebPAnimDecoderReset(WebPAnimDecoder* dec);</pre> */
+    public static final MethodHandle AnimDecoderReset = downcall("WebPAnimDecoderReset",
+            MethodType.methodType(void.class, MemoryAddress.class),
+            FunctionDescriptor.ofVoid(C_POINTER));
+
+    /** Deletes the WebPAnimDecoder object.
+     * <pre>void WebPAnimDecoderDelete(WebPAnimDecoder* dec);</pre> */
+    public static final MethodHandle AnimDecoderDelete = downcall("WebPAnimDecoderDelete",
+            MethodType.methodType(void.class, MemoryAddress.class),
+            FunctionDescriptor.ofVoid(C_POINTER));
+
+    // after all of the handles, so it knows whether any was missing
+    static {
+        libWebpDemux = complete ? new LibWebpDemux() : null;
+        if(complete) LOG.fine("All the demux methods have been loaded.");
+    }
+
+}
@@ -0,0 +1,183 @@
+package com.chiralsoftware.libwebp4j.impl;
+
+import static com.chiralsoftware.libwebp4j.impl.LibWebp.loadMethodHandle;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import static java.lang.invoke.MethodHandles.insertArguments;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import static java.util.logging.Level.WARNING;
+import java.util.logging.Logger;
+import jdk.incubator.foreign.CLinker;
+import static jdk.incubator.foreign.CLinker.C_INT;
+import static jdk.incubator.foreign.CLinker.C_POINTER;
+import jdk.incubator.foreign.FunctionDescriptor;
+import jdk.incubator.foreign.GroupLayout;
+import jdk.incubator.foreign.MemoryAddress;
+import static jdk.incubator.foreign.MemoryLayout.PathElement.groupElement;
+import static jdk.incubator.foreign.MemoryLayout.paddingLayout;
+import static jdk.incubator.foreign.MemoryLayout.structLayout;
+import jdk.incubator.foreign.SymbolLookup;
+
+/**
+ * Interface to libwebpmux, which assembles WebP containers and encodes animations
+ * with WebPAnimEncoder. Like libwebpdemux this is a separate, optional library: if
+ * it can't be loaded, getInstance() returns null and animations can't be written.
+ */
+public final class LibWebpMux {
+
+    private static final Logger LOG = Logger.getLogger(LibWebpMux.class.getName());
+
+    private static final String libraryPath = "/usr/lib/x86_64-linux-gnu/libwebpmux.so";
+
+    /** Looks up the library's functions, or null if it couldn't be loaded */
+    private static final SymbolLookup symbolLookup = loadLibrary();
+
+    /** Cleared if the library couldn't be loaded, or is missing a function */
+    private static boolean complete = symbolLookup != null;
+
+    private static final LibWebpMux libWebpMux;
+
+    /**
+     * Hard-coded, from mux.h
+     */
+    public static final int WEBP_MUX_ABI_VERSION = 0x0108;
+
+    private static SymbolLookup loadLibrary() {
+        try {
+            // libwebpmux depends on libwebp, so make sure that is loaded first
+            LibWebp.getInstance();
+            System.load(libraryPath);
+            return SymbolLookup.loaderLookup();
+        } catch (UnsatisfiedLinkError e) {
+            LOG.log(WARNING, "couldn't load libwebpmux; animated images can't be written", e);
+            return null;
+        }
+    }
+
+    /** The handle of a function, or null if the library or the function is missing */
+    private static MethodHandle downcall(String name, MethodType methodType, FunctionDescriptor functionDescriptor) {
+        if(symbolLookup == null) return null;
+        try {
+            return loadMethodHandle(CLinker.getInstance(), symbolLookup, name, methodType, functionDescriptor);
+        } catch (IOException e) {
+            LOG.log(WARNING, "couldn't load libwebpmux; animated images can't be written", e);
+            complete = false;
+            return null;
+        }
+    }
+
+    /** insertArguments, for a handle which may be missing */
+    private static MethodHandle bind(MethodHandle target, int position, Object... values) {
+        return target == null ? null : insertArguments(target, position, values);
+    }
+
+    /** @return null if libwebpmux isn't available. The functions are static, so the
+     * instance only stands for the loaded library. */
+    static LibWebpMux getInstance() {
+        return libWebpMux;
+    }
+
+    /**
+     * Match the struct WebPAnimEncoderOptions definition
+     */
+    public static final GroupLayout AnimEncoderOptions = structLayout(
+            // WebPMuxAnimParams anim_params: animation parameters
+            C_INT.withName("bgcolor"), // background color of the canvas stored as ARGB
+            C_INT.withName("loop_count"), // number of times to repeat the animation [0 = infinite]
+            // If true, minimize the output size (slow). Implicitly disables key-frame insertion.
+            C_INT.withName("minimize_size"),
+            // Minimum and maximum distance between consecutive key frames in the output.
+            // The library may insert some key frames as needed to satisfy this criteria.
+            // Note that these conditions should hold: kmax > kmin and kmin >= kmax / 2 + 1.
+            // Also, if kmax <= 0, then key-frame insertion is disabled; and if kmax == 1,
+            // then all frames will be key-frames (kmin can have any value in this case).
+            C_INT.withName("kmin"),
+            C_INT.withName("kmax"),
+            // If true, use mixed compression mode; may choose either lossy and lossless for each frame.
+            C_INT.withName("allow_mixed"),
+            C_INT.withName("verbose"), // If true, print info and warning messages to stderr.
+            paddingLayout(4 * 32) // Padding for later use.
+    );
+
+    /** The fields of a WebPAnimEncoderOptions */
+    public static final VarHandle AnimEncoderOptionsBgcolor =
+            AnimEncoderOptions.varHandle(int.class, groupElement("bgcolor"));
+    public static final VarHandle AnimEncoderOptionsLoopCount =
+            AnimEncoderOptions.varHandle(int.class, groupElement("loop_count"));
+    public static final VarHandle AnimEncoderOptionsMinimizeSize =
+            AnimEncoderOptions.varHandle(int.class, groupElement("minimize_size"));
+    public static final VarHandle AnimEncoderOptionsKmin =
+            AnimEncoderOptions.varHandle(int.class, groupElement("kmin"));
+    public static final VarHandle AnimEncoderOptionsKmax =
+            AnimEncoderOptions.varHandle(int.class, groupElement("kmax"));
+    public static final VarHandle AnimEncoderOptionsAllowMixed =
+            AnimEncoderOptions.varHandle(int.class, groupElement("allow_mixed"));
+
+    private LibWebpMux() {
+    }
+
+    // int WebPAnimEncoderOptionsInitInternal(WebPAnimEncoderOptions*, int);
+    private static final MethodHandle AnimEncoderOptionsInitInternal = downcall("WebPAnimEncoderOptionsInitInternal",
+            MethodType.methodType(int.class, MemoryAddress.class, int.class),
+            FunctionDescriptor.of(C_INT, C_POINTER, C_INT));
+
+    /** Should always be called, to initialize a fresh WebPAnimEncoderOptions
+     * structure before modification. Returns false in case of version mismatch.
+     * <pre>int WebPAnimEncoderOptionsInit(WebPAnimEncoderOptions* enc_options);</pre> */
+    public static final MethodHandle AnimEncoderOptionsInit =
+            bind(AnimEncoderOptionsInitInternal, 1, WEBP_MUX_ABI_VERSION);
+
+    // WebPAnimEncoder* WebPAnimEncoderNewInternal(int, int, const WebPAnimEncoderOptions*, int);
+    private static final MethodHandle AnimEncoderNewInternal = downcall("WebPAnimEncoderNewInternal",
+            MethodType.methodType(MemoryAddress.class, // returns WebPAnimEncoder*
+                    int.class, int.class, // canvas width and height
+                    MemoryAddress.class, // const WebPAnimEncoderOptions*, can be NULL
+                    int.class // WEBP_MUX_ABI_VERSION
+            ),
+            FunctionDescriptor.of(C_POINTER, C_INT, C_INT, C_POINTER, C_INT));
+
+    /** Creates and initializes a WebPAnimEncoder object. Returns NULL in case of
+     * memory error or if the options are invalid.
+     * <pre>WebPAnimEncoder* WebPAnimEncoderNew(
+    int width, int height, const WebPAnimEncoderOptions* enc_options);</pre> */
+    public static final MethodHandle AnimEncoderNew = bind(AnimEncoderNewInternal, 3, WEBP_MUX_ABI_VERSION);
+
+    /** Optimize and add the given frame. The frame must be of the canvas size. It is
+     * copied, so it can be reused once this returns. To end the animation, call
+     * this once more with a NULL frame and config, and the timestamp at which the
+     * last frame ends. Returns false in case of error; WebPAnimEncoderGetError()
+     * then has the reason.
+     * <pre>int WebPAnimEncoderAdd(
+    WebPAnimEncoder* enc, struct WebPPicture* frame, int timestamp_ms,
+    const struct WebPConfig* config);</pre> */
+    public static final MethodHandle AnimEncoderAdd = downcall("WebPAnimEncoderAdd",
+            MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class, int.class, MemoryAddress.class),
+            FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER, C_INT, C_POINTER));
+
+    /** Assemble all frames added so far into a WebP bitstream. The bytes of
+     * webp_data are allocated by libwebp, and must be released with WebPFree.
+     * <pre>int WebPAnimEncoderAssemble(WebPAnimEncoder* enc, WebPData* webp_data);</pre> */
+    public static final MethodHandle AnimEncoderAssemble = downcall("WebPAnimEncoderAssemble",
+            MethodType.methodType(int.class, MemoryAddress.class, MemoryAddress.class),
+            FunctionDescriptor.of(C_INT, C_POINTER, C_POINTER));
+
+    /** The error string of the last call to the encoder, or NULL. The string
+     * belongs to the encoder.
+     * <pre>const char* WebPAnimEncoderGetError(WebPAnimEncoder* enc);</pre> */
+    public static final MethodHandle AnimEncoderGetError = downcall("WebPAnimEncoderGetError",
+            MethodType.methodType(MemoryAddress.class, MemoryAddress.class),
+            FunctionDescriptor.of(C_POINTER, C_POINTER));
+
+    /** <pre>void WebPAnimEncoderDelete(WebPAnimEncoder* enc);</pre> */
+    public static final MethodHandle AnimEncoderDelete = downcall("WebPAnimEncoderDelete",
+            MethodType.methodType(void.class, MemoryAddress.class),
+            FunctionDescriptor.ofVoid(C_POINTER));
+
+    // after all of the handles, so it knows whether any was missing
+    static {
+        libWebpMux = complete ? new LibWebpMux() : null;
+        if(complete) LOG.fine("All the mux methods have been loaded.");
+    }
+
+}
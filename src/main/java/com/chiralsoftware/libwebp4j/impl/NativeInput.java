@@ -0,0 +1,118 @@
+package com.chiralsoftware.libwebp4j.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import javax.imageio.IIOException;
+import javax.imageio.stream.ImageInputStream;
+import jdk.incubator.foreign.MemorySegment;
+import static jdk.incubator.foreign.MemorySegment.allocateNative;
+import jdk.incubator.foreign.ResourceScope;
+
+/**
+ * Get reader inputs into native memory, where libwebp can read them. Files are
+ * memory-mapped rather than read. Streams are read in chunks straight into one
+ * native segment, which grows as needed, so a stream never has to be held in a
+ * byte array the size of the whole image. Segments are allocated in the caller's
+ * scope, so closing it releases the memory and unmaps the files.
+ */
+final class NativeInput {
+
+    private NativeInput() {
+        throw new RuntimeException("don't instantiate this");
+    }
+
+    /** The size of the first segment when the length of a stream isn't known */
+    private static final long INITIAL_SIZE = 64 * 1024;
+
+    /** The heap buffer an ImageInputStream is read through, which can only read into the heap */
+    private static final int SCRATCH_SIZE = 64 * 1024;
+
+    /** Map the whole file read-only, until the scope is closed */
+    static MemorySegment map(Path path, ResourceScope scope) throws IOException {
+        return MemorySegment.mapFile(path, 0, Files.size(path), MapMode.READ_ONLY, scope);
+    }
+
+    /** Map the channel's file read-only, from its position to the end. The mapping
+     * stays valid after the channel is closed, and is unmapped by the GC; a channel
+     * has no path, so it can't be mapped into a scope. */
+    static MemorySegment map(FileChannel channel) throws IOException {
+        final long position = channel.position();
+        return MemorySegment.ofByteBuffer(channel.map(MapMode.READ_ONLY, position, channel.size() - position));
+    }
+
+    /** The buffer from its position to its limit. A direct buffer is used as it is;
+     * a heap buffer is copied. The buffer's position isn't changed. */
+    static MemorySegment of(ByteBuffer buffer, ResourceScope scope) {
+        final MemorySegment segment = MemorySegment.ofByteBuffer(buffer.slice());
+        if(buffer.isDirect()) return segment;
+        final MemorySegment copy = allocateNative(segment.byteSize(), scope);
+        copy.copyFrom(segment);
+        return copy;
+    }
+
+    /** Read the rest of a ReadableByteChannel or ImageInputStream into native memory.
+     * @param prefix bytes which were already read from the stream, which come first
+     * @param scope the scope of the result
+     * @throws IIOException if the prefix is empty and the stream has nothing left */
+    static MemorySegment readFully(Object stream, MemorySegment prefix, ResourceScope scope) throws IOException {
+        final long remaining = remaining(stream);
+        // one byte more than the known length, so the end is seen without growing. When
+        // the length is known the buffer is allocated in the caller's scope and returned
+        // as it is; buffers which are grown live in their own scopes and are freed as
+        // soon as they are outgrown, and the last one is copied into the caller's scope.
+        MemorySegment buffer = allocateNative(prefix.byteSize() + (remaining < 0 ? INITIAL_SIZE : remaining + 1),
+                remaining < 0 ? ResourceScope.newConfinedScope() : scope);
+        buffer.copyFrom(prefix);
+        long size = prefix.byteSize();
+        final byte[] scratch = stream instanceof ImageInputStream ? new byte[SCRATCH_SIZE] : null;
+        try {
+            while(true) {
+                if(size == buffer.byteSize()) {
+                    // the length was unknown or wrong; double, so the copying adds up to at most the final size
+                    final MemorySegment bigger = allocateNative(buffer.byteSize() * 2, ResourceScope.newConfinedScope());
+                    bigger.copyFrom(buffer);
+                    if(buffer.scope() != scope) buffer.scope().close();
+                    buffer = bigger;
+                }
+                final int count = read(stream, buffer.asSlice(size), scratch);
+                if(count < 0) break;
+                size += count;
+            }
+            if(size == 0) throw new IIOException("the stream had no data left to read");
+            if(buffer.scope() == scope) return buffer.asSlice(0, size);
+            final MemorySegment result = allocateNative(size, scope);
+            result.copyFrom(buffer.asSlice(0, size));
+            return result;
+        } finally {
+            if(buffer.scope() != scope) buffer.scope().close();
+        }
+    }
+
+    /** Read the next bytes of the stream into the start of the target. Channels read
+     * straight into native memory; an ImageInputStream goes through the scratch array.
+     * @return the number of bytes read, or -1 at the end of the stream */
+    static int read(Object stream, MemorySegment target, byte[] scratch) throws IOException {
+        if(stream instanceof ReadableByteChannel channel)
+            return channel.read(target.asByteBuffer());
+        final ImageInputStream imageInputStream = (ImageInputStream) stream;
+        final int count = imageInputStream.read(scratch, 0, (int) Math.min(scratch.length, target.byteSize()));
+        if(count > 0) target.copyFrom(MemorySegment.ofArray(scratch).asSlice(0, count));
+        return count;
+    }
+
+    /** The number of bytes left in the stream, or -1 if that isn't known */
+    private static long remaining(Object stream) throws IOException {
+        if(stream instanceof SeekableByteChannel channel)
+            return Math.max(channel.size() - channel.position(), 0);
+        if(stream instanceof ImageInputStream imageInputStream && imageInputStream.length() >= 0)
+            return Math.max(imageInputStream.length() - imageInputStream.getStreamPosition(), 0);
+        return -1;
+    }
+
+}
@@ -1,32 +1,53 @@
 package com.chiralsoftware.libwebp4j.impl;
 
+import com.chiralsoftware.libwebp4j.BitstreamFeatures;
+import com.chiralsoftware.libwebp4j.DecoderConfig;
+import com.chiralsoftware.libwebp4j.NativeBufferPool;
+import com.chiralsoftware.libwebp4j.NativeLeakDetector;
+import com.chiralsoftware.libwebp4j.PixelFormat;
+import com.chiralsoftware.libwebp4j.WebpCodec;
+import com.chiralsoftware.libwebp4j.WebpHeader;
+import com.chiralsoftware.libwebp4j.WebpImageReadParam;
+import com.chiralsoftware.libwebp4j.YuvPlanes;
+import com.chiralsoftware.libwebp4j.impl.LibWebp.StatusCode;
+import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.awt.image.WritableRaster;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import static java.util.logging.Level.INFO;
-import static java.util.logging.Level.WARNING;
+import java.util.Set;
 import java.util.logging.Logger;
+import javax.imageio.IIOException;
 import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.spi.ImageReaderSpi;
-import javax.imageio.stream.FileImageInputStream;
-import static jdk.incubator.foreign.CLinker.C_INT;
-import jdk.incubator.foreign.MemoryAccess;
-import jdk.incubator.foreign.MemoryLayout;
+import javax.imageio.stream.ImageInputStream;
 import jdk.incubator.foreign.MemorySegment;
 import static jdk.incubator.foreign.MemorySegment.allocateNative;
-import static jdk.incubator.foreign.ResourceScope.newImplicitScope;
+import jdk.incubator.foreign.ResourceScope;
 
 /**
  * Read a Webp image
@@ -35,59 +56,275 @@ public final class WebpImageReader extends ImageReader {
 
     private static final Logger LOG = Logger.getLogger(WebpImageReader.class.getName());
 
-    private final LibWebp libWebp;
     private int width = -1, height = -1;
+    private boolean hasAlpha = false;
+    private boolean animated = false;
     
     private MemorySegment inputSegment = null;
+    private WebpMetaData metadata = null;
+
+    /** The frames of an animated image, found the first time they are needed */
+    private AnimationIndex animationIndex = null;
+    /** Renders frames in order, which is the fast path for playing an animation */
+    private AnimationDecoder animationDecoder = null;
+    /** Renders any frame starting from its keyframe, for random access */
+    private FrameCompositor frameCompositor = null;
+
+    /** An ImageInputStream or ReadableByteChannel which is read in chunks by readIncremental */
+    private Object streamInput = null;
+    /** Where the stream input started when it was set, so it can be read again.
+     * -1 for a channel which can't seek, which can only be read once. */
+    private long streamStart = -1;
+    /** Whether any of the stream input has been read */
+    private boolean streamRead = false;
+
+    // Small native structs which are kept from one read to the next. Pixel buffers
+    // come from the NativeBufferPool.
+    private MemorySegment configSegment = null;
+    private MemorySegment featuresSegment = null;
+
+    /** Holds the input copy or mapping, the structs and the canvases of the current
+     * input; created when first needed and closed by dispose */
+    private ResourceScope scope = null;
+    private NativeLeakDetector.Tracker tracker = null;
     
     /** This method must be called to release native memory segments.
-     If it is not called the application will leak memory. This is safe to call
+     If it is not called the memory is only freed when the GC collects the reader.
+     Metadata segments from this reader can't be used afterward. This is safe to call
      multiple times */
     @Override
     public void dispose() {
         super.dispose();
         LOG.fine("disposing resources of this reader");
-//        if(inputSegment != null && inputSegment.isAlive()) inputSegment.close();
+        if(animationDecoder != null) animationDecoder.close();
+        if(scope != null) {
+            tracker.close();
+            scope.close();
+        }
+        scope = null;
+        tracker = null;
+        animationDecoder = null;
+        animationIndex = null;
+        frameCompositor = null;
         inputSegment = null;
+        configSegment = featuresSegment = null;
+        metadata = null;
+        streamInput = null;
+        streamStart = -1;
+        streamRead = false;
         width = height = -1;
+        hasAlpha = animated = false;
     }
     
     public WebpImageReader(ImageReaderSpi irspi) {
         super(irspi);
-        this.libWebp = LibWebp.getInstance();
+        // fail now, rather than on the first read, if libwebp isn't installed
+        LibWebp.getInstance();
     }
 
-    /** This should decode a WebP container to see how many frames it contains. For now, always returns 1 */
+    /** The number of frames in an animated image, or 1 for a still image. Animations
+     * read from a stream input aren't buffered, so for those this also returns 1. */
     @Override
     public int getNumImages(boolean allowSearch) throws IOException {
-        LOG.fine("FIXME: always returns 1");
-        return 1;
+        ensureHeader();
+        if(! animated) return 1;
+        bufferInput();
+        return animationIndex().frameCount();
     }
 
+    /** For an animation, all frames have the size of the canvas */
     @Override
     public int getWidth(int imageIndex) throws IOException {
+        ensureHeader();
         if(width < 0) throw new IllegalStateException("this reader is not associated with any image.");
+        checkIndex(imageIndex);
         return width;
     }
 
     @Override
     public int getHeight(int imageIndex) throws IOException {
+        ensureHeader();
         if(height < 0) throw new IllegalStateException("this reader is not associated with any image");
+        checkIndex(imageIndex);
         return height;
     }
 
     @Override
     public Iterator<ImageTypeSpecifier> getImageTypes(int imageIndex) throws IOException {
+        ensureHeader();
         if(height < 0) throw new IllegalStateException("there's no image read");
-        if(imageIndex != 0) throw new IndexOutOfBoundsException("this only supports single frame images");
-        LOG.info("Ok, I need to get the ImageSpecifier for this");
-        final ImageTypeSpecifier imageTypeSpecifier =
-                ImageTypeSpecifier.createInterleaved(ColorSpace.getInstance(ColorSpace.TYPE_RGB), 
-                        new int[] { 0,1,2} ,
-                        DataBuffer.TYPE_BYTE,
-                        true, false);
-        
-        return List.of(imageTypeSpecifier).iterator();
+        checkIndex(imageIndex);
+        return imageTypes().iterator();
+    }
+
+    /** The types we can decode into, starting with the one we use by default.
+     * Any interleaved byte layout of RGB samples which libwebp can write is supported,
+     * and so are TYPE_INT_RGB, TYPE_INT_ARGB and TYPE_INT_BGR, since in memory their
+     * pixels are just bytes in one of those layouts. Animation frames are composited
+     * in RGBA, so that is the only type for them. */
+    private List<ImageTypeSpecifier> imageTypes() {
+        final Set<ImageTypeSpecifier> types = new LinkedHashSet<>();
+        types.add(imageType(pixelFormat()));
+        if(! animated) {
+            for(PixelFormat pixelFormat : PixelFormat.values()) types.add(imageType(pixelFormat));
+            types.add(ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_ARGB));
+            types.add(ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_RGB));
+            types.add(ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_INT_BGR));
+        }
+        return new ArrayList<>(types);
+    }
+
+    private void checkIndex(int imageIndex) throws IOException {
+        // every image has a first frame, and counting the frames of an animation needs the demuxer
+        if(imageIndex == 0) return;
+        final int count = getNumImages(false);
+        if(imageIndex < 0 || imageIndex >= count)
+            throw new IndexOutOfBoundsException("image index must be in [0.." + (count - 1) + "]; it was: " + imageIndex);
+    }
+
+    /** Read the header with WebpHeader, which only looks at the first few dozen bytes
+     * and makes no native calls, so the size and type of an image are known without
+     * decoding it. An ImageInputStream is reset to where it was afterwards. A channel
+     * can't be read without consuming it, so its header is only read with the image. */
+    private void ensureHeader() throws IOException {
+        if(width >= 0) return;
+        final WebpHeader header;
+        if(inputSegment != null) header = WebpHeader.read(inputSegment);
+        else if(streamInput instanceof ImageInputStream imageInputStream) header = WebpHeader.read(imageInputStream);
+        else return;
+        if(header == null) throw new IIOException("the input doesn't have a valid WebP header");
+        width = header.width();
+        height = header.height();
+        hasAlpha = header.hasAlpha();
+        animated = header.hasAnimation();
+    }
+
+    /** The layout we decode into. Images with alpha are decoded as RGBA, and opaque
+     * images as BGR, which is the layout of TYPE_3BYTE_BGR. Animation frames are
+     * always composited as RGBA. */
+    private PixelFormat pixelFormat() {
+        return hasAlpha || animated ? PixelFormat.RGBA : PixelFormat.BGR;
+    }
+
+    /** An image type whose raster holds its samples in exactly the order libwebp writes
+     * them for the given format, so a decoded frame can be copied into the raster in one block */
+    static ImageTypeSpecifier imageType(PixelFormat pixelFormat) {
+        if(pixelFormat == PixelFormat.BGR)
+            return ImageTypeSpecifier.createFromBufferedImageType(BufferedImage.TYPE_3BYTE_BGR);
+        return ImageTypeSpecifier.createInterleaved(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                bandOffsets(pixelFormat), DataBuffer.TYPE_BYTE, pixelFormat.hasAlpha(), false);
+    }
+
+    /** The offsets of the R, G, B and A samples within a pixel of the format */
+    private static int[] bandOffsets(PixelFormat pixelFormat) {
+        return switch(pixelFormat) {
+            case RGB -> new int[] { 0, 1, 2 };
+            case RGBA -> new int[] { 0, 1, 2, 3 };
+            case BGR -> new int[] { 2, 1, 0 };
+            case BGRA -> new int[] { 2, 1, 0, 3 };
+            case ARGB -> new int[] { 1, 2, 3, 0 };
+        };
+    }
+
+    /** The format whose samples are at these offsets, or null if libwebp can't write them */
+    private static PixelFormat interleavedFormat(int[] bandOffsets) {
+        for(PixelFormat pixelFormat : PixelFormat.values())
+            if(Arrays.equals(bandOffsets(pixelFormat), bandOffsets)) return pixelFormat;
+        return null;
+    }
+
+    /** The format of pixels packed into ints with these masks, as the bytes of the ints
+     * are laid out in memory. A 3 band image's unused byte is written as alpha.
+     * @return null if the masks aren't whole bytes in a layout libwebp can write */
+    private static PixelFormat packedFormat(int[] masks) {
+        if(masks.length != 3 && masks.length != 4) return null;
+        final int[] offsets = new int[4];
+        int used = 0;
+        for(int band = 0; band < masks.length; band++) {
+            final int shift = Integer.numberOfTrailingZeros(masks[band]);
+            if(shift % 8 != 0 || masks[band] != 0xff << shift) return null;
+            offsets[band] = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? shift / 8 : 3 - shift / 8;
+            used |= 1 << offsets[band];
+        }
+        if(masks.length == 3) offsets[3] = Integer.numberOfTrailingZeros(~used);
+        return interleavedFormat(offsets);
+    }
+
+    /** Where decoded rows go: a rectangle of a BufferedImage's raster. The raster's
+     * bank is seen as bytes, which are in the byte order of the pixel format.
+     * @param offset the byte offset of the rectangle's top left pixel in the bank
+     * @param stride the bytes from one row of the bank to the next */
+    private record Target(BufferedImage image, PixelFormat pixelFormat, MemorySegment bank, long offset, long stride) {
+
+        /** The bank from the start of the given row of the rectangle */
+        MemorySegment row(int row) {
+            return bank.asSlice(offset + row * stride);
+        }
+
+        /** Copy rows of decoded pixels, which start at the first byte of the decoded
+         * segment, to the top rows of the rectangle */
+        void copyRows(MemorySegment decoded, long decodedStride, int rows, long rowBytes) {
+            if(decodedStride == stride && rowBytes == stride) {
+                row(0).copyFrom(decoded.asSlice(0, rows * stride));
+                return;
+            }
+            for(int row = 0; row < rows; row++)
+                row(row).copyFrom(decoded.asSlice(row * decodedStride, rowBytes));
+        }
+    }
+
+    /** Work out how the pixels of a rectangle of the image's raster are laid out, so
+     * libwebp can decode in that layout and the rows can be copied in without conversion */
+    private static Target target(BufferedImage image, Rectangle rectangle) throws IIOException {
+        final WritableRaster raster = image.getRaster();
+        final DataBuffer dataBuffer = raster.getDataBuffer();
+        final int x = rectangle.x - raster.getSampleModelTranslateX();
+        final int y = rectangle.y - raster.getSampleModelTranslateY();
+        if(dataBuffer.getNumBanks() == 1 && ! image.isAlphaPremultiplied()) {
+            if(raster.getSampleModel() instanceof PixelInterleavedSampleModel sampleModel &&
+                    dataBuffer instanceof DataBufferByte dataBufferByte) {
+                final PixelFormat pixelFormat = interleavedFormat(sampleModel.getBandOffsets());
+                if(pixelFormat != null && sampleModel.getPixelStride() == pixelFormat.bytesPerPixel())
+                    return new Target(image, pixelFormat, MemorySegment.ofArray(dataBufferByte.getData()),
+                            dataBuffer.getOffset() + (long) y * sampleModel.getScanlineStride() +
+                                    (long) x * sampleModel.getPixelStride(), sampleModel.getScanlineStride());
+            }
+            if(raster.getSampleModel() instanceof SinglePixelPackedSampleModel sampleModel &&
+                    dataBuffer instanceof DataBufferInt dataBufferInt) {
+                final PixelFormat pixelFormat = packedFormat(sampleModel.getBitMasks());
+                if(pixelFormat != null)
+                    return new Target(image, pixelFormat, MemorySegment.ofArray(dataBufferInt.getData()),
+                            4L * (dataBuffer.getOffset() + sampleModel.getOffset(x, y)),
+                            4L * sampleModel.getScanlineStride());
+            }
+        }
+        throw new IIOException("can't decode into an image with sample model: " + raster.getSampleModel() +
+                " and color model: " + image.getColorModel());
+    }
+
+    /** The image to decode into, which is the param's destination if it has one, or
+     * else a new image of the param's destination type or of our default type. The
+     * regions are computed as ImageReader.computeRegions does, with the source region
+     * in terms of the image as rendered at the source render size. */
+    private BufferedImage destination(ImageReadParam param, Rectangle sourceRegion, Rectangle destinationRegion)
+            throws IIOException {
+        final Dimension renderSize = renderSize(param);
+        final BufferedImage destination =
+                getDestination(param, imageTypes().iterator(), renderSize.width, renderSize.height);
+        computeRegions(param, renderSize.width, renderSize.height, destination, sourceRegion, destinationRegion);
+        return destination;
+    }
+
+    private Dimension renderSize(ImageReadParam param) {
+        final Dimension renderSize = param != null && param.canSetSourceRenderSize() ? param.getSourceRenderSize() : null;
+        return renderSize == null ? new Dimension(width, height) : renderSize;
+    }
+
+    private final NativeBufferPool pool = NativeBufferPool.getDefault();
+
+    @Override
+    public ImageReadParam getDefaultReadParam() {
+        return new WebpImageReadParam();
     }
 
     @Override
@@ -98,137 +335,419 @@ public final class WebpImageReader extends ImageReader {
 
     @Override
     public IIOMetadata getImageMetadata(int imageIndex) throws IOException {
-        if(imageIndex != 0) throw new IndexOutOfBoundsException("only one frame is supported");
-        return new WebpMetaData();
+        checkIndex(imageIndex);
+        if(isIgnoringMetadata()) return null;
+        // the metadata chunks belong to the file, so every frame shares them. The
+        // chunks can be anywhere in the file, so a stream input is read in first. A
+        // channel which can't seek has nothing left once the image has been read, so
+        // then the metadata is empty.
+        if(metadata == null) {
+            if(streamInput == null || canReadStream()) bufferInput();
+            metadata = new WebpMetaData(inputSegment, inputSegment == null ? null : WebpHeader.read(inputSegment));
+        }
+        return metadata;
     }
     
     /** Read in the image header to get image info */
-    private void readHeader() {
+    private void readHeader() throws IIOException {
         if(inputSegment == null) throw new NullPointerException("can't read the header of null input");
+        final StatusCode status = readFeatures(inputSegment);
+        if(status != StatusCode.VP8_STATUS_OK)
+            throw new IIOException("couldn't read the WebP header: " + status.message());
+    }
 
-        
-        final MemorySegment sizeSegment = 
-                allocateNative(MemoryLayout.structLayout(C_INT.withName("width"), 
-                        C_INT.withName("height")), newImplicitScope());
-        
+    /** Read the bitstream features from the start of a WebP image, which may be incomplete
+     * @return VP8_STATUS_NOT_ENOUGH_DATA if the data doesn't hold the whole header */
+    private StatusCode readFeatures(MemorySegment data) throws IIOException {
+        if(featuresSegment == null)
+            featuresSegment = allocateNative(BitstreamFeatures.BitstreamFeatures, scope());
+        final int status;
         try {
-            // WebPGetInfo(const uint8_t* data, size_t data_size, int* width, int* height)
-            libWebp.GetInfo.invoke(inputSegment.address(), (long) inputSegment.byteSize(), sizeSegment.address(), 
-                    sizeSegment.address().addOffset(4));
+            // WebPGetFeatures(const uint8_t* data, size_t data_size, WebPBitstreamFeatures* features)
+            status = (int) LibWebp.GetFeatures.invokeExact(data.address(), data.byteSize(),
+                    featuresSegment.address());
         } catch (Throwable ex) {
-            LOG.log(WARNING, "oh no!", ex);
+            throw new IIOException("couldn't read the WebP header", ex);
         }
+        if(status != 0) return StatusCode.of(status);
 
-        width = MemoryAccess.getIntAtOffset(sizeSegment, 0);
-        height = MemoryAccess.getIntAtOffset(sizeSegment, 4);
+        final BitstreamFeatures features = new BitstreamFeatures(featuresSegment);
+        LOG.finest("read the features: " + features);
+        width = features.getWidth();
+        height = features.getHeight();
+        hasAlpha = features.hasAlpha();
+        animated = features.hasAnimation();
+        return StatusCode.VP8_STATUS_OK;
     }
 
+    /** Decode straight into the byte order of the image we return, which is the
+     * param's destination if it has one. Only the source region of the param is decoded,
+     * and libwebp scales it to the requested size while decoding. libwebp can't write
+     * into the Java heap, so the pixels go into a native buffer from the pool, and are
+     * then copied into the raster's bank with bulk copies. Decoding into the same
+     * destination again allocates no pixel memory at all. */
     @Override
     public BufferedImage read(int imageIndex, ImageReadParam param) throws IOException {
-        LOG.info("reading from the input stream! ignoring iimageIndex and param for now.");
-        if(imageIndex != 0) 
-            throw new IndexOutOfBoundsException("image index must be 0; it was: " + imageIndex);
-        
+        if(streamInput != null) {
+            ensureHeader();
+            // only an animation has more than one image, and a channel's header
+            // isn't known before it is read
+            if(animated || imageIndex != 0) {
+                bufferInput();
+            } else {
+                final BufferedImage image = readIncremental(param);
+                if(image != null) return image;
+            }
+        }
         if(inputSegment == null) 
             throw new NullPointerException("inputSegment was null! was setInput called?");
         readHeader();
-        LOG.info("Ok i read the header; size is: " + width  + ", " + height);
-        final MemorySegment outputSegment = MemorySegment.allocateNative(width * height * 4, newImplicitScope());
-        
-        // uint8_t* WebPDecodeARGBInto(const uint8_t* data, size_t data_size,
-        //                    uint8_t* output_buffer, int output_buffer_size, int output_stride);
+        if(animated) return readFrame(imageIndex, param);
+        checkIndex(imageIndex);
+        LOG.fine("Ok i read the header; size is: " + width  + ", " + height);
+        final Rectangle sourceRegion = new Rectangle(), destinationRegion = new Rectangle();
+        final BufferedImage destination = destination(param, sourceRegion, destinationRegion);
+        final Target target = target(destination, destinationRegion);
+        final DecodeRegion region = decodeRegion(param, sourceRegion, destinationRegion);
+        final int stride = target.pixelFormat().minStride(region.width());
+        try(NativeBufferPool.Buffer output = pool.acquire((long) stride * region.height())) {
+            final MemorySegment outputSegment = output.segment();
+            final MemorySegment configSegment = decoderConfig(param, target.pixelFormat().mode(), region);
+            new DecoderConfig(configSegment).setExternalRgbaOutput(outputSegment.address(), stride,
+                    outputSegment.byteSize());
+
+            final int status;
+            try {
+                status = (int) LibWebp.Decode.invokeExact(inputSegment.address(), inputSegment.byteSize(),
+                        configSegment.address());
+            } catch (Throwable ex) {
+                throw new IIOException("couldn't decode the image", ex);
+            }
+            if(status != 0)
+                throw new IIOException("libwebp failed to decode the image: " + StatusCode.of(status).message());
+
+            target.copyRows(outputSegment, stride, region.height(), stride);
+        }
+        return destination;
+    }
+
+    /** Decode a still image to planar YUV 4:2:0 instead of RGB, with
+     * WebpCodec.decodeYuv. Alpha is not decoded.
+     * The param's source region, subsampling, render size and decoding options are
+     * used; its destination is not. Cropping snaps the left and top to even values.
+     * @param param the read param, or null to decode the whole image
+     * @return newly allocated planes, which are freed when they are no longer reachable */
+    public YuvPlanes readYuv(int imageIndex, ImageReadParam param) throws IOException {
+        bufferInput();
+        if(inputSegment == null) throw new IllegalStateException("no input has been set");
+        readHeader();
+        if(animated) throw new IIOException("YUV can't be read from animated images");
+        checkIndex(imageIndex);
+        final Rectangle sourceRegion = new Rectangle(), destinationRegion = new Rectangle();
+        final Dimension renderSize = renderSize(param);
+        computeRegions(param, renderSize.width, renderSize.height, null, sourceRegion, destinationRegion);
+        final DecodeRegion region = decodeRegion(param, sourceRegion, destinationRegion);
+        return WebpCodec.getInstance().decodeYuv(inputSegment,
+                new Rectangle(region.cropX(), region.cropY(), region.cropWidth(), region.cropHeight()),
+                region.width(), region.height(), param instanceof WebpImageReadParam webpParam ? webpParam : null);
+    }
+
+    /** Render one frame of an animation at the size of the canvas. The param's decoding
+     * options and its RGBA destination are used, but its region, subsampling and
+     * render size are not.
+     * Reading the frames in order is fastest: WebPAnimDecoder renders each frame on top
+     * of the one before. Any other frame is rendered by the FrameCompositor, which
+     * starts from the nearest keyframe before it rather than from the first frame. */
+    private BufferedImage readFrame(int imageIndex, ImageReadParam param) throws IOException {
+        final AnimationIndex index = animationIndex();
+        checkIndex(imageIndex);
+        processImageStarted(imageIndex);
+        if(animationDecoder == null)
+            animationDecoder = new AnimationDecoder(inputSegment, width, height,
+                    param instanceof WebpImageReadParam webpParam && webpParam.getUseThreads());
+        final int keyframe = index.keyframeAtOrBefore(imageIndex);
+        // going back to the first frame is only a reset for the animation decoder
+        if(imageIndex < animationDecoder.nextFrame() && keyframe == 0) animationDecoder.reset();
+        final MemorySegment canvas;
+        if(imageIndex >= animationDecoder.nextFrame() && keyframe <= animationDecoder.nextFrame()) {
+            while(animationDecoder.nextFrame() < imageIndex) animationDecoder.next();
+            canvas = animationDecoder.next();
+        } else {
+            if(frameCompositor == null) frameCompositor = new FrameCompositor(index, inputSegment, scope());
+            canvas = frameCompositor.render(imageIndex);
+        }
+
+        final BufferedImage destination = param != null && param.getDestination() != null ?
+                param.getDestination() : imageType(PixelFormat.RGBA).createBufferedImage(width, height);
+        final Rectangle rectangle = new Rectangle(0, 0, width, height).intersection(
+                new Rectangle(0, 0, destination.getWidth(), destination.getHeight()));
+        final Target target = target(destination, rectangle);
+        if(target.pixelFormat() != PixelFormat.RGBA)
+            throw new IIOException("animation frames can only be read into RGBA images");
+        target.copyRows(canvas, PixelFormat.RGBA.minStride(width), rectangle.height,
+                PixelFormat.RGBA.minStride(rectangle.width));
+        processImageComplete();
+        return destination;
+    }
+
+    private AnimationIndex animationIndex() throws IIOException {
+        if(animationIndex == null) {
+            checkDemux();
+            animationIndex = AnimationIndex.build(inputSegment);
+        }
+        return animationIndex;
+    }
+
+    private static void checkDemux() throws IIOException {
+        if(LibWebpDemux.getInstance() == null)
+            throw new IIOException("reading animated WebP images needs libwebpdemux, which couldn't be loaded");
+    }
+
+    /** The part of the image to decode, and the size to decode it at, in terms of
+     * libwebp's options, which crop first and then scale the cropped area. */
+    private record DecodeRegion(int cropX, int cropY, int cropWidth, int cropHeight, int width, int height) { }
+
+    /** Map the source region, which is in terms of the image as rendered at the source
+     * render size, and the destination region onto libwebp's crop and scale options.
+     * The regions come from computeRegions, so the subsampling is already applied.
+     * libwebp scales by resampling rather than by dropping pixels, so subsampling
+     * gives a smoother result than picking every nth pixel would. */
+    private DecodeRegion decodeRegion(ImageReadParam param, Rectangle region, Rectangle destinationRegion) {
+        final Dimension renderSize = renderSize(param);
+        final int renderWidth = renderSize.width;
+        final int renderHeight = renderSize.height;
+        // back to the pixels of the stored image, rounding outward
+        final int cropX = (int) ((long) region.x * width / renderWidth);
+        final int cropY = (int) ((long) region.y * height / renderHeight);
+        final int cropRight = (int) Math.min(width,
+                ((long) (region.x + region.width) * width + renderWidth - 1) / renderWidth);
+        final int cropBottom = (int) Math.min(height,
+                ((long) (region.y + region.height) * height + renderHeight - 1) / renderHeight);
+        return new DecodeRegion(cropX, cropY, cropRight - cropX, cropBottom - cropY,
+                destinationRegion.width, destinationRegion.height);
+    }
+
+    /** Allocate and initialize a WebPDecoderConfig which decodes the region into the format,
+     * with the decoding options of the param if it is a WebpImageReadParam */
+    private MemorySegment decoderConfig(ImageReadParam param, int colorspace, DecodeRegion region)
+            throws IIOException {
+        if(configSegment == null) configSegment = allocateNative(DecoderConfig.DecoderConfig, scope());
+        final int result;
         try {
-            libWebp.DecodeARGBInto.invoke(inputSegment.address(), (long) inputSegment.byteSize(),
-                outputSegment.address(), outputSegment.byteSize(), width * 4);
+            result = (int) LibWebp.InitDecoderConfig.invokeExact(configSegment.address());
         } catch (Throwable ex) {
-            LOG.log(WARNING, "oh no!", ex);
-        }
-        // now we can read the decoded bytes into a raster
-        final BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
-        final WritableRaster writableRaster = bufferedImage.getRaster();
-        final DataBuffer dataBuffer = writableRaster.getDataBuffer();
-        LOG.finest("cool, I have a databuffer: "+ dataBuffer.getClass());
-        LOG.finest("It has properties: size="+ dataBuffer.getSize() + ", banks=" + dataBuffer.getNumBanks());
-        final DataBufferByte dataBufferByte = (DataBufferByte) dataBuffer;
-        final byte[] bank1 = dataBufferByte.getData();
-        LOG.finest("I got bank1, size is: " + bank1.length);
-        final byte[] outputByteArray = outputSegment.toByteArray();
-        LOG.fine("the outputByteArray size is: "+ outputByteArray.length);
-        for(int i = 0; i < bank1.length / 4; i++) { 
-            bank1[i * 4 + 0] = outputByteArray[i * 4 + 0]; // A
-            bank1[i * 4 + 1] = outputByteArray[i * 4 + 3]; // B
-            bank1[i * 4 + 2] = outputByteArray[i * 4 + 2]; // G
-            bank1[i * 4 + 3] = outputByteArray[i * 4 + 1]; // R
-        }
-        return bufferedImage;
+            throw new IIOException("couldn't initialize the decoder config", ex);
+        }
+        if(result != 1)
+            throw new IIOException("couldn't initialize the decoder config: " + result);
+        final DecoderConfig decoderConfig = new DecoderConfig(configSegment);
+        decoderConfig.setOutputColorspace(colorspace);
+        if(param instanceof WebpImageReadParam webpParam) webpParam.applyTo(decoderConfig);
+        if(region.cropWidth() != width || region.cropHeight() != height) {
+            decoderConfig.setUseCropping(1);
+            decoderConfig.setCropLeft(region.cropX());
+            decoderConfig.setCropTop(region.cropY());
+            decoderConfig.setCropWidth(region.cropWidth());
+            decoderConfig.setCropHeight(region.cropHeight());
+        }
+        if(region.width() != region.cropWidth() || region.height() != region.cropHeight()) {
+            decoderConfig.setUseScaling(1);
+            decoderConfig.setScaledWidth(region.width());
+            decoderConfig.setScaledHeight(region.height());
+        }
+        return configSegment;
     }
     
-    @Override
-    public void setInput(Object input) {
-        LOG.info("I got called with an input object: " + input.getClass().getName());
+    /** Decode a stream input chunk by chunk, so decoding overlaps with reading. Each time
+     * more rows are complete they are copied into the image and reported to the
+     * IIOReadUpdateListeners, so callers can use the top of the image before the
+     * rest of it has arrived.
+     * @return the image, or null if the stream turned out to be an animation, in which
+     * case it has been read into inputSegment */
+    private BufferedImage readIncremental(ImageReadParam param) throws IOException {
+        startStreamRead();
+        final int chunkSize = param instanceof WebpImageReadParam webpParam ?
+                webpParam.getChunkSize() : WebpImageReadParam.DEFAULT_CHUNK_SIZE;
+        final byte[] heapChunk = streamInput instanceof ImageInputStream ? new byte[chunkSize] : null;
+
+        // the features decide the output layout, so they have to be known before the
+        // decoder is created. They are almost always in the first chunk.
+        NativeBufferPool.Buffer head = pool.acquire(chunkSize);
+        try {
+            long headSize = 0;
+            while(true) {
+                if(headSize == head.segment().byteSize()) {
+                    final NativeBufferPool.Buffer bigger = pool.acquire(head.segment().byteSize() * 2);
+                    bigger.segment().copyFrom(head.segment());
+                    head.close();
+                    head = bigger;
+                }
+                final int count = NativeInput.read(streamInput, head.segment().asSlice(headSize), heapChunk);
+                if(count < 0) throw new IIOException("the stream ended before the WebP header was complete");
+                headSize += count;
+                final StatusCode status = readFeatures(head.segment().asSlice(0, headSize));
+                if(status == StatusCode.VP8_STATUS_OK) break;
+                if(status != StatusCode.VP8_STATUS_NOT_ENOUGH_DATA)
+                    throw new IIOException("couldn't read the WebP header: " + status.message());
+            }
+            if(animated) {
+                // frames need random access to the whole file, so the rest of it is read in
+                inputSegment = NativeInput.readFully(streamInput, head.segment().asSlice(0, headSize), scope());
+                streamInput = null;
+                return null;
+            }
+
+            final Rectangle sourceRegion = new Rectangle(), destinationRegion = new Rectangle();
+            final BufferedImage image = destination(param, sourceRegion, destinationRegion);
+            final Target target = target(image, destinationRegion);
+            final PixelFormat pixelFormat = target.pixelFormat();
+            final DecodeRegion region = decodeRegion(param, sourceRegion, destinationRegion);
+            final int[] bands = new int[image.getSampleModel().getNumBands()];
+            for(int i = 0; i < bands.length; i++) bands[i] = i;
+
+            processImageStarted(0);
+            processPassStarted(image, 0, 0, 0, destinationRegion.x, destinationRegion.y, 1, 1, bands);
+            // WebPIAppend copies what it is given, so the chunk buffer is reused for every read
+            try(IncrementalDecoder decoder =
+                    new IncrementalDecoder(pixelFormat, decoderConfig(param, pixelFormat.mode(), region));
+                    NativeBufferPool.Buffer chunk = pool.acquire(chunkSize)) {
+                StatusCode status = decoder.append(head.segment().asSlice(0, headSize));
+                head.close();
+                int copiedRows = 0;
+                while(true) {
+                    final int decodedRows = decoder.decodedRows();
+                    if(decodedRows > copiedRows) {
+                        decoder.copyRows(copiedRows, decodedRows, target.row(copiedRows), (int) target.stride());
+                        processImageUpdate(image, destinationRegion.x, destinationRegion.y + copiedRows,
+                                region.width(), decodedRows - copiedRows, 1, 1, bands);
+                        processImageProgress(100f * decodedRows / region.height());
+                        copiedRows = decodedRows;
+                    }
+                    if(status == StatusCode.VP8_STATUS_OK) break;
+                    if(abortRequested()) {
+                        processReadAborted();
+                        return image;
+                    }
+                    final int count = NativeInput.read(streamInput, chunk.segment(), heapChunk);
+                    if(count < 0)
+                        throw new IIOException("the stream ended before the image was complete; " +
+                                copiedRows + " of " + region.height() + " rows were decoded");
+                    if(count > 0) status = decoder.append(chunk.segment().asSlice(0, count));
+                }
+            }
+            processPassComplete(image);
+            processImageComplete();
+            return image;
+        } finally {
+            head.close();
+        }
     }
-    
+
+    /** Read the rest of a stream input into native memory, for the things which need
+     * the whole file: animations, metadata and YUV. After this the input is treated
+     * like a byte array input. Does nothing if the input isn't a stream. */
+    private void bufferInput() throws IOException {
+        if(streamInput == null) return;
+        startStreamRead();
+        inputSegment = NativeInput.readFully(streamInput, MemorySegment.ofArray(new byte[0]), scope());
+        streamInput = null;
+    }
+
+    /** Called before the stream input is read. The first read starts where the stream
+     * was when it was set, and later reads seek back there, so the image can be read
+     * more than once.
+     * @throws IllegalStateException if the input is a channel which can't seek, and it
+     * has already been read */
+    private void startStreamRead() throws IOException {
+        if(! canReadStream())
+            throw new IllegalStateException("the input channel has already been read and can't seek back; " +
+                    "set the input again, or use a seekable input such as an ImageInputStream");
+        if(streamRead) {
+            if(streamInput instanceof ImageInputStream imageInputStream) imageInputStream.seek(streamStart);
+            else if(streamInput instanceof SeekableByteChannel channel) channel.position(streamStart);
+        }
+        streamRead = true;
+    }
+
+    /** @return false if the stream input is a channel which can't seek and has already been read */
+    private boolean canReadStream() {
+        return ! streamRead || streamStart >= 0;
+    }
+
+    /** The scope of this reader's native memory, which lasts until dispose. If the
+     * reader is never disposed, the memory is freed when the GC collects it. */
+    private ResourceScope scope() {
+        if(scope == null) {
+            scope = LibWebp.newScope();
+            tracker = NativeLeakDetector.track(this, "WebpImageReader");
+        }
+        return scope;
+    }
+
+    /** Foreign code can't access heap memory, so a byte array must be copied
+     * into a native segment before libwebp can read it */
+    private MemorySegment copyToNative(byte[] ba) {
+        final MemorySegment segment = allocateNative(ba.length, scope());
+        segment.copyFrom(MemorySegment.ofArray(ba));
+        return segment;
+    }
+
+    /** The two shorter setInput methods in ImageReader both delegate to this one.
+     * A byte[], or a ByteBuffer from its position to its limit, is the whole file. A
+     * direct ByteBuffer is used where it is; a byte[] or heap ByteBuffer is copied to
+     * native memory. A File, Path or FileInputStream is memory-mapped. An
+     * ImageInputStream, ReadableByteChannel or InputStream is read as it is decoded,
+     * from its current position, and is only read into native memory all at once
+     * when an animation, the metadata or YUV is read. An ImageInputStream or
+     * SeekableByteChannel seeks back to that position to be read again; other
+     * channels and InputStreams can only be read once. */
     @Override
     public void setInput(Object input, boolean seekForwardOnly, boolean ignoreMetadata) {
         super.setInput(input, seekForwardOnly, ignoreMetadata);
-        LOG.info("I got called, with ignoreMetaData = " + ignoreMetadata);
+        LOG.fine("setting input, with ignoreMetaData = " + ignoreMetadata);
         if(input == null) throw new NullPointerException("can't set input to null; call dispose() if you wnat to dispose this.");
-        if(inputSegment != null) 
+        if(inputSegment != null || streamInput != null) 
             throw new IllegalStateException("call dispose() first!");
         
         if (input instanceof byte[] ba) {
-            inputSegment = MemorySegment.ofArray(ba);
+            inputSegment = copyToNative(ba);
             return;
         }
-        if(input instanceof FileInputStream fis) {
-            // map this into memory to avoid copying
-            final FileChannel fc = fis.getChannel();
-            try {
-                final MappedByteBuffer mappedByteBuffer = fc.map(MapMode.READ_ONLY, 0, fc.size());
-                inputSegment = MemorySegment.ofByteBuffer(mappedByteBuffer);
-            } catch (IOException ex) {
-                LOG.log(INFO, "couldn't map file", ex);
-            }
-        }
-        if(input instanceof FileImageInputStream fiis) {
-            LOG.info("got a FileImageInputStream it is of type: " + fiis.getClass().getName());
-            // unfortunately this is very inefficient - we have to load
-            // the whole thing into a byte array
-            final byte[] ba = new byte[(int)fiis.length()];
-            inputSegment = MemorySegment.ofArray(ba);
+        if(input instanceof ByteBuffer byteBuffer) {
+            inputSegment = NativeInput.of(byteBuffer, scope());
             return;
         }
-        
-        throw new IllegalArgumentException("Unknown input type: " + input.getClass().getName());
-    }
-
-    @Override
-    public void setInput(Object input, boolean isStreamable) {
-        super.setInput(input, isStreamable);
-        LOG.finest("calling set input with this input object: " + input.getClass().getName());
-        if(input == null) throw new NullPointerException("can't set input to null; call dispose() if you wnat to dispose this.");
-        if(inputSegment != null) 
-            throw new IllegalStateException("call dispose() first!");
-        
-        if (input instanceof byte[] ba) {
-//            inputSegment = MemorySegment.allocateNative(ba.length, newImplicitScope());
-            inputSegment = MemorySegment.ofArray(ba);
-
-            // fixme - we shouldn't have to copy bytes
-//            final ByteBuffer bb = inputSegment.asByteBuffer();
-//            bb.put(ba);
-
-            return;
+        try {
+            // files are mapped rather than read
+            if(input instanceof File file) {
+                inputSegment = NativeInput.map(file.toPath(), scope());
+                return;
+            }
+            if(input instanceof Path path) {
+                inputSegment = NativeInput.map(path, scope());
+                return;
+            }
+            if(input instanceof FileInputStream fis) {
+                inputSegment = NativeInput.map(fis.getChannel());
+                return;
+            }
+        } catch(IOException ioe) {
+            throw new UncheckedIOException("couldn't map the input file", ioe);
         }
-        if(input instanceof FileInputStream fiis) {
-            // map this into memory to avoid copying
-            final FileChannel fc = fiis.getChannel();
+        if(input instanceof ImageInputStream || input instanceof ReadableByteChannel) {
+            // streams are decoded incrementally as the data is read; see readIncremental
+            streamInput = input;
             try {
-                final MappedByteBuffer mappedByteBuffer = fc.map(MapMode.READ_ONLY, 0, fc.size());
-                inputSegment = MemorySegment.ofByteBuffer(mappedByteBuffer);
-            } catch (IOException ex) {
-                LOG.log(INFO, "couldn't map file", ex);
+                if(input instanceof ImageInputStream imageInputStream) streamStart = imageInputStream.getStreamPosition();
+                else if(input instanceof SeekableByteChannel channel) streamStart = channel.position();
+            } catch(IOException ioe) {
+                throw new UncheckedIOException("couldn't get the position of the input", ioe);
             }
+            return;
+        }
+        if(input instanceof InputStream inputStream) {
+            streamInput = Channels.newChannel(inputStream);
+            return;
         }
         
         throw new IllegalArgumentException("Unknown input type: " + input.getClass().getName());
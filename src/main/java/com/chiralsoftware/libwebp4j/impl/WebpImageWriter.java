@@ -1,31 +1,25 @@
 package com.chiralsoftware.libwebp4j.impl;
 
 import com.chiralsoftware.libwebp4j.Config;
+import com.chiralsoftware.libwebp4j.EncodeAbortedException;
+import com.chiralsoftware.libwebp4j.EncodeStats;
 import com.chiralsoftware.libwebp4j.Picture;
+import com.chiralsoftware.libwebp4j.WebpImageWriteParam;
 import com.chiralsoftware.libwebp4j.WebpWriterSpi;
-import static com.chiralsoftware.libwebp4j.impl.WebpUtils.colorSpaceType;
-import static java.awt.color.ColorSpace.TYPE_RGB;
-import java.awt.image.ColorModel;
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
 import java.awt.image.ComponentColorModel;
-import java.awt.image.ComponentSampleModel;
-import java.awt.image.DataBuffer;
-import java.awt.image.DataBufferByte;
-import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.lang.invoke.MethodHandle;
-import java.lang.invoke.MethodHandles;
-import static java.lang.invoke.MethodHandles.insertArguments;
-import java.lang.invoke.MethodType;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
-import java.util.Arrays;
-import static java.util.logging.Level.WARNING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 import java.util.logging.Logger;
 import javax.imageio.IIOException;
 import javax.imageio.IIOImage;
@@ -35,27 +29,21 @@ import javax.imageio.ImageWriter;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.stream.FileImageOutputStream;
 import javax.imageio.stream.ImageOutputStream;
-import jdk.incubator.foreign.CLinker;
-import static jdk.incubator.foreign.CLinker.C_INT;
-import static jdk.incubator.foreign.CLinker.C_POINTER;
-import jdk.incubator.foreign.FunctionDescriptor;
-import jdk.incubator.foreign.MemoryAddress;
 import jdk.incubator.foreign.MemorySegment;
-import static jdk.incubator.foreign.MemorySegment.allocateNative;
-import static jdk.incubator.foreign.ResourceScope.newImplicitScope;
 
 /**
- * Write a BufferedImage to a webp format
+ * Write a BufferedImage to a webp format. The output can be an ImageOutputStream,
+ * OutputStream, WritableByteChannel, File or Path, or a byte[] or MemorySegment which
+ * the file is copied into, in which case getEncodedSize() tells how much of it was used.
  */
 public final class WebpImageWriter extends ImageWriter {
 
     private static final Logger LOG = Logger.getLogger(WebpImageWriter.class.getName());
     
-    private final LibWebp libWebp;
-    
     public WebpImageWriter(WebpWriterSpi webpWriterSpi) {
         super(webpWriterSpi);
-        libWebp = LibWebp.getInstance();
+        // fail now, rather than on the first write, if libwebp isn't installed
+        LibWebp.getInstance();
     }
 
     @Override
@@ -78,139 +66,238 @@ public final class WebpImageWriter extends ImageWriter {
         throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
     }
 
-    /** We are ignoring the ImageWriterParam for now */    
+    @Override
+    public ImageWriteParam getDefaultWriteParam() {
+        return new WebpImageWriteParam(getLocale());
+    }
+
+    /** Write a still image. The compression settings of the param are used, and so
+     * are the encoder settings if it is a WebpImageWriteParam.
+     * The image is encoded with the calling thread's EncoderSession, which collects the
+     * file in native memory with libwebp's WebPMemoryWriter, with no calls back into
+     * Java, and then written to the output in one bulk transfer.
+     * A WebpImageWriteParam can ask for streaming instead.
+     * <p>
+     * When progress listeners are registered, they hear libwebp's progress reports, and
+     * abort() stops the encode, after which nothing more is written. A
+     * WebpImageWriteParam's time limit, cancellation token and interruptibility stop it
+     * with an EncodeAbortedException. */
     @Override
     public void write(IIOMetadata streamMetadata, IIOImage image, ImageWriteParam param) throws IOException {
+        if(getOutput() == null) throw new IllegalStateException("setOutput(output) has not been called");
         final RenderedImage renderedImage = image.getRenderedImage();
-        LOG.info("the sample model is: " + renderedImage.getSampleModel() + 
-                ", which is class: " + renderedImage.getSampleModel().getClass());
-        if(! (renderedImage.getSampleModel() instanceof ComponentSampleModel)) {
-            throw new IIOException("sample model was of type: " + renderedImage.getSampleModel().getClass() + 
-                    ", but this writer can only support type: " + ComponentSampleModel.class);
+        final EncoderSession session = EncoderSession.forCurrentThread();
+        lastStats = null;
+        clearAbortRequest();
+        final boolean streaming = param instanceof WebpImageWriteParam webpParam && webpParam.isStreaming() &&
+                ! (getOutput() instanceof byte[]) && ! (getOutput() instanceof MemorySegment);
+        processImageStarted(0);
+        // the hook costs an upcall per report, so it is only installed for someone who listens
+        if(progressListeners != null) session.setProgressListener(percent -> {
+            processImageProgress(percent);
+            return ! abortRequested();
+        });
+        try {
+            if(streaming) {
+                writeStreaming(session, renderedImage, param);
+            } else {
+                writeOutput(session.encode(renderedImage, param));
+            }
+        } catch(EncodeAbortedException eae) {
+            if(eae.getReason() != EncodeAbortedException.Reason.ABORTED) throw eae;
+            processWriteAborted();
+            return;
+        } finally {
+            session.setProgressListener(null);
         }
-        final ComponentSampleModel sampleModel = (ComponentSampleModel) renderedImage.getSampleModel();
-        if(sampleModel.getNumBands() > 4 || sampleModel.getNumBands() < 3) 
-            throw new IIOException("sampleModel.getNumBands() must be 3 or 4; it was: " +
-                    sampleModel.getNumBands());
-        LOG.finest("Band offsets: " + Arrays.toString(sampleModel.getBandOffsets()));
+        lastStats = session.getLastStats();
+        processImageComplete();
+    }
 
-        final ColorModel colorModel = renderedImage.getColorModel();
-        final boolean hasAlpha = colorModel.hasAlpha();
-        if(hasAlpha && sampleModel.getNumBands() != 4) 
-            throw new IIOException("the colorModel has alpha, but the number of bands is: " +
-                    sampleModel.getNumBands() + ". it should be 4");
-        if(! (colorModel instanceof ComponentColorModel)) 
-            throw new IIOException("This writer expects a ComponentColorModel");
-        
-        LOG.finest("The colormodel is: " + colorModel + " which is class: " + 
-                colorModel.getClass() + " and color space type: " + 
-                colorSpaceType(colorModel.getColorSpace().getType()));
-        if(renderedImage.getColorModel().getColorSpace().getType() != TYPE_RGB) {
-            final int intType = renderedImage.getColorModel().getColorSpace().getType();
-            throw new IIOException("The color type was: " + intType + " (" + colorSpaceType(intType) + 
-                    "), but this writer only processes " + colorSpaceType(TYPE_RGB));
+    /** The size of the last file written, in bytes, or -1 if none has been. With a byte[]
+     * or MemorySegment output, this is how much of it holds the file. */
+    public long getEncodedSize() {
+        return encodedSize;
+    }
+
+    private long encodedSize = -1;
+
+    /** The stats of the last still image written, if its param was a
+     * WebpImageWriteParam which collects them, or else null */
+    public EncodeStats getLastStats() {
+        return lastStats;
+    }
+
+    private EncodeStats lastStats = null;
+
+    /** Encode with libwebp calling back into Java for every chunk of the file, which is
+     * written to the output as it comes */
+    private void writeStreaming(EncoderSession session, RenderedImage renderedImage, ImageWriteParam param)
+            throws IOException {
+        final Object output = getOutput();
+        if(output instanceof OutputStream || output instanceof ImageOutputStream) {
+            encodedSize = session.encode(renderedImage, param, output);
+            return;
         }
-        
-        final Raster raster = renderedImage.getData();
-        final DataBuffer dataBuffer = raster.getDataBuffer();
-        final DataBufferByte dataBufferByte = (DataBufferByte) dataBuffer;
-        LOG.finer("it has this many banks: " + dataBufferByte.getNumBanks());
-        if(dataBufferByte.getNumBanks() != 1) 
-            throw new IIOException("the dataBuffer contained: " + dataBufferByte.getNumBanks() + 
-                    " banks, but this writer expects 1 bank");
-        
-        final byte[] bytes = dataBufferByte.getData();
-        // these bytes must be copied. Foreign code can't access heap memory:
-        // https://stackoverflow.com/questions/69521289/jep-412-pass-a-on-heap-byte-array-to-native-code-getting-unsupportedoperatione
-        final MemorySegment copied = MemorySegment.allocateNative(bytes.length, newImplicitScope());
-        copied.asByteBuffer().put(bytes);
-        final MemorySegment configSegment =  allocateNative(Config.Config, newImplicitScope());
+        final WritableByteChannel channel = getOutputAsChannel();
         try {
-            int result = (Integer) libWebp.ConfigInit.invoke(configSegment.address());
-            if(result != 1) 
-                throw new IIOException("couldn't initialize the config segment: " + result);
-            final Config myConfig = new Config(configSegment);
-            LOG.fine("here is the config string: " + myConfig);
-            final MemorySegment pictureSegment =
-                    // implicit scope will be handled by the GC
-                    allocateNative(Picture.Picture, newImplicitScope());
-            result = (Integer) libWebp.PictureInit.invoke(pictureSegment.address());
-            if(result != 1) 
-                throw new IIOException("couldn't initialize Picture object: " +result);
-            
-            final Picture picture = new Picture(pictureSegment);
-            libWebp.PictureInit.invoke(pictureSegment.address());
-            picture.setUseArgb(renderedImage.getColorModel().hasAlpha() ? 1 : 0);
-            picture.setWidth(renderedImage.getWidth());
-            picture.setHeight(renderedImage.getHeight());
-            result = (Integer) libWebp.PictureAlloc.invoke(pictureSegment.address());
-            if(result != 1)
-                throw new IIOException("picture alloc failed!");
-            // which way we import data depends:
-            // does it have alpha or not
-            // three or four bands
-            // RGB or BGR
-            final MethodHandle importer =
-                    switch(ImportType.findType(sampleModel.getBandOffsets(), hasAlpha)) {
-                        case ABGR -> libWebp.PictureImportBGRA;
-                        case BGR -> libWebp.PictureImportBGR;
-                        case BGRX -> libWebp.PictureImportBGRX;
-                        case RGB -> libWebp.PictureImportRGB;
-                        case RGBA -> libWebp.PictureImportRGBA;
-                        case RGBX -> libWebp.PictureImportRGBX;
-                        default -> null;
-                    };
-            if(importer == null)
-                throw new IIOException("couldn't find an importer for band offsets: " +  
-                        Arrays.toString(sampleModel.getBandOffsets()) + " and alpha: "+ hasAlpha);
-            result = (Integer) importer.invoke(pictureSegment.address(), copied.address(), 
-                    renderedImage.getWidth() * sampleModel.getNumBands());
-            LOG.info("ok we just did an invoke, result is: " + result);
-            // now we should do an upcall !!!
+            encodedSize = session.encode(renderedImage, param, channel);
+        } finally {
+            // a channel we opened for a File or Path is ours to close
+            if(! (output instanceof WritableByteChannel)) channel.close();
+        }
+    }
 
-            final MethodHandle writerBound;
+    // Animations. The state of the sequence in progress, between prepareWriteSequence()
+    // and endWriteSequence(). The encoder is created with the first frame, because
+    // WebPAnimEncoder needs the canvas size up front.
+    private boolean sequencePrepared = false;
+    private IIOMetadata sequenceStreamMetadata = null;
+    private AnimationEncoder animationEncoder = null;
+    private GifFrameCanvas gifFrameCanvas = null;
+    private Config sequenceConfig = null;
+    private Picture sequencePicture = null;
+    private int canvasWidth, canvasHeight;
+    private int sequenceTimestamp = 0;
 
-            if(getOutput() instanceof WritableByteChannel || getOutput() instanceof File || getOutput() instanceof Path) {
-                 final MethodHandle writerMH = MethodHandles.lookup().findStatic(WebpImageWriter.class, "myChannelWriter", 
-                            MethodType.methodType(int.class, 
-                                    WritableByteChannel.class, MemoryAddress.class, int.class, MemoryAddress.class));
-                 writerBound = insertArguments(writerMH, 0, getOutputAsChannel());
-                 LOG.info("got a writer bound - channel writer");
-            } else if(getOutput() instanceof OutputStream os) {
-                 final MethodHandle writerMH = MethodHandles.lookup().findStatic(WebpImageWriter.class, "myOutputStreamWriter", 
-                            MethodType.methodType(int.class, 
-                                    OutputStream.class, MemoryAddress.class, int.class, MemoryAddress.class));
-                 writerBound = insertArguments(writerMH, 0, os);
-                 LOG.info("got a writer bound - OutputStreamWriter");
-            } else if(getOutput() instanceof ImageOutputStream ios) {
-                 final MethodHandle writerMH = MethodHandles.lookup().findStatic(WebpImageWriter.class, 
-                         "myImageOutputStreamWriter", 
-                            MethodType.methodType(int.class, 
-                                    ImageOutputStream.class, MemoryAddress.class, int.class, MemoryAddress.class));
-                 writerBound = insertArguments(writerMH, 0, ios);
-                 LOG.info("got a writer bound - ImageOutputStreamwriter");
-            } else {
-                throw new IOException("the output class was: " + getOutput().getClass() + " is not supported.");
-            }
+    /** Animations are written with libwebpmux, which is optional */
+    @Override
+    public boolean canWriteSequence() {
+        return LibWebpMux.getInstance() != null;
+    }
+
+    /** Start an animation. If the stream metadata comes from the GIF reader, its
+     * logical screen size is used as the canvas size; otherwise the canvas is the size
+     * of the first frame. */
+    @Override
+    public void prepareWriteSequence(IIOMetadata streamMetadata) throws IOException {
+        if(getOutput() == null) throw new IllegalStateException("setOutput(output) has not been called");
+        if(! canWriteSequence())
+            throw new UnsupportedOperationException("writing animations needs libwebpmux, which couldn't be loaded");
+        endSequence();
+        sequencePrepared = true;
+        sequenceStreamMetadata = streamMetadata;
+    }
 
-            final MemoryAddress writerFunctionAddress =
-                    CLinker.getInstance().upcallStub(writerBound, 
-                            FunctionDescriptor.of(C_INT, C_POINTER, C_INT, C_POINTER), newImplicitScope());
-            picture.setWriter(writerFunctionAddress.toRawLongValue());
-            LOG.info("about to envoke the encoder!!!");
-            result = (Integer) libWebp.Encode.invoke(configSegment.address(), pictureSegment.address());
-            LOG.info("Ok, what just happened? " + result);
-        } catch(Throwable t) {
-            throw new IOException("Oh no!", t);
+    /** Add a frame to the animation. Its duration comes from the param's frame duration,
+     * or else from the frame's GIF metadata, or else is DEFAULT_FRAME_DURATION. The
+     * animation settings, and the compression and encoder settings, of the param passed
+     * with the first frame apply to the whole animation.
+     * Frames which have GIF metadata are composited the way a GIF is shown: at their
+     * offset on the canvas, over the frames before them, and disposed of as the GIF
+     * says. Any other frame must be the size of the canvas. WebPAnimEncoder takes care of
+     * encoding only what changed from one frame to the next. */
+    @Override
+    public void writeToSequence(IIOImage image, ImageWriteParam param) throws IOException {
+        if(! sequencePrepared) throw new IllegalStateException("prepareWriteSequence() has not been called");
+        final WebpImageWriteParam webpParam = param instanceof WebpImageWriteParam wp ? wp : null;
+        RenderedImage frame = image.getRenderedImage();
+        final IIOMetadata frameMetadata = image.getMetadata();
+        if(animationEncoder == null) {
+            final Dimension screenSize = GifFrameCanvas.screenSize(sequenceStreamMetadata);
+            canvasWidth = screenSize == null ? frame.getWidth() : screenSize.width;
+            canvasHeight = screenSize == null ? frame.getHeight() : screenSize.height;
+            sequenceConfig = Config.allocate();
+            EncoderSession.initConfig(sequenceConfig.segment(), param);
+            sequencePicture = Picture.allocate();
+            animationEncoder = new AnimationEncoder(canvasWidth, canvasHeight, webpParam);
+        }
+
+        if(GifFrameCanvas.isGif(frameMetadata)) {
+            if(gifFrameCanvas == null) gifFrameCanvas = new GifFrameCanvas(canvasWidth, canvasHeight);
+            frame = gifFrameCanvas.render(frame, frameMetadata);
+        } else if(frame.getWidth() != canvasWidth || frame.getHeight() != canvasHeight) {
+            throw new IIOException("the frame is " + frame.getWidth() + "x" + frame.getHeight() +
+                    " but the canvas is " + canvasWidth + "x" + canvasHeight);
+        } else if(! (frame.getColorModel() instanceof ComponentColorModel)) {
+            frame = EncoderSession.toRgba(frame);
+        }
+
+        int duration = webpParam == null ? -1 : webpParam.getFrameDuration();
+        if(duration < 0) duration = GifFrameCanvas.delay(frameMetadata);
+        if(duration < 0) duration = WebpImageWriteParam.DEFAULT_FRAME_DURATION;
+
+        // the encoder copies the frame, so one picture serves every frame; its pixel
+        // buffers are freed after each frame, because the next import starts afresh
+        EncoderSession.importPicture(frame, sequencePicture.segment(), true);
+        try {
+            animationEncoder.add(sequencePicture.segment(), sequenceTimestamp, sequenceConfig.segment());
+        } finally {
+            sequencePicture.free();
         }
+        sequenceTimestamp += duration;
     }
-    
+
+    /** Assemble the animation and write it to the output in one bulk write */
+    @Override
+    public void endWriteSequence() throws IOException {
+        if(! sequencePrepared) throw new IllegalStateException("prepareWriteSequence() has not been called");
+        try {
+            if(animationEncoder == null) throw new IIOException("the sequence has no frames");
+            writeOutput(animationEncoder.assemble(sequenceTimestamp));
+        } finally {
+            endSequence();
+        }
+    }
+
+    /** Release the native state of the sequence in progress, if there is one */
+    private void endSequence() {
+        if(animationEncoder != null) animationEncoder.close();
+        if(sequencePicture != null) sequencePicture.close();
+        if(sequenceConfig != null) sequenceConfig.close();
+        animationEncoder = null;
+        gifFrameCanvas = null;
+        sequenceConfig = null;
+        sequencePicture = null;
+        sequenceStreamMetadata = null;
+        sequenceTimestamp = 0;
+        sequencePrepared = false;
+    }
+
+    @Override
+    public void dispose() {
+        endSequence();
+        super.dispose();
+    }
+
+    /** Write a complete encoded file to the output in one bulk transfer: straight from
+     * native memory to a channel or a MemorySegment, and through a single array to a
+     * byte[] or a stream. */
+    private void writeOutput(MemorySegment encoded) throws IOException {
+        final Object output = getOutput();
+        if(output instanceof byte[] || output instanceof MemorySegment) {
+            final MemorySegment target = output instanceof byte[] bytes ? MemorySegment.ofArray(bytes) : (MemorySegment) output;
+            if(encoded.byteSize() > target.byteSize())
+                throw new IIOException("the encoded image is " + encoded.byteSize() +
+                        " bytes, but the output holds only: " + target.byteSize());
+            target.asSlice(0, encoded.byteSize()).copyFrom(encoded);
+            encodedSize = encoded.byteSize();
+            return;
+        }
+        if(output instanceof ImageOutputStream || output instanceof OutputStream) {
+            final byte[] bytes = encoded.toByteArray();
+            if(output instanceof ImageOutputStream ios) ios.write(bytes);
+            else ((OutputStream) output).write(bytes);
+            encodedSize = encoded.byteSize();
+            return;
+        }
+        final WritableByteChannel channel = getOutputAsChannel();
+        try {
+            final ByteBuffer byteBuffer = encoded.asByteBuffer();
+            while(byteBuffer.hasRemaining()) channel.write(byteBuffer);
+        } finally {
+            // a channel we opened for a File or Path is ours to close
+            if(! (output instanceof WritableByteChannel)) channel.close();
+        }
+        encodedSize = encoded.byteSize();
+    }
+
     private WritableByteChannel getOutputAsChannel() throws IOException {
         final Object output = getOutput();
         if(output == null) throw new IOException("setOutput(output) has not been called so this can't write.");
         if(output instanceof WritableByteChannel wbc) return wbc;
-        if(output instanceof File f) return FileChannel.open(f.toPath(), StandardOpenOption.READ);
-        if(output  instanceof  Path p) return FileChannel.open(p, StandardOpenOption.READ);
+        if(output instanceof File f) return FileChannel.open(f.toPath(), WRITE, CREATE, TRUNCATE_EXISTING);
+        if(output  instanceof  Path p) return FileChannel.open(p, WRITE, CREATE, TRUNCATE_EXISTING);
         if(output instanceof OutputStream ios) {
             throw new IOException("Don't use the getOutputAsChannel method with an OutputStream");
         }
@@ -220,60 +307,4 @@ public final class WebpImageWriter extends ImageWriter {
         throw new IOException("this output type: " + output.getClass() + " is not supported as a channel");
     }
     
-    /** This can be static because we can bind any object necessary to the outputChannel
-     parameter. That is something very cool about MethodHandles  */
-    public static int myChannelWriter(WritableByteChannel channel, MemoryAddress data, int dataSize, MemoryAddress picturePointer) {
-        final MemorySegment dataSegment = data.asSegment(dataSize, newImplicitScope());
-        final ByteBuffer byteBuffer = dataSegment.asByteBuffer();
-        try {
-            channel.write(byteBuffer);
-        } catch(IOException ioe) {
-            LOG.log(WARNING,"caught: ", ioe);
-            return 0;
-        }
-        return 1; // write is always successful so far
-    }
-    
-    /** This is exactly like the OutputStreamWriter but the ImageOutputStream class
-     doesn't implement OutputStream, so... */
-    public static int myImageOutputStreamWriter(ImageOutputStream ios, 
-            MemoryAddress data, int dataSize, MemoryAddress picturePointer) throws IOException {
-        final MemorySegment dataSegment = data.asSegment(dataSize, newImplicitScope());
-        final ByteBuffer byteBuffer = dataSegment.asByteBuffer();
-        if(byteBuffer.hasArray()) {
-            try { 
-                ios.write(byteBuffer.array());
-            } catch(IOException ioe ) {
-                LOG.log(WARNING, "caught", ioe);
-                return 0;
-            }
-            return 1;
-        }
-        // otherwise... we need to copy the bytes out
-        final byte[] buf = new byte[byteBuffer.remaining()];
-        try {
-            byteBuffer.get(buf);
-            ios.write(buf);
-        } catch(IOException ioe) {
-            LOG.log(WARNING, "caught", ioe);
-            return 0;
-        }
-        return 1;
-    }
-    
-    /** Like the above, but specifically work with the ImageOutputStream. */
-    public static int myOutputStreamWriter(OutputStream os, 
-            MemoryAddress data, int dataSize, MemoryAddress picturePointer) {
-        
-        final MemorySegment dataSegment = data.asSegment(dataSize, newImplicitScope());
-        final ByteBuffer byteBuffer = dataSegment.asByteBuffer();
-        try {
-            os.write(byteBuffer.array());
-        } catch(IOException ioe ) {
-            LOG.log(WARNING, "caught", ioe);
-            return 0;
-        }
-        return 1;
-    }
-    
 }
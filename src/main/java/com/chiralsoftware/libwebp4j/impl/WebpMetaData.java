@@ -1,15 +1,29 @@
 package com.chiralsoftware.libwebp4j.impl;
 
+import com.chiralsoftware.libwebp4j.WebpHeader;
+import com.chiralsoftware.libwebp4j.WebpImageMetadata;
+import java.awt.color.ICC_Profile;
+import java.nio.ByteOrder;
+import java.util.Optional;
 import java.util.logging.Logger;
 import javax.imageio.metadata.IIOInvalidTreeException;
 import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.metadata.IIOMetadataNode;
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemoryAddress;
+import jdk.incubator.foreign.MemorySegment;
+import static jdk.incubator.foreign.MemorySegment.allocateNative;
+import jdk.incubator.foreign.ResourceScope;
 import org.w3c.dom.Node;
 
 /**
- * Implement Webp metadata
+ * Implement Webp metadata. The EXIF, XMP and ICC chunks are located the first time
+ * any of them is asked for, with the demuxer's chunk iterator if libwebpdemux is
+ * available and by walking the RIFF chunks otherwise. Only the chunk headers are read
+ * either way. The flags of the VP8X header say which chunks exist, so an image without
+ * metadata is never searched at all.
  */
-final class WebpMetaData extends IIOMetadata {
+final class WebpMetaData extends IIOMetadata implements WebpImageMetadata {
 
     private static final Logger LOG = Logger.getLogger(WebpMetaData.class.getName());
     
@@ -18,28 +32,212 @@ final class WebpMetaData extends IIOMetadata {
     
     static final String nativeMetadataFormatClassName =
                 "chiralsoftware.imageio.WebpMetadata";
+
+    /** EXIF orientation, a SHORT in IFD0 */
+    private static final int ORIENTATION_TAG = 0x0112;
+
+    /** The whole file, or null if the input wasn't buffered */
+    private final MemorySegment input;
+    private final WebpHeader header;
+
+    private boolean located = false;
+    private MemorySegment exif, xmp, icc;
+    private ICC_Profile iccProfile = null;
+    private int orientation = -1;
+
+    /** @param input the whole WebP file, or null if only the header is known
+     * @param header the header of the file, or null if it isn't known */
+    WebpMetaData(MemorySegment input, WebpHeader header) {
+        super(false, nativeMetadataFormatName, null, null, null);
+        this.input = input;
+        this.header = header;
+    }
+
+    @Override
+    public Optional<MemorySegment> getExif() {
+        locate();
+        return Optional.ofNullable(exif);
+    }
+
+    @Override
+    public Optional<MemorySegment> getXmp() {
+        locate();
+        return Optional.ofNullable(xmp);
+    }
+
+    @Override
+    public Optional<MemorySegment> getIccProfileData() {
+        locate();
+        return Optional.ofNullable(icc);
+    }
+
+    @Override
+    public Optional<ICC_Profile> getIccProfile() {
+        if(iccProfile == null && getIccProfileData().isPresent()) {
+            try {
+                iccProfile = ICC_Profile.getInstance(icc.toByteArray());
+            } catch(IllegalArgumentException iae) {
+                LOG.fine("the ICC profile couldn't be parsed: " + iae);
+            }
+        }
+        return Optional.ofNullable(iccProfile);
+    }
+
+    @Override
+    public int getOrientation() {
+        if(orientation < 0) orientation = getExif().map(WebpMetaData::exifOrientation).orElse(1);
+        return orientation;
+    }
+
+    private void locate() {
+        if(located) return;
+        located = true;
+        // only extended files have metadata, and their header says which chunks they have
+        if(input == null || header == null ||
+                ! (header.hasExif() || header.hasXmp() || header.hasIccProfile())) return;
+        if(LibWebpDemux.getInstance() != null) {
+            try {
+                demuxChunks();
+                return;
+            } catch(Throwable t) {
+                LOG.fine("couldn't demux the metadata; walking the chunks instead: " + t);
+            }
+        }
+        if(header.hasExif()) exif = findChunk("EXIF");
+        if(header.hasXmp()) xmp = findChunk("XMP ");
+        if(header.hasIccProfile()) icc = findChunk("ICCP");
+    }
+
+    /** Find the chunks with WebPDemuxGetChunk. Its payloads point into our input,
+     * so they are turned back into slices of it. */
+    private void demuxChunks() throws Throwable {
+        try(ResourceScope scope = ResourceScope.newConfinedScope()) {
+            demuxChunks(scope);
+        }
+    }
+
+    /** @param scope holds the temporary structs */
+    private void demuxChunks(ResourceScope scope) throws Throwable {
+        final MemorySegment data = allocateNative(LibWebp.Data, scope);
+        LibWebp.DataBytes.set(data, input.address().toRawLongValue());
+        LibWebp.DataSize.set(data, input.byteSize());
+        final MemoryAddress demuxer = (MemoryAddress) LibWebpDemux.Demux.invokeExact(data.address());
+        if(demuxer.equals(MemoryAddress.NULL)) throw new IllegalStateException("WebPDemux couldn't parse the file");
+        try {
+            final MemorySegment iterator = allocateNative(LibWebpDemux.ChunkIterator, scope);
+            final MemorySegment fourCc = allocateNative(4, scope);
+            if(header.hasExif()) exif = demuxChunk(demuxer, iterator, fourCc, "EXIF");
+            if(header.hasXmp()) xmp = demuxChunk(demuxer, iterator, fourCc, "XMP ");
+            if(header.hasIccProfile()) icc = demuxChunk(demuxer, iterator, fourCc, "ICCP");
+        } finally {
+            LibWebpDemux.DemuxDelete.invokeExact(demuxer);
+        }
+    }
+
+    private MemorySegment demuxChunk(MemoryAddress demuxer, MemorySegment iterator,
+            MemorySegment fourCc, String name) throws Throwable {
+        for(int i = 0; i < 4; i++) MemoryAccess.setByteAtOffset(fourCc, i, (byte) name.charAt(i));
+        // chunk numbers are 1-based
+        if((int) LibWebpDemux.DemuxGetChunk.invokeExact(demuxer, fourCc.address(), 1, iterator.address()) == 0) return null;
+        try {
+            final long bytes = (long) LibWebpDemux.ChunkIteratorChunkBytes.get(iterator);
+            final long size = (long) LibWebpDemux.ChunkIteratorChunkSize.get(iterator);
+            return input.asSlice(bytes - input.address().toRawLongValue(), size).asReadOnly();
+        } finally {
+            LibWebpDemux.DemuxReleaseChunkIterator.invokeExact(iterator.address());
+        }
+    }
+
+    /** Walk the top level RIFF chunks for the first one with the name
+     * @return the payload of the chunk, or null if there isn't one */
+    private MemorySegment findChunk(String name) {
+        final long riffEnd = Math.min(input.byteSize(), 8 + unsignedInt(input, 4));
+        long position = 12;
+        while(position + 8 <= riffEnd) {
+            final long size = unsignedInt(input, position + 4);
+            if(position + 8 + size > riffEnd) return null; // truncated
+            if(isFourCc(position, name)) return input.asSlice(position + 8, size).asReadOnly();
+            position += 8 + size + (size & 1);
+        }
+        return null;
+    }
+
+    private boolean isFourCc(long position, String name) {
+        for(int i = 0; i < 4; i++)
+            if(MemoryAccess.getByteAtOffset(input, position + i) != name.charAt(i)) return false;
+        return true;
+    }
+
+    private static long unsignedInt(MemorySegment segment, long offset) {
+        return Integer.toUnsignedLong(MemoryAccess.getIntAtOffset(segment, offset, ByteOrder.LITTLE_ENDIAN));
+    }
+
+    /** Read the orientation tag of IFD0 from an EXIF TIFF structure
+     * @return 1 to 8, or 1 if there is no valid orientation */
+    static int exifOrientation(MemorySegment exif) {
+        long tiff = 0;
+        // some writers keep the "Exif\0\0" prefix of the JPEG APP1 segment
+        if(exif.byteSize() >= 6 && MemoryAccess.getByteAtOffset(exif, 0) == 'E' &&
+                MemoryAccess.getByteAtOffset(exif, 1) == 'x') tiff = 6;
+        if(exif.byteSize() < tiff + 8) return 1;
+        final ByteOrder order;
+        final byte b0 = MemoryAccess.getByteAtOffset(exif, tiff);
+        if(b0 == 'I') order = ByteOrder.LITTLE_ENDIAN;
+        else if(b0 == 'M') order = ByteOrder.BIG_ENDIAN;
+        else return 1;
+        final long ifd = tiff + Integer.toUnsignedLong(MemoryAccess.getIntAtOffset(exif, tiff + 4, order));
+        if(ifd + 2 > exif.byteSize()) return 1;
+        final int entries = Short.toUnsignedInt(MemoryAccess.getShortAtOffset(exif, ifd, order));
+        for(int i = 0; i < entries; i++) {
+            final long entry = ifd + 2 + 12L * i;
+            if(entry + 12 > exif.byteSize()) return 1;
+            if(Short.toUnsignedInt(MemoryAccess.getShortAtOffset(exif, entry, order)) == ORIENTATION_TAG) {
+                // a SHORT is held in the first two bytes of the value field
+                final int value = Short.toUnsignedInt(MemoryAccess.getShortAtOffset(exif, entry + 8, order));
+                return value >= 1 && value <= 8 ? value : 1;
+            }
+        }
+        return 1;
+    }
         
     @Override
     public boolean isReadOnly() {
-        return true; // fix this
+        return true;
     }
 
+    /** The tree has a node for each metadata chunk, whose user object is a copy
+     * of the chunk's bytes. Use the WebpImageMetadata methods to avoid the copies. */
     @Override
     public Node getAsTree(String formatName) {
+        if(! nativeMetadataFormatName.equals(formatName))
+            throw new IllegalArgumentException("the only supported format is: " + nativeMetadataFormatName);
         final IIOMetadataNode root =
                         new IIOMetadataNode(nativeMetadataFormatName);
-        // no metadata for now - just return root
+        getExif().ifPresent(segment -> {
+            final IIOMetadataNode node = chunkNode("EXIF", segment);
+            node.setAttribute("orientation", Integer.toString(getOrientation()));
+            root.appendChild(node);
+        });
+        getXmp().ifPresent(segment -> root.appendChild(chunkNode("XMP", segment)));
+        getIccProfileData().ifPresent(segment -> root.appendChild(chunkNode("ICCP", segment)));
         return root;
     }
 
+    private static IIOMetadataNode chunkNode(String name, MemorySegment segment) {
+        final IIOMetadataNode node = new IIOMetadataNode(name);
+        node.setAttribute("length", Long.toString(segment.byteSize()));
+        node.setUserObject(segment.toByteArray());
+        return node;
+    }
+
     @Override
     public void mergeTree(String formatName, Node root) throws IIOInvalidTreeException {
-        LOG.fine("does nothing");
+        throw new IllegalStateException("this metadata is read-only");
     }
 
     @Override
     public void reset() {
-        LOG.fine("does nothing");
+        throw new IllegalStateException("this metadata is read-only");
     }
     
 }
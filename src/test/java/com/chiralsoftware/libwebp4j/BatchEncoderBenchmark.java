@@ -0,0 +1,58 @@
+package com.chiralsoftware.libwebp4j;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how WebpBatchEncoder's throughput scales with its number of workers. This
+ * is a main class, not a test, so the build doesn't run it. Run it on the machine
+ * whose numbers you want, from the project directory after mvn test-compile:
+ * <pre>
+ * java --add-modules jdk.incubator.foreign --enable-native-access=ALL-UNNAMED \
+ *     -cp target/classes:target/test-classes com.chiralsoftware.libwebp4j.BatchEncoderBenchmark [images [width height]]
+ * </pre>
+ * Each worker count encodes the same noisy images at the default settings, once to
+ * warm up and then three times, and the fastest run is reported.
+ */
+public final class BatchEncoderBenchmark {
+
+    private BatchEncoderBenchmark() {
+        throw new RuntimeException("don't instantiate this");
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+        final int width = args.length > 2 ? Integer.parseInt(args[1]) : 400;
+        final int height = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+        final int cores = Runtime.getRuntime().availableProcessors();
+
+        final Random random = new Random(1);
+        final List<BufferedImage> images = new ArrayList<>(count);
+        for(int i = 0; i < count; i++) {
+            final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+            for(int y = 0; y < height; y++)
+                for(int x = 0; x < width; x++) image.setRGB(x, y, (x * (i + 1)) ^ (y << 8) ^ random.nextInt(16));
+            images.add(image);
+        }
+
+        System.out.println(count + " images of " + width + "x" + height + " on " + cores + " cores");
+        long oneWorker = 0;
+        for(int workers = 1; workers <= Math.max(4, 2 * cores); workers *= 2) {
+            try(WebpBatchEncoder encoder = new WebpBatchEncoder(workers)) {
+                for(WebpBatchEncoder.Result result : encoder.encode(images, null)) result.get();
+                long best = Long.MAX_VALUE;
+                for(int run = 0; run < 3; run++) {
+                    final long start = System.nanoTime();
+                    encoder.encode(images, null);
+                    best = Math.min(best, System.nanoTime() - start);
+                }
+                if(workers == 1) oneWorker = best;
+                System.out.printf("%2d workers: %6d ms, %6.1f images/s, %4.2fx%n", workers, best / 1_000_000,
+                        count * 1e9 / best, (double) oneWorker / best);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+package com.chiralsoftware.libwebp4j;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Size classes, the retained memory cap and the counters. Each test has its own pool.
+ */
+class NativeBufferPoolTest {
+
+    @Test
+    void sizeClassBoundaries() {
+        assertEquals(0, NativeBufferPool.sizeClass(0));
+        assertEquals(0, NativeBufferPool.sizeClass(1));
+        assertEquals(0, NativeBufferPool.sizeClass(4096));
+        assertEquals(1, NativeBufferPool.sizeClass(4097));
+        assertEquals(1, NativeBufferPool.sizeClass(8192));
+        assertEquals(18, NativeBufferPool.sizeClass(1L << 30));
+        assertEquals(-1, NativeBufferPool.sizeClass((1L << 30) + 1));
+    }
+
+    @Test
+    void acquireAfterReleaseIsAHit() {
+        final NativeBufferPool pool = new NativeBufferPool(1024 * 1024);
+        pool.acquire(5000).close();
+        assertEquals(new NativeBufferPool.Stats(0, 1, 0, 8192), pool.stats());
+        // any size in the same class gets the same buffer
+        try(NativeBufferPool.Buffer buffer = pool.acquire(8000)) {
+            assertEquals(8000, buffer.segment().byteSize());
+            assertEquals(new NativeBufferPool.Stats(1, 1, 0, 0), pool.stats());
+        }
+        assertEquals(new NativeBufferPool.Stats(1, 1, 0, 8192), pool.stats());
+    }
+
+    @Test
+    void releaseIntoAFullPoolFrees() {
+        final NativeBufferPool pool = new NativeBufferPool(8192);
+        final NativeBufferPool.Buffer first = pool.acquire(8192);
+        final NativeBufferPool.Buffer second = pool.acquire(8192);
+        first.close();
+        assertEquals(new NativeBufferPool.Stats(0, 2, 0, 8192), pool.stats());
+        // this would go over the cap, so it is freed, and the retained count is unchanged
+        second.close();
+        assertEquals(new NativeBufferPool.Stats(0, 2, 1, 8192), pool.stats());
+    }
+
+    @Test
+    void releaseIntoAPoolWhichKeepsNothing() {
+        final NativeBufferPool pool = new NativeBufferPool(0);
+        pool.acquire(100).close();
+        pool.acquire(100).close();
+        assertEquals(new NativeBufferPool.Stats(0, 2, 2, 0), pool.stats());
+    }
+
+    @Test
+    void doubleCloseIsANoOp() {
+        final NativeBufferPool pool = new NativeBufferPool(1024 * 1024);
+        final NativeBufferPool.Buffer buffer = pool.acquire(4096);
+        buffer.close();
+        buffer.close();
+        assertEquals(new NativeBufferPool.Stats(0, 1, 0, 4096), pool.stats());
+        // the buffer was pooled once, so only one acquisition can reuse it
+        pool.acquire(4096);
+        pool.acquire(4096);
+        assertEquals(new NativeBufferPool.Stats(1, 2, 0, 0), pool.stats());
+    }
+
+    @Test
+    void clearFreesIdleBuffers() {
+        final NativeBufferPool pool = new NativeBufferPool(1024 * 1024);
+        final NativeBufferPool.Buffer first = pool.acquire(4096);
+        final NativeBufferPool.Buffer second = pool.acquire(4096);
+        first.close();
+        second.close();
+        pool.clear();
+        assertEquals(new NativeBufferPool.Stats(0, 2, 2, 0), pool.stats());
+    }
+
+}
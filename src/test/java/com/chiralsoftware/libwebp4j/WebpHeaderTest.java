@@ -0,0 +1,158 @@
+package com.chiralsoftware.libwebp4j;
+
+import com.chiralsoftware.libwebp4j.WebpHeader.Format;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import jdk.incubator.foreign.MemorySegment;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * WebpHeader against hand-built RIFF containers. None of this needs libwebp.
+ */
+class WebpHeaderTest {
+
+    /** A chunk: its fourcc, little-endian size, payload and padding to an even size */
+    private static byte[] chunk(String fourCc, byte... payload) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(fourCc.getBytes(StandardCharsets.US_ASCII));
+        out.writeBytes(le32(payload.length));
+        out.writeBytes(payload);
+        if((payload.length & 1) != 0) out.write(0);
+        return out.toByteArray();
+    }
+
+    private static byte[] riff(byte[]... chunks) {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.writeBytes("WEBP".getBytes(StandardCharsets.US_ASCII));
+        for(byte[] chunk : chunks) body.writeBytes(chunk);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes("RIFF".getBytes(StandardCharsets.US_ASCII));
+        out.writeBytes(le32(body.size()));
+        out.writeBytes(body.toByteArray());
+        return out.toByteArray();
+    }
+
+    private static byte[] le32(int value) {
+        return new byte[] { (byte) value, (byte) (value >>> 8), (byte) (value >>> 16), (byte) (value >>> 24) };
+    }
+
+    /** A VP8 key frame header: the frame tag, the start code, and the 14 bit dimensions */
+    private static byte[] vp8(int width, int height) {
+        return chunk("VP8 ", (byte) 0x10, (byte) 0x02, (byte) 0x00, (byte) 0x9d, (byte) 0x01, (byte) 0x2a,
+                (byte) width, (byte) (width >>> 8), (byte) height, (byte) (height >>> 8));
+    }
+
+    /** A VP8L header: the signature, then width - 1 and height - 1 in 14 bits each,
+     * the alpha bit and a 3 bit version of 0 */
+    private static byte[] vp8l(int width, int height, boolean alpha) {
+        final int bits = (width - 1) | (height - 1) << 14 | (alpha ? 1 << 28 : 0);
+        final byte[] b = le32(bits);
+        return chunk("VP8L", (byte) 0x2f, b[0], b[1], b[2], b[3]);
+    }
+
+    private static byte[] vp8x(int flags, int width, int height) {
+        return chunk("VP8X", (byte) flags, (byte) 0, (byte) 0, (byte) 0,
+                (byte) (width - 1), (byte) ((width - 1) >>> 8), (byte) ((width - 1) >>> 16),
+                (byte) (height - 1), (byte) ((height - 1) >>> 8), (byte) ((height - 1) >>> 16));
+    }
+
+    @Test
+    void lossy() {
+        final WebpHeader header = WebpHeader.read(riff(vp8(640, 480)));
+        assertEquals(new WebpHeader(640, 480, false, false, Format.LOSSY, false, false, false), header);
+    }
+
+    @Test
+    void lossless() {
+        final WebpHeader header = WebpHeader.read(riff(vp8l(300, 200, true)));
+        assertEquals(new WebpHeader(300, 200, true, false, Format.LOSSLESS, false, false, false), header);
+    }
+
+    @Test
+    void memorySegmentMatchesByteArray() {
+        final byte[] data = riff(vp8l(17, 9, false));
+        assertEquals(WebpHeader.read(data), WebpHeader.read(MemorySegment.ofArray(data)));
+    }
+
+    @Test
+    void extendedWalksToTheBitstreamChunk() {
+        // flags: ICC and EXIF; the ALPH chunk sets alpha although the flag is clear
+        final byte[] data = riff(vp8x(0x20 | 0x08, 1000, 750),
+                chunk("ICCP", new byte[13]), // odd sized, so it is padded
+                chunk("ALPH", new byte[4]),
+                vp8(1000, 750),
+                chunk("EXIF", new byte[8]));
+        final WebpHeader header = WebpHeader.read(data);
+        assertEquals(new WebpHeader(1000, 750, true, false, Format.LOSSY, true, true, false), header);
+    }
+
+    @Test
+    void extendedLossless() {
+        final WebpHeader header = WebpHeader.read(riff(vp8x(0x04, 5, 6), chunk("XMP ", new byte[3]),
+                vp8l(5, 6, false)));
+        assertEquals(new WebpHeader(5, 6, false, false, Format.LOSSLESS, false, false, true), header);
+    }
+
+    @Test
+    void extendedAnimationIsntWalked() {
+        final WebpHeader header = WebpHeader.read(riff(vp8x(0x10 | 0x02, 400, 300), chunk("ANIM", new byte[6])));
+        assertTrue(header.hasAnimation());
+        assertTrue(header.hasAlpha());
+        assertEquals(Format.UNDEFINED_OR_MIXED, header.format());
+    }
+
+    @Test
+    void extendedWithoutBitstreamChunk() {
+        // the walk stops at the end of the RIFF data without finding the image
+        final WebpHeader header = WebpHeader.read(riff(vp8x(0, 8, 8), chunk("ICCP", new byte[2])));
+        assertEquals(Format.UNDEFINED_OR_MIXED, header.format());
+        assertFalse(header.hasAlpha());
+    }
+
+    @Test
+    void truncated() {
+        final byte[] lossy = riff(vp8(640, 480));
+        for(int length : new int[] { 0, 4, 12, 19, 20, 29 })
+            assertNull(WebpHeader.read(Arrays.copyOf(lossy, length)), "truncated to " + length);
+        final byte[] lossless = riff(vp8l(300, 200, false));
+        assertNull(WebpHeader.read(Arrays.copyOf(lossless, 24)));
+        final byte[] extended = riff(vp8x(0, 10, 10), vp8(10, 10));
+        assertNull(WebpHeader.read(Arrays.copyOf(extended, 29)));
+        // cut inside the chunk walk: the dimensions are known but the format isn't
+        assertEquals(Format.UNDEFINED_OR_MIXED, WebpHeader.read(Arrays.copyOf(extended, 34)).format());
+    }
+
+    @Test
+    void garbage() {
+        assertNull(WebpHeader.read(new byte[64]));
+        assertNull(WebpHeader.read("GIF89a, which is not a WebP file at all".getBytes(StandardCharsets.US_ASCII)));
+
+        final byte[] notWebp = riff(vp8(640, 480));
+        notWebp[8] = 'A'; // a RIFF file of some other type, such as AVI or WAVE
+        assertNull(WebpHeader.read(notWebp));
+
+        assertNull(WebpHeader.read(riff(chunk("JUNK", new byte[10]))));
+
+        final byte[] badStartCode = riff(vp8(640, 480));
+        badStartCode[23] = 0;
+        assertNull(WebpHeader.read(badStartCode));
+
+        final byte[] interFrame = riff(vp8(640, 480));
+        interFrame[20] |= 1;
+        assertNull(WebpHeader.read(interFrame));
+
+        final byte[] badSignature = riff(vp8l(300, 200, false));
+        badSignature[20] = 0x2e;
+        assertNull(WebpHeader.read(badSignature));
+
+        final byte[] badVersion = riff(vp8l(300, 200, false));
+        badVersion[24] |= 0x20;
+        assertNull(WebpHeader.read(badVersion));
+    }
+
+}
@@ -0,0 +1,56 @@
+package com.chiralsoftware.libwebp4j.impl;
+
+import com.chiralsoftware.libwebp4j.impl.AnimationIndex.Frame;
+import static com.chiralsoftware.libwebp4j.impl.LibWebpDemux.WEBP_MUX_BLEND;
+import static com.chiralsoftware.libwebp4j.impl.LibWebpDemux.WEBP_MUX_DISPOSE_BACKGROUND;
+import static com.chiralsoftware.libwebp4j.impl.LibWebpDemux.WEBP_MUX_DISPOSE_NONE;
+import static com.chiralsoftware.libwebp4j.impl.LibWebpDemux.WEBP_MUX_NO_BLEND;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The keyframe rule, which must agree with IsKeyFrame in libwebp's anim_decode.c
+ */
+class AnimationIndexTest {
+
+    private static final int WIDTH = 100, HEIGHT = 80;
+
+    private static Frame previous(int x, int y, int width, int height, int disposeMethod, boolean keyframe) {
+        return new Frame(x, y, width, height, 100, 0, disposeMethod, WEBP_MUX_BLEND, true, 0, 0, keyframe);
+    }
+
+    @Test
+    void firstFrame() {
+        assertTrue(AnimationIndex.isKeyframe(false, true, WEBP_MUX_BLEND, null, WIDTH, HEIGHT));
+    }
+
+    @Test
+    void fullFrame() {
+        final Frame previous = previous(0, 0, WIDTH, HEIGHT, WEBP_MUX_DISPOSE_NONE, true);
+        assertTrue(AnimationIndex.isKeyframe(true, false, WEBP_MUX_BLEND, previous, WIDTH, HEIGHT));
+        assertTrue(AnimationIndex.isKeyframe(true, true, WEBP_MUX_NO_BLEND, previous, WIDTH, HEIGHT));
+        // transparent pixels show the frame before
+        assertFalse(AnimationIndex.isKeyframe(true, true, WEBP_MUX_BLEND, previous, WIDTH, HEIGHT));
+    }
+
+    @Test
+    void afterDisposeToBackground() {
+        // the whole canvas was cleared
+        assertTrue(AnimationIndex.isKeyframe(false, true, WEBP_MUX_BLEND,
+                previous(0, 0, WIDTH, HEIGHT, WEBP_MUX_DISPOSE_BACKGROUND, false), WIDTH, HEIGHT));
+        // a keyframe's rectangle was cleared, leaving only the empty canvas
+        assertTrue(AnimationIndex.isKeyframe(false, true, WEBP_MUX_BLEND,
+                previous(10, 10, 20, 20, WEBP_MUX_DISPOSE_BACKGROUND, true), WIDTH, HEIGHT));
+        // part of the canvas was cleared, but what is around it still comes from earlier frames
+        assertFalse(AnimationIndex.isKeyframe(false, true, WEBP_MUX_BLEND,
+                previous(10, 10, 20, 20, WEBP_MUX_DISPOSE_BACKGROUND, false), WIDTH, HEIGHT));
+    }
+
+    @Test
+    void partialFrame() {
+        assertFalse(AnimationIndex.isKeyframe(false, false, WEBP_MUX_NO_BLEND,
+                previous(0, 0, WIDTH, HEIGHT, WEBP_MUX_DISPOSE_NONE, true), WIDTH, HEIGHT));
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.chiralsoftware.libwebp4j.impl;
+
+import com.chiralsoftware.libwebp4j.impl.AnimationIndex.Frame;
+import static com.chiralsoftware.libwebp4j.impl.LibWebpDemux.WEBP_MUX_BLEND;
+import static com.chiralsoftware.libwebp4j.impl.LibWebpDemux.WEBP_MUX_DISPOSE_BACKGROUND;
+import static com.chiralsoftware.libwebp4j.impl.LibWebpDemux.WEBP_MUX_DISPOSE_NONE;
+import jdk.incubator.foreign.MemoryAccess;
+import jdk.incubator.foreign.MemorySegment;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Blending and disposal on small RGBA canvases held in heap memory
+ */
+class FrameCompositorTest {
+
+    private static final int WIDTH = 4, HEIGHT = 2, STRIDE = WIDTH * 4;
+
+    private static Frame frame(int x, int y, int width, int height, int disposeMethod) {
+        return new Frame(x, y, width, height, 100, 0, disposeMethod, WEBP_MUX_BLEND, true, 0, 0, false);
+    }
+
+    private static MemorySegment canvas(int r, int g, int b, int a) {
+        final MemorySegment canvas = MemorySegment.ofArray(new byte[STRIDE * HEIGHT]);
+        for(int i = 0; i < WIDTH * HEIGHT; i++) set(canvas, i % WIDTH, i / WIDTH, r, g, b, a);
+        return canvas;
+    }
+
+    private static void set(MemorySegment canvas, int x, int y, int r, int g, int b, int a) {
+        final long offset = (long) y * STRIDE + x * 4L;
+        MemoryAccess.setByteAtOffset(canvas, offset, (byte) r);
+        MemoryAccess.setByteAtOffset(canvas, offset + 1, (byte) g);
+        MemoryAccess.setByteAtOffset(canvas, offset + 2, (byte) b);
+        MemoryAccess.setByteAtOffset(canvas, offset + 3, (byte) a);
+    }
+
+    /** @return the pixel as 0xRRGGBBAA */
+    private static int get(MemorySegment canvas, int x, int y) {
+        final long offset = (long) y * STRIDE + x * 4L;
+        int pixel = 0;
+        for(int c = 0; c < 4; c++) pixel = pixel << 8 | MemoryAccess.getByteAtOffset(canvas, offset + c) & 0xff;
+        return pixel;
+    }
+
+    @Test
+    void blend() {
+        final MemorySegment disposed = canvas(0, 0, 255, 255); // opaque blue
+        final MemorySegment canvas = canvas(0, 0, 255, 255);
+        set(canvas, 0, 0, 255, 0, 0, 255); // opaque red replaces what was there
+        set(canvas, 1, 0, 255, 0, 0, 128); // half transparent red mixes with it
+        set(canvas, 2, 0, 255, 0, 0, 0); // fully transparent shows it
+        FrameCompositor.blend(canvas, disposed, STRIDE, frame(0, 0, 3, 1, WEBP_MUX_DISPOSE_NONE),
+                frame(0, 0, WIDTH, HEIGHT, WEBP_MUX_DISPOSE_NONE));
+        assertEquals(0xff0000ff, get(canvas, 0, 0));
+        // srcA 128, dstFactorA (255 * 128) >> 8 = 127, so the alpha is 255; the scale,
+        // 2^24 / 255, is rounded down, so red is 127 rather than 128 and blue 126 rather than 127
+        assertEquals(0x7f007eff, get(canvas, 1, 0));
+        assertEquals(0x0000ffff, get(canvas, 2, 0));
+        // outside the frame nothing changes
+        assertEquals(0x0000ffff, get(canvas, 3, 0));
+    }
+
+    @Test
+    void blendSkipsThePreviouslyDisposedRectangle() {
+        final MemorySegment disposed = canvas(0, 0, 255, 255);
+        final Frame previous = frame(1, 0, 2, 1, WEBP_MUX_DISPOSE_BACKGROUND);
+        FrameCompositor.dispose(disposed, STRIDE, previous);
+        assertEquals(0x0000ffff, get(disposed, 0, 0));
+        assertEquals(0, get(disposed, 1, 0));
+        assertEquals(0, get(disposed, 2, 0));
+        assertEquals(0x0000ffff, get(disposed, 3, 0));
+        assertEquals(0x0000ffff, get(disposed, 1, 1));
+
+        // a transparent frame over the whole canvas
+        final MemorySegment canvas = canvas(0, 0, 0, 0);
+        FrameCompositor.blend(canvas, disposed, STRIDE, frame(0, 0, WIDTH, HEIGHT, WEBP_MUX_DISPOSE_NONE), previous);
+        // shows the canvas where it wasn't disposed of, and stays transparent where it was
+        assertEquals(0x0000ffff, get(canvas, 0, 0));
+        assertEquals(0, get(canvas, 1, 0));
+        assertEquals(0, get(canvas, 2, 0));
+        assertEquals(0x0000ffff, get(canvas, 3, 0));
+        assertEquals(0x0000ffff, get(canvas, 1, 1));
+    }
+
+}
@@ -0,0 +1,53 @@
+package com.chiralsoftware.libwebp4j.impl;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Matching sample model layouts to import functions
+ */
+class ImportTypeTest {
+
+    private static ImportType findType(int bufferedImageType) {
+        final ComponentSampleModel sampleModel = (ComponentSampleModel)
+                new BufferedImage(1, 1, bufferedImageType).getSampleModel();
+        return ImportType.findType(sampleModel.getBandOffsets(), sampleModel.getPixelStride());
+    }
+
+    @Test
+    void bufferedImageTypes() {
+        assertEquals(ImportType.BGR, findType(BufferedImage.TYPE_3BYTE_BGR));
+        assertEquals(ImportType.ABGR, findType(BufferedImage.TYPE_4BYTE_ABGR));
+    }
+
+    @Test
+    void paddedPixels() {
+        assertEquals(ImportType.RGBX, ImportType.findType(new int[] { 0, 1, 2 }, 4));
+        assertEquals(ImportType.BGRX, ImportType.findType(new int[] { 2, 1, 0 }, 4));
+    }
+
+    @Test
+    void leadingUnusedByte() {
+        // XRGB and XBGR are imported from the second byte, as RGBX and BGRX
+        assertEquals(ImportType.RGBX, ImportType.findType(new int[] { 1, 2, 3 }, 4));
+        assertEquals(ImportType.BGRX, ImportType.findType(new int[] { 3, 2, 1 }, 4));
+    }
+
+    @Test
+    void withAlpha() {
+        assertEquals(ImportType.RGBA, ImportType.findType(new int[] { 0, 1, 2, 3 }, 4));
+        assertEquals(ImportType.BGRA, ImportType.findType(new int[] { 2, 1, 0, 3 }, 4));
+    }
+
+    @Test
+    void noMatch() {
+        assertNull(ImportType.findType(new int[] { 0, 2, 1 }, 3));
+        assertNull(ImportType.findType(new int[] { 0, 1, 2 }, 6));
+        assertNull(ImportType.findType(new int[] { 0, 2, 4 }, 6));
+        assertNull(ImportType.findType(new int[] { 0 }, 1));
+    }
+
+}
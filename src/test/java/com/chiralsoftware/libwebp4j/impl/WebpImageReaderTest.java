@@ -0,0 +1,128 @@
+package com.chiralsoftware.libwebp4j.impl;
+
+import com.chiralsoftware.libwebp4j.WebpImageMetadata;
+import com.chiralsoftware.libwebp4j.WebpImageWriteParam;
+import com.chiralsoftware.libwebp4j.WebpReaderSpi;
+import com.chiralsoftware.libwebp4j.WebpWriterSpi;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Reading stream inputs, which are decoded as they are read. These call libwebp.
+ */
+class WebpImageReaderTest {
+
+    private static byte[] webp;
+
+    private WebpImageReader reader;
+
+    /** A lossless image, left half red and right half blue */
+    @BeforeAll
+    static void encode() throws IOException {
+        final BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_3BYTE_BGR);
+        final Graphics2D g = image.createGraphics();
+        g.setColor(Color.RED);
+        g.fillRect(0, 0, 32, 48);
+        g.setColor(Color.BLUE);
+        g.fillRect(32, 0, 32, 48);
+        g.dispose();
+        final WebpImageWriter writer = new WebpImageWriter(new WebpWriterSpi());
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try(ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            final WebpImageWriteParam param = new WebpImageWriteParam();
+            param.setCompression(WebpImageWriteParam.LOSSLESS, 1);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        webp = out.toByteArray();
+    }
+
+    @BeforeEach
+    void createReader() throws IOException {
+        reader = new WebpImageReader(new WebpReaderSpi());
+    }
+
+    @AfterEach
+    void disposeReader() {
+        reader.dispose();
+    }
+
+    private static ImageInputStream stream() {
+        return new MemoryCacheImageInputStream(new ByteArrayInputStream(webp));
+    }
+
+    private static void assertPixels(BufferedImage image) {
+        assertEquals(64, image.getWidth());
+        assertEquals(48, image.getHeight());
+        assertEquals(Color.RED.getRGB(), image.getRGB(10, 10));
+        assertEquals(Color.BLUE.getRGB(), image.getRGB(50, 10));
+    }
+
+    @Test
+    void readStreamTwice() throws IOException {
+        reader.setInput(stream());
+        assertPixels(reader.read(0));
+        assertPixels(reader.read(0));
+    }
+
+    @Test
+    void readStreamFromItsStartingPosition() throws IOException {
+        final byte[] prefixed = new byte[webp.length + 3];
+        System.arraycopy(webp, 0, prefixed, 3, webp.length);
+        final ImageInputStream stream = new MemoryCacheImageInputStream(new ByteArrayInputStream(prefixed));
+        stream.skipBytes(3);
+        reader.setInput(stream);
+        assertPixels(reader.read(0));
+        assertPixels(reader.read(0));
+    }
+
+    @Test
+    void oneShotChannelCantBeReadTwice() throws IOException {
+        reader.setInput(Channels.newChannel(new ByteArrayInputStream(webp)));
+        assertPixels(reader.read(0));
+        assertThrows(IllegalStateException.class, () -> reader.read(0));
+    }
+
+    @Test
+    void readAllFromStream() throws IOException {
+        reader.setInput(stream());
+        final IIOImage image = reader.readAll(0, null);
+        assertPixels((BufferedImage) image.getRenderedImage());
+        assertTrue(((WebpImageMetadata) image.getMetadata()).getExif().isEmpty());
+    }
+
+    @Test
+    void metadataAfterReadingOneShotChannel() throws IOException {
+        reader.setInput(Channels.newChannel(new ByteArrayInputStream(webp)));
+        final IIOImage image = reader.readAll(0, null);
+        assertPixels((BufferedImage) image.getRenderedImage());
+        assertTrue(((WebpImageMetadata) image.getMetadata()).getExif().isEmpty());
+    }
+
+    @Test
+    void emptyStream() {
+        reader.setInput(new MemoryCacheImageInputStream(new ByteArrayInputStream(new byte[0])));
+        assertThrows(IIOException.class, () -> reader.getImageMetadata(0));
+    }
+
+}
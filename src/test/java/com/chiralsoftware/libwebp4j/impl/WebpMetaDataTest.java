@@ -0,0 +1,75 @@
+package com.chiralsoftware.libwebp4j.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import jdk.incubator.foreign.MemorySegment;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+
+/**
+ * The EXIF orientation parsing, in both TIFF byte orders
+ */
+class WebpMetaDataTest {
+
+    private static final short ORIENTATION = 0x0112, IMAGE_WIDTH = 0x0100;
+    private static final short SHORT = 3, LONG = 4;
+
+    /** A TIFF structure whose IFD0 has an image width entry then an orientation entry
+     * @param prefix whether to start with the "Exif\0\0" of a JPEG APP1 segment */
+    private static MemorySegment exif(ByteOrder order, int orientation, boolean prefix) {
+        final ByteBuffer b = ByteBuffer.allocate(64).order(order);
+        if(prefix) b.put("Exif\0\0".getBytes());
+        final int tiff = b.position();
+        b.put(order == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M');
+        b.put(order == ByteOrder.LITTLE_ENDIAN ? (byte) 'I' : (byte) 'M');
+        b.putShort((short) 42);
+        b.putInt(8); // IFD0 follows the header
+        b.putShort((short) 2);
+        b.putShort(IMAGE_WIDTH).putShort(LONG).putInt(1).putInt(4000);
+        b.putShort(ORIENTATION).putShort(SHORT).putInt(1).putShort((short) orientation).putShort((short) 0);
+        b.putInt(0); // no IFD1
+        final byte[] bytes = new byte[b.position()];
+        b.flip().get(bytes);
+        return MemorySegment.ofArray(bytes);
+    }
+
+    @Test
+    void littleEndian() {
+        for(int orientation = 1; orientation <= 8; orientation++)
+            assertEquals(orientation, WebpMetaData.exifOrientation(exif(ByteOrder.LITTLE_ENDIAN, orientation, false)));
+    }
+
+    @Test
+    void bigEndian() {
+        for(int orientation = 1; orientation <= 8; orientation++)
+            assertEquals(orientation, WebpMetaData.exifOrientation(exif(ByteOrder.BIG_ENDIAN, orientation, false)));
+    }
+
+    @Test
+    void app1Prefix() {
+        assertEquals(6, WebpMetaData.exifOrientation(exif(ByteOrder.LITTLE_ENDIAN, 6, true)));
+        assertEquals(8, WebpMetaData.exifOrientation(exif(ByteOrder.BIG_ENDIAN, 8, true)));
+    }
+
+    @Test
+    void outOfRangeOrientation() {
+        assertEquals(1, WebpMetaData.exifOrientation(exif(ByteOrder.BIG_ENDIAN, 0, false)));
+        assertEquals(1, WebpMetaData.exifOrientation(exif(ByteOrder.LITTLE_ENDIAN, 9, false)));
+    }
+
+    @Test
+    void truncatedOrGarbage() {
+        final MemorySegment exif = exif(ByteOrder.BIG_ENDIAN, 6, false);
+        // cut off in the middle of the orientation entry
+        assertEquals(1, WebpMetaData.exifOrientation(exif.asSlice(0, 30)));
+        assertEquals(1, WebpMetaData.exifOrientation(exif.asSlice(0, 4)));
+        assertEquals(1, WebpMetaData.exifOrientation(MemorySegment.ofArray(new byte[0])));
+        assertEquals(1, WebpMetaData.exifOrientation(MemorySegment.ofArray("not a TIFF header".getBytes())));
+
+        // an IFD offset past the end
+        final byte[] bytes = exif(ByteOrder.LITTLE_ENDIAN, 6, false).toByteArray();
+        bytes[4] = (byte) 0xf0;
+        assertEquals(1, WebpMetaData.exifOrientation(MemorySegment.ofArray(bytes)));
+    }
+
+}